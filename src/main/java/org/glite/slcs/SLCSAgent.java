@@ -0,0 +1,598 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.glite.slcs.SLCSBatchInit.BatchIdentity;
+import org.glite.slcs.SLCSBatchInit.BatchResult;
+import org.glite.slcs.config.SLCSClientConfiguration;
+import org.glite.slcs.ui.Version;
+import org.glite.slcs.util.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SLCSAgent: slcs-agentd command
+ * <p>
+ * Long running agent keeping the configuration, the metadata, the SSL
+ * truststore and the HTTP connection pool warm, and serving the certificate
+ * requests of the <code>slcs-init --agent</code> thin client.
+ * <p>
+ * The agent listens on a loopback TCP port (Java 6 doesn't support Unix
+ * domain sockets). The port and a random secret are written in the agent file
+ * (<code>$HOME/.slcs-agent</code>, permission 600), and the client must send
+ * the secret with each request. Concurrent identical requests are coalesced in
+ * one certificate request.
+ * <p>
+ * Protocol (one request per connection, UTF-8 lines):
+ *
+ * <pre>
+ * SLCS-AGENT/1 secret
+ * idp=providerId
+ * user=username
+ * password=password
+ * keypass=password (optional)
+ * storedir=directory (optional)
+ * prefix=prefix (optional)
+ * p12=true (optional)
+ * (empty line)
+ * </pre>
+ *
+ * The response is either <code>OK usercert-filename</code> or
+ * <code>ERROR message</code>.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class SLCSAgent extends SLCSBaseClient {
+
+    /** Logging */
+    private static Logger LOG = LoggerFactory.getLogger(SLCSAgent.class);
+
+    /** Protocol identifier */
+    static final String PROTOCOL = "SLCS-AGENT/1";
+
+    /** Agent file permission */
+    static private final int AGENT_FILE_PERMISSION = 600;
+
+    /** Read timeout of the client requests (millis) */
+    static private final int REQUEST_READ_TIMEOUT = 30000;
+
+    /** Warm SLCS engine */
+    private SLCSBatchInit engine_ = null;
+
+    /** Shared secret with the clients */
+    private String secret_ = null;
+
+    /** Certificate requests workers, one per concurrent request */
+    private ExecutorService workers_ = null;
+
+    /** Pending certificate requests */
+    private ConcurrentMap<RequestKey, FutureTask<BatchResult>> pending_ = new ConcurrentHashMap<RequestKey, FutureTask<BatchResult>>();
+
+    /**
+     * @param configuration
+     *            The SLCS client configuration
+     * @param threads
+     *            The maximum number of concurrent certificate requests
+     * @throws SLCSException
+     */
+    public SLCSAgent(SLCSClientConfiguration configuration, int threads)
+            throws SLCSException {
+        this.engine_ = new SLCSBatchInit(configuration, threads);
+        this.workers_ = Executors.newFixedThreadPool(threads);
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        this.secret_ = Utils.toHexString(random);
+    }
+
+    /**
+     * @return The default agent file <code>$HOME/.slcs-agent</code>
+     */
+    static File getDefaultAgentFile() {
+        return new File(System.getProperty("user.home"), ".slcs-agent");
+    }
+
+    /**
+     * Listens on the loopback interface, writes the agent file and serves the
+     * requests until the JVM is stopped.
+     *
+     * @param agentFile
+     *            The agent file to write
+     * @param threads
+     *            The number of connection handlers
+     * @throws IOException
+     */
+    public void serve(final File agentFile, int threads) throws IOException {
+        ServerSocket server = new ServerSocket(0, 50,
+                InetAddress.getByName("127.0.0.1"));
+        int port = server.getLocalPort();
+        // create empty file with restricted permission first, then write
+        agentFile.delete();
+        if (!agentFile.createNewFile()) {
+            server.close();
+            throw new IOException("Failed to create agent file: " + agentFile);
+        }
+        if (!Utils.setFilePermissions(agentFile, AGENT_FILE_PERMISSION)) {
+            // the secret must not be readable by the other users
+            agentFile.delete();
+            server.close();
+            throw new IOException("Failed to set permissions: "
+                    + AGENT_FILE_PERMISSION + " for agent file: " + agentFile);
+        }
+        PrintWriter writer = new PrintWriter(new FileWriter(agentFile));
+        writer.println(port + " " + secret_);
+        writer.close();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                agentFile.delete();
+            }
+        });
+        LOG.info("SLCS agent listening on 127.0.0.1:" + port + " (agent file: "
+                + agentFile + ")");
+
+        ExecutorService handlers = Executors.newFixedThreadPool(threads);
+        while (true) {
+            final Socket socket = server.accept();
+            handlers.execute(new Runnable() {
+                public void run() {
+                    handle(socket);
+                }
+            });
+        }
+    }
+
+    /**
+     * Handles one client connection.
+     *
+     * @param socket
+     *            The client socket
+     */
+    private void handle(Socket socket) {
+        try {
+            // an idle client must not block the handler
+            socket.setSoTimeout(REQUEST_READ_TIMEOUT);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), "UTF-8"));
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+                    socket.getOutputStream(), "UTF-8"));
+            String response = null;
+            try {
+                BatchIdentity identity = readRequest(reader);
+                BatchResult result = issue(identity);
+                if (result.isSuccess()) {
+                    response = "OK " + result.usercert;
+                }
+                else {
+                    response = "ERROR " + result.error;
+                }
+            } catch (SLCSException e) {
+                LOG.warn("Invalid request: " + e.getMessage());
+                response = "ERROR " + e.getMessage();
+            }
+            // single line response
+            writer.println(response.replace('\n', ' '));
+            writer.flush();
+        } catch (IOException e) {
+            LOG.error("Failed to handle client request", e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+    /**
+     * Reads and checks the request.
+     *
+     * @param reader
+     *            The client request reader
+     * @return The identity to process
+     * @throws IOException
+     * @throws SLCSException
+     *             If the secret doesn't match or the request is invalid.
+     */
+    private BatchIdentity readRequest(BufferedReader reader)
+            throws IOException, SLCSException {
+        String header = reader.readLine();
+        if (header == null || !header.equals(PROTOCOL + " " + secret_)) {
+            throw new AuthException("Invalid agent secret");
+        }
+        BatchIdentity identity = new BatchIdentity();
+        String line = null;
+        while ((line = reader.readLine()) != null && line.length() > 0) {
+            int i = line.indexOf('=');
+            if (i < 1) {
+                throw new SLCSException("Invalid request line: " + line);
+            }
+            String name = line.substring(0, i);
+            String value = line.substring(i + 1);
+            if (name.equals("idp")) {
+                identity.idpProviderId = value;
+            }
+            else if (name.equals("user")) {
+                identity.username = value;
+            }
+            else if (name.equals("password")) {
+                identity.password = value.toCharArray();
+            }
+            else if (name.equals("keypass")) {
+                identity.keyPassword = value.toCharArray();
+            }
+            else if (name.equals("storedir")) {
+                identity.storeDirectory = value;
+            }
+            else if (name.equals("prefix")) {
+                identity.prefix = value;
+            }
+            else if (name.equals("p12")) {
+                identity.storeP12 = Boolean.valueOf(value).booleanValue();
+            }
+            else {
+                throw new SLCSException("Unknown request parameter: " + name);
+            }
+        }
+        if (identity.idpProviderId == null || identity.username == null
+                || identity.password == null) {
+            throw new SLCSException("Parameters idp, user and password are required");
+        }
+        if (identity.keyPassword == null) {
+            identity.keyPassword = identity.password;
+        }
+        return identity;
+    }
+
+    /**
+     * Requests the certificate on a worker, or waits for an identical request
+     * already pending.
+     *
+     * @param identity
+     *            The identity to process
+     * @return The result
+     */
+    private BatchResult issue(final BatchIdentity identity) {
+        RequestKey key = new RequestKey(identity);
+        FutureTask<BatchResult> task = new FutureTask<BatchResult>(
+                new Callable<BatchResult>() {
+                    public BatchResult call() {
+                        return engine_.process(identity);
+                    }
+                });
+        FutureTask<BatchResult> running = pending_.putIfAbsent(key, task);
+        try {
+            if (running == null) {
+                LOG.debug("new request: " + identity);
+                workers_.execute(task);
+                running = task;
+            }
+            else {
+                LOG.info("coalesce with running request: " + identity);
+            }
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new BatchResult(identity, "Interrupted", 0);
+        } catch (ExecutionException e) {
+            return new BatchResult(identity, e.getCause().toString(), 0);
+        } finally {
+            if (running == task) {
+                pending_.remove(key, task);
+            }
+            else {
+                // coalesced: passwords not used, nor wiped, by the engine
+                wipe(identity);
+            }
+            key.wipe();
+        }
+    }
+
+    /**
+     * Wipes the identity passwords.
+     *
+     * @param identity
+     *            The coalesced identity
+     */
+    private static void wipe(BatchIdentity identity) {
+        Arrays.fill(identity.password, '\0');
+        if (identity.keyPassword != identity.password) {
+            Arrays.fill(identity.keyPassword, '\0');
+        }
+    }
+
+    /**
+     * Sends a certificate request to the running agent. Used by
+     * <code>slcs-init --agent</code>.
+     *
+     * @param agentFile
+     *            The agent file
+     * @param idpProviderId
+     * @param username
+     * @param password
+     * @param keyPassword
+     * @param storeDirectory
+     *            optional store directory
+     * @param prefix
+     *            optional prefix
+     * @param storeP12
+     * @return The stored usercert filename
+     * @throws SLCSException
+     *             If the agent is not running or the request failed.
+     */
+    static String requestCertificate(File agentFile, String idpProviderId,
+            String username, char[] password, char[] keyPassword,
+            String storeDirectory, String prefix, boolean storeP12)
+            throws SLCSException {
+        String port = null;
+        String secret = null;
+        try {
+            BufferedReader fileReader = new BufferedReader(new FileReader(
+                    agentFile));
+            String line = fileReader.readLine();
+            fileReader.close();
+            String fields[] = line != null ? line.split(" ") : new String[0];
+            if (fields.length != 2) {
+                throw new SLCSException("Invalid agent file: " + agentFile);
+            }
+            port = fields[0];
+            secret = fields[1];
+        } catch (IOException e) {
+            throw new SLCSException("SLCS agent not running? Failed to read agent file: "
+                    + agentFile, e);
+        }
+        Socket socket = null;
+        try {
+            socket = new Socket(InetAddress.getByName("127.0.0.1"),
+                    Integer.parseInt(port));
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+                    socket.getOutputStream(), "UTF-8"));
+            writer.println(PROTOCOL + " " + secret);
+            writer.println("idp=" + idpProviderId);
+            writer.println("user=" + username);
+            writer.print("password=");
+            writer.println(password);
+            if (keyPassword != null && keyPassword != password) {
+                writer.print("keypass=");
+                writer.println(keyPassword);
+            }
+            if (storeDirectory != null) {
+                writer.println("storedir="
+                        + new File(storeDirectory).getAbsolutePath());
+            }
+            if (prefix != null) {
+                writer.println("prefix=" + prefix);
+            }
+            if (storeP12) {
+                writer.println("p12=true");
+            }
+            writer.println();
+            writer.flush();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), "UTF-8"));
+            String response = reader.readLine();
+            if (response == null) {
+                throw new RemoteException("SLCS agent closed the connection");
+            }
+            if (response.startsWith("OK ")) {
+                return response.substring(3);
+            }
+            throw new RemoteException("SLCS agent: " + response);
+        } catch (IOException e) {
+            throw new RemoteException("Failed to connect to SLCS agent on port "
+                    + port, e);
+        } catch (NumberFormatException e) {
+            throw new SLCSException("Invalid agent file: " + agentFile, e);
+        } finally {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+    }
+
+    /**
+     * @param args
+     */
+    public static void main(String[] args) {
+        LOG.info("slcs-agentd: " + SLCSAgent.class.getName() + " - "
+                + Version.getCopyright());
+        LOG.info("Version: " + Version.getName() + " " + Version.getVersion()
+                + " (" + org.glite.slcs.common.Version.getName() + " "
+                + org.glite.slcs.common.Version.getVersion() + ")");
+
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = null;
+        boolean error = false;
+        Options options = createCommandLineOptions();
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            error = true;
+        }
+
+        // help? or error
+        if (error || cmd.hasOption('h')) {
+            HelpFormatter help = new HelpFormatter();
+            help.printHelp("slcs-agentd [options]", options);
+            System.exit(1);
+        }
+
+        // config
+        String config = null;
+        if (cmd.hasOption('c')) {
+            config = cmd.getOptionValue('c');
+            File configFile = new File(config);
+            if (!configFile.exists()) {
+                System.err.println("ERROR: config file: " + config
+                        + " doesn't exist");
+                System.exit(1);
+            }
+        }
+        else {
+            config = DEFAULT_CONFIGURATION_FILE;
+        }
+
+        // concurrency
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (cmd.hasOption('t')) {
+            try {
+                threads = Integer.parseInt(cmd.getOptionValue('t'));
+            } catch (NumberFormatException e) {
+                threads = -1;
+            }
+            if (threads < 1) {
+                System.err.println("ERROR: --threads: invalid number: "
+                        + cmd.getOptionValue('t'));
+                System.exit(1);
+            }
+        }
+
+        File agentFile = getDefaultAgentFile();
+        if (cmd.hasOption('a')) {
+            agentFile = new File(cmd.getOptionValue('a'));
+        }
+
+        try {
+            SLCSClientConfiguration configuration = SLCSClientConfiguration.getInstance(config);
+            SLCSAgent agent = new SLCSAgent(configuration, threads);
+            // the certificate requests run on the agent workers, the
+            // additional handlers only wait for the coalesced requests
+            agent.serve(agentFile, threads * 4);
+        } catch (SLCSException e) {
+            LOG.error("SLCS agent creation error", e);
+            System.err.println("ERROR: Failed to create SLCS agent: " + e);
+            System.exit(1);
+        } catch (IOException e) {
+            LOG.error("SLCS agent error", e);
+            System.err.println("ERROR: SLCS agent: " + e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Creates the CLI options.
+     *
+     * @return The CLI Options
+     */
+    private static Options createCommandLineOptions() {
+        Option help = new Option("h", "help", false, "this help");
+        Option config = new Option("c", "conf", true,
+                "SLCS client XML configuration file");
+        config.setArgName("filename");
+        Option threads = new Option("t", "threads", true,
+                "number of concurrent certificate requests (default: number of CPUs)");
+        threads.setArgName("number");
+        Option agentFile = new Option("a", "agent-file", true,
+                "agent file (default: $HOME/.slcs-agent)");
+        agentFile.setArgName("filename");
+        Options options = new Options();
+        options.addOption(help);
+        options.addOption(config);
+        options.addOption(threads);
+        options.addOption(agentFile);
+        return options;
+    }
+
+    /**
+     * Identifies identical certificate requests. The passwords are part of the
+     * key, a request with another password is never coalesced.
+     */
+    private static class RequestKey {
+        private String idpProviderId_;
+        private String username_;
+        private String storeDirectory_;
+        private String prefix_;
+        private char[] password_;
+        private char[] keyPassword_;
+        private boolean storeP12_;
+
+        RequestKey(BatchIdentity identity) {
+            idpProviderId_ = identity.idpProviderId;
+            username_ = identity.username;
+            storeDirectory_ = identity.storeDirectory;
+            prefix_ = identity.prefix;
+            // copies, the identity passwords are wiped after processing
+            password_ = identity.password.clone();
+            keyPassword_ = identity.keyPassword.clone();
+            storeP12_ = identity.storeP12;
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof RequestKey)) {
+                return false;
+            }
+            RequestKey other = (RequestKey) obj;
+            return idpProviderId_.equals(other.idpProviderId_)
+                    && username_.equals(other.username_)
+                    && equals(storeDirectory_, other.storeDirectory_)
+                    && equals(prefix_, other.prefix_)
+                    && Arrays.equals(password_, other.password_)
+                    && Arrays.equals(keyPassword_, other.keyPassword_)
+                    && storeP12_ == other.storeP12_;
+        }
+
+        public int hashCode() {
+            int hash = idpProviderId_.hashCode();
+            hash = 31 * hash + username_.hashCode();
+            hash = 31 * hash
+                    + (storeDirectory_ == null ? 0 : storeDirectory_.hashCode());
+            hash = 31 * hash + (prefix_ == null ? 0 : prefix_.hashCode());
+            return hash;
+        }
+
+        void wipe() {
+            Arrays.fill(password_, '\0');
+            Arrays.fill(keyPassword_, '\0');
+        }
+
+        private static boolean equals(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+}
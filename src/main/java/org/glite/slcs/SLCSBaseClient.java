@@ -20,12 +20,21 @@ import java.io.File;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.httpclient.protocol.Protocol;
 import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
 import org.apache.commons.lang.StringUtils;
 import org.glite.slcs.config.SLCSClientConfiguration;
 import org.glite.slcs.httpclient.ssl.ExtendedProtocolSocketFactory;
+import org.glite.slcs.shibclient.AdaptiveTimeouts;
+import org.glite.slcs.shibclient.HttpTrace;
+import org.glite.slcs.shibclient.HttpTraceSocketFactory;
+import org.glite.slcs.shibclient.IdPCircuitBreaker;
+import org.glite.slcs.shibclient.PooledHttpConnectionManager;
+import org.glite.slcs.shibclient.TLSProtocolSocketFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,17 +51,58 @@ public abstract class SLCSBaseClient {
     /** Default XML config filename in CLASSPATH */
     static protected String DEFAULT_CONFIGURATION_FILE= "slcs-init.xml";
 
+    /** Key types */
+    static protected final String KEY_TYPE_RSA= "rsa";
+
+    static protected final String KEY_TYPE_EC= "ec";
+
+    /** Default key size for the key types */
+    static protected final int DEFAULT_RSA_KEY_SIZE= 1024;
+
+    static protected final int DEFAULT_EC_KEY_SIZE= 256;
+
+    /** Default HTTP connection pool params (connections, millis) */
+    static protected final int DEFAULT_MAX_CONNECTIONS_PER_HOST= 2;
+
+    static protected final int DEFAULT_CONNECTION_TIMEOUT= 30000;
+
+    static protected final int DEFAULT_SOCKET_TIMEOUT= 60000;
+
+    static protected final int DEFAULT_IDLE_CONNECTION_TIMEOUT= 30000;
+
+    /** Default adaptive timeouts, retry and circuit breaker params (millis) */
+    static protected final int DEFAULT_MIN_SOCKET_TIMEOUT= 5000;
+
+    static protected final int DEFAULT_MAX_RETRIES= 2;
+
+    static protected final int DEFAULT_RETRY_BACKOFF= 500;
+
+    static protected final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD= 3;
+
+    static protected final int DEFAULT_CIRCUIT_BREAKER_COOLING_OFF= 60000;
+
+    /** Optional HTTP exchanges trace, recorded or replayed */
+    static private HttpTrace httpTrace_= null;
+
+    static private boolean httpTraceReplay_= false;
+
     static protected void registerSSLTrustStore(SLCSClientConfiguration configuration) throws SLCSException {
         String truststorePath= getDefaultHttpClientTrustStoreFile(configuration);
         try {
             ExtendedProtocolSocketFactory epsf = new ExtendedProtocolSocketFactory(truststorePath);
-            Protocol https = new Protocol("https", (ProtocolSocketFactory)epsf, 443);
+            // starts the TLS handshake on connect, for the connections warm-up
+            ProtocolSocketFactory tlsf = new TLSProtocolSocketFactory((ProtocolSocketFactory)epsf);
+            Protocol https = new Protocol("https", tlsf, 443);
             Protocol.registerProtocol("https", https);
             // BUG FIX: register the truststore as default SSLSocketFactory
             // to download the metadata from https (QuoVadis CAs not in all default cacerts)
             LOG.info("register ExtendedProtocolSocketFactory(" + truststorePath + ") as default SSL socket factory");
             SSLContext sc = epsf.getSSLContext();
             HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
+            configureTLSSessionCache(configuration, sc.getClientSessionContext());
+            if (httpTrace_ != null) {
+                HttpTraceSocketFactory.register(httpTrace_, httpTraceReplay_);
+            }
         } catch (Exception e) {
             LOG.error(e.getMessage());
             throw new SLCSException(
@@ -62,6 +112,245 @@ public abstract class SLCSBaseClient {
     }
     
     
+    /**
+     * Configures the TLS client session cache with the optional HttpClient
+     * elements of the SLCS client config: TLSSessionTimeout (seconds) and
+     * TLSSessionCacheSize. Each cached session expires individually. A
+     * connection to a host with a cached session does an abbreviated TLS
+     * handshake.
+     * 
+     * @param configuration
+     *            SLCS client configuration.
+     * @param sessionContext
+     *            The SSL context client session cache.
+     */
+    static private void configureTLSSessionCache(SLCSClientConfiguration configuration,
+            SSLSessionContext sessionContext) {
+        Configuration config= configuration.getConfiguration();
+        int sessionTimeout= config.getInt("HttpClient.TLSSessionTimeout", -1);
+        if (sessionTimeout >= 0) {
+            sessionContext.setSessionTimeout(sessionTimeout);
+        }
+        int sessionCacheSize= config.getInt("HttpClient.TLSSessionCacheSize", -1);
+        if (sessionCacheSize >= 0) {
+            sessionContext.setSessionCacheSize(sessionCacheSize);
+        }
+        LOG.info("HttpClient: TLSSessionTimeout=" + sessionContext.getSessionTimeout()
+                + " TLSSessionCacheSize=" + sessionContext.getSessionCacheSize());
+    }
+
+
+    /**
+     * Returns the registered HTTPS socket factory.
+     * 
+     * @return The HTTPS socket factory, or <code>null</code> if
+     *         {@link #registerSSLTrustStore(SLCSClientConfiguration)} was not
+     *         called.
+     */
+    static protected TLSProtocolSocketFactory getTLSProtocolSocketFactory() {
+        try {
+            ProtocolSocketFactory factory= Protocol.getProtocol("https").getSocketFactory();
+            if (factory instanceof HttpTraceSocketFactory) {
+                factory= ((HttpTraceSocketFactory) factory).getSocketFactory();
+            }
+            if (factory instanceof TLSProtocolSocketFactory) {
+                return (TLSProtocolSocketFactory) factory;
+            }
+        } catch (IllegalStateException e) {
+            // https not registered
+        }
+        return null;
+    }
+
+
+    /**
+     * Records the HTTP exchanges in a trace, or replays them from a trace
+     * without network access. Must be set before
+     * {@link #registerSSLTrustStore(SLCSClientConfiguration)}.
+     * 
+     * @param trace
+     *            The trace to record or to replay.
+     * @param replay
+     *            <code>true</code> to replay the trace.
+     */
+    static protected void setHttpTrace(HttpTrace trace, boolean replay) {
+        httpTrace_= trace;
+        httpTraceReplay_= replay;
+    }
+
+
+    /**
+     * @return The HTTP exchanges trace recorded or replayed, or
+     *         <code>null</code>.
+     */
+    static protected HttpTrace getHttpTrace() {
+        return httpTrace_;
+    }
+
+
+    /**
+     * Creates the keep-alive HTTP connection pool based on the optional
+     * HttpClient elements of the SLCS client config: MaxConnectionsPerHost,
+     * MaxTotalConnections, KeepAlive, IdleConnectionTimeout,
+     * ConnectionTimeout and SocketTimeout (millis).
+     * 
+     * @param configuration
+     *            SLCS client configuration.
+     * @param maxConnectionsPerHost
+     *            The default maximum number of connections per host.
+     * @return The HTTP connection pool.
+     */
+    static protected PooledHttpConnectionManager createHttpConnectionManager(SLCSClientConfiguration configuration,
+            int maxConnectionsPerHost) {
+        Configuration config= configuration.getConfiguration();
+        maxConnectionsPerHost= config.getInt("HttpClient.MaxConnectionsPerHost", maxConnectionsPerHost);
+        int maxTotalConnections= config.getInt("HttpClient.MaxTotalConnections", maxConnectionsPerHost * 4);
+        boolean keepAlive= config.getBoolean("HttpClient.KeepAlive", true);
+        int idleTimeout= config.getInt("HttpClient.IdleConnectionTimeout", DEFAULT_IDLE_CONNECTION_TIMEOUT);
+        int connectionTimeout= config.getInt("HttpClient.ConnectionTimeout", DEFAULT_CONNECTION_TIMEOUT);
+        int socketTimeout= config.getInt("HttpClient.SocketTimeout", DEFAULT_SOCKET_TIMEOUT);
+        LOG.info("HttpClient: MaxConnectionsPerHost=" + maxConnectionsPerHost
+                + " MaxTotalConnections=" + maxTotalConnections
+                + " KeepAlive=" + keepAlive + " IdleConnectionTimeout="
+                + idleTimeout + " ConnectionTimeout=" + connectionTimeout
+                + " SocketTimeout=" + socketTimeout);
+        PooledHttpConnectionManager connectionManager= new PooledHttpConnectionManager();
+        HttpConnectionManagerParams params= connectionManager.getParams();
+        params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+        params.setMaxTotalConnections(maxTotalConnections);
+        params.setConnectionTimeout(connectionTimeout);
+        params.setSoTimeout(socketTimeout);
+        connectionManager.setKeepAlive(keepAlive);
+        connectionManager.setIdleTimeout(idleTimeout);
+        return connectionManager;
+    }
+
+
+    /**
+     * Creates the per host adaptive socket timeouts based on the optional
+     * HttpClient elements of the SLCS client config: AdaptiveTimeouts,
+     * MinSocketTimeout and SocketTimeout (millis).
+     * 
+     * @param configuration
+     *            SLCS client configuration.
+     * @return The adaptive timeouts, or <code>null</code> if disabled.
+     */
+    static protected AdaptiveTimeouts createAdaptiveTimeouts(SLCSClientConfiguration configuration) {
+        Configuration config= configuration.getConfiguration();
+        boolean adaptiveTimeouts= config.getBoolean("HttpClient.AdaptiveTimeouts", true);
+        int minSocketTimeout= config.getInt("HttpClient.MinSocketTimeout", DEFAULT_MIN_SOCKET_TIMEOUT);
+        int socketTimeout= config.getInt("HttpClient.SocketTimeout", DEFAULT_SOCKET_TIMEOUT);
+        LOG.info("HttpClient: AdaptiveTimeouts=" + adaptiveTimeouts
+                + " MinSocketTimeout=" + minSocketTimeout);
+        if (!adaptiveTimeouts) {
+            return null;
+        }
+        return new AdaptiveTimeouts(minSocketTimeout, socketTimeout);
+    }
+
+
+    /**
+     * Creates the IdP circuit breaker based on the optional HttpClient
+     * elements of the SLCS client config: CircuitBreakerThreshold and
+     * CircuitBreakerCoolingOff (millis).
+     * 
+     * @param configuration
+     *            SLCS client configuration.
+     * @return The IdP circuit breaker, or <code>null</code> if the threshold
+     *         is 0.
+     */
+    static protected IdPCircuitBreaker createIdPCircuitBreaker(SLCSClientConfiguration configuration) {
+        Configuration config= configuration.getConfiguration();
+        int threshold= config.getInt("HttpClient.CircuitBreakerThreshold", DEFAULT_CIRCUIT_BREAKER_THRESHOLD);
+        int coolingOff= config.getInt("HttpClient.CircuitBreakerCoolingOff", DEFAULT_CIRCUIT_BREAKER_COOLING_OFF);
+        LOG.info("HttpClient: CircuitBreakerThreshold=" + threshold
+                + " CircuitBreakerCoolingOff=" + coolingOff);
+        if (threshold <= 0) {
+            return null;
+        }
+        return new IdPCircuitBreaker(threshold, coolingOff);
+    }
+
+
+    /**
+     * Returns the optional HttpClient.MaxRetries from the config, the maximum
+     * number of retries of the idempotent GET requests of the login flow.
+     * 
+     * @param configuration
+     *            SLCS client configuration.
+     * @return The maximum number of retries, 0 to disable.
+     */
+    static protected int getHttpMaxRetries(SLCSClientConfiguration configuration) {
+        int maxRetries= configuration.getConfiguration().getInt("HttpClient.MaxRetries", DEFAULT_MAX_RETRIES);
+        LOG.info("HttpClient: MaxRetries=" + maxRetries);
+        return Math.max(maxRetries, 0);
+    }
+
+
+    /**
+     * Returns the optional HttpClient.RetryBackoff from the config, the base
+     * backoff in milliseconds before a retry, doubled by retry.
+     * 
+     * @param configuration
+     *            SLCS client configuration.
+     * @return The base retry backoff.
+     */
+    static protected int getHttpRetryBackoff(SLCSClientConfiguration configuration) {
+        return configuration.getConfiguration().getInt("HttpClient.RetryBackoff", DEFAULT_RETRY_BACKOFF);
+    }
+
+
+    /**
+     * Returns the optional HttpClient.MaxHtmlPageSize from the config, the
+     * maximum size in bytes of the IdP HTML pages read up to the target form.
+     * 
+     * @param configuration
+     *            SLCS client configuration.
+     * @return The maximum HTML page size, or 0 if not configured (the whole
+     *         pages are parsed).
+     */
+    static protected int getMaxHtmlPageSize(SLCSClientConfiguration configuration) {
+        int maxHtmlPageSize= configuration.getConfiguration().getInt("HttpClient.MaxHtmlPageSize", 0);
+        if (maxHtmlPageSize > 0) {
+            LOG.info("HttpClient: MaxHtmlPageSize=" + maxHtmlPageSize);
+        }
+        return maxHtmlPageSize;
+    }
+
+
+    /**
+     * Returns the optional HttpClient.WarmUp from the config. The
+     * connections are only warmed up if they are kept alive.
+     * 
+     * @param configuration
+     *            SLCS client configuration.
+     * @return <code>true</code> (default) if the connections to the SP and
+     *         IdP hosts are opened in parallel before the login.
+     */
+    static protected boolean isHttpWarmUp(SLCSClientConfiguration configuration) {
+        Configuration config= configuration.getConfiguration();
+        boolean warmUp= config.getBoolean("HttpClient.WarmUp", true)
+                && config.getBoolean("HttpClient.KeepAlive", true);
+        LOG.info("HttpClient: WarmUp=" + warmUp);
+        return warmUp;
+    }
+
+
+    /**
+     * Returns the optional HttpClient.Compression from the config.
+     * 
+     * @param configuration
+     *            SLCS client configuration.
+     * @return <code>true</code> (default) if the requests accept the gzip and
+     *         deflate encoded responses.
+     */
+    static protected boolean isHttpCompression(SLCSClientConfiguration configuration) {
+        boolean compression= configuration.getConfiguration().getBoolean("HttpClient.Compression", true);
+        LOG.info("HttpClient: Compression=" + compression);
+        return compression;
+    }
+
+
     static protected String getDefaultHttpClientTrustStoreFile(SLCSClientConfiguration configuration)
         throws SLCSConfigurationException {
         String truststoreFile = configuration.getString("HttpClient.TrustStoreFile");
@@ -80,39 +369,7 @@ public abstract class SLCSBaseClient {
             throws SLCSConfigurationException {
                 String storeDirectory = configuration.getString("StoreDirectory");
                 LOG.debug("StoreDirectory=" + storeDirectory);
-                // check java properties variable and expand
-                int start = storeDirectory.indexOf("${");
-                if (0 <= start) {
-                    int stop = storeDirectory.indexOf("}");
-                    if (start <= stop) {
-                        String propertyName = storeDirectory.substring(start + 2, stop);
-                        String propertyValue = System.getProperty(propertyName);
-                        if (propertyValue != null) {
-                            LOG.debug("replace ${" + propertyName + "} with: "
-                                    + propertyValue);
-                            // Windows uses backslash, must be escaped !!!
-                            propertyValue = StringUtils.replace(propertyValue, "\\",
-                                                                "/", -1);
-                            String replace = "${" + propertyName + "}";
-                            storeDirectory = StringUtils.replace(storeDirectory,
-                                                                 replace,
-                                                                 propertyValue, -1);
-                        }
-                        else {
-                            LOG.error("StoreDirectory contains invalid ${"
-                                    + propertyName + "} java property");
-                            throw new SLCSConfigurationException(
-                                    "StoreDirectory contains invalid ${" + propertyName
-                                            + "} java property");
-                        }
-                    }
-                    else {
-                        // ERROR
-                        LOG.error("StoreDirectory contains invalid ${...} java property");
-                        throw new SLCSConfigurationException(
-                                "StoreDirectory contains invalid ${...} java property");
-                    }
-                }
+                storeDirectory = expandJavaProperty("StoreDirectory", storeDirectory);
                 // get absolute pathname
                 File directory = new File(storeDirectory);
                 storeDirectory = directory.getAbsolutePath();
@@ -121,6 +378,120 @@ public abstract class SLCSBaseClient {
             }
 
 
+    /**
+     * Returns the optional KeyPoolDirectory from the config.
+     * 
+     * @param configuration
+     *            SLCS client configuration.
+     * @return The absolute key pool directory name or <code>null</code> if
+     *         not configured.
+     * @throws SLCSConfigurationException
+     */
+    protected static String getDefaultKeyPoolDirectory(SLCSClientConfiguration configuration)
+            throws SLCSConfigurationException {
+        if (!configuration.contains("KeyPoolDirectory")) {
+            return null;
+        }
+        String keyPoolDirectory = configuration.getString("KeyPoolDirectory");
+        keyPoolDirectory = expandJavaProperty("KeyPoolDirectory", keyPoolDirectory);
+        keyPoolDirectory = new File(keyPoolDirectory).getAbsolutePath();
+        LOG.info("KeyPoolDirectory=" + keyPoolDirectory);
+        return keyPoolDirectory;
+    }
+
+
+    /**
+     * Returns the optional IdPSessionCacheFile from the config.
+     * 
+     * @param configuration
+     *            SLCS client configuration.
+     * @return The absolute IdP session cache filename or <code>null</code>
+     *         if not configured.
+     * @throws SLCSConfigurationException
+     */
+    protected static String getDefaultIdPSessionCacheFile(SLCSClientConfiguration configuration)
+            throws SLCSConfigurationException {
+        if (!configuration.contains("IdPSessionCacheFile")) {
+            return null;
+        }
+        String sessionCacheFile = configuration.getString("IdPSessionCacheFile");
+        sessionCacheFile = expandJavaProperty("IdPSessionCacheFile", sessionCacheFile);
+        sessionCacheFile = new File(sessionCacheFile).getAbsolutePath();
+        LOG.info("IdPSessionCacheFile=" + sessionCacheFile);
+        return sessionCacheFile;
+    }
+
+    /**
+     * Returns the optional FlowPlanFile from the config.
+     * 
+     * @param configuration
+     *            SLCS client configuration.
+     * @return The absolute flow plans filename or <code>null</code> if not
+     *         configured.
+     * @throws SLCSConfigurationException
+     */
+    protected static String getDefaultFlowPlanFile(SLCSClientConfiguration configuration)
+            throws SLCSConfigurationException {
+        if (!configuration.contains("FlowPlanFile")) {
+            return null;
+        }
+        String flowPlanFile = configuration.getString("FlowPlanFile");
+        flowPlanFile = expandJavaProperty("FlowPlanFile", flowPlanFile);
+        flowPlanFile = new File(flowPlanFile).getAbsolutePath();
+        LOG.info("FlowPlanFile=" + flowPlanFile);
+        return flowPlanFile;
+    }
+
+
+    /**
+     * Expands the ${...} java property variable contained in the value.
+     * 
+     * @param name
+     *            The config element name.
+     * @param value
+     *            The config element value.
+     * @return The expanded value.
+     * @throws SLCSConfigurationException
+     *             If the variable is not a valid java property.
+     */
+    private static String expandJavaProperty(String name, String value)
+            throws SLCSConfigurationException {
+        // check java properties variable and expand
+        int start = value.indexOf("${");
+        if (0 <= start) {
+            int stop = value.indexOf("}");
+            if (start <= stop) {
+                String propertyName = value.substring(start + 2, stop);
+                String propertyValue = System.getProperty(propertyName);
+                if (propertyValue != null) {
+                    LOG.debug("replace ${" + propertyName + "} with: "
+                            + propertyValue);
+                    // Windows uses backslash, must be escaped !!!
+                    propertyValue = StringUtils.replace(propertyValue, "\\",
+                                                        "/", -1);
+                    String replace = "${" + propertyName + "}";
+                    value = StringUtils.replace(value, replace,
+                                                propertyValue, -1);
+                }
+                else {
+                    LOG.error(name + " contains invalid ${"
+                            + propertyName + "} java property");
+                    throw new SLCSConfigurationException(
+                            name + " contains invalid ${" + propertyName
+                                    + "} java property");
+                }
+            }
+            else {
+                // ERROR
+                LOG.error(name + " contains invalid ${...} java property");
+                throw new SLCSConfigurationException(
+                        name + " contains invalid ${...} java property");
+            }
+        }
+        return value;
+    }
+
+
     /**
      * Returns the default UserCertFile from the config.
      * 
@@ -173,7 +544,7 @@ public abstract class SLCSBaseClient {
             throws SLCSConfigurationException {
                 int keySize = configuration.getInt("UserKeySize");
                 // check valid key size
-                if (!validKeySize(keySize)) {
+                if (!validKeySize(getDefaultUserKeyType(configuration), keySize)) {
                     LOG.error("Invalid UserKeySize: " + keySize);
                     throw new SLCSConfigurationException("Invalid UserKeySize: "
                             + keySize);
@@ -183,6 +554,83 @@ public abstract class SLCSBaseClient {
             }
 
 
+    /**
+     * Returns the UserKeySize from the config if valid for the key type,
+     * otherwise the default size for the key type.
+     * 
+     * @param configuration
+     *            the XML config obj.
+     * @param keyType
+     *            The key type: {@link #KEY_TYPE_RSA} or {@link #KEY_TYPE_EC}.
+     * @return the key size (bits).
+     */
+    protected static int getDefaultUserKeySize(SLCSClientConfiguration configuration,
+            String keyType) {
+        int keySize = configuration.getInt("UserKeySize");
+        if (!validKeySize(keyType, keySize)) {
+            keySize = KEY_TYPE_EC.equals(keyType) ? DEFAULT_EC_KEY_SIZE
+                    : DEFAULT_RSA_KEY_SIZE;
+            LOG.info("UserKeySize not valid for " + keyType + " keys, using: "
+                    + keySize);
+        }
+        return keySize;
+    }
+
+
+    /**
+     * Returns the optional UserKeyType from the config.
+     * 
+     * @param configuration
+     *            the XML config obj.
+     * @return The key type {@link #KEY_TYPE_RSA} (default) or
+     *         {@link #KEY_TYPE_EC}.
+     * @throws SLCSConfigurationException
+     *             If the key type is invalid.
+     */
+    protected static String getDefaultUserKeyType(SLCSClientConfiguration configuration)
+            throws SLCSConfigurationException {
+        String keyType = KEY_TYPE_RSA;
+        if (configuration.contains("UserKeyType")) {
+            keyType = configuration.getString("UserKeyType").trim().toLowerCase();
+            if (!validKeyType(keyType)) {
+                LOG.error("Invalid UserKeyType: " + keyType);
+                throw new SLCSConfigurationException("Invalid UserKeyType: "
+                        + keyType + " (rsa or ec)");
+            }
+        }
+        LOG.info("KeyType=" + keyType);
+        return keyType;
+    }
+
+
+    /**
+     * @param keyType
+     *            the key type
+     * @return <code>true</code> if the key type is rsa or ec.
+     */
+    protected static boolean validKeyType(String keyType) {
+        return KEY_TYPE_RSA.equals(keyType) || KEY_TYPE_EC.equals(keyType);
+    }
+
+
+    /**
+     * Checks that the size is 1024 or 2048 for RSA keys, 256 or 384 for EC
+     * keys.
+     * 
+     * @param keyType
+     *            the key type
+     * @param size
+     *            the key size
+     * @return <code>true</code> if the size valid.
+     */
+    protected static boolean validKeySize(String keyType, int size) {
+        if (KEY_TYPE_EC.equals(keyType)) {
+            return size == 256 || size == 384;
+        }
+        return validKeySize(size);
+    }
+
+
     /**
      * Checks that the size is 1024 or 2048
      * 
@@ -0,0 +1,644 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.httpclient.HttpClient;
+import org.glite.slcs.config.SLCSClientConfiguration;
+import org.glite.slcs.shibclient.AdaptiveTimeouts;
+import org.glite.slcs.shibclient.IdPCircuitBreaker;
+import org.glite.slcs.shibclient.PooledHttpConnectionManager;
+import org.glite.slcs.shibclient.ShibbolethCredentials;
+import org.glite.slcs.shibclient.metadata.ShibbolethClientMetadata;
+import org.glite.slcs.ui.Version;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SLCSBatchInit: slcs-batch-init command
+ * <p>
+ * Requests the certificates for many identities in one JVM. The batch file
+ * contains one identity per line, with tab separated fields:
+ *
+ * <pre>
+ * # providerId	username	password	storedir	[prefix	[keypassword]]
+ * switch.ch	robot1	my secret	/var/lib/robots/robot1
+ * switch.ch	robot2	tab\tsecret	/var/lib/robots	robot2-
+ * </pre>
+ *
+ * Consecutive tabs are one separator. In a field, a backslash escapes the
+ * next character, and <code>\t</code> is a tab. A <code>-</code> field uses
+ * the default value. Empty lines and lines starting with <code>#</code> are
+ * ignored. Without key password, the Shibboleth password is used.
+ * <p>
+ * The batch file contains the passwords, it must not be accessible by the
+ * group and the other users (permission 600).
+ * <p>
+ * All identities share the configuration, the metadata, the truststore and
+ * the HTTP connection pool, but each identity has its own HTTP state (cookie
+ * jar).
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class SLCSBatchInit extends SLCSBaseClient {
+
+    /** Logging */
+    private static Logger LOG = LoggerFactory.getLogger(SLCSBatchInit.class);
+
+    /** Batch file permission */
+    static private final int BATCH_FILE_PERMISSION = 600;
+
+    /** Configuration */
+    private SLCSClientConfiguration configuration_ = null;
+
+    /** Shibboleth client metadata, shared by all identities */
+    private ShibbolethClientMetadata shibMetadata_ = null;
+
+    /** HTTP connection pool, shared by all identities */
+    private PooledHttpConnectionManager connectionManager_ = null;
+
+    /** Per host adaptive socket timeouts, shared by all identities */
+    private AdaptiveTimeouts adaptiveTimeouts_ = null;
+
+    /** IdP circuit breaker, shared by all identities */
+    private IdPCircuitBreaker circuitBreaker_ = null;
+
+    /** Number of identities processed concurrently */
+    private int threads_ = 1;
+
+    /** Also store the PKCS12 file */
+    private boolean storeP12_ = false;
+
+    /**
+     * @param configuration
+     *            The SLCS client configuration
+     * @param threads
+     *            The maximum number of identities processed concurrently
+     * @throws SLCSException
+     */
+    public SLCSBatchInit(SLCSClientConfiguration configuration, int threads)
+            throws SLCSException {
+        this.configuration_ = configuration;
+        this.threads_ = threads;
+        // truststore and metadata loaded once for all identities
+        registerSSLTrustStore(configuration_);
+        this.shibMetadata_ = new ShibbolethClientMetadata(configuration_);
+        this.connectionManager_ = createHttpConnectionManager(configuration_,
+                                                              threads_);
+        this.adaptiveTimeouts_ = createAdaptiveTimeouts(configuration_);
+        this.circuitBreaker_ = createIdPCircuitBreaker(configuration_);
+    }
+
+    /**
+     * @param storeP12
+     *            <code>true</code> to also store the PKCS12 file.
+     */
+    public void setStoreP12(boolean storeP12) {
+        this.storeP12_ = storeP12;
+    }
+
+    /**
+     * @return The absolute filename or URL used as source for the SLCS
+     *         metadata.
+     */
+    public String getMetadataSource() {
+        return shibMetadata_.getMetadataSource();
+    }
+
+    /**
+     * Reads the batch file.
+     *
+     * @param file
+     *            The batch file
+     * @return The list of identities
+     * @throws IOException
+     *             If the file can not be read or a line is invalid.
+     */
+    static List<BatchIdentity> readBatchFile(File file) throws IOException {
+        List<BatchIdentity> identities = new ArrayList<BatchIdentity>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line = null;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                // the fields are not trimmed, the passwords may contain spaces
+                String trimmed = line.trim();
+                if (trimmed.length() == 0 || trimmed.startsWith("#")) {
+                    continue;
+                }
+                List<String> fields = null;
+                try {
+                    fields = splitFields(line);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(file + ":" + lineNumber + ": "
+                            + e.getMessage());
+                }
+                if (fields.size() < 4 || fields.size() > 6) {
+                    throw new IOException(file + ":" + lineNumber
+                            + ": invalid number of fields: " + fields.size());
+                }
+                if (fields.subList(0, 3).contains(null)) {
+                    throw new IOException(file + ":" + lineNumber
+                            + ": providerId, username and password have no default value");
+                }
+                BatchIdentity identity = new BatchIdentity();
+                identity.line = lineNumber;
+                identity.idpProviderId = fields.get(0);
+                identity.username = fields.get(1);
+                identity.password = fields.get(2).toCharArray();
+                identity.storeDirectory = fields.get(3);
+                if (fields.size() > 4) {
+                    identity.prefix = fields.get(4);
+                }
+                if (fields.size() > 5 && fields.get(5) != null) {
+                    identity.keyPassword = fields.get(5).toCharArray();
+                }
+                else {
+                    identity.keyPassword = identity.password;
+                }
+                identities.add(identity);
+            }
+        } finally {
+            reader.close();
+        }
+        return identities;
+    }
+
+    /**
+     * Checks that the batch file is not accessible by the group and the other
+     * users, like the agent file.
+     *
+     * @param file
+     *            The batch file
+     * @throws IOException
+     *             If the file is accessible by the group or the other users,
+     *             or if its permission can not be read.
+     */
+    static void checkBatchFilePermissions(File file) throws IOException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file + " not found");
+        }
+        // no file permission API in Java 6: ls -ld file => -rw------- ...
+        Process ls = Runtime.getRuntime().exec(new String[] { "ls", "-ld",
+                file.getAbsolutePath() });
+        String mode = null;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                ls.getInputStream()));
+        try {
+            String line = reader.readLine();
+            if (line != null && line.length() >= 10) {
+                mode = line.substring(0, 10);
+            }
+        } finally {
+            reader.close();
+            ls.getErrorStream().close();
+            ls.getOutputStream().close();
+        }
+        if (mode == null) {
+            throw new IOException("Failed to read the permission of " + file);
+        }
+        if (!mode.substring(4).equals("------")) {
+            throw new IOException(file + " is accessible by the group or the other users ("
+                    + mode + "), it must have permission "
+                    + BATCH_FILE_PERMISSION);
+        }
+    }
+
+    /**
+     * Splits a batch file line on the tabs, and unescapes the fields.
+     *
+     * @param line
+     *            The batch file line
+     * @return The fields, <code>null</code> for a <code>-</code> field (the
+     *         default value), but not for an escaped <code>\-</code> one.
+     * @throws IllegalArgumentException
+     *             If the line ends with a backslash.
+     */
+    static List<String> splitFields(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = null;
+        boolean escaped = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\t') {
+                if (field != null) {
+                    fields.add(fieldValue(field, escaped));
+                    field = null;
+                    escaped = false;
+                }
+                continue;
+            }
+            if (field == null) {
+                field = new StringBuilder();
+            }
+            if (c == '\\') {
+                if (++i == line.length()) {
+                    throw new IllegalArgumentException("invalid escape at end of line");
+                }
+                c = line.charAt(i);
+                field.append(c == 't' ? '\t' : c);
+                escaped = true;
+            }
+            else {
+                field.append(c);
+            }
+        }
+        if (field != null) {
+            fields.add(fieldValue(field, escaped));
+        }
+        return fields;
+    }
+
+    private static String fieldValue(StringBuilder field, boolean escaped) {
+        String value = field.toString();
+        if (!escaped && value.equals("-")) {
+            return null;
+        }
+        return value;
+    }
+
+
+    /**
+     * Requests the certificates for all identities, with at most
+     * <code>threads</code> identities processed concurrently.
+     *
+     * @param identities
+     *            The identities to process.
+     * @return The results, in the same order as the identities.
+     */
+    public List<BatchResult> run(List<BatchIdentity> identities) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads_);
+        List<Future<BatchResult>> futures = new ArrayList<Future<BatchResult>>();
+        for (final BatchIdentity identity : identities) {
+            futures.add(executor.submit(new Callable<BatchResult>() {
+                public BatchResult call() {
+                    return process(identity);
+                }
+            }));
+        }
+        executor.shutdown();
+        List<BatchResult> results = new ArrayList<BatchResult>();
+        for (int i = 0; i < futures.size(); i++) {
+            BatchIdentity identity = identities.get(i);
+            try {
+                results.add(futures.get(i).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results.add(new BatchResult(identity, "Interrupted", 0));
+            } catch (ExecutionException e) {
+                LOG.error("Unexpected error for " + identity, e.getCause());
+                results.add(new BatchResult(identity, e.getCause().toString(),
+                        0));
+            }
+        }
+        LOG.info("HTTP connections: opened="
+                + connectionManager_.getOpenedConnections() + " reused="
+                + connectionManager_.getReusedConnections());
+        if (circuitBreaker_ != null) {
+            LOG.info("IdP circuits: open="
+                    + circuitBreaker_.getOpenCircuits() + " rejected="
+                    + circuitBreaker_.getRejected());
+        }
+        connectionManager_.shutdown();
+        return results;
+    }
+
+    /**
+     * Requests and stores the certificate for one identity.
+     *
+     * @param identity
+     *            The identity
+     * @return The result
+     */
+    BatchResult process(BatchIdentity identity) {
+        long start = System.currentTimeMillis();
+        LOG.info("process " + identity);
+        try {
+            // own HttpState (cookie jar), shared connection pool
+            HttpClient httpClient = new HttpClient(connectionManager_);
+            SLCSInit.setHttpClientUserAgent(httpClient);
+            ShibbolethCredentials credentials = new ShibbolethCredentials(
+                    identity.username, identity.password,
+                    identity.idpProviderId);
+            SLCSInit client = new SLCSInit(configuration_, credentials,
+                    httpClient, shibMetadata_);
+            client.setFailureHandling(adaptiveTimeouts_, circuitBreaker_);
+            if (identity.storeDirectory != null) {
+                if (!client.setStoreDirectory(identity.storeDirectory)) {
+                    throw new SLCSException("Not a valid store directory: "
+                            + identity.storeDirectory);
+                }
+            }
+            if (identity.prefix != null) {
+                client.setUserPrefix(identity.prefix);
+            }
+            client.shibbolethLogin();
+            client.slcsLogin();
+            client.generateCertificateKeys(client.getKeySize(),
+                                           identity.keyPassword);
+            client.generateCertificateRequest();
+            client.slcsCertificateRequest();
+            // identities storing in the same directory
+            client.lockStoreDirectory();
+            try {
+                client.storePrivateKey();
+                client.storeCertificate();
+                if (storeP12_ || identity.storeP12) {
+                    client.storePKCS12();
+                }
+            } finally {
+                client.unlockStoreDirectory();
+            }
+            String usercert = client.getStoreDirectory() + File.separator
+                    + client.getUserCertFilename();
+            long elapsed = System.currentTimeMillis() - start;
+            LOG.info("certificate stored for " + identity + " in " + elapsed
+                    + " ms: " + usercert);
+            return new BatchResult(identity, null, elapsed, usercert);
+        } catch (Exception e) {
+            long elapsed = System.currentTimeMillis() - start;
+            LOG.error("Failed to process " + identity, e);
+            return new BatchResult(identity, e.toString(), elapsed);
+        } finally {
+            Arrays.fill(identity.password, '\0');
+            Arrays.fill(identity.keyPassword, '\0');
+        }
+    }
+
+    /**
+     * Writes the per identity results report, one tab separated line by
+     * identity.
+     *
+     * @param results
+     *            The results
+     * @param out
+     *            The report stream
+     */
+    static void writeReport(List<BatchResult> results, PrintStream out) {
+        out.println("# line\tproviderId\tusername\tstatus\ttime(ms)\tdetail");
+        for (BatchResult result : results) {
+            BatchIdentity identity = result.identity;
+            out.print(identity.line);
+            out.print('\t');
+            out.print(identity.idpProviderId);
+            out.print('\t');
+            out.print(identity.username);
+            out.print('\t');
+            out.print(result.isSuccess() ? "OK" : "ERROR");
+            out.print('\t');
+            out.print(result.elapsed);
+            out.print('\t');
+            out.println(result.isSuccess() ? result.usercert : result.error);
+        }
+        out.flush();
+    }
+
+    /**
+     * @param args
+     */
+    public static void main(String[] args) {
+        LOG.info("slcs-batch-init: " + SLCSBatchInit.class.getName() + " - "
+                + Version.getCopyright());
+        LOG.info("Version: " + Version.getName() + " " + Version.getVersion()
+                + " (" + org.glite.slcs.common.Version.getName() + " "
+                + org.glite.slcs.common.Version.getVersion() + ")");
+
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = null;
+        boolean error = false;
+        Options options = createCommandLineOptions();
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            error = true;
+        }
+
+        // help? or error
+        if (error || cmd.hasOption('h') || !cmd.hasOption('b')) {
+            HelpFormatter help = new HelpFormatter();
+            help.printHelp("slcs-batch-init --batch <filename> [options]",
+                           options);
+            System.exit(1);
+        }
+
+        // verbose?
+        boolean verbose = false;
+        if (cmd.hasOption('v')) {
+            verbose = true;
+        }
+
+        // config
+        String config = null;
+        if (cmd.hasOption('c')) {
+            config = cmd.getOptionValue('c');
+            File configFile = new File(config);
+            if (!configFile.exists()) {
+                System.err.println("ERROR: config file: " + config
+                        + " doesn't exist");
+                System.exit(1);
+            }
+        }
+        else {
+            config = DEFAULT_CONFIGURATION_FILE;
+        }
+
+        // concurrency
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (cmd.hasOption('t')) {
+            try {
+                threads = Integer.parseInt(cmd.getOptionValue('t'));
+            } catch (NumberFormatException e) {
+                threads = -1;
+            }
+            if (threads < 1) {
+                System.err.println("ERROR: --threads: invalid number: "
+                        + cmd.getOptionValue('t'));
+                System.exit(1);
+            }
+        }
+
+        // batch file
+        File batchFile = new File(cmd.getOptionValue('b'));
+        List<BatchIdentity> identities = null;
+        try {
+            checkBatchFilePermissions(batchFile);
+            identities = readBatchFile(batchFile);
+        } catch (IOException e) {
+            LOG.error("Failed to read batch file", e);
+            System.err.println("ERROR: batch file: " + e.getMessage());
+            System.exit(1);
+        }
+        if (verbose) {
+            System.out.println("Identities: " + identities.size());
+            System.out.println("Threads: " + threads);
+        }
+
+        // report
+        PrintStream report = System.out;
+        if (cmd.hasOption('r')) {
+            try {
+                report = new PrintStream(new FileOutputStream(
+                        cmd.getOptionValue('r')));
+            } catch (IOException e) {
+                System.err.println("ERROR: report file: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        SLCSBatchInit batch = null;
+        try {
+            SLCSClientConfiguration configuration = SLCSClientConfiguration.getInstance(config);
+            if (verbose) {
+                System.out.println("Config: " + configuration.getConfigSource());
+            }
+            batch = new SLCSBatchInit(configuration, threads);
+            if (verbose) {
+                System.out.println("Metadata: " + batch.getMetadataSource());
+            }
+            if (cmd.hasOption('x')) {
+                batch.setStoreP12(true);
+            }
+        } catch (SLCSException e) {
+            LOG.error("SLCS batch client creation error", e);
+            System.err.println("ERROR: Failed to create SLCS batch client: "
+                    + e);
+            System.exit(1);
+        }
+
+        List<BatchResult> results = batch.run(identities);
+        writeReport(results, report);
+        if (report != System.out) {
+            report.close();
+        }
+
+        // exit status: number of failed identities
+        int failed = 0;
+        for (BatchResult result : results) {
+            if (!result.isSuccess()) {
+                failed++;
+            }
+        }
+        if (verbose) {
+            System.out.println("Done: " + (results.size() - failed)
+                    + " succeeded, " + failed + " failed.");
+        }
+        System.exit(failed == 0 ? 0 : 2);
+    }
+
+    /**
+     * Creates the CLI options.
+     *
+     * @return The CLI Options
+     */
+    private static Options createCommandLineOptions() {
+        Option help = new Option("h", "help", false, "this help");
+        Option batch = new Option("b", "batch", true,
+                "batch file: one identity per line, tab separated fields (permission 600)");
+        batch.setArgName("filename");
+        Option config = new Option("c", "conf", true,
+                "SLCS client XML configuration file");
+        config.setArgName("filename");
+        Option threads = new Option("t", "threads", true,
+                "number of identities processed concurrently (default: number of CPUs)");
+        threads.setArgName("number");
+        Option report = new Option("r", "report", true,
+                "per identity results report file (default: stdout)");
+        report.setArgName("filename");
+        Option verbose = new Option("v", "verbose", false, "verbose");
+        Option p12 = new Option("x", "p12", false,
+                "store additional PKCS12 usercred.p12 file");
+        Options options = new Options();
+        options.addOption(help);
+        options.addOption(batch);
+        options.addOption(config);
+        options.addOption(threads);
+        options.addOption(report);
+        options.addOption(verbose);
+        options.addOption(p12);
+        return options;
+    }
+
+    /**
+     * One identity of the batch file.
+     */
+    static class BatchIdentity {
+        int line;
+        String idpProviderId;
+        String username;
+        char[] password;
+        String storeDirectory;
+        String prefix;
+        char[] keyPassword;
+        boolean storeP12;
+
+        public String toString() {
+            return username + "@" + idpProviderId + " (line " + line + ")";
+        }
+    }
+
+    /**
+     * Result of the certificate request for one identity.
+     */
+    static class BatchResult {
+        BatchIdentity identity;
+        String error;
+        long elapsed;
+        String usercert;
+
+        BatchResult(BatchIdentity identity, String error, long elapsed) {
+            this(identity, error, elapsed, null);
+        }
+
+        BatchResult(BatchIdentity identity, String error, long elapsed,
+                String usercert) {
+            this.identity = identity;
+            this.error = error;
+            this.elapsed = elapsed;
+            this.usercert = usercert;
+        }
+
+        boolean isSuccess() {
+            return error == null;
+        }
+    }
+
+}
@@ -40,6 +40,9 @@ public class SLCSInfo extends SLCSBaseClient {
     /** Logging */
     private static Logger LOG= LoggerFactory.getLogger(SLCSInfo.class);
 
+    /** Max IdPs listed by the --search option */
+    private static final int MAX_SEARCH_RESULTS= 20;
+
     /**
      * @param args
      */
@@ -127,12 +130,24 @@ public class SLCSInfo extends SLCSBaseClient {
 
         ServiceProvider slcs= metadata.getSLCS();
         System.out.println("SLCS Service URL: " + slcs.getUrl());
-        // sort by providerId and display
-        List<IdentityProvider> idps= metadata.getIdentityProviders();
-        Collections.sort(idps);
-        System.out.println("Identity Provider IDs:");
+        List<IdentityProvider> idps= null;
+        if (cmd.hasOption('s')) {
+            // search, best matches first
+            String search= cmd.getOptionValue('s');
+            idps= metadata.getIdentityProviderIndex().search(search, MAX_SEARCH_RESULTS);
+            System.out.println("Identity Provider IDs matching '" + search + "':");
+        }
+        else {
+            // sort by providerId
+            idps= metadata.getIdentityProviders();
+            Collections.sort(idps);
+            System.out.println("Identity Provider IDs:");
+        }
         for (IdentityProvider idp : idps) {            
             System.out.println(" " + idp.getId() + " [" + idp.getName() + "]");
+            if (verbose && idp.getEntityID() != null) {
+                System.out.println("   entityID: " + idp.getEntityID());
+            }
         }
         
     }
@@ -152,6 +167,11 @@ public class SLCSInfo extends SLCSBaseClient {
         config.setArgName("filename");
         Option verbose= new Option("v", "verbose", false, "verbose");
         Option version= new Option("V", "version", false, "shows the version");
+        Option search= new Option("s",
+                                  "search",
+                                  true,
+                                  "lists the IdPs matching the providerId, name, host or entityID");
+        search.setArgName("text");
 //        Option list= new Option("l", "list", false, "list the IdP providerIds");
         Options options= new Options();
         options.addOption(help);
@@ -159,6 +179,7 @@ public class SLCSInfo extends SLCSBaseClient {
         options.addOption(config);
         options.addOption(verbose);
         options.addOption(version);
+        options.addOption(search);
         return options;
     }
 
@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.glite.slcs.config.SLCSClientConfiguration;
+import org.glite.slcs.pki.CertificateKeyPool;
+import org.glite.slcs.ui.Version;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SLCSKeyPool fills the pre-generated keys pool used by slcs-init, once or
+ * periodically, and shows the pool statistics.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class SLCSKeyPool extends SLCSBaseClient {
+
+    /** Logging */
+    private static Logger LOG = LoggerFactory.getLogger(SLCSKeyPool.class);
+
+    /** Default number of keys per size to keep in the pool */
+    static private final int DEFAULT_POOL_SIZE = 10;
+
+    /**
+     * @param args
+     */
+    public static void main(String[] args) {
+        LOG.info("slcs-keypool: " + SLCSKeyPool.class.getName() + " - "
+                + Version.getCopyright());
+        LOG.info("Version: " + Version.getName() + " " + Version.getVersion()
+                + " (" + org.glite.slcs.common.Version.getName() + " "
+                + org.glite.slcs.common.Version.getVersion() + ")");
+
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = null;
+        boolean error = false;
+        Options options = createCommandLineOptions();
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            error = true;
+        }
+
+        // help?
+        if (error || cmd.hasOption('h')) {
+            HelpFormatter help = new HelpFormatter();
+            help.printHelp("slcs-keypool [options]", options);
+            System.exit(1);
+        }
+
+        // version?
+        if (cmd.hasOption('V')) {
+            System.out.println("slcs-keypool: " + SLCSKeyPool.class.getName()
+                    + " - " + Version.getCopyright());
+            System.out.println("Version: " + Version.getName() + " "
+                    + Version.getVersion() + " ("
+                    + org.glite.slcs.common.Version.getName() + " "
+                    + org.glite.slcs.common.Version.getVersion() + ")");
+            System.exit(0);
+        }
+
+        // verbose?
+        boolean verbose = false;
+        if (cmd.hasOption('v')) {
+            verbose = true;
+        }
+
+        // config
+        String config = null;
+        if (cmd.hasOption('c')) {
+            config = cmd.getOptionValue('c');
+            if (config == null) {
+                System.err.println("ERROR: --config: empty config filename");
+                System.exit(1);
+            }
+            File configFile = new File(config);
+            if (!configFile.exists()) {
+                System.err.println("ERROR: config file: " + config
+                        + " doesn't exist");
+                System.exit(1);
+            }
+        }
+        else {
+            config = DEFAULT_CONFIGURATION_FILE;
+        }
+
+        // number of keys
+        int count = DEFAULT_POOL_SIZE;
+        if (cmd.hasOption('n')) {
+            try {
+                count = Integer.parseInt(cmd.getOptionValue('n'));
+            } catch (NumberFormatException e) {
+                System.err.println("ERROR: --count: invalid number: "
+                        + cmd.getOptionValue('n'));
+                System.exit(1);
+            }
+            if (count < 1) {
+                System.err.println("ERROR: --count: must be positive: "
+                        + count);
+                System.exit(1);
+            }
+        }
+
+        // refill interval
+        int interval = -1;
+        if (cmd.hasOption('w')) {
+            try {
+                interval = Integer.parseInt(cmd.getOptionValue('w'));
+            } catch (NumberFormatException e) {
+                System.err.println("ERROR: --watch: invalid number: "
+                        + cmd.getOptionValue('w'));
+                System.exit(1);
+            }
+            if (interval < 1) {
+                System.err.println("ERROR: --watch: must be positive: "
+                        + interval);
+                System.exit(1);
+            }
+        }
+
+        // key sizes
+        List<Integer> keySizes = new ArrayList<Integer>();
+        if (cmd.hasOption('s')) {
+            for (String value : cmd.getOptionValues('s')) {
+                int keySize = -1;
+                try {
+                    keySize = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    // invalid, see below
+                }
+                if (!validKeySize(keySize)) {
+                    System.err.println("ERROR: --size: invalid key size: "
+                            + value);
+                    System.exit(1);
+                }
+                keySizes.add(keySize);
+            }
+        }
+
+        CertificateKeyPool keyPool = null;
+        try {
+            LOG.debug("load SLCS client configuration...");
+            SLCSClientConfiguration configuration = SLCSClientConfiguration.getInstance(config);
+            String directory = null;
+            if (cmd.hasOption('d')) {
+                directory = cmd.getOptionValue('d');
+            }
+            else {
+                directory = getDefaultKeyPoolDirectory(configuration);
+            }
+            if (directory == null) {
+                System.err.println("ERROR: no KeyPoolDirectory in config and no --dir option");
+                System.exit(1);
+            }
+            if (keySizes.isEmpty()) {
+                // only the RSA keys are pooled, whatever the UserKeyType
+                keySizes.add(getDefaultUserKeySize(configuration, KEY_TYPE_RSA));
+            }
+            keyPool = new CertificateKeyPool(new File(directory));
+            if (verbose) {
+                System.out.println("Config: "
+                        + configuration.getConfigSource());
+                System.out.println("Key pool: " + directory);
+            }
+        } catch (SLCSException e) {
+            LOG.error("SLCS key pool error", e);
+            System.err.println("ERROR: SLCS key pool: " + e);
+            System.exit(1);
+        }
+
+        // status only?
+        if (cmd.hasOption("status")) {
+            try {
+                printStatus(keyPool, keySizes);
+            } catch (IOException e) {
+                System.err.println("ERROR: Failed to read the key pool statistics: "
+                        + e);
+                System.exit(1);
+            }
+            System.exit(0);
+        }
+
+        try {
+            do {
+                for (int keySize : keySizes) {
+                    int generated = keyPool.fill(keySize, count);
+                    if (verbose) {
+                        System.out.println("Key pool (" + keySize + " bits): "
+                                + generated + " keys generated, "
+                                + keyPool.getSize(keySize) + " available");
+                    }
+                }
+                if (interval > 0) {
+                    LOG.debug("sleep " + interval + " seconds...");
+                    Thread.sleep(interval * 1000L);
+                }
+            } while (interval > 0);
+        } catch (InterruptedException e) {
+            LOG.info("interrupted, exit");
+        } catch (IOException e) {
+            LOG.error("Failed to fill the key pool", e);
+            System.err.println("ERROR: Failed to fill the key pool: " + e);
+            System.exit(1);
+        } catch (GeneralSecurityException e) {
+            LOG.error("Failed to generate the keys", e);
+            System.err.println("ERROR: Failed to generate the keys: " + e);
+            System.exit(1);
+        }
+
+    }
+
+    /**
+     * Prints the pool size and statistics for each key size.
+     *
+     * @param keyPool
+     *            The keys pool.
+     * @param keySizes
+     *            The key sizes.
+     * @throws IOException
+     */
+    private static void printStatus(CertificateKeyPool keyPool,
+            List<Integer> keySizes) throws IOException {
+        for (int keySize : keySizes) {
+            Properties statistics = keyPool.getStatistics(keySize);
+            System.out.println("Key pool (" + keySize + " bits):");
+            System.out.println(" available: " + keyPool.getSize(keySize));
+            System.out.println(" hits: "
+                    + statistics.getProperty(CertificateKeyPool.STAT_HITS, "0"));
+            System.out.println(" misses: "
+                    + statistics.getProperty(CertificateKeyPool.STAT_MISSES,
+                                             "0"));
+            System.out.println(" generated: "
+                    + statistics.getProperty(CertificateKeyPool.STAT_GENERATED,
+                                             "0"));
+            String fillRate = statistics.getProperty(CertificateKeyPool.STAT_FILL_RATE);
+            if (fillRate != null) {
+                System.out.println(" refill rate: " + fillRate + " keys/s");
+            }
+            String lastFill = statistics.getProperty(CertificateKeyPool.STAT_LAST_FILL);
+            if (lastFill != null) {
+                System.out.println(" last refill: "
+                        + new Date(Long.parseLong(lastFill)));
+            }
+        }
+    }
+
+    /**
+     * Creates the CLI options.
+     *
+     * @return The CLI Options
+     */
+    private static Options createCommandLineOptions() {
+        Option help = new Option("h", "help", false, "this help");
+        Option config = new Option("c", "conf", true,
+                "SLCS client XML configuration file");
+        config.setArgName("filename");
+        Option verbose = new Option("v", "verbose", false, "verbose");
+        Option version = new Option("V", "version", false, "shows the version");
+        Option directory = new Option("d", "dir", true,
+                "key pool directory (default KeyPoolDirectory from config)");
+        directory.setArgName("directory");
+        Option size = new Option("s", "size", true,
+                "key size to pool: 1024 or 2048 (default UserKeySize from config, if valid for RSA)");
+        size.setArgName("size");
+        Option count = new Option("n", "count", true,
+                "number of keys per size to keep in the pool (default "
+                        + DEFAULT_POOL_SIZE + ")");
+        count.setArgName("number");
+        Option watch = new Option("w", "watch", true,
+                "refill the pool every given seconds, until killed");
+        watch.setArgName("seconds");
+        Option status = new Option(null, "status", false,
+                "shows the key pool size and statistics");
+        Options options = new Options();
+        options.addOption(help);
+        options.addOption(config);
+        options.addOption(verbose);
+        options.addOption(version);
+        options.addOption(directory);
+        options.addOption(size);
+        options.addOption(count);
+        options.addOption(watch);
+        options.addOption(status);
+        return options;
+    }
+
+}
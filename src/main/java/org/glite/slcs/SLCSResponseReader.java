@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.glite.slcs.pki.Certificate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SLCSResponseReader reads a SLCSLoginResponse or SLCSCertificateResponse in
+ * one forward pass over the HTTP response stream.
+ * <p>
+ * The element names are matched ignoring the case, as the former HTML parser
+ * did.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class SLCSResponseReader {
+
+    /** Logging */
+    private static Logger LOG = LoggerFactory.getLogger(SLCSResponseReader.class);
+
+    /** Shared factory, thread safe once configured */
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXMLInputFactory();
+
+    private String responseName_ = null;
+
+    private boolean responseFound_ = false;
+
+    private String status_ = null;
+
+    private String error_ = null;
+
+    private String stackTrace_ = null;
+
+    private String authorizationToken_ = null;
+
+    private boolean certificateRequestFound_ = false;
+
+    private String certificateRequestUrl_ = null;
+
+    private String subject_ = null;
+
+    /** name and value pairs */
+    private List<String[]> certificateExtensions_ = new ArrayList<String[]>();
+
+    private StringBuilder pemCertificate_ = null;
+
+    /**
+     * Reads the SLCS response.
+     *
+     * @param is
+     *            The HTTP response stream.
+     * @param responseName
+     *            The expected response element: SLCSLoginResponse or
+     *            SLCSCertificateResponse.
+     * @return The response.
+     * @throws IOException
+     *             If the response can not be read.
+     * @throws ServiceException
+     *             If the response is not valid XML.
+     */
+    public static SLCSResponseReader read(InputStream is, String responseName)
+            throws IOException, ServiceException {
+        SLCSResponseReader response = new SLCSResponseReader(responseName);
+        try {
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(is);
+            try {
+                response.parse(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            LOG.error("Invalid " + responseName, e);
+            throw new ServiceException("Invalid " + responseName
+                    + " in SLCS response: " + e.getMessage(), e);
+        }
+        return response;
+    }
+
+    private SLCSResponseReader(String responseName) {
+        responseName_ = responseName;
+    }
+
+    private void parse(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            String name = reader.getLocalName();
+            if (name.equalsIgnoreCase(responseName_)) {
+                responseFound_ = true;
+            }
+            else if (name.equalsIgnoreCase("status") && status_ == null) {
+                status_ = reader.getElementText().trim();
+            }
+            else if (name.equalsIgnoreCase("error") && error_ == null) {
+                error_ = reader.getElementText();
+            }
+            else if (name.equalsIgnoreCase("stacktrace")
+                    && stackTrace_ == null) {
+                stackTrace_ = reader.getElementText();
+            }
+            else if (name.equalsIgnoreCase("AuthorizationToken")
+                    && authorizationToken_ == null) {
+                authorizationToken_ = reader.getElementText().trim();
+            }
+            else if (name.equalsIgnoreCase("CertificateRequest")
+                    && !certificateRequestFound_) {
+                certificateRequestFound_ = true;
+                certificateRequestUrl_ = getAttributeValue(reader, "url");
+            }
+            else if (name.equalsIgnoreCase("Subject") && subject_ == null) {
+                subject_ = reader.getElementText().trim();
+            }
+            else if (name.equalsIgnoreCase("CertificateExtension")) {
+                String extensionName = getAttributeValue(reader, "name");
+                String extensionValues = reader.getElementText();
+                certificateExtensions_.add(new String[] { extensionName,
+                        extensionValues });
+            }
+            else if (name.equalsIgnoreCase("Certificate")
+                    && pemCertificate_ == null) {
+                pemCertificate_ = readElementText(reader);
+            }
+        }
+    }
+
+    /**
+     * Appends the element text chunks, without intermediate strings.
+     */
+    private static StringBuilder readElementText(XMLStreamReader reader)
+            throws XMLStreamException {
+        StringBuilder text = new StringBuilder(2048);
+        int event;
+        while ((event = reader.next()) != XMLStreamConstants.END_ELEMENT) {
+            if (event == XMLStreamConstants.CHARACTERS
+                    || event == XMLStreamConstants.CDATA
+                    || event == XMLStreamConstants.SPACE) {
+                text.append(reader.getTextCharacters(), reader.getTextStart(),
+                            reader.getTextLength());
+            }
+            else if (event == XMLStreamConstants.START_ELEMENT) {
+                throw new XMLStreamException("Unexpected element in "
+                        + "Certificate: " + reader.getLocalName(),
+                        reader.getLocation());
+            }
+        }
+        return text;
+    }
+
+    private static String getAttributeValue(XMLStreamReader reader,
+            String name) {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if (reader.getAttributeLocalName(i).equalsIgnoreCase(name)) {
+                return reader.getAttributeValue(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks that the response element is present and its status is Success.
+     *
+     * @throws ServiceException
+     *             If the response is missing or an error response.
+     * @throws SLCSException
+     *             If the error element is missing in an error response.
+     */
+    public void checkStatus() throws SLCSException {
+        if (!responseFound_) {
+            LOG.error(responseName_ + " element not found");
+            throw new ServiceException(responseName_
+                    + " element not found in SLCS response");
+        }
+        if (status_ == null || status_.length() == 0) {
+            LOG.error("Status element not found");
+            throw new ServiceException(
+                    "Status element not found in SLCS response");
+        }
+        LOG.info("Status=" + status_);
+        if (status_.equalsIgnoreCase("Error")) {
+            if (error_ == null || error_.length() == 0) {
+                LOG.error("Error element not found");
+                throw new SLCSException(
+                        "Error element not found in SLCS error response");
+            }
+            if (stackTrace_ != null && stackTrace_.length() > 0) {
+                throw new ServiceException(error_ + "\nRemote error:\n"
+                        + stackTrace_);
+            }
+            throw new ServiceException(error_);
+        }
+        else if (!status_.equalsIgnoreCase("Success")) {
+            LOG.error("Unknown Status: " + status_);
+            throw new ServiceException("Unknown Status:" + status_);
+        }
+    }
+
+    /**
+     * @return The AuthorizationToken or <code>null</code>.
+     */
+    public String getAuthorizationToken() {
+        return authorizationToken_;
+    }
+
+    /**
+     * @return <code>true</code> if the CertificateRequest element was found.
+     */
+    public boolean hasCertificateRequest() {
+        return certificateRequestFound_;
+    }
+
+    /**
+     * @return The CertificateRequest url attribute or <code>null</code>.
+     */
+    public String getCertificateRequestUrl() {
+        return certificateRequestUrl_;
+    }
+
+    /**
+     * @return The CertificateRequest Subject or <code>null</code>.
+     */
+    public String getSubject() {
+        return subject_;
+    }
+
+    /**
+     * @return The CertificateExtension name and values pairs.
+     */
+    public List<String[]> getCertificateExtensions() {
+        return certificateExtensions_;
+    }
+
+    /**
+     * @return <code>true</code> if the Certificate element was found.
+     */
+    public boolean hasCertificate() {
+        return pemCertificate_ != null && pemCertificate_.length() > 0;
+    }
+
+    /**
+     * Decodes the PEM certificate (and chain) directly from the read
+     * characters, leading whitespaces skipped.
+     *
+     * @return The certificate.
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public Certificate getCertificate() throws IOException,
+            GeneralSecurityException {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Certificate=" + pemCertificate_);
+        }
+        return Certificate.readPEM(new CharSequenceReader(pemCertificate_));
+    }
+
+    private static XMLInputFactory createXMLInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                            Boolean.FALSE);
+        return factory;
+    }
+
+    /**
+     * Reader over a {@link CharSequence}, without copy.
+     */
+    private static class CharSequenceReader extends Reader {
+
+        private CharSequence chars_;
+
+        private int pos_ = 0;
+
+        CharSequenceReader(CharSequence chars) {
+            chars_ = chars;
+            while (pos_ < chars_.length()
+                    && Character.isWhitespace(chars_.charAt(pos_))) {
+                pos_++;
+            }
+        }
+
+        public int read(char[] buffer, int offset, int length) {
+            if (pos_ >= chars_.length()) {
+                return -1;
+            }
+            int n = Math.min(length, chars_.length() - pos_);
+            for (int i = 0; i < n; i++) {
+                buffer[offset + i] = chars_.charAt(pos_++);
+            }
+            return n;
+        }
+
+        public void close() {
+            chars_ = "";
+        }
+    }
+
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.pki;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.interfaces.ECKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.PBEParameterSpec;
+
+import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.DERObjectIdentifier;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.pkcs.EncryptedPrivateKeyInfo;
+import org.bouncycastle.asn1.pkcs.PKCS12PBEParams;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.Attribute;
+import org.bouncycastle.asn1.x509.X509Extension;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.jce.PKCS10CertificationRequest;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openssl.PEMWriter;
+import org.bouncycastle.util.io.pem.PemObject;
+import org.glite.slcs.pki.bouncycastle.Codec;
+import org.glite.slcs.pki.bouncycastle.KeyPairGenerator;
+import org.glite.slcs.pki.bouncycastle.PKCS10;
+import org.glite.slcs.pki.bouncycastle.X509PrincipalUtil;
+import org.glite.slcs.util.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CertificateKeyPair is the private and public keys of the user, like
+ * {@link CertificateKeys}, but can also wrap an already existing
+ * {@link KeyPair} (e.g. from the key pool), and supports RSA and EC (P-256,
+ * P-384) keys.
+ * <p>
+ * The BouncyCastle PEM writer doesn't support the EC private keys, they are
+ * stored in the PKCS#8 format, encrypted with PBE SHA1 and 3-key TripleDES
+ * if a password is set, which OpenSSL also reads.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class CertificateKeyPair {
+
+    /** Logging */
+    private static Logger LOG = LoggerFactory.getLogger(CertificateKeyPair.class);
+
+    /** Default key algorithm */
+    static public final String KEY_ALGORITHM = "RSA";
+
+    /** Elliptic curve key algorithm */
+    static public final String EC_KEY_ALGORITHM = "EC";
+
+    /** EC certificate request signature algorithm */
+    static private final String EC_SIGNATURE_ALGORITHM = "SHA256withECDSA";
+
+    /** PKCS#8 private key encryption */
+    static private final DERObjectIdentifier PKCS8_PBE_ALGORITHM = PKCSObjectIdentifiers.pbeWithSHAAnd3_KeyTripleDES_CBC;
+
+    static private final int PKCS8_PBE_ITERATIONS = 2048;
+
+    static {
+        // EC keys and PKCS#8 encryption use the BC provider
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            LOG.info("add BouncyCastle security provider");
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    /** Private key file permission */
+    static private final int KEY_FILE_PERMISSION = 600;
+
+    private KeyPair keyPair_ = null;
+
+    private char[] password_ = null;
+
+    /**
+     * Wraps an existing key pair.
+     *
+     * @param keyPair
+     *            The private and public keys.
+     * @param password
+     *            The private key password.
+     */
+    public CertificateKeyPair(KeyPair keyPair, char[] password) {
+        this.keyPair_ = keyPair;
+        this.password_ = password;
+    }
+
+    /**
+     * Generates a new RSA key pair.
+     *
+     * @param size
+     *            The private key size.
+     * @param password
+     *            The private key password.
+     * @return The new certificate keys.
+     * @throws GeneralSecurityException
+     */
+    public static CertificateKeyPair generate(int size, char[] password)
+            throws GeneralSecurityException {
+        return new CertificateKeyPair(generateKeyPair(size), password);
+    }
+
+    /**
+     * Generates a new key pair.
+     *
+     * @param algorithm
+     *            The key algorithm: {@link #KEY_ALGORITHM} or
+     *            {@link #EC_KEY_ALGORITHM}.
+     * @param size
+     *            The private key size.
+     * @param password
+     *            The private key password.
+     * @return The new certificate keys.
+     * @throws GeneralSecurityException
+     */
+    public static CertificateKeyPair generate(String algorithm, int size,
+            char[] password) throws GeneralSecurityException {
+        return new CertificateKeyPair(generateKeyPair(algorithm, size),
+                password);
+    }
+
+    /**
+     * Generates a new RSA {@link KeyPair}.
+     *
+     * @param size
+     *            The private key size.
+     * @return The new key pair.
+     * @throws GeneralSecurityException
+     */
+    public static KeyPair generateKeyPair(int size)
+            throws GeneralSecurityException {
+        return generateKeyPair(KEY_ALGORITHM, size);
+    }
+
+    /**
+     * Generates a new {@link KeyPair}.
+     *
+     * @param algorithm
+     *            The key algorithm: {@link #KEY_ALGORITHM} or
+     *            {@link #EC_KEY_ALGORITHM}.
+     * @param size
+     *            The private key size: 1024 or 2048 for RSA, 256 or 384 for
+     *            EC.
+     * @return The new key pair.
+     * @throws GeneralSecurityException
+     */
+    public static KeyPair generateKeyPair(String algorithm, int size)
+            throws GeneralSecurityException {
+        LOG.debug("generate " + algorithm + " " + size + " bits keys");
+        if (EC_KEY_ALGORITHM.equalsIgnoreCase(algorithm)) {
+            java.security.KeyPairGenerator ecGenerator = java.security.KeyPairGenerator.getInstance(EC_KEY_ALGORITHM,
+                                                                                                     BouncyCastleProvider.PROVIDER_NAME);
+            ecGenerator.initialize(new ECGenParameterSpec(getCurveName(size)));
+            return ecGenerator.generateKeyPair();
+        }
+        KeyPairGenerator generator = new KeyPairGenerator(KEY_ALGORITHM);
+        generator.initialize(size);
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * @param size
+     *            The EC key size.
+     * @return The NIST curve name for the size.
+     * @throws GeneralSecurityException
+     *             If the size is not 256 or 384.
+     */
+    private static String getCurveName(int size)
+            throws GeneralSecurityException {
+        switch (size) {
+        case 256:
+            return "secp256r1";
+        case 384:
+            return "secp384r1";
+        default:
+            throw new GeneralSecurityException("Invalid EC key size: " + size
+                    + " (256 or 384)");
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the keys are EC keys.
+     */
+    public boolean isEC() {
+        return keyPair_.getPublic() instanceof ECKey;
+    }
+
+    /**
+     * @return The private key.
+     */
+    public PrivateKey getPrivate() {
+        return keyPair_.getPrivate();
+    }
+
+    /**
+     * @return The public key.
+     */
+    public PublicKey getPublic() {
+        return keyPair_.getPublic();
+    }
+
+    /**
+     * @return The key pair.
+     */
+    public KeyPair getKeyPair() {
+        return keyPair_;
+    }
+
+    /**
+     * @return The private key password.
+     */
+    public char[] getPassword() {
+        return password_;
+    }
+
+    /**
+     * Stores the private key PEM encoded, and encrypted if a password is
+     * set, in a file with permission 600.
+     *
+     * @param file
+     *            The private key file.
+     * @throws IOException
+     */
+    public void storePEMPrivate(File file) throws IOException {
+        // create file with restricted permission first, then write
+        createPrivateFile(file);
+        if (isEC()) {
+            storePKCS8Private(file);
+        }
+        else if (password_ != null) {
+            Codec.storePEMEncoded(getPrivate(), password_, file);
+        }
+        else {
+            Codec.storePEMEncoded(getPrivate(), file);
+        }
+    }
+
+    /**
+     * Creates the empty file, or truncates it, and restricts its permission
+     * to 600 before any private content is written in it.
+     * 
+     * @param file
+     *            The private file.
+     * @throws IOException
+     *             If the file can not be created.
+     */
+    static void createPrivateFile(File file) throws IOException {
+        new FileOutputStream(file).close();
+        if (!Utils.setFilePermissions(file, KEY_FILE_PERMISSION)) {
+            LOG.warn("Failed to set permissions: " + KEY_FILE_PERMISSION
+                    + " for file: " + file);
+        }
+    }
+
+    /**
+     * Stores the private key in the PEM encoded PKCS#8 format, encrypted if a
+     * password is set.
+     */
+    private void storePKCS8Private(File file) throws IOException {
+        PemObject pem = null;
+        if (password_ != null) {
+            try {
+                byte[] salt = new byte[8];
+                new SecureRandom().nextBytes(salt);
+                String algorithm = PKCS8_PBE_ALGORITHM.getId();
+                SecretKeyFactory keyFactory = SecretKeyFactory.getInstance(algorithm,
+                                                                           BouncyCastleProvider.PROVIDER_NAME);
+                Cipher cipher = Cipher.getInstance(algorithm,
+                                                   BouncyCastleProvider.PROVIDER_NAME);
+                cipher.init(Cipher.ENCRYPT_MODE,
+                            keyFactory.generateSecret(new PBEKeySpec(password_)),
+                            new PBEParameterSpec(salt, PKCS8_PBE_ITERATIONS));
+                byte[] encrypted = cipher.doFinal(getPrivate().getEncoded());
+                AlgorithmIdentifier pbe = new AlgorithmIdentifier(PKCS8_PBE_ALGORITHM,
+                                                                  new PKCS12PBEParams(salt,
+                                                                                      PKCS8_PBE_ITERATIONS));
+                EncryptedPrivateKeyInfo info = new EncryptedPrivateKeyInfo(pbe,
+                                                                           encrypted);
+                pem = new PemObject("ENCRYPTED PRIVATE KEY",
+                                    info.getDEREncoded());
+            } catch (GeneralSecurityException e) {
+                LOG.error("Failed to encrypt the private key", e);
+                throw new IOException("Failed to encrypt the private key: "
+                        + e);
+            }
+        }
+        else {
+            pem = new PemObject("PRIVATE KEY", getPrivate().getEncoded());
+        }
+        PEMWriter writer = new PEMWriter(new FileWriter(file));
+        try {
+            writer.writeObject(pem);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Creates the certificate signing request for these keys.
+     *
+     * @param subject
+     *            The certificate subject.
+     * @param extensions
+     *            The certificate extensions, can be <code>null</code>.
+     * @return The signed certificate request.
+     * @throws GeneralSecurityException
+     */
+    public CertificateRequest createCertificateRequest(String subject,
+            List<CertificateExtension> extensions)
+            throws GeneralSecurityException {
+        X509Extensions x509Extensions = null;
+        if (extensions != null && !extensions.isEmpty()) {
+            Hashtable<DERObjectIdentifier, X509Extension> table = new Hashtable<DERObjectIdentifier, X509Extension>();
+            for (CertificateExtension extension : extensions) {
+                table.put(extension.getOID(), extension.getExtension());
+            }
+            x509Extensions = new X509Extensions(table);
+        }
+        PKCS10 pkcs10 = null;
+        if (isEC()) {
+            pkcs10 = createECPKCS10(subject, x509Extensions);
+        }
+        else {
+            pkcs10 = new PKCS10(subject, getPublic(), getPrivate(),
+                    x509Extensions);
+        }
+        return new CertificateRequest(pkcs10);
+    }
+
+    /**
+     * The common {@link PKCS10} only signs with the RSA
+     * {@link PKCS10#SIGNATURE_ALGORITHM}, the EC request is created with
+     * BouncyCastle and read back.
+     */
+    private PKCS10 createECPKCS10(String subject, X509Extensions extensions)
+            throws GeneralSecurityException {
+        ASN1Set attributes = new DERSet();
+        if (extensions != null) {
+            Attribute attribute = new Attribute(PKCSObjectIdentifiers.pkcs_9_at_extensionRequest,
+                                                new DERSet(extensions));
+            attributes = new DERSet(attribute);
+        }
+        PKCS10CertificationRequest request = new PKCS10CertificationRequest(EC_SIGNATURE_ALGORITHM,
+                                                                            new X509PrincipalUtil().createX509Principal(subject),
+                                                                            getPublic(),
+                                                                            attributes,
+                                                                            getPrivate());
+        try {
+            StringWriter pem = new StringWriter();
+            PEMWriter writer = new PEMWriter(pem);
+            writer.writeObject(request);
+            writer.close();
+            return PKCS10.readPEMEncoded(new StringReader(pem.toString()));
+        } catch (IOException e) {
+            throw new GeneralSecurityException("Failed to encode the EC certificate request",
+                                               e);
+        }
+    }
+
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.pki;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Properties;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openssl.PEMReader;
+import org.bouncycastle.openssl.PasswordFinder;
+import org.glite.slcs.pki.bouncycastle.Codec;
+import org.glite.slcs.util.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CertificateKeyPool is a directory of pre-generated key pairs, encrypted with
+ * the pool secret.
+ * <p>
+ * Directory layout:
+ *
+ * <pre>
+ * pool/.secret           pool secret (600)
+ * pool/1024/*.pem        available 1024 bits encrypted private keys (600)
+ * pool/1024/.stats       pool statistics (hits, misses, generated, fill rate)
+ * pool/2048/...
+ * </pre>
+ *
+ * A key is claimed by renaming its file, which is atomic, so several
+ * processes can safely claim keys concurrently. New keys are written in a
+ * temporary file and then renamed.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class CertificateKeyPool {
+
+    /** Logging */
+    private static Logger LOG = LoggerFactory.getLogger(CertificateKeyPool.class);
+
+    /** Pool secret filename */
+    static private final String SECRET_FILE = ".secret";
+
+    /** Pool statistics filename */
+    static private final String STATS_FILE = ".stats";
+
+    /** Available key file suffix */
+    static private final String KEY_SUFFIX = ".pem";
+
+    /** Pool directory permission, the files are 600 */
+    static private final int DIRECTORY_PERMISSION = 700;
+
+    /** Statistics names */
+    static public final String STAT_HITS = "hits";
+
+    static public final String STAT_MISSES = "misses";
+
+    static public final String STAT_GENERATED = "generated";
+
+    static public final String STAT_FILL_RATE = "fillRate";
+
+    static public final String STAT_LAST_FILL = "lastFill";
+
+    static {
+        // PEMReader uses the BC provider
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            LOG.info("add BouncyCastle security provider");
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    /** The pool directory */
+    private File directory_ = null;
+
+    /** Random for the unique file names */
+    private SecureRandom random_ = new SecureRandom();
+
+    /**
+     * @param directory
+     *            The pool directory.
+     */
+    public CertificateKeyPool(File directory) {
+        this.directory_ = directory;
+    }
+
+    /**
+     * @return The pool directory.
+     */
+    public File getDirectory() {
+        return directory_;
+    }
+
+    /**
+     * Claims a key pair from the pool.
+     *
+     * @param size
+     *            The key size.
+     * @return The key pair or <code>null</code> if the pool is empty.
+     * @throws IOException
+     *             If an error occurs while reading the pool.
+     * @throws GeneralSecurityException
+     *             If the claimed key can not be decrypted.
+     */
+    public KeyPair claim(int size) throws IOException,
+            GeneralSecurityException {
+        File sizeDirectory = getSizeDirectory(size);
+        char[] secret = readSecret();
+        File[] keyFiles = listKeyFiles(sizeDirectory);
+        if (secret != null && keyFiles != null) {
+            for (File keyFile : keyFiles) {
+                // atomic claim: only one process can rename the file
+                File claimedFile = new File(sizeDirectory, keyFile.getName()
+                        + "." + uniqueId() + ".claimed");
+                if (keyFile.renameTo(claimedFile)) {
+                    try {
+                        KeyPair keyPair = readKeyPair(claimedFile, secret);
+                        LOG.info("key pair claimed from pool: " + keyFile);
+                        updateStatistics(size, 1, 0, 0, -1);
+                        return keyPair;
+                    } finally {
+                        claimedFile.delete();
+                    }
+                }
+            }
+        }
+        LOG.info("key pool empty for size " + size + ": " + sizeDirectory);
+        updateStatistics(size, 0, 1, 0, -1);
+        return null;
+    }
+
+    /**
+     * Generates new key pairs until the pool contains <code>count</code> keys
+     * of the given size.
+     *
+     * @param size
+     *            The key size.
+     * @param count
+     *            The number of keys to keep in the pool.
+     * @return The number of generated keys.
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public int fill(int size, int count) throws IOException,
+            GeneralSecurityException {
+        File sizeDirectory = getSizeDirectory(size);
+        createDirectory(directory_);
+        createDirectory(sizeDirectory);
+        char[] secret = readSecret();
+        if (secret == null) {
+            secret = createSecret();
+        }
+        int generated = 0;
+        long start = System.currentTimeMillis();
+        while (getSize(size) < count) {
+            KeyPair keyPair = CertificateKeyPair.generateKeyPair(size);
+            String name = uniqueId();
+            File tmpFile = new File(sizeDirectory, name + ".tmp");
+            CertificateKeyPair.createPrivateFile(tmpFile);
+            Codec.storePEMEncoded(keyPair.getPrivate(), secret, tmpFile);
+            // publish atomically
+            File keyFile = new File(sizeDirectory, name + KEY_SUFFIX);
+            if (!tmpFile.renameTo(keyFile)) {
+                tmpFile.delete();
+                throw new IOException("Failed to rename " + tmpFile + " to "
+                        + keyFile);
+            }
+            generated++;
+        }
+        if (generated > 0) {
+            long elapsed = System.currentTimeMillis() - start;
+            double rate = generated * 1000.0 / Math.max(elapsed, 1);
+            LOG.info(generated + " key pairs (" + size + " bits) added to pool in "
+                    + elapsed + " ms");
+            updateStatistics(size, 0, 0, generated, rate);
+        }
+        return generated;
+    }
+
+    /**
+     * @param size
+     *            The key size.
+     * @return The number of available keys of the given size.
+     */
+    public int getSize(int size) {
+        File[] keyFiles = listKeyFiles(getSizeDirectory(size));
+        return keyFiles == null ? 0 : keyFiles.length;
+    }
+
+    /**
+     * @param size
+     *            The key size.
+     * @return The pool statistics for the given size: {@link #STAT_HITS},
+     *         {@link #STAT_MISSES}, {@link #STAT_GENERATED},
+     *         {@link #STAT_FILL_RATE} (keys/s) and {@link #STAT_LAST_FILL}.
+     * @throws IOException
+     */
+    public Properties getStatistics(int size) throws IOException {
+        Properties statistics = new Properties();
+        File statsFile = new File(getSizeDirectory(size), STATS_FILE);
+        if (statsFile.exists()) {
+            byte[] content = readFully(new RandomAccessFile(statsFile, "r"));
+            statistics.load(new ByteArrayInputStream(content));
+        }
+        return statistics;
+    }
+
+    private File getSizeDirectory(int size) {
+        return new File(directory_, String.valueOf(size));
+    }
+
+    private File[] listKeyFiles(File sizeDirectory) {
+        return sizeDirectory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(KEY_SUFFIX);
+            }
+        });
+    }
+
+    private String uniqueId() {
+        return Long.toHexString(System.currentTimeMillis()) + "-"
+                + Long.toHexString(random_.nextLong() & Long.MAX_VALUE);
+    }
+
+    private void createDirectory(File directory) throws IOException {
+        if (!directory.exists()) {
+            LOG.info("create key pool directory: " + directory);
+            if (!directory.mkdirs()) {
+                throw new IOException("Failed to create directory: "
+                        + directory);
+            }
+            if (!Utils.setFilePermissions(directory, DIRECTORY_PERMISSION)) {
+                LOG.warn("Failed to set permissions: " + DIRECTORY_PERMISSION
+                        + " for directory: " + directory);
+            }
+        }
+    }
+
+    private char[] readSecret() throws IOException {
+        File secretFile = new File(directory_, SECRET_FILE);
+        if (!secretFile.exists()) {
+            return null;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(secretFile));
+        try {
+            String secret = reader.readLine();
+            return secret == null ? null : secret.toCharArray();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private char[] createSecret() throws IOException {
+        File secretFile = new File(directory_, SECRET_FILE);
+        byte[] bytes = new byte[24];
+        random_.nextBytes(bytes);
+        String secret = Utils.toHexString(bytes);
+        CertificateKeyPair.createPrivateFile(secretFile);
+        FileWriter writer = new FileWriter(secretFile);
+        try {
+            writer.write(secret);
+            writer.write('\n');
+        } finally {
+            writer.close();
+        }
+        return secret.toCharArray();
+    }
+
+    private KeyPair readKeyPair(File keyFile, final char[] secret)
+            throws IOException, GeneralSecurityException {
+        PEMReader reader = new PEMReader(new FileReader(keyFile),
+                new PasswordFinder() {
+                    public char[] getPassword() {
+                        return secret;
+                    }
+                });
+        try {
+            Object object = reader.readObject();
+            if (!(object instanceof KeyPair)) {
+                throw new GeneralSecurityException("Invalid pooled key: "
+                        + keyFile);
+            }
+            return (KeyPair) object;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Updates the statistics file, locked against the other processes.
+     */
+    private void updateStatistics(int size, long hits, long misses,
+            long generated, double fillRate) {
+        File sizeDirectory = getSizeDirectory(size);
+        if (!sizeDirectory.isDirectory()) {
+            return;
+        }
+        File statsFile = new File(sizeDirectory, STATS_FILE);
+        // FileLock is per JVM, serialize the threads first
+        synchronized (CertificateKeyPool.class) {
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile(statsFile, "rw");
+                file.getChannel().lock();
+                Properties statistics = new Properties();
+                statistics.load(new ByteArrayInputStream(readFully(file)));
+                increment(statistics, STAT_HITS, hits);
+                increment(statistics, STAT_MISSES, misses);
+                increment(statistics, STAT_GENERATED, generated);
+                if (fillRate >= 0) {
+                    statistics.setProperty(STAT_FILL_RATE,
+                                           String.valueOf(fillRate));
+                    statistics.setProperty(STAT_LAST_FILL,
+                                           String.valueOf(System.currentTimeMillis()));
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                statistics.store(out, "SLCS key pool statistics");
+                file.setLength(0);
+                file.seek(0);
+                file.write(out.toByteArray());
+            } catch (IOException e) {
+                LOG.warn("Failed to update key pool statistics: " + statsFile,
+                         e);
+            } finally {
+                if (file != null) {
+                    try {
+                        // also releases the lock
+                        file.close();
+                    } catch (IOException e) {
+                        // ignored
+                    }
+                }
+            }
+        }
+    }
+
+    private static void increment(Properties statistics, String name,
+            long delta) {
+        long value = Long.parseLong(statistics.getProperty(name, "0"));
+        statistics.setProperty(name, String.valueOf(value + delta));
+    }
+
+    private static byte[] readFully(RandomAccessFile file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        file.seek(0);
+        file.readFully(content);
+        return content;
+    }
+
+}
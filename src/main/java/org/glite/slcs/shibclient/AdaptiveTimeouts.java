@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * AdaptiveTimeouts derives the socket timeout of each host from its observed
+ * response latencies, as the TCP retransmission timeout (RFC 6298): smoothed
+ * latency plus four times the latency variation. The timeout is doubled after
+ * each timeout of the host, and reset by the next response.
+ * <p>
+ * The timeout is bounded by a minimum, and by the configured socket timeout
+ * which is also used for the hosts without observed latency.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class AdaptiveTimeouts {
+
+    /** Smoothed latency gain */
+    static private final double ALPHA = 0.125;
+
+    /** Latency variation gain */
+    static private final double BETA = 0.25;
+
+    /** Latency variation factor */
+    static private final int K = 4;
+
+    /** Maximum timeout backoff factor */
+    static private final int MAX_BACKOFF = 64;
+
+    /** Minimum timeout in millis */
+    private int minTimeout_;
+
+    /** Maximum (and initial) timeout in millis */
+    private int maxTimeout_;
+
+    /** Latency estimators by host */
+    private Map<String, Estimator> estimators_ = new HashMap<String, Estimator>();
+
+    /**
+     * @param minTimeout
+     *            The minimum socket timeout in milliseconds.
+     * @param maxTimeout
+     *            The maximum socket timeout in milliseconds, used until a
+     *            latency is observed.
+     */
+    public AdaptiveTimeouts(int minTimeout, int maxTimeout) {
+        this.minTimeout_ = minTimeout;
+        this.maxTimeout_ = Math.max(minTimeout, maxTimeout);
+    }
+
+    /**
+     * @param host
+     *            The host name.
+     * @return The socket timeout in milliseconds for the host.
+     */
+    public synchronized int getSoTimeout(String host) {
+        Estimator estimator = estimators_.get(host);
+        if (estimator == null) {
+            return maxTimeout_;
+        }
+        double timeout = (estimator.latency + K * estimator.variation)
+                * estimator.backoff;
+        return (int) Math.max(minTimeout_, Math.min(maxTimeout_,
+                                                    Math.ceil(timeout)));
+    }
+
+    /**
+     * Records the response latency of a host.
+     *
+     * @param host
+     *            The host name.
+     * @param millis
+     *            The response latency in milliseconds.
+     */
+    public synchronized void record(String host, long millis) {
+        Estimator estimator = estimators_.get(host);
+        if (estimator == null) {
+            estimator = new Estimator();
+            estimator.latency = millis;
+            estimator.variation = millis / 2.0;
+            estimators_.put(host, estimator);
+        }
+        else {
+            estimator.variation = (1 - BETA) * estimator.variation + BETA
+                    * Math.abs(estimator.latency - millis);
+            estimator.latency = (1 - ALPHA) * estimator.latency + ALPHA
+                    * millis;
+        }
+        estimator.backoff = 1;
+    }
+
+    /**
+     * Records a timeout of the host, the next timeout is doubled.
+     *
+     * @param host
+     *            The host name.
+     */
+    public synchronized void timeout(String host) {
+        Estimator estimator = estimators_.get(host);
+        if (estimator != null) {
+            estimator.backoff = Math.min(estimator.backoff * 2, MAX_BACKOFF);
+        }
+    }
+
+    /**
+     * Latency estimator of a host.
+     */
+    static private class Estimator {
+
+        /** Smoothed latency */
+        double latency;
+
+        /** Latency variation */
+        double variation;
+
+        /** Timeout backoff factor */
+        int backoff = 1;
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient;
+
+/**
+ * Completion callback of a Shibboleth authentication run in background, see
+ * {@link ShibbolethClient#authenticateInBackground(String, java.util.concurrent.Executor, AuthenticationCallback)}.
+ * <p>
+ * The callback is invoked in the executor thread which ran the
+ * authentication, it must not block.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public interface AuthenticationCallback {
+
+    /**
+     * Called when the authentication completed.
+     *
+     * @param authenticated
+     *            <code>true</code> iff the user have been authenticated by
+     *            his Identity Provider.
+     */
+    void completed(boolean authenticated);
+
+    /**
+     * Called when the authentication failed.
+     *
+     * @param cause
+     *            The {@link org.glite.slcs.SLCSException} or the unexpected
+     *            error.
+     */
+    void failed(Throwable cause);
+
+}
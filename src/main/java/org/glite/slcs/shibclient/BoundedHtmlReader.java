@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * BoundedHtmlReader reads a HTML page only up to the end of a target form.
+ * <p>
+ * The page is read by chunks, and each closed <code>&lt;form&gt;</code> is
+ * checked by the {@link FormMatcher}. The reading stops as soon as the
+ * target form is closed, the rest of the page is skipped without being
+ * buffered nor parsed. The page read up to the target form must not exceed
+ * the maximum body size.
+ * <p>
+ * The HTML tags are ASCII, so the page is scanned as ISO-8859-1 and the
+ * returned bytes keep their original encoding for the HTML parser.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class BoundedHtmlReader {
+
+    /** Matches the target form */
+    public interface FormMatcher {
+
+        /**
+         * @param form
+         *            The form HTML, from <code>&lt;form</code> up to
+         *            <code>&lt;/form&gt;</code> included, decoded as
+         *            ISO-8859-1.
+         * @return <code>true</code> if the form is the target form.
+         */
+        boolean matches(String form);
+    }
+
+    /** Read chunk size */
+    static private final int CHUNK_SIZE = 8192;
+
+    /** Maximum number of bytes read and buffered */
+    private int maxBodySize_;
+
+    /** Bytes read up to the target form end */
+    private long bytesRead_ = 0;
+
+    /** Bytes skipped after the target form end */
+    private long bytesSkipped_ = 0;
+
+    /** The target form was found */
+    private boolean formFound_ = false;
+
+    /** The skipped bytes were not all read up to the end of the page */
+    private boolean truncated_ = false;
+
+    /** Page offset where the next form scan starts */
+    private int scanFrom_ = 0;
+
+    /**
+     * @param maxBodySize
+     *            The maximum page size in bytes read up to the target form.
+     */
+    public BoundedHtmlReader(int maxBodySize) {
+        this.maxBodySize_ = maxBodySize;
+    }
+
+    /**
+     * Reads the page up to the end of the target form, then skips the rest
+     * of the page, up to the maximum body size.
+     *
+     * @param in
+     *            The HTML page stream.
+     * @param matcher
+     *            The target form matcher.
+     * @return The page bytes up to the end of the target form, or the whole
+     *         page if the target form is not found.
+     * @throws IOException
+     *             If the page up to the target form exceeds the maximum body
+     *             size, or on read error.
+     */
+    public byte[] read(InputStream in, FormMatcher matcher) throws IOException {
+        ByteArrayOutputStream html = new ByteArrayOutputStream(CHUNK_SIZE);
+        // ISO-8859-1 copy of the page, and its lower case copy to search the
+        // tags, same offsets as the bytes
+        StringBuilder page = new StringBuilder(CHUNK_SIZE);
+        StringBuilder lowerCasePage = new StringBuilder(CHUNK_SIZE);
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int n;
+        while ((n = in.read(chunk)) != -1) {
+            if (html.size() + n > maxBodySize_) {
+                throw new IOException("HTML page exceeds " + maxBodySize_
+                        + " bytes without the target form");
+            }
+            html.write(chunk, 0, n);
+            String text = new String(chunk, 0, n, "ISO-8859-1");
+            page.append(text);
+            lowerCasePage.append(text.toLowerCase(Locale.ENGLISH));
+            int formEnd = findTargetFormEnd(page, lowerCasePage, matcher);
+            if (formEnd != -1) {
+                formFound_ = true;
+                bytesRead_ = formEnd;
+                bytesSkipped_ = html.size() - formEnd;
+                skip(in, chunk);
+                byte[] bytes = html.toByteArray();
+                byte[] form = new byte[formEnd];
+                System.arraycopy(bytes, 0, form, 0, formEnd);
+                return form;
+            }
+        }
+        bytesRead_ = html.size();
+        return html.toByteArray();
+    }
+
+    /**
+     * Searches the forms closed since the last scan. A form not yet closed
+     * is scanned again with the next chunk.
+     *
+     * @return The end offset of the target form, or -1 if not found.
+     */
+    private int findTargetFormEnd(StringBuilder page,
+            StringBuilder lowerCasePage, FormMatcher matcher) {
+        int formStart = lowerCasePage.indexOf("<form", scanFrom_);
+        while (formStart != -1) {
+            scanFrom_ = formStart;
+            int formEndTag = lowerCasePage.indexOf("</form", formStart);
+            if (formEndTag == -1) {
+                return -1;
+            }
+            int formEnd = page.indexOf(">", formEndTag);
+            if (formEnd == -1) {
+                return -1;
+            }
+            formEnd++;
+            if (matcher.matches(page.substring(formStart, formEnd))) {
+                return formEnd;
+            }
+            scanFrom_ = formEnd;
+            formStart = lowerCasePage.indexOf("<form", formEnd);
+        }
+        // a <form tag can be split between two chunks
+        scanFrom_ = Math.max(scanFrom_, page.length() - "<form".length());
+        return -1;
+    }
+
+    /**
+     * Skips the rest of the page, without buffering it, up to the maximum
+     * body size.
+     */
+    private void skip(InputStream in, byte[] buffer) throws IOException {
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            bytesSkipped_ += n;
+            if (bytesRead_ + bytesSkipped_ >= maxBodySize_) {
+                truncated_ = true;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The number of bytes read up to the target form end.
+     */
+    public long getBytesRead() {
+        return bytesRead_;
+    }
+
+    /**
+     * @return The number of bytes skipped after the target form end.
+     */
+    public long getBytesSkipped() {
+        return bytesSkipped_;
+    }
+
+    /**
+     * @return <code>true</code> if the target form was found.
+     */
+    public boolean isFormFound() {
+        return formFound_;
+    }
+
+    /**
+     * @return <code>true</code> if the page was not read up to its end, the
+     *         connection must then be closed instead of reused.
+     */
+    public boolean isTruncated() {
+        return truncated_;
+    }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.HttpConnectionManager;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.URIException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ConnectionWarmUp opens in parallel the connections to the hosts of a
+ * login flow (DNS resolution, TCP connect and TLS handshake), and releases
+ * them open into the connection pool. The requests of the login flow then
+ * reuse a pooled connection instead of opening a new one.
+ * <p>
+ * One background thread is started per host. A host that can not be reached
+ * is ignored, the login request will report the error. With a proxy, the
+ * connections to the proxy are opened, except for the HTTPS hosts which
+ * require a CONNECT tunnel established by the request itself.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class ConnectionWarmUp {
+
+    /** Logging */
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionWarmUp.class);
+
+    /** The connection pool */
+    private HttpConnectionManager connectionManager_;
+
+    /** The HttpClient host configuration, with the proxy if any */
+    private HostConfiguration clientConfiguration_;
+
+    /** Running warm-up tasks, by host URL */
+    private Map<String, FutureTask<Boolean>> tasks_ = new LinkedHashMap<String, FutureTask<Boolean>>();
+
+    /**
+     * @param connectionManager
+     *            The connection pool, must keep the connections open after
+     *            use.
+     * @param clientConfiguration
+     *            The HttpClient host configuration, with the proxy settings
+     *            of the login requests.
+     */
+    public ConnectionWarmUp(HttpConnectionManager connectionManager,
+            HostConfiguration clientConfiguration) {
+        this.connectionManager_ = connectionManager;
+        this.clientConfiguration_ = clientConfiguration;
+    }
+
+    /**
+     * Starts to open the connections to the hosts of the URLs, one
+     * connection per host.
+     *
+     * @param urls
+     *            The URLs of the login flow.
+     */
+    public synchronized void start(Collection<String> urls) {
+        for (String url : urls) {
+            if (url == null) {
+                continue;
+            }
+            try {
+                // same proxy and local address as the login requests, for
+                // the pooled connection to be reused
+                final HostConfiguration hostConfiguration = new HostConfiguration(clientConfiguration_);
+                hostConfiguration.setHost(new URI(url, false));
+                final String hostURL = hostConfiguration.getHostURL();
+                if (tasks_.containsKey(hostURL)) {
+                    continue;
+                }
+                if (hostConfiguration.getProxyHost() != null
+                        && hostConfiguration.getProtocol().isSecure()) {
+                    LOG.debug("no warm-up for " + hostURL + " through proxy "
+                            + hostConfiguration.getProxyHost());
+                    continue;
+                }
+                FutureTask<Boolean> task = new FutureTask<Boolean>(
+                        new Callable<Boolean>() {
+                            public Boolean call() throws IOException {
+                                return Boolean.valueOf(open(hostConfiguration));
+                            }
+                        });
+                tasks_.put(hostURL, task);
+                Thread thread = new Thread(task, "slcs-warmup");
+                // don't prevent the JVM to exit
+                thread.setDaemon(true);
+                thread.start();
+            } catch (URIException e) {
+                LOG.warn("Invalid warm-up URL: " + url + ": " + e);
+            } catch (IllegalArgumentException e) {
+                LOG.warn("Invalid warm-up URL: " + url + ": " + e);
+            } catch (IllegalStateException e) {
+                // unsupported protocol
+                LOG.warn("Invalid warm-up URL: " + url + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Opens a connection to the host and releases it into the pool.
+     *
+     * @return <code>true</code> if a connection was opened,
+     *         <code>false</code> if a pooled connection was already open.
+     */
+    private boolean open(HostConfiguration hostConfiguration)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        HttpConnection connection = connectionManager_.getConnectionWithTimeout(hostConfiguration,
+                                                                                0);
+        try {
+            if (connection.isOpen()) {
+                return false;
+            }
+            connection.open();
+            LOG.debug("warm-up " + hostConfiguration.getHostURL() + ": "
+                    + (System.currentTimeMillis() - start) + " ms");
+            return true;
+        } finally {
+            connection.releaseConnection();
+        }
+    }
+
+    /**
+     * Waits for the warm-up of all the hosts.
+     *
+     * @param timeout
+     *            The maximum time to wait in milliseconds.
+     * @return The number of connections opened.
+     */
+    public synchronized int await(long timeout) {
+        int opened = 0;
+        long deadline = System.currentTimeMillis() + timeout;
+        List<String> hostURLs = new ArrayList<String>(tasks_.keySet());
+        for (String hostURL : hostURLs) {
+            FutureTask<Boolean> task = tasks_.get(hostURL);
+            try {
+                long wait = Math.max(deadline - System.currentTimeMillis(), 1);
+                if (task.get(wait, TimeUnit.MILLISECONDS).booleanValue()) {
+                    opened++;
+                }
+            } catch (ExecutionException e) {
+                LOG.info("warm-up " + hostURL + " failed: " + e.getCause());
+            } catch (TimeoutException e) {
+                LOG.info("warm-up " + hostURL + " not yet done");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        tasks_.clear();
+        return opened;
+    }
+
+}
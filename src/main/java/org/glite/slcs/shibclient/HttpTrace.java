@@ -0,0 +1,422 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * HttpTrace is a sequence of recorded HTTP exchanges: the request head, the
+ * raw response (status line, headers and body as received) and the exchange
+ * duration.
+ * <p>
+ * The trace is redacted: the request bodies (login form, SAML POST,
+ * certificate request) are not kept, and the values of the
+ * <code>Authorization</code>, <code>Proxy-Authorization</code> and
+ * <code>Cookie</code> request headers and of the <code>Set-Cookie</code>
+ * response headers are replaced. The one-time tokens (CAS
+ * <code>ticket</code>, <code>SAMLart</code>, ...) in the query of the request
+ * lines, of the <code>Referer</code> request headers and of the
+ * <code>Location</code> response headers are also replaced.
+ * The response bodies are kept as received, the SAML assertions included.
+ * <p>
+ * The trace file is a gzip compressed binary file. In replay, the responses
+ * are served in the recorded order for each request (host, port, method,
+ * path and redacted query).
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ * @see HttpTraceSocketFactory
+ */
+public class HttpTrace {
+
+    /** Trace file header and version */
+    static private final String MAGIC = "SLCS-HTTP-TRACE";
+
+    static private final int VERSION = 1;
+
+    /** Redacted header value */
+    static private final String REDACTED = "REDACTED";
+
+    /** Redacted query parameters, case insensitive */
+    static private final String[] REDACTED_PARAMETERS = { "ticket",
+            "SAMLart", "SAMLResponse", "AuthorizationToken" };
+
+    /** Recorded exchanges, in start order */
+    private List<Exchange> exchanges_ = new ArrayList<Exchange>();
+
+    /** Exchanges to replay, by request key */
+    private Map<String, LinkedList<Exchange>> replay_ = null;
+
+    /**
+     * Reads a trace file.
+     *
+     * @param file
+     *            The trace file.
+     * @return The trace.
+     * @throws IOException
+     *             If the file can not be read or is not a trace file.
+     */
+    static public HttpTrace read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file))));
+        try {
+            if (!MAGIC.equals(in.readUTF())) {
+                throw new IOException(file + ": not a HTTP trace file");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(file + ": unsupported version: "
+                        + version);
+            }
+            HttpTrace trace = new HttpTrace();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                boolean secure = in.readBoolean();
+                String host = in.readUTF();
+                int port = in.readInt();
+                Exchange exchange = new Exchange(secure, host, port);
+                exchange.millis_ = in.readLong();
+                exchange.requestHead_.write(readBytes(in));
+                exchange.requestBodyLength_ = in.readLong();
+                exchange.response_.write(readBytes(in));
+                trace.exchanges_.add(exchange);
+            }
+            return trace;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes the redacted trace file.
+     *
+     * @param file
+     *            The trace file.
+     * @throws IOException
+     */
+    public synchronized void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(file))));
+        try {
+            out.writeUTF(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(exchanges_.size());
+            for (Exchange exchange : exchanges_) {
+                synchronized (exchange) {
+                    out.writeBoolean(exchange.secure_);
+                    out.writeUTF(exchange.host_);
+                    out.writeInt(exchange.port_);
+                    out.writeLong(exchange.millis_);
+                    writeBytes(out, redactHead(exchange.requestHead_.toByteArray(),
+                                               false));
+                    out.writeLong(exchange.requestBodyLength_);
+                    writeBytes(out, redactHead(exchange.response_.toByteArray(),
+                                               true));
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes)
+            throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Replaces the credentials and cookie values of a request or response
+     * head. The body, if any, is kept unchanged.
+     */
+    static byte[] redactHead(byte[] message, boolean response)
+            throws UnsupportedEncodingException {
+        String text = new String(message, "ISO-8859-1");
+        int headEnd = text.indexOf("\r\n\r\n");
+        String head = headEnd == -1 ? text : text.substring(0, headEnd);
+        String body = headEnd == -1 ? "" : text.substring(headEnd);
+        StringBuilder redacted = new StringBuilder(message.length);
+        String lines[] = head.split("\r\n", -1);
+        for (int i = 0; i < lines.length; i++) {
+            if (i > 0) {
+                redacted.append("\r\n");
+            }
+            if (i == 0 && !response) {
+                redacted.append(redactQuery(lines[i]));
+            }
+            else {
+                redacted.append(redactHeader(lines[i], response));
+            }
+        }
+        redacted.append(body);
+        return redacted.toString().getBytes("ISO-8859-1");
+    }
+
+    private static String redactHeader(String line, boolean response) {
+        int colon = line.indexOf(':');
+        if (colon == -1) {
+            return line;
+        }
+        String name = line.substring(0, colon).trim().toLowerCase();
+        if (!response
+                && (name.equals("authorization")
+                        || name.equals("proxy-authorization") || name.equals("cookie"))) {
+            return line.substring(0, colon + 1) + " " + REDACTED;
+        }
+        if ((response && name.equals("location"))
+                || (!response && name.equals("referer"))) {
+            return redactQuery(line);
+        }
+        if (response
+                && (name.equals("set-cookie") || name.equals("set-cookie2"))) {
+            // keep the cookie name and attributes
+            String cookie = line.substring(colon + 1);
+            int equals = cookie.indexOf('=');
+            if (equals != -1) {
+                int end = cookie.indexOf(';', equals);
+                return line.substring(0, colon + 1)
+                        + cookie.substring(0, equals + 1) + REDACTED
+                        + (end == -1 ? "" : cookie.substring(end));
+            }
+        }
+        return line;
+    }
+
+    /**
+     * Replaces the values of the one-time token parameters in the query of a
+     * request line or a <code>Location</code> header.
+     */
+    static String redactQuery(String line) {
+        int query = line.indexOf('?');
+        if (query == -1) {
+            return line;
+        }
+        // request line: the query ends before the HTTP version
+        int end = line.indexOf(' ', query);
+        if (end == -1) {
+            end = line.length();
+        }
+        int fragment = line.indexOf('#', query);
+        if (fragment != -1 && fragment < end) {
+            end = fragment;
+        }
+        StringBuilder redacted = new StringBuilder(line.length());
+        redacted.append(line.substring(0, query + 1));
+        String params[] = line.substring(query + 1, end).split("&", -1);
+        for (int i = 0; i < params.length; i++) {
+            if (i > 0) {
+                redacted.append('&');
+            }
+            int equals = params[i].indexOf('=');
+            if (equals != -1
+                    && isRedactedParameter(params[i].substring(0, equals))) {
+                redacted.append(params[i].substring(0, equals + 1)).append(REDACTED);
+            }
+            else {
+                redacted.append(params[i]);
+            }
+        }
+        redacted.append(line.substring(end));
+        return redacted.toString();
+    }
+
+    private static boolean isRedactedParameter(String name) {
+        for (String parameter : REDACTED_PARAMETERS) {
+            if (parameter.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts recording a new exchange.
+     */
+    synchronized Exchange startExchange(boolean secure, String host, int port) {
+        Exchange exchange = new Exchange(secure, host, port);
+        exchanges_.add(exchange);
+        return exchange;
+    }
+
+    /**
+     * Returns the next recorded response of a request. The last recorded
+     * response of a request is served again if the request is repeated more
+     * often than recorded.
+     *
+     * @param requestLine
+     *            The request line: method, path and query, HTTP version.
+     * @return The raw response, or <code>null</code> if the request is not
+     *         in the trace.
+     */
+    synchronized byte[] replay(boolean secure, String host, int port,
+            String requestLine) {
+        if (replay_ == null) {
+            replay_ = new HashMap<String, LinkedList<Exchange>>();
+            for (Exchange exchange : exchanges_) {
+                String key = exchange.getKey();
+                LinkedList<Exchange> responses = replay_.get(key);
+                if (responses == null) {
+                    responses = new LinkedList<Exchange>();
+                    replay_.put(key, responses);
+                }
+                responses.add(exchange);
+            }
+        }
+        LinkedList<Exchange> responses = replay_.get(getKey(secure, host, port,
+                                                            requestLine));
+        if (responses == null) {
+            return null;
+        }
+        Exchange exchange = responses.size() > 1 ? responses.removeFirst()
+                : responses.getFirst();
+        return exchange.response_.toByteArray();
+    }
+
+    /**
+     * @return The number of recorded exchanges.
+     */
+    public synchronized int getExchanges() {
+        return exchanges_.size();
+    }
+
+    /**
+     * @return The total duration of the recorded exchanges in milliseconds.
+     */
+    public synchronized long getMillis() {
+        long millis = 0;
+        for (Exchange exchange : exchanges_) {
+            millis += exchange.millis_;
+        }
+        return millis;
+    }
+
+    /**
+     * @return The request key: scheme, host, port, method, path and redacted
+     *         query. The replayed requests use the redacted tokens of the
+     *         replayed responses.
+     */
+    static private String getKey(boolean secure, String host, int port,
+            String requestLine) {
+        // without the HTTP version
+        String fields[] = redactQuery(requestLine).split(" ");
+        StringBuilder key = new StringBuilder();
+        key.append(secure ? "https://" : "http://").append(host).append(':').append(port);
+        for (int i = 0; i < fields.length && i < 2; i++) {
+            key.append(' ').append(fields[i]);
+        }
+        return key.toString();
+    }
+
+    /**
+     * A HTTP exchange. The request body is only counted.
+     */
+    static class Exchange {
+
+        boolean secure_;
+
+        String host_;
+
+        int port_;
+
+        /** Request line and headers */
+        ByteArrayOutputStream requestHead_ = new ByteArrayOutputStream(512);
+
+        /** Request body length */
+        long requestBodyLength_ = 0;
+
+        /** Raw response */
+        ByteArrayOutputStream response_ = new ByteArrayOutputStream(4096);
+
+        /** Duration from the request to the last response bytes */
+        long millis_ = 0;
+
+        /** Start time */
+        private long start_ = System.currentTimeMillis();
+
+        /** Request head complete */
+        private boolean headComplete_ = false;
+
+        /** Last 4 bytes of the request head */
+        private int lastBytes_ = 0;
+
+        Exchange(boolean secure, String host, int port) {
+            this.secure_ = secure;
+            this.host_ = host;
+            this.port_ = port;
+        }
+
+        /**
+         * Records the request bytes: the head, and only the length of the
+         * body.
+         */
+        synchronized void request(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                if (headComplete_) {
+                    requestBodyLength_ += off + len - i;
+                    return;
+                }
+                requestHead_.write(b[i]);
+                lastBytes_ = (lastBytes_ << 8) | (b[i] & 0xff);
+                // CRLF CRLF
+                headComplete_ = lastBytes_ == 0x0d0a0d0a;
+            }
+        }
+
+        /**
+         * Records the response bytes.
+         */
+        synchronized void response(byte[] b, int off, int len) {
+            response_.write(b, off, len);
+            millis_ = System.currentTimeMillis() - start_;
+        }
+
+        private String getKey() {
+            String head;
+            try {
+                head = requestHead_.toString("ISO-8859-1");
+            } catch (UnsupportedEncodingException e) {
+                // not possible
+                head = requestHead_.toString();
+            }
+            int end = head.indexOf("\r\n");
+            return HttpTrace.getKey(secure_, host_, port_, end == -1 ? head
+                    : head.substring(0, end));
+        }
+    }
+
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+
+import org.apache.commons.httpclient.ConnectTimeoutException;
+import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.protocol.Protocol;
+import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
+import org.apache.commons.httpclient.protocol.SecureProtocolSocketFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * HttpTraceSocketFactory is the HTTP transport recording the exchanges in a
+ * {@link HttpTrace}, or replaying them from a trace without network access.
+ * <p>
+ * The exchanges are recorded and replayed at the socket level, above TLS:
+ * the redirects followed by the HttpClient, the cookies and the compressed
+ * responses are processed as with the live servers. In replay, each request
+ * is answered in-process with its recorded response, without delay.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class HttpTraceSocketFactory implements ProtocolSocketFactory {
+
+    /** Logging */
+    private static final Logger LOG = LoggerFactory.getLogger(HttpTraceSocketFactory.class);
+
+    /** The wrapped socket factory, <code>null</code> in replay */
+    private ProtocolSocketFactory factory_;
+
+    /** The trace */
+    private HttpTrace trace_;
+
+    /** HTTPS or HTTP */
+    private boolean secure_;
+
+    /**
+     * Registers the recording (or replay) HTTP and HTTPS protocols, wrapping
+     * the registered socket factories.
+     *
+     * @param trace
+     *            The trace to record, or to replay.
+     * @param replay
+     *            <code>true</code> to replay the trace.
+     */
+    static public void register(HttpTrace trace, boolean replay) {
+        for (String scheme : new String[] { "http", "https" }) {
+            Protocol protocol = Protocol.getProtocol(scheme);
+            if (protocol.getSocketFactory() instanceof HttpTraceSocketFactory) {
+                // already registered
+                continue;
+            }
+            ProtocolSocketFactory factory = replay ? null
+                    : protocol.getSocketFactory();
+            HttpTraceSocketFactory traceFactory = protocol.isSecure() ? new Secure(
+                    factory, trace)
+                    : new HttpTraceSocketFactory(factory, trace, false);
+            Protocol.registerProtocol(scheme,
+                                      new Protocol(scheme,
+                                              (ProtocolSocketFactory) traceFactory,
+                                              protocol.getDefaultPort()));
+            LOG.info((replay ? "replay " : "record ") + scheme
+                    + " exchanges");
+        }
+    }
+
+    /**
+     * @param factory
+     *            The socket factory to wrap, or <code>null</code> to replay.
+     * @param trace
+     *            The trace to record, or to replay.
+     * @param secure
+     *            <code>true</code> for the HTTPS exchanges.
+     */
+    protected HttpTraceSocketFactory(ProtocolSocketFactory factory,
+            HttpTrace trace, boolean secure) {
+        this.factory_ = factory;
+        this.trace_ = trace;
+        this.secure_ = secure;
+    }
+
+    /**
+     * @return The wrapped socket factory, or <code>null</code> in replay.
+     */
+    public ProtocolSocketFactory getSocketFactory() {
+        return factory_;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.apache.commons.httpclient.protocol.ProtocolSocketFactory#createSocket(java.lang.String,
+     *      int, java.net.InetAddress, int)
+     */
+    public Socket createSocket(String host, int port, InetAddress localAddress,
+            int localPort) throws IOException, UnknownHostException {
+        if (factory_ == null) {
+            return createTraceSocket(null, host, port);
+        }
+        return createTraceSocket(factory_.createSocket(host, port,
+                                                       localAddress, localPort),
+                                 host, port);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.apache.commons.httpclient.protocol.ProtocolSocketFactory#createSocket(java.lang.String,
+     *      int, java.net.InetAddress, int,
+     *      org.apache.commons.httpclient.params.HttpConnectionParams)
+     */
+    public Socket createSocket(String host, int port, InetAddress localAddress,
+            int localPort, HttpConnectionParams params) throws IOException,
+            UnknownHostException, ConnectTimeoutException {
+        if (factory_ == null) {
+            return createTraceSocket(null, host, port);
+        }
+        return createTraceSocket(factory_.createSocket(host, port,
+                                                       localAddress, localPort,
+                                                       params), host, port);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.apache.commons.httpclient.protocol.ProtocolSocketFactory#createSocket(java.lang.String,
+     *      int)
+     */
+    public Socket createSocket(String host, int port) throws IOException,
+            UnknownHostException {
+        if (factory_ == null) {
+            return createTraceSocket(null, host, port);
+        }
+        return createTraceSocket(factory_.createSocket(host, port), host, port);
+    }
+
+    /**
+     * @param socket
+     *            The network socket to record, or <code>null</code> to
+     *            replay.
+     * @return The recording or replay socket.
+     */
+    protected Socket createTraceSocket(Socket socket, String host, int port) {
+        if (socket == null) {
+            return new ReplaySocket(host, port);
+        }
+        return new RecordingSocket(socket, host, port);
+    }
+
+    /**
+     * HTTPS trace socket factory.
+     */
+    static public class Secure extends HttpTraceSocketFactory implements
+            SecureProtocolSocketFactory {
+
+        Secure(ProtocolSocketFactory factory, HttpTrace trace) {
+            super(factory, trace, true);
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see org.apache.commons.httpclient.protocol.SecureProtocolSocketFactory#createSocket(java.net.Socket,
+         *      java.lang.String, int, boolean)
+         */
+        public Socket createSocket(Socket socket, String host, int port,
+                boolean autoClose) throws IOException, UnknownHostException {
+            ProtocolSocketFactory factory = getSocketFactory();
+            if (factory == null) {
+                return createTraceSocket(null, host, port);
+            }
+            if (!(factory instanceof SecureProtocolSocketFactory)) {
+                throw new IOException("Layered sockets not supported by "
+                        + factory.getClass().getName());
+            }
+            return createTraceSocket(((SecureProtocolSocketFactory) factory).createSocket(socket,
+                                                                                          host,
+                                                                                          port,
+                                                                                          autoClose),
+                                     host, port);
+        }
+    }
+
+    /**
+     * Socket with trace streams, delegating to the network socket if any.
+     */
+    private abstract class TraceSocket extends Socket {
+
+        /** Network socket, <code>null</code> in replay */
+        protected Socket socket_;
+
+        protected String host_;
+
+        protected int port_;
+
+        private int soTimeout_ = 0;
+
+        private boolean closed_ = false;
+
+        TraceSocket(Socket socket, String host, int port) {
+            this.socket_ = socket;
+            this.host_ = host;
+            this.port_ = port;
+        }
+
+        public void setSoTimeout(int timeout) throws SocketException {
+            soTimeout_ = timeout;
+            if (socket_ != null) {
+                socket_.setSoTimeout(timeout);
+            }
+        }
+
+        public int getSoTimeout() throws SocketException {
+            return soTimeout_;
+        }
+
+        public void setTcpNoDelay(boolean on) throws SocketException {
+            if (socket_ != null) {
+                socket_.setTcpNoDelay(on);
+            }
+        }
+
+        public void setSoLinger(boolean on, int linger) throws SocketException {
+            if (socket_ != null) {
+                socket_.setSoLinger(on, linger);
+            }
+        }
+
+        public void setSendBufferSize(int size) throws SocketException {
+            if (socket_ != null) {
+                socket_.setSendBufferSize(size);
+            }
+        }
+
+        public int getSendBufferSize() throws SocketException {
+            return socket_ != null ? socket_.getSendBufferSize() : 2048;
+        }
+
+        public void setReceiveBufferSize(int size) throws SocketException {
+            if (socket_ != null) {
+                socket_.setReceiveBufferSize(size);
+            }
+        }
+
+        public int getReceiveBufferSize() throws SocketException {
+            return socket_ != null ? socket_.getReceiveBufferSize() : 8192;
+        }
+
+        public InetAddress getInetAddress() {
+            return socket_ != null ? socket_.getInetAddress() : null;
+        }
+
+        public boolean isConnected() {
+            return socket_ != null ? socket_.isConnected() : true;
+        }
+
+        public boolean isClosed() {
+            return closed_;
+        }
+
+        public void shutdownInput() throws IOException {
+            if (socket_ != null) {
+                socket_.shutdownInput();
+            }
+        }
+
+        public void shutdownOutput() throws IOException {
+            if (socket_ != null) {
+                socket_.shutdownOutput();
+            }
+        }
+
+        public synchronized void close() throws IOException {
+            closed_ = true;
+            if (socket_ != null) {
+                socket_.close();
+            }
+        }
+
+        public String toString() {
+            return getClass().getSimpleName() + "[" + host_ + ":" + port_
+                    + "]";
+        }
+    }
+
+    /**
+     * Records the request bytes written and the response bytes read. A new
+     * exchange starts with the first request bytes written after a response.
+     */
+    private class RecordingSocket extends TraceSocket {
+
+        private HttpTrace.Exchange exchange_ = null;
+
+        private boolean responding_ = false;
+
+        RecordingSocket(Socket socket, String host, int port) {
+            super(socket, host, port);
+        }
+
+        private synchronized void request(byte[] b, int off, int len) {
+            if (exchange_ == null || responding_) {
+                exchange_ = trace_.startExchange(secure_, host_, port_);
+                responding_ = false;
+            }
+            exchange_.request(b, off, len);
+        }
+
+        private synchronized void response(byte[] b, int off, int len) {
+            if (exchange_ != null && len > 0) {
+                exchange_.response(b, off, len);
+                responding_ = true;
+            }
+        }
+
+        public InputStream getInputStream() throws IOException {
+            final InputStream in = socket_.getInputStream();
+            return new InputStream() {
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+                }
+
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = in.read(b, off, len);
+                    if (n > 0) {
+                        response(b, off, n);
+                    }
+                    return n;
+                }
+
+                public int available() throws IOException {
+                    return in.available();
+                }
+
+                public void close() throws IOException {
+                    in.close();
+                }
+            };
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            final OutputStream out = socket_.getOutputStream();
+            return new OutputStream() {
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                public void write(byte[] b, int off, int len) throws IOException {
+                    request(b, off, len);
+                    out.write(b, off, len);
+                }
+
+                public void flush() throws IOException {
+                    out.flush();
+                }
+
+                public void close() throws IOException {
+                    out.close();
+                }
+            };
+        }
+    }
+
+    /**
+     * Serves the recorded response of each request written. Without pending
+     * request, the end of the stream is read.
+     */
+    private class ReplaySocket extends TraceSocket {
+
+        private ByteArrayOutputStream request_ = new ByteArrayOutputStream(1024);
+
+        private byte[] response_ = new byte[0];
+
+        private int position_ = 0;
+
+        ReplaySocket(String host, int port) {
+            super(null, host, port);
+        }
+
+        /**
+         * @return <code>false</code> if there is no pending request.
+         */
+        private synchronized boolean nextResponse() throws IOException {
+            if (request_.size() == 0) {
+                return false;
+            }
+            String request = request_.toString("ISO-8859-1");
+            int end = request.indexOf("\r\n");
+            String requestLine = end == -1 ? request : request.substring(0,
+                                                                         end);
+            request_.reset();
+            byte[] response = trace_.replay(secure_, host_, port_, requestLine);
+            if (response == null) {
+                throw new HttpException("HTTP exchange not in trace: "
+                        + (secure_ ? "https://" : "http://") + host_ + ":"
+                        + port_ + " " + requestLine);
+            }
+            LOG.debug("replay " + host_ + ":" + port_ + " " + requestLine);
+            response_ = response;
+            position_ = 0;
+            return true;
+        }
+
+        private synchronized int read(byte[] b, int off, int len)
+                throws IOException {
+            if (position_ >= response_.length && !nextResponse()) {
+                return -1;
+            }
+            int n = Math.min(len, response_.length - position_);
+            System.arraycopy(response_, position_, b, off, n);
+            position_ += n;
+            return n;
+        }
+
+        private synchronized int available() {
+            return response_.length - position_;
+        }
+
+        private synchronized void write(byte[] b, int off, int len) {
+            request_.write(b, off, len);
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return new InputStream() {
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+                }
+
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return ReplaySocket.this.read(b, off, len);
+                }
+
+                public int available() throws IOException {
+                    return ReplaySocket.this.available();
+                }
+            };
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return new OutputStream() {
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                public void write(byte[] b, int off, int len) throws IOException {
+                    ReplaySocket.this.write(b, off, len);
+                }
+            };
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * IdPCircuitBreaker fails fast the logins of an IdP after repeated failures.
+ * <p>
+ * After <code>threshold</code> consecutive failures, the circuit of the IdP
+ * is open and the logins are rejected for the cooling-off period. Then one
+ * trial login is allowed per cooling-off period (half-open): a success closes
+ * the circuit, a failure opens it again.
+ * <p>
+ * The IdPs are identified by their providerId. A circuit breaker is shared by
+ * the Shibboleth clients of one JVM (slcs-batch-init, slcs-agentd).
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class IdPCircuitBreaker {
+
+    /** Circuit states */
+    static public final String STATE_CLOSED = "closed";
+
+    static public final String STATE_OPEN = "open";
+
+    static public final String STATE_HALF_OPEN = "half-open";
+
+    /** Consecutive failures opening the circuit */
+    private int threshold_;
+
+    /** Cooling-off period in millis */
+    private long coolingOff_;
+
+    /** Circuits by IdP providerId */
+    private Map<String, Circuit> circuits_ = new HashMap<String, Circuit>();
+
+    /** Total number of rejected logins */
+    private long rejected_ = 0;
+
+    /**
+     * @param threshold
+     *            The number of consecutive failures opening the circuit.
+     * @param coolingOff
+     *            The cooling-off period in milliseconds.
+     */
+    public IdPCircuitBreaker(int threshold, long coolingOff) {
+        this.threshold_ = Math.max(threshold, 1);
+        this.coolingOff_ = coolingOff;
+    }
+
+    /**
+     * Checks if a login is allowed. In the half-open state, only one trial
+     * login is allowed per cooling-off period.
+     *
+     * @param id
+     *            The IdP providerId.
+     * @return <code>true</code> if the login is allowed, <code>false</code>
+     *         if the circuit is open.
+     */
+    public synchronized boolean allow(String id) {
+        Circuit circuit = circuits_.get(id);
+        if (circuit == null || circuit.failures < threshold_) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now < circuit.retryTime) {
+            rejected_++;
+            return false;
+        }
+        // half-open: one trial, the others wait for the next period
+        circuit.retryTime = now + coolingOff_;
+        return true;
+    }
+
+    /**
+     * Records a successful login, the circuit is closed.
+     *
+     * @param id
+     *            The IdP providerId.
+     */
+    public synchronized void success(String id) {
+        circuits_.remove(id);
+    }
+
+    /**
+     * Records a failed login, the circuit opens at the threshold.
+     *
+     * @param id
+     *            The IdP providerId.
+     */
+    public synchronized void failure(String id) {
+        Circuit circuit = circuits_.get(id);
+        if (circuit == null) {
+            circuit = new Circuit();
+            circuits_.put(id, circuit);
+        }
+        circuit.failures++;
+        if (circuit.failures >= threshold_) {
+            circuit.retryTime = System.currentTimeMillis() + coolingOff_;
+        }
+    }
+
+    /**
+     * @param id
+     *            The IdP providerId.
+     * @return The circuit state: {@link #STATE_CLOSED}, {@link #STATE_OPEN}
+     *         or {@link #STATE_HALF_OPEN}.
+     */
+    public synchronized String getState(String id) {
+        Circuit circuit = circuits_.get(id);
+        if (circuit == null || circuit.failures < threshold_) {
+            return STATE_CLOSED;
+        }
+        if (System.currentTimeMillis() < circuit.retryTime) {
+            return STATE_OPEN;
+        }
+        return STATE_HALF_OPEN;
+    }
+
+    /**
+     * @param id
+     *            The IdP providerId.
+     * @return The number of consecutive failures of the IdP.
+     */
+    public synchronized int getFailures(String id) {
+        Circuit circuit = circuits_.get(id);
+        return circuit == null ? 0 : circuit.failures;
+    }
+
+    /**
+     * @param id
+     *            The IdP providerId.
+     * @return The time in milliseconds until the next allowed login, 0 if
+     *         allowed.
+     */
+    public synchronized long getRetryDelay(String id) {
+        Circuit circuit = circuits_.get(id);
+        if (circuit == null || circuit.failures < threshold_) {
+            return 0;
+        }
+        return Math.max(circuit.retryTime - System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * @return The number of IdPs with an open or half-open circuit.
+     */
+    public synchronized int getOpenCircuits() {
+        int open = 0;
+        for (Circuit circuit : circuits_.values()) {
+            if (circuit.failures >= threshold_) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    /**
+     * @return The total number of logins rejected by an open circuit.
+     */
+    public synchronized long getRejected() {
+        return rejected_;
+    }
+
+    /**
+     * Circuit of an IdP.
+     */
+    static private class Circuit {
+
+        /** Consecutive failures */
+        int failures = 0;
+
+        /** Time of the next allowed login when open */
+        long retryTime = 0;
+    }
+
+}
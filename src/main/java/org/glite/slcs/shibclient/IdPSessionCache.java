@@ -0,0 +1,423 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.httpclient.Cookie;
+import org.apache.commons.httpclient.HttpState;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.URIException;
+import org.apache.commons.httpclient.cookie.CookieSpecBase;
+import org.glite.slcs.shibclient.metadata.IdentityProvider;
+import org.glite.slcs.util.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * IdPSessionCache stores the IdP SSO session cookies (IdP, CAS or PubCookie
+ * login server) in a file encrypted with a key derived from the user
+ * password, to reuse the IdP session in the next login.
+ * <p>
+ * File format: magic, salt, IV, AES/CBC encrypted content and HMAC-SHA256 of
+ * the salt, IV and encrypted content. The keys are derived from the password
+ * with PBKDF2, once, and the password is then wiped: the file is written
+ * again with the salt of the loaded file, and a new IV. A file which can not
+ * be decrypted with the password (changed password, corrupted or truncated
+ * file), or for another user or IdP, is ignored.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class IdPSessionCache {
+
+    /** Logging */
+    private static Logger LOG = LoggerFactory.getLogger(IdPSessionCache.class);
+
+    /** File format identifier */
+    static private final String MAGIC = "SLCS-IdP-Session-1";
+
+    /** Cache file permission */
+    static private final int FILE_PERMISSION = 600;
+
+    /** PBKDF2 parameters */
+    static private final int SALT_LENGTH = 16;
+
+    static private final int ITERATIONS = 10000;
+
+    /** AES and HMAC key lengths (bytes) */
+    static private final int CIPHER_KEY_LENGTH = 16;
+
+    static private final int MAC_KEY_LENGTH = 32;
+
+    /** The cache file */
+    private File file_ = null;
+
+    /** Copy of the user password, wiped once the keys are derived */
+    private char[] password_ = null;
+
+    /** The salt and the derived AES and HMAC keys */
+    private byte[] salt_ = null;
+
+    private byte[][] keys_ = null;
+
+    /** Random for the salt */
+    private SecureRandom random_ = new SecureRandom();
+
+    /**
+     * @param file
+     *            The cache file.
+     * @param password
+     *            The user password, copied.
+     */
+    public IdPSessionCache(File file, char[] password) {
+        this.file_ = file;
+        this.password_ = password.clone();
+    }
+
+    /**
+     * @return The cache file.
+     */
+    public File getFile() {
+        return file_;
+    }
+
+    /**
+     * Restores the cached IdP session cookies of the user into the HTTP
+     * state. Errors are logged and ignored.
+     *
+     * @param state
+     *            The HTTP state.
+     * @param username
+     *            The user name.
+     * @param idp
+     *            The user IdP.
+     * @return The number of restored cookies, 0 if none.
+     */
+    public int load(HttpState state, String username, IdentityProvider idp) {
+        if (!file_.exists()) {
+            LOG.debug("no IdP session cache: " + file_);
+            return 0;
+        }
+        try {
+            byte[] content = decrypt(readFile());
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+            if (!username.equals(in.readUTF()) || !idp.getId().equals(in.readUTF())) {
+                LOG.info("IdP session cache for another user or IdP ignored: "
+                        + file_);
+                return 0;
+            }
+            Date now = new Date();
+            int restored = 0;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Cookie cookie = readCookie(in);
+                if (!cookie.isExpired(now)) {
+                    state.addCookie(cookie);
+                    restored++;
+                }
+            }
+            LOG.info(restored + " IdP session cookies restored from: " + file_);
+            return restored;
+        } catch (GeneralSecurityException e) {
+            LOG.info("IdP session cache ignored: " + file_ + ": " + e);
+        } catch (IOException e) {
+            LOG.warn("Failed to read the IdP session cache: " + file_ + ": "
+                    + e);
+        } catch (RuntimeException e) {
+            LOG.warn("Invalid IdP session cache ignored: " + file_ + ": " + e);
+        }
+        return 0;
+    }
+
+    /**
+     * Stores the IdP session cookies of the HTTP state. Errors are logged and
+     * ignored.
+     *
+     * @param state
+     *            The HTTP state.
+     * @param username
+     *            The user name.
+     * @param idp
+     *            The user IdP.
+     */
+    public void save(HttpState state, String username, IdentityProvider idp) {
+        try {
+            List<String> hosts = getHosts(idp);
+            List<Cookie> cookies = new ArrayList<Cookie>();
+            Date now = new Date();
+            for (Cookie cookie : state.getCookies()) {
+                if (!cookie.isExpired(now) && matchesHost(cookie, hosts)) {
+                    cookies.add(cookie);
+                }
+            }
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(content);
+            out.writeUTF(username);
+            out.writeUTF(idp.getId());
+            out.writeInt(cookies.size());
+            for (Cookie cookie : cookies) {
+                writeCookie(out, cookie);
+            }
+            out.close();
+            writeFile(encrypt(content.toByteArray()));
+            LOG.info(cookies.size() + " IdP session cookies stored in: "
+                    + file_);
+        } catch (GeneralSecurityException e) {
+            LOG.warn("Failed to encrypt the IdP session cache: " + e);
+        } catch (IOException e) {
+            LOG.warn("Failed to write the IdP session cache: " + file_ + ": "
+                    + e);
+        }
+    }
+
+    /**
+     * Deletes the cache file.
+     */
+    public void clear() {
+        if (file_.exists() && !file_.delete()) {
+            LOG.warn("Failed to delete the IdP session cache: " + file_);
+        }
+    }
+
+    /**
+     * @return The IdP SSO and authentication (CAS, PubCookie) hosts.
+     */
+    private List<String> getHosts(IdentityProvider idp) throws URIException {
+        List<String> hosts = new ArrayList<String>();
+        hosts.add(new URI(idp.getUrl(), false).getHost());
+        if (idp.getAuthUrl() != null) {
+            hosts.add(new URI(idp.getAuthUrl(), false).getHost());
+        }
+        return hosts;
+    }
+
+    private boolean matchesHost(Cookie cookie, List<String> hosts) {
+        CookieSpecBase spec = new CookieSpecBase();
+        for (String host : hosts) {
+            if (host != null && spec.domainMatch(host, cookie.getDomain())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeCookie(DataOutputStream out, Cookie cookie)
+            throws IOException {
+        out.writeUTF(cookie.getDomain());
+        out.writeUTF(cookie.getPath());
+        out.writeUTF(cookie.getName());
+        out.writeUTF(cookie.getValue());
+        Date expiryDate = cookie.getExpiryDate();
+        out.writeLong(expiryDate == null ? -1 : expiryDate.getTime());
+        out.writeBoolean(cookie.getSecure());
+        out.writeBoolean(cookie.isDomainAttributeSpecified());
+        out.writeBoolean(cookie.isPathAttributeSpecified());
+    }
+
+    private Cookie readCookie(DataInputStream in) throws IOException {
+        String domain = in.readUTF();
+        String path = in.readUTF();
+        String name = in.readUTF();
+        String value = in.readUTF();
+        long expiry = in.readLong();
+        boolean secure = in.readBoolean();
+        Cookie cookie = new Cookie(domain, name, value, path,
+                expiry < 0 ? null : new Date(expiry), secure);
+        cookie.setDomainAttributeSpecified(in.readBoolean());
+        cookie.setPathAttributeSpecified(in.readBoolean());
+        return cookie;
+    }
+
+    private byte[] encrypt(byte[] content) throws GeneralSecurityException,
+            IOException {
+        byte[] salt = salt_;
+        if (salt == null) {
+            salt = new byte[SALT_LENGTH];
+            random_.nextBytes(salt);
+        }
+        byte[][] keys = getKeys(salt);
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keys[0], "AES"));
+        byte[] iv = cipher.getIV();
+        byte[] encrypted = cipher.doFinal(content);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(MAGIC);
+        out.write(salt);
+        out.writeInt(iv.length);
+        out.write(iv);
+        out.writeInt(encrypted.length);
+        out.write(encrypted);
+        out.write(mac(keys[1], salt, iv, encrypted));
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private byte[] decrypt(byte[] file) throws GeneralSecurityException,
+            IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(file));
+        if (!MAGIC.equals(in.readUTF())) {
+            throw new GeneralSecurityException("Not an IdP session cache");
+        }
+        byte[] salt = new byte[SALT_LENGTH];
+        in.readFully(salt);
+        byte[] iv = new byte[readLength(in, 4 + MAC_KEY_LENGTH)];
+        in.readFully(iv);
+        byte[] encrypted = new byte[readLength(in, MAC_KEY_LENGTH)];
+        in.readFully(encrypted);
+        byte[] mac = new byte[MAC_KEY_LENGTH];
+        in.readFully(mac);
+        byte[][] keys = getKeys(salt);
+        if (!MessageDigest.isEqual(mac, mac(keys[1], salt, iv, encrypted))) {
+            throw new GeneralSecurityException("Invalid password or corrupted cache");
+        }
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(keys[0], "AES"),
+                    new IvParameterSpec(iv));
+        return cipher.doFinal(encrypted);
+    }
+
+    /**
+     * Reads a length, bounded by the bytes left in the file.
+     * 
+     * @param in
+     *            The file content.
+     * @param following
+     *            The number of bytes following the length field.
+     * @return The length.
+     * @throws GeneralSecurityException
+     *             If the length is negative or exceeds the file.
+     */
+    static private int readLength(DataInputStream in, int following)
+            throws GeneralSecurityException, IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available() - following) {
+            throw new GeneralSecurityException("Corrupted or truncated cache");
+        }
+        return length;
+    }
+
+    /**
+     * Derives the keys from the password with the salt on first call, and
+     * wipes the password.
+     * 
+     * @return The AES and the HMAC keys.
+     */
+    private byte[][] getKeys(byte[] salt) throws GeneralSecurityException {
+        if (keys_ == null) {
+            if (password_ == null) {
+                throw new GeneralSecurityException("No password");
+            }
+            try {
+                keys_ = deriveKeys(salt);
+                salt_ = salt;
+            } finally {
+                Arrays.fill(password_, '\0');
+                password_ = null;
+            }
+        }
+        else if (!Arrays.equals(salt_, salt)) {
+            throw new GeneralSecurityException("Cache salt changed");
+        }
+        return keys_;
+    }
+
+    /**
+     * @return The AES and the HMAC keys derived from the password.
+     */
+    private byte[][] deriveKeys(byte[] salt) throws GeneralSecurityException {
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+        PBEKeySpec spec = new PBEKeySpec(password_, salt, ITERATIONS,
+                (CIPHER_KEY_LENGTH + MAC_KEY_LENGTH) * 8);
+        byte[] derived = factory.generateSecret(spec).getEncoded();
+        spec.clearPassword();
+        byte[] cipherKey = new byte[CIPHER_KEY_LENGTH];
+        byte[] macKey = new byte[MAC_KEY_LENGTH];
+        System.arraycopy(derived, 0, cipherKey, 0, CIPHER_KEY_LENGTH);
+        System.arraycopy(derived, CIPHER_KEY_LENGTH, macKey, 0, MAC_KEY_LENGTH);
+        return new byte[][] { cipherKey, macKey };
+    }
+
+    private byte[] mac(byte[] key, byte[] salt, byte[] iv, byte[] encrypted)
+            throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        mac.update(salt);
+        mac.update(iv);
+        return mac.doFinal(encrypted);
+    }
+
+    private byte[] readFile() throws IOException {
+        byte[] content = new byte[(int) file_.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file_));
+        try {
+            in.readFully(content);
+        } finally {
+            in.close();
+        }
+        return content;
+    }
+
+    private void writeFile(byte[] content) throws IOException {
+        File directory = file_.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory: " + directory);
+        }
+        // written in a restricted temporary file, then renamed
+        File tmpFile = new File(file_.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmpFile);
+        try {
+            if (!Utils.setFilePermissions(tmpFile, FILE_PERMISSION)) {
+                LOG.warn("Failed to set permissions: " + FILE_PERMISSION
+                        + " for file: " + tmpFile);
+            }
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(file_)) {
+            file_.delete();
+            if (!tmpFile.renameTo(file_)) {
+                tmpFile.delete();
+                throw new IOException("Failed to rename " + tmpFile + " to "
+                        + file_);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * PooledHttpConnectionManager is a keep-alive HTTP connection pool, which
+ * counts the opened and the reused connections.
+ * <p>
+ * The connections idle for longer than the idle timeout are closed before a
+ * connection is taken from the pool, and stale connections are closed before
+ * being counted, so a reused connection does not need a new TCP connection
+ * nor a new TLS handshake. The wait for a free pooled connection is bounded
+ * by the connection timeout.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class PooledHttpConnectionManager extends
+        MultiThreadedHttpConnectionManager {
+
+    /** Logging */
+    private static final Logger LOG = LoggerFactory.getLogger(PooledHttpConnectionManager.class);
+
+    /** Keep the connections open after use */
+    private boolean keepAlive_ = true;
+
+    /** Idle time (millis) before a pooled connection is closed, 0 to disable */
+    private long idleTimeout_ = 0;
+
+    /** Number of connections taken from the pool not yet opened */
+    private AtomicLong opened_ = new AtomicLong();
+
+    /** Number of connections taken from the pool already opened */
+    private AtomicLong reused_ = new AtomicLong();
+
+    /**
+     * Creates a pool with the HttpClient default parameters.
+     */
+    public PooledHttpConnectionManager() {
+        super();
+    }
+
+    /**
+     * @param keepAlive
+     *            <code>false</code> to close the connections after each
+     *            request.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive_ = keepAlive;
+    }
+
+    /**
+     * @return <code>true</code> if the connections are kept open after use.
+     */
+    public boolean isKeepAlive() {
+        return keepAlive_;
+    }
+
+    /**
+     * @param idleTimeout
+     *            The idle time in milliseconds before a pooled connection is
+     *            closed, 0 to disable.
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout_ = idleTimeout;
+    }
+
+    /**
+     * @return The idle time in milliseconds before a pooled connection is
+     *         closed.
+     */
+    public long getIdleTimeout() {
+        return idleTimeout_;
+    }
+
+    /**
+     * @return The number of connections opened (TCP and TLS handshakes).
+     */
+    public long getOpenedConnections() {
+        return opened_.get();
+    }
+
+    /**
+     * @return The number of already opened connections reused.
+     */
+    public long getReusedConnections() {
+        return reused_.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.apache.commons.httpclient.MultiThreadedHttpConnectionManager#getConnectionWithTimeout(org.apache.commons.httpclient.HostConfiguration,
+     *      long)
+     */
+    public HttpConnection getConnectionWithTimeout(
+            HostConfiguration hostConfiguration, long timeout)
+            throws ConnectionPoolTimeoutException {
+        if (idleTimeout_ > 0) {
+            closeIdleConnections(idleTimeout_);
+        }
+        if (timeout == 0) {
+            timeout = getParams().getConnectionTimeout();
+        }
+        HttpConnection connection = super.getConnectionWithTimeout(hostConfiguration,
+                                                                   timeout);
+        if (connection.isOpen() && getParams().isStaleCheckingEnabled()) {
+            try {
+                connection.closeIfStale();
+            } catch (IOException e) {
+                LOG.debug("stale check failed: " + e);
+                connection.close();
+            }
+        }
+        if (connection.isOpen()) {
+            reused_.incrementAndGet();
+        }
+        else {
+            opened_.incrementAndGet();
+        }
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("connection " + hostConfiguration.getHostURL()
+                    + " opened=" + opened_ + " reused=" + reused_);
+        }
+        return connection;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.apache.commons.httpclient.MultiThreadedHttpConnectionManager#releaseConnection(org.apache.commons.httpclient.HttpConnection)
+     */
+    public void releaseConnection(HttpConnection connection) {
+        if (!keepAlive_) {
+            connection.close();
+        }
+        super.releaseConnection(connection);
+    }
+
+}
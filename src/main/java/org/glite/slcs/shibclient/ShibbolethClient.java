@@ -17,31 +17,52 @@
 package org.glite.slcs.shibclient;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.httpclient.Cookie;
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.URI;
 import org.apache.commons.httpclient.URIException;
 import org.apache.commons.httpclient.auth.AuthScope;
 import org.apache.commons.httpclient.cookie.CookieSpecBase;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
 import org.glite.slcs.AuthException;
 import org.glite.slcs.RemoteException;
 import org.glite.slcs.SLCSConfigurationException;
+import org.glite.slcs.SLCSException;
 import org.glite.slcs.ServiceException;
 import org.glite.slcs.UnknownResourceException;
+import org.glite.slcs.jericho.html.CharacterReference;
 import org.glite.slcs.jericho.html.Element;
 import org.glite.slcs.jericho.html.FormControl;
 import org.glite.slcs.jericho.html.FormControlType;
@@ -49,6 +70,8 @@ import org.glite.slcs.jericho.html.Source;
 import org.glite.slcs.jericho.html.Tag;
 import org.glite.slcs.shibclient.metadata.IdentityProvider;
 import org.glite.slcs.shibclient.metadata.ShibbolethClientMetadata;
+import org.glite.slcs.util.ContentDecoder;
+import org.glite.slcs.util.Timings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -66,6 +89,21 @@ public class ShibbolethClient {
     /** Logging */
     private static final Logger LOG = LoggerFactory.getLogger(ShibbolethClient.class);
 
+    /** Timings phase names */
+    static public final String PHASE_SP_ENTRY = "sp-entry";
+
+    static public final String PHASE_SAML2_DS = "saml2-ds";
+
+    static public final String PHASE_IDP_SSO = "idp-sso";
+
+    static public final String PHASE_IDP_SESSION = "idp-session";
+
+    static public final String PHASE_LOGIN_FORM = "login-form";
+
+    static public final String PHASE_IDP_SSO_RESPONSE = "idp-sso-response";
+
+    static public final String PHASE_BROWSER_POST = "browser-post";
+
     /** The HttpClient delegate */
     private HttpClient httpClient_;
 
@@ -78,6 +116,104 @@ public class ShibbolethClient {
     /** authenticated or not */
     private boolean isAuthenticated_ = false;
 
+    /** Optional timings of the authentication phases */
+    private Timings timings_ = null;
+
+    /** Optional IdP SSO session cache */
+    private IdPSessionCache sessionCache_ = null;
+
+    /** Optional recorded flow plans */
+    private ShibbolethFlowPlans flowPlans_ = null;
+
+    /** Plan recorded for the current (SP, IdP), or <code>null</code> */
+    private ShibbolethFlowPlans.Plan plan_ = null;
+
+    /** Plan discovered by the current authentication */
+    private ShibbolethFlowPlans.Plan discoveredPlan_ = null;
+
+    /** Maximum HTML page size read up to the target form, 0 to parse all */
+    private int maxHtmlPageSize_ = 0;
+
+    /** Bytes skipped after the target forms by the bounded HTML parsing */
+    private long skippedBytes_ = 0;
+
+    /** Optional gzip/deflate response decoder */
+    private ContentDecoder contentDecoder_ = null;
+
+    /** Connections warm-up started, if any */
+    private ConnectionWarmUp warmUp_ = null;
+
+    /** Optional per host adaptive socket timeouts */
+    private AdaptiveTimeouts adaptiveTimeouts_ = null;
+
+    /** Optional IdP circuit breaker */
+    private IdPCircuitBreaker circuitBreaker_ = null;
+
+    /** IdP hosts of the current authentication, for the circuit breaker */
+    private Set<String> idpHosts_ = new HashSet<String>();
+
+    /** An IdP host responded during the current authentication */
+    private boolean idpResponded_ = false;
+
+    /** The last IdP request failed (transport error or 5xx) */
+    private boolean idpFailed_ = false;
+
+    /** Maximum number of retries of the idempotent GET requests */
+    private int maxRetries_ = 0;
+
+    /** Base retry backoff in millis, doubled by retry */
+    private long retryBackoff_ = 500;
+
+    /** Number of retried requests */
+    private long retries_ = 0;
+
+    /** SP entry URL of the current authentication */
+    private String spEntryURL_ = null;
+
+    /** SP entry response body received by the authentication, if any */
+    private byte[] spEntryResponse_ = null;
+
+    /** IdP SSO response already processed by the BASIC or NTLM login */
+    private boolean idpSSOResponseProcessed_ = false;
+
+    /** Maximum retry backoff in millis */
+    static private final long MAX_RETRY_BACKOFF = 10000;
+
+    /** Retry backoff jitter */
+    static private final Random RANDOM = new Random();
+
+    /** Matches the Browser/POST form with the SAMLResponse */
+    static private final BoundedHtmlReader.FormMatcher SAML_RESPONSE_FORM = new BoundedHtmlReader.FormMatcher() {
+        public boolean matches(String form) {
+            return form.indexOf("SAMLResponse") != -1;
+        }
+    };
+
+    /** Matches the first form */
+    static private final BoundedHtmlReader.FormMatcher FIRST_FORM = new BoundedHtmlReader.FormMatcher() {
+        public boolean matches(String form) {
+            return true;
+        }
+    };
+
+    /** HTML form, input and attribute patterns for the planned login form */
+    static private final Pattern FORM_TAG = Pattern.compile("<form\\b[^>]*>",
+                                                            Pattern.CASE_INSENSITIVE);
+
+    static private final Pattern FORM_END_TAG = Pattern.compile("</form\\s*>",
+                                                                Pattern.CASE_INSENSITIVE);
+
+    static private final Pattern INPUT_TAG = Pattern.compile("<input\\b[^>]*>",
+                                                             Pattern.CASE_INSENSITIVE);
+
+    static private final Pattern HTML_COMMENT = Pattern.compile("<!--.*?-->",
+                                                                Pattern.DOTALL);
+
+    static private final Pattern ATTRIBUTE = Pattern.compile("([\\w:.-]+)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s\"'>]+))");
+
+    /** Max IdPs suggested for an unknown providerId */
+    static private final int MAX_SUGGESTIONS = 5;
+
     /**
      * Creates a Shibboleth client wrapping a {@link HttpClient}. Requires the
      * Shibboleth client metadata and the Shibboleth credentials.
@@ -101,7 +237,9 @@ public class ShibbolethClient {
             throw new SLCSConfigurationException(
                     "IdP providerId: "
                             + id
-                            + " is not defined in metadata file.\nPlease run the 'slcs-info' command.");
+                            + " is not defined in metadata file."
+                            + getSuggestions(metadata, id)
+                            + "\nPlease run the 'slcs-info --search <text>' command.");
         }
 
         this.httpClient_ = client;
@@ -110,6 +248,30 @@ public class ShibbolethClient {
 
     }
 
+    /**
+     * @return The IdPs similar to the unknown providerId, as a "Did you mean"
+     *         line, or an empty string if none.
+     */
+    static private String getSuggestions(ShibbolethClientMetadata metadata,
+            String id) {
+        if (id == null || id.trim().length() == 0) {
+            return "";
+        }
+        List<IdentityProvider> idps = metadata.getIdentityProviderIndex().search(id, MAX_SUGGESTIONS);
+        if (idps.isEmpty()) {
+            return "";
+        }
+        StringBuilder suggestions = new StringBuilder("\nDid you mean: ");
+        for (int i = 0; i < idps.size(); i++) {
+            IdentityProvider idp = idps.get(i);
+            if (i > 0) {
+                suggestions.append(", ");
+            }
+            suggestions.append(idp.getId()).append(" [").append(idp.getName()).append("]");
+        }
+        return suggestions.append('?').toString();
+    }
+
     /**
      * Authenticates the user with his IdP for the default SLCS SP.
      * 
@@ -127,7 +289,73 @@ public class ShibbolethClient {
     }
 
     /**
-     * Authenticates the user on his IdP for the given SP.
+     * Authenticates the user with his IdP for the default SLCS SP, in a
+     * background thread of the executor.
+     * 
+     * @param executor
+     *            The executor running the authentication.
+     * @param callback
+     *            The completion callback, or <code>null</code>.
+     * @return The future authentication result.
+     * @see #authenticateInBackground(String, Executor, AuthenticationCallback)
+     */
+    public Future<Boolean> authenticateInBackground(Executor executor,
+            AuthenticationCallback callback) {
+        String slcsEntryURL = metadata_.getSLCS().getUrl();
+        return authenticateInBackground(slcsEntryURL, executor, callback);
+    }
+
+    /**
+     * Authenticates the user on his IdP for the given SP, in a background
+     * thread of the executor. This is a convenience wrapper: the blocking
+     * {@link #authenticate(String)} (the whole redirect chain, with the
+     * blocking HttpClient I/O) runs as one task of the executor, which thread
+     * is occupied until the login ends. The calling thread returns
+     * immediately. The future returns the {@link #authenticate(String)}
+     * result, or throws an {@link ExecutionException} caused by its
+     * {@link SLCSException}.
+     * <p>
+     * Only one authentication can be in flight per client, use one client
+     * (and one {@link HttpClient} state) per login.
+     * 
+     * @param spEntryURL
+     *            The Service Provider entry point URL
+     * @param executor
+     *            The executor running the authentication.
+     * @param callback
+     *            The completion callback, or <code>null</code>.
+     * @return The future authentication result.
+     */
+    public Future<Boolean> authenticateInBackground(final String spEntryURL,
+            Executor executor, final AuthenticationCallback callback) {
+        FutureTask<Boolean> task = new FutureTask<Boolean>(
+                new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        return Boolean.valueOf(authenticate(spEntryURL));
+                    }
+                }) {
+            protected void done() {
+                if (callback == null || isCancelled()) {
+                    return;
+                }
+                try {
+                    callback.completed(get().booleanValue());
+                } catch (ExecutionException e) {
+                    callback.failed(e.getCause());
+                } catch (InterruptedException e) {
+                    // not possible, the task is done
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Authenticates the user on his IdP for the given SP. If the recorded flow
+     * plan of the (SP, IdP) is followed, but does not reach the SP entry URL,
+     * the plan is removed and the flow is discovered again.
      * 
      * @param spEntryURL
      *            The Service Provider entry point URL
@@ -140,6 +368,42 @@ public class ShibbolethClient {
      */
     public boolean authenticate(String spEntryURL) throws AuthException,
             RemoteException, ServiceException, UnknownResourceException {
+        plan_ = null;
+        try {
+            boolean authenticated = login(spEntryURL, false);
+            if (authenticated || plan_ == null) {
+                return authenticated;
+            }
+            LOG.info("planned flow did not reach the SP entry URL");
+        } catch (RemoteException e) {
+            if (plan_ == null) {
+                throw e;
+            }
+            LOG.info("planned flow failed: " + e.getMessage());
+        } catch (ServiceException e) {
+            if (plan_ == null) {
+                throw e;
+            }
+            LOG.info("planned flow failed: " + e.getMessage());
+        }
+        // full discovery, without plan
+        IdentityProvider idp = metadata_.getIdentityProvider(credentials_.getIdentityProviderID());
+        flowPlans_.remove(spEntryURL, idp.getId());
+        return login(spEntryURL, true);
+    }
+
+    /**
+     * Authenticates the user on his IdP for the given SP, following the
+     * recorded flow plan if any.
+     * 
+     * @param spEntryURL
+     *            The Service Provider entry point URL
+     * @param retry
+     *            If <code>true</code>, the IdP SSO session opened by the
+     *            previous attempt is tried first.
+     */
+    private boolean login(String spEntryURL, boolean retry) throws AuthException,
+            RemoteException, ServiceException, UnknownResourceException {
 
         String idpProviderID = credentials_.getIdentityProviderID();
         IdentityProvider idp = metadata_.getIdentityProvider(idpProviderID);
@@ -149,35 +413,140 @@ public class ShibbolethClient {
         }
         LOG.info(spEntryURL + " IdP=" + idp.getUrl() + " AuthType="
                 + idp.getAuthTypeName());
+        if (circuitBreaker_ != null && !circuitBreaker_.allow(idp.getId())) {
+            String error = "IdP " + idp.getId() + " failed "
+                    + circuitBreaker_.getFailures(idp.getId())
+                    + " times, next login allowed in "
+                    + (circuitBreaker_.getRetryDelay(idp.getId()) / 1000)
+                    + " seconds";
+            LOG.error(error);
+            throw new RemoteException(error);
+        }
+        awaitWarmUp();
+        spEntryURL_ = spEntryURL;
+        spEntryResponse_ = null;
+        idpSSOResponseProcessed_ = false;
+        // recorded flow plan, if any
+        plan_ = null;
+        discoveredPlan_ = new ShibbolethFlowPlans.Plan();
+        if (flowPlans_ != null) {
+            plan_ = flowPlans_.get(spEntryURL, idp.getId());
+            LOG.debug("flow plan: " + plan_);
+        }
+        // restore the cached IdP SSO session, if any
+        boolean sessionRestored = false;
+        if (sessionCache_ != null) {
+            sessionRestored = sessionCache_.load(httpClient_.getState(),
+                                                 credentials_.getUserName(),
+                                                 idp) > 0;
+        }
+        // only the IdP responses and errors count for the circuit breaker
+        idpHosts_.clear();
+        addHost(idpHosts_, idp.getUrl());
+        addHost(idpHosts_, idp.getAuthUrl());
+        idpResponded_ = false;
+        idpFailed_ = false;
         try {
             URI idpSSOResponseURI = null;
 
             // 1. get the first redirection, or the SAML2 DS response, or the
             // same
             // (already authN)
-            URI spLoginResponseURI = processSPEntry(spEntryURL, idp);
+            URI spLoginResponseURI = null;
+            if (plan_ != null && plan_.getDSReturnURL() != null) {
+                // planned SAML2 DS: directly to the DS return URL
+                beginPhase(PHASE_SAML2_DS);
+                try {
+                    spLoginResponseURI = processPlannedSAML2DS(idp);
+                } finally {
+                    endPhase();
+                }
+            }
+            if (spLoginResponseURI == null) {
+                beginPhase(PHASE_SP_ENTRY);
+                try {
+                    spLoginResponseURI = processSPEntry(spEntryURL, idp);
+                } finally {
+                    endPhase();
+                }
+            }
             // either wayf or idp or same (already authenticated)
             String spLoginResponseURL = spLoginResponseURI.getEscapedURI();
             LOG.debug("spLoginResponseURL=" + spLoginResponseURL);
             // check if already authenticated (multiple call to authenticate)
             if (spLoginResponseURL.startsWith(spEntryURL)) {
+                if (sessionRestored || retry) {
+                    // the restored cookies, or the previous attempt, include
+                    // a valid SP session
+                    this.isAuthenticated_ = true;
+                }
+                if (!isAuthenticated_) {
+                    spEntryResponse_ = null;
+                }
                 LOG.info("Already authenticated? " + isAuthenticated_ + ": "
                         + spLoginResponseURL);
                 return this.isAuthenticated_;
             }
 
-            // 2. process the IdP SSO login
-            idpSSOResponseURI = processIdPSSO(idp, spLoginResponseURI);
+            // 2a. a still valid IdP SSO session directly sends the
+            // Browser/POST. Not for BASIC or NTLM, which send the
+            // credentials with the SSO request anyway.
+            URI idpResponseURI = null;
+            int authType = idp.getAuthType();
+            if ((sessionRestored || retry)
+                    && authType != IdentityProvider.SSO_AUTHTYPE_BASIC
+                    && authType != IdentityProvider.SSO_AUTHTYPE_NTLM) {
+                beginPhase(PHASE_IDP_SESSION);
+                try {
+                    idpResponseURI = processIdPSession(idp, spLoginResponseURI);
+                } finally {
+                    endPhase();
+                }
+            }
+
+            if (idpResponseURI == null) {
+                // 2. process the IdP SSO login
+                beginPhase(PHASE_IDP_SSO);
+                try {
+                    idpSSOResponseURI = processIdPSSO(idp, spLoginResponseURI);
+                } finally {
+                    endPhase();
+                }
 
-            // 3. process the IdP SSO response -> Artifact or Browser/POST
-            // profile
-            URI idpResponseURI = processIdPSSOResponse(idp, idpSSOResponseURI);
+                if (idpSSOResponseProcessed_) {
+                    // BASIC or NTLM: the SSO response is already processed
+                    idpResponseURI = idpSSOResponseURI;
+                }
+                else {
+                    // 3. process the IdP SSO response -> Artifact or
+                    // Browser/POST profile
+                    beginPhase(PHASE_IDP_SSO_RESPONSE);
+                    try {
+                        idpResponseURI = processIdPSSOResponse(idp,
+                                                               idpSSOResponseURI);
+                    } finally {
+                        endPhase();
+                    }
+                }
+            }
             String url = idpResponseURI.getURI();
             if (url.equals(spEntryURL)) {
                 this.isAuthenticated_ = true;
                 LOG.info("Sucessful authentication");
+                if (flowPlans_ != null
+                        && discoveredPlan_.getProtocol() != null) {
+                    flowPlans_.put(spEntryURL, idp.getId(), discoveredPlan_);
+                }
+                if (sessionCache_ != null) {
+                    sessionCache_.save(httpClient_.getState(),
+                                       credentials_.getUserName(), idp);
+                }
             }
 
+        } catch (AuthException e) {
+            // the IdP responded, wrong credentials
+            idpFailed_ = false;
+            throw e;
         } catch (URIException e) {
             LOG.error("URIException: " + e);
             e.printStackTrace();
@@ -188,10 +557,59 @@ public class ShibbolethClient {
             LOG.error("IOException: " + e);
             e.printStackTrace();
             throw new RemoteException(e);
+        } finally {
+            idpHosts_.clear();
+            if (circuitBreaker_ != null && (idpResponded_ || idpFailed_)) {
+                if (!idpFailed_) {
+                    circuitBreaker_.success(idp.getId());
+                }
+                else {
+                    circuitBreaker_.failure(idp.getId());
+                    LOG.info("IdP " + idp.getId() + " circuit "
+                            + circuitBreaker_.getState(idp.getId())
+                            + ", failures: "
+                            + circuitBreaker_.getFailures(idp.getId()));
+                }
+            }
         }
         return this.isAuthenticated_;
     }
 
+    /**
+     * Starts to open in parallel, in background, the connections to the hosts
+     * of the login flow: the SLCS SP, the IdP SSO and the IdP authentication
+     * hosts. The opened connections are released into the connection pool,
+     * which must keep them open. The authentication waits for the warm-up to
+     * complete, bounded by the connection timeout.
+     */
+    public void startWarmUp() {
+        IdentityProvider idp = metadata_.getIdentityProvider(credentials_.getIdentityProviderID());
+        List<String> urls = new ArrayList<String>();
+        urls.add(metadata_.getSLCS().getUrl());
+        urls.add(idp.getUrl());
+        urls.add(idp.getAuthUrl());
+        LOG.info("warm-up connections: " + urls);
+        warmUp_ = new ConnectionWarmUp(httpClient_.getHttpConnectionManager(),
+                                       httpClient_.getHostConfiguration());
+        warmUp_.start(urls);
+    }
+
+    /**
+     * Waits for the connections warm-up, if started.
+     */
+    private void awaitWarmUp() {
+        if (warmUp_ == null) {
+            return;
+        }
+        long timeout = httpClient_.getHttpConnectionManager().getParams().getConnectionTimeout();
+        if (timeout <= 0) {
+            timeout = 30000;
+        }
+        int opened = warmUp_.await(timeout);
+        LOG.debug("warm-up connections opened: " + opened);
+        warmUp_ = null;
+    }
+
     /**
      * Processes the response of the IdP SSO and dispatches to the Browser/POST
      * or the Artificate processor.
@@ -209,7 +627,6 @@ public class ShibbolethClient {
         URI idpResponseURI = null;
 
         String idpSSOResponseURL = idpSSOResponseURI.getURI();
-        GetMethod getIdPSSOResponseMethod = new GetMethod(idpSSOResponseURL);
 
         // BUG FIX: set the JSESSIONID and IdP 2.X _idp_session
         // cookies by hand.
@@ -232,15 +649,23 @@ public class ShibbolethClient {
         }
 
         LOG.info("GET IdPSSOResponse: " + idpSSOResponseURL);
-        @SuppressWarnings("unused")
-		int idpSSOResponseStatus = executeMethod(getIdPSSOResponseMethod);
+        GetMethod getIdPSSOResponseMethod = null;
+        if (isPossiblyUsingArtifact) {
+            // the SP dereferences the artifact only once: no retry
+            getIdPSSOResponseMethod = new GetMethod(idpSSOResponseURL);
+            executeMethod(getIdPSSOResponseMethod);
+        }
+        else {
+            getIdPSSOResponseMethod = executeIdempotentGet(idpSSOResponseURL,
+                                                           true);
+        }
         LOG.debug(getIdPSSOResponseMethod.getStatusLine().toString());
 
         // SAML/Artifact are already processed.
         if (isPossiblyUsingArtifact) {
             // check if there is a loop. if so the SSO failed for some reason...
             if (idpSSOResponseURI.equals(getIdPSSOResponseMethod.getURI())) {
-                String htmlBody = inputStreamToString(getIdPSSOResponseMethod.getResponseBodyAsStream());
+                String htmlBody = inputStreamToString(getResponseBodyAsStream(getIdPSSOResponseMethod));
                 LOG.error("Something went wrong with the IdP SAML/Artifact response: "
                         + htmlBody);
                 throw new RemoteException(
@@ -248,12 +673,20 @@ public class ShibbolethClient {
                                 + idp.getUrl() + ". Please see the log file.");
             }
             idpResponseURI = getIdPSSOResponseMethod.getURI();
+            // the redirects end on the SP entry URL
+            keepSPEntryResponse(getIdPSSOResponseMethod);
         }
         else {
             // try to parse the Browser/POST profile in the HTML source
-            InputStream htmlStream = getIdPSSOResponseMethod.getResponseBodyAsStream();
-            idpResponseURI = processIdPBrowserPOST(idp, idpSSOResponseURI,
-                                                   htmlStream);
+            InputStream htmlStream = getHtmlStream(getIdPSSOResponseMethod,
+                                                   SAML_RESPONSE_FORM);
+            beginPhase(PHASE_BROWSER_POST);
+            try {
+                idpResponseURI = processIdPBrowserPOST(idp, idpSSOResponseURI,
+                                                       htmlStream);
+            } finally {
+                endPhase();
+            }
         }
 
         LOG.debug("getIdPSSOResponseMethod.releaseConnection()");
@@ -414,12 +847,10 @@ public class ShibbolethClient {
     private URI processSPEntry(String entryURL, IdentityProvider idp)
             throws URIException, HttpException, IOException, RemoteException,
             ServiceException {
-        GetMethod getSPEntryMethod = new GetMethod(entryURL);
-        LOG.info("GET SPEntryMethod: " + getSPEntryMethod.getURI());
+        LOG.info("GET SPEntryMethod: " + entryURL);
         // get only the first redirect, if any
-        getSPEntryMethod.setFollowRedirects(false);
-
-        int spEntryStatus = executeMethod(getSPEntryMethod);
+        GetMethod getSPEntryMethod = executeIdempotentGet(entryURL, false);
+        int spEntryStatus = getSPEntryMethod.getStatusCode();
         String spEntryStatusLine = getSPEntryMethod.getStatusLine().toString();
         LOG.debug("spEntryStatusLine=" + spEntryStatusLine);
 
@@ -431,6 +862,10 @@ public class ShibbolethClient {
             LOG.debug("Redirect location=" + location);
             loginResponseURI = new URI(location, true);
         }
+        else {
+            // already authenticated: the SP login response
+            keepSPEntryResponse(getSPEntryMethod);
+        }
 
         LOG.trace("getSPEntryMethod.releaseConnection()");
         getSPEntryMethod.releaseConnection();
@@ -452,6 +887,7 @@ public class ShibbolethClient {
         if (loginResponseURL.indexOf("shire=") != -1
                 && loginResponseURL.indexOf("target=") != -1) {
             LOG.debug("loginResponseURL is Shib1 (SAML1, WAYF)");
+            discoveredPlan_.setProtocol(ShibbolethFlowPlans.PROTOCOL_SAML1);
             return loginResponseURI;
 
         }
@@ -459,14 +895,21 @@ public class ShibbolethClient {
         // params
         else if (loginResponseURL.indexOf("SAMLRequest=") != -1) {
             LOG.debug("loginResponseURL is SAML2 redirection to IdP");
+            discoveredPlan_.setProtocol(ShibbolethFlowPlans.PROTOCOL_SAML2);
             return loginResponseURI;
         }
         // checks if URL is SAML2 'entityID=' and 'return=' (SAMLDS)
         else if (loginResponseURL.indexOf("entityID=") != -1
                 && loginResponseURL.indexOf("return=") != -1) {
             LOG.debug("loginResponseURL is SAML2 DiscoveryService");
+            discoveredPlan_.setProtocol(ShibbolethFlowPlans.PROTOCOL_SAML2_DS);
             // redirect to return url with entityID of the IdP
-            loginResponseURI = processSPSAML2DS(loginResponseURI, idp);
+            beginPhase(PHASE_SAML2_DS);
+            try {
+                loginResponseURI = processSPSAML2DS(loginResponseURI, idp);
+            } finally {
+                endPhase();
+            }
             return loginResponseURI;
         }
         else {
@@ -517,14 +960,89 @@ public class ShibbolethClient {
             throw new ServiceException("SAML2 DS return URL not found in "
                     + spResponseURI);
         }
+        // the relay state is only valid for this request
+        discoveredPlan_.setDSReturnURL(removeQueryParameter(returnURL,
+                                                            "target"));
+        return processSAML2DSReturn(returnURL, entityID);
+    }
+
+    /**
+     * @return The URL without the query parameter.
+     */
+    static String removeQueryParameter(String url, String name) {
+        int query = url.indexOf('?');
+        if (query == -1) {
+            return url;
+        }
+        StringBuilder result = new StringBuilder(url.substring(0, query));
+        char separator = '?';
+        for (String param : url.substring(query + 1).split("&")) {
+            if (param.length() > 0 && !param.equals(name)
+                    && !param.startsWith(name + "=")) {
+                result.append(separator).append(param);
+                separator = '&';
+            }
+        }
+        return result.toString();
+    }
 
+    /**
+     * Follows the recorded SAML2 DS return URL, without the SP entry and DS
+     * redirects. The recorded URL has no relay state, the SP entry URL is
+     * the target.
+     * 
+     * @param idp
+     *            The {@link IdentityProvider}.
+     * @return The IdP SSO redirect URI, or <code>null</code> if the response
+     *         differs from the plan.
+     * @throws IOException
+     * @throws HttpException
+     */
+    private URI processPlannedSAML2DS(IdentityProvider idp)
+            throws HttpException, IOException {
+        String returnURL = plan_.getDSReturnURL()
+                + (plan_.getDSReturnURL().indexOf('?') == -1 ? '?' : '&')
+                + "target=" + URLEncoder.encode(spEntryURL_, "UTF-8");
+        String entityID = idp.getEntityID();
+        if (entityID != null) {
+            try {
+                URI saml2DSResponseURI = processSAML2DSReturn(returnURL,
+                                                              entityID);
+                if (saml2DSResponseURI.getEscapedURI().indexOf("SAMLRequest=") != -1) {
+                    LOG.info("planned SAML2 DS return: " + returnURL);
+                    discoveredPlan_.setProtocol(ShibbolethFlowPlans.PROTOCOL_SAML2_DS);
+                    discoveredPlan_.setDSReturnURL(plan_.getDSReturnURL());
+                    return saml2DSResponseURI;
+                }
+                LOG.info("planned SAML2 DS return differs: "
+                        + saml2DSResponseURI);
+            } catch (RemoteException e) {
+                LOG.info("planned SAML2 DS return failed: " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Redirects to the SP SAMLDS return url with entityID of the IdP.
+     * 
+     * @param returnURL
+     *            The SAML2 DS return URL.
+     * @param entityID
+     *            The IdP SAML2 entityID.
+     * @return The IdP SSO redirect URI.
+     * @throws IOException
+     * @throws HttpException
+     * @throws RemoteException
+     */
+    private URI processSAML2DSReturn(String returnURL, String entityID)
+            throws HttpException, IOException, RemoteException {
         // add the IdP SAML2 entityID param
         returnURL += "&entityID=" + entityID;
         LOG.debug("return URL to SAMLDS: " + returnURL);
 
-        GetMethod getSPSAML2DSMethod = new GetMethod(returnURL);
-        getSPSAML2DSMethod.setFollowRedirects(false);
-        int spSAML2DSStatus = executeMethod(getSPSAML2DSMethod);
+        GetMethod getSPSAML2DSMethod = executeIdempotentGet(returnURL, false);
+        int spSAML2DSStatus = getSPSAML2DSMethod.getStatusCode();
         String spSAML2DSStatusLine = getSPSAML2DSMethod.getStatusLine().toString();
         LOG.debug("spSAML2DSStatusLine=" + spSAML2DSStatusLine);
         URI saml2DSResponseURI = getSPSAML2DSMethod.getURI();
@@ -549,19 +1067,56 @@ public class ShibbolethClient {
     }
 
     /**
+     * Requests the IdP SSO with the restored IdP session cookies, without
+     * credentials. A still valid IdP session directly responds with the
+     * Browser/POST form, which is then processed.
+     * 
      * @param idp
-     * @param query
-     * @throws URIException
-     * @throws HttpException
-     * @throws IOException
-     * @throws AuthException
+     *            The {@link IdentityProvider}.
+     * @param spResponseURI
+     *            The SP response {@link URI} (redirect to the IdP SSO).
+     * @return the SP URI to go to, or <code>null</code> if the IdP session
+     *         expired.
      * @throws RemoteException
-     * @throws ServiceException
      */
-    private URI processIdPSSO(IdentityProvider idp, URI spResponseURI)
-            throws URIException, HttpException, IOException, AuthException,
-            RemoteException, ServiceException {
+    private URI processIdPSession(IdentityProvider idp, URI spResponseURI)
+            throws URIException, HttpException, IOException, RemoteException {
+        String idpSSOURL = getIdPSSOURL(idp, spResponseURI);
+        GetMethod getIdpSSOMethod = new GetMethod(idpSSOURL);
+        try {
+            LOG.info("GET IdpSSOMethod (cached session): " + idpSSOURL);
+            int idpSSOResponseStatus = executeMethod(getIdpSSOMethod);
+            LOG.debug(getIdpSSOMethod.getStatusLine().toString());
+            if (idpSSOResponseStatus == 200) {
+                byte[] html = readFully(getResponseBodyAsStream(getIdpSSOMethod));
+                if (html != null
+                        && new String(html, "ISO-8859-1").indexOf("SAMLResponse") != -1) {
+                    LOG.info("IdP SSO session still valid");
+                    return processIdPBrowserPOST(idp,
+                                                 getIdpSSOMethod.getURI(),
+                                                 new ByteArrayInputStream(html));
+                }
+            }
+        } finally {
+            LOG.trace("getIdpSSOMethod.releaseConnection()");
+            getIdpSSOMethod.releaseConnection();
+        }
+        LOG.info("IdP SSO session expired, login with credentials");
+        return null;
+    }
+
+    /**
+     * @param idp
+     *            The {@link IdentityProvider}.
+     * @param spResponseURI
+     *            The SP response {@link URI} (redirect to the IdP SSO).
+     * @return The IdP SSO URL, with the SP query.
+     * @throws RemoteException
+     */
+    private String getIdPSSOURL(IdentityProvider idp, URI spResponseURI)
+            throws URIException, RemoteException {
         String idpSSOURL = idp.getUrl();
+
         LOG.debug("IdP SSO URL: " + idpSSOURL);
         String spResponseURL = spResponseURI.getEscapedURI();
         LOG.debug("spResponseURL=" + spResponseURL);
@@ -595,6 +1150,23 @@ public class ShibbolethClient {
             }
             LOG.debug("IdP SSO URL (with query): " + idpSSOURL);
         }
+        return idpSSOURL;
+    }
+
+    /**
+     * @param idp
+     * @param query
+     * @throws URIException
+     * @throws HttpException
+     * @throws IOException
+     * @throws AuthException
+     * @throws RemoteException
+     * @throws ServiceException
+     */
+    private URI processIdPSSO(IdentityProvider idp, URI spResponseURI)
+            throws URIException, HttpException, IOException, AuthException,
+            RemoteException, ServiceException {
+        String idpSSOURL = getIdPSSOURL(idp, spResponseURI);
         // create HttpMethod
         GetMethod getIdpSSOMethod = new GetMethod(idpSSOURL);
 
@@ -650,13 +1222,39 @@ public class ShibbolethClient {
                         + " URL: " + idpSSOResponseURI + " Credentials: "
                         + this.credentials_);
             }
-            else {
+            else if (keepSPEntryResponse(getIdpSSOMethod)) {
                 // SAML/Artifact: idpSSOResponseURI is already SP login and the
                 // XML <SLCSLoginResponse> is already there
-                // XXX: resend to same IdP SSO page once again
-                LOG.info("IdP BASIC or NTLM authN: resend again to the same IdP SSO URI: "
-                        + idpSSOURL);
-                idpSSOResponseURI = new URI(idpSSOURL, false);
+                LOG.info("IdP BASIC or NTLM authN: SP login response received: "
+                        + idpSSOResponseURI);
+                idpSSOResponseProcessed_ = true;
+            }
+            else {
+                // Browser/POST: the SAMLResponse form is already there
+                byte[] html = null;
+                if (idpSSOResponseStatus == 200) {
+                    html = readFully(getResponseBodyAsStream(getIdpSSOMethod));
+                }
+                if (html != null
+                        && new String(html, "ISO-8859-1").indexOf("SAMLResponse") != -1) {
+                    LOG.info("IdP BASIC or NTLM authN: SAML Browser/POST received: "
+                            + idpSSOResponseURI);
+                    beginPhase(PHASE_BROWSER_POST);
+                    try {
+                        idpSSOResponseURI = processIdPBrowserPOST(idp,
+                                                                  idpSSOResponseURI,
+                                                                  new ByteArrayInputStream(html));
+                    } finally {
+                        endPhase();
+                    }
+                    idpSSOResponseProcessed_ = true;
+                }
+                else {
+                    // XXX: resend to same IdP SSO page once again
+                    LOG.info("IdP BASIC or NTLM authN: resend again to the same IdP SSO URI: "
+                            + idpSSOURL);
+                    idpSSOResponseURI = new URI(idpSSOURL, false);
+                }
             }
 
         }
@@ -665,11 +1263,17 @@ public class ShibbolethClient {
                 && (idp.getAuthType() == IdentityProvider.SSO_AUTHTYPE_CAS || idp.getAuthType() == IdentityProvider.SSO_AUTHTYPE_FORM)) {
             LOG.debug("Process " + idp.getAuthTypeName() + " login form...");
             // process CAS login form
-            InputStream idpLoginForm = getIdpSSOMethod.getResponseBodyAsStream();
+            InputStream idpLoginForm = getHtmlStream(getIdpSSOMethod,
+                                                     createLoginFormMatcher(idp));
             LOG.debug("idpSSOURI Query=" + idpSSOURI.getQuery());
-            idpSSOResponseURI = processIdPLoginForm(idp, idpSSOResponseURI,
-                                                    idpSSOURI.getQuery(),
-                                                    idpLoginForm);
+            beginPhase(PHASE_LOGIN_FORM);
+            try {
+                idpSSOResponseURI = processIdPLoginForm(idp, idpSSOResponseURI,
+                                                        idpSSOURI.getQuery(),
+                                                        idpLoginForm);
+            } finally {
+                endPhase();
+            }
             LOG.debug(idp.getAuthTypeName() + " idpSSOResponseURI="
                     + idpSSOResponseURI);
         }
@@ -680,7 +1284,8 @@ public class ShibbolethClient {
 
             // parse <form> and extract hidden fields, then post
             PostMethod postPubcookieFormMethod = null;
-            InputStream pubcookieFormStream = getIdpSSOMethod.getResponseBodyAsStream();
+            InputStream pubcookieFormStream = getHtmlStream(getIdpSSOMethod,
+                                                            FIRST_FORM);
             Source source = new Source(pubcookieFormStream);
             List<Element> forms = source.findAllElements(Tag.FORM);
             for (Element form : forms) {
@@ -731,10 +1336,16 @@ public class ShibbolethClient {
             dumpHttpClientCookies();
 
             // process pubcookie login form
-            InputStream loginFormStream = postPubcookieFormMethod.getResponseBodyAsStream();
-            idpSSOResponseURI = processIdPLoginForm(idp, idpSSOResponseURI,
-                                                    idpSSOURI.getQuery(),
-                                                    loginFormStream);
+            InputStream loginFormStream = getHtmlStream(postPubcookieFormMethod,
+                                                        createLoginFormMatcher(idp));
+            beginPhase(PHASE_LOGIN_FORM);
+            try {
+                idpSSOResponseURI = processIdPLoginForm(idp, idpSSOResponseURI,
+                                                        idpSSOURI.getQuery(),
+                                                        loginFormStream);
+            } finally {
+                endPhase();
+            }
             LOG.debug("Pubcookie idpSSOResponseURI=" + idpSSOResponseURI);
 
             LOG.trace("postPubcookieFormMethod.releaseConnection()");
@@ -743,7 +1354,7 @@ public class ShibbolethClient {
         }
         else {
             // error handling
-            InputStream htmlStream = getIdpSSOMethod.getResponseBodyAsStream();
+            InputStream htmlStream = getResponseBodyAsStream(getIdpSSOMethod);
             String htmlBody = inputStreamToString(htmlStream);
             LOG.error("Unexpected IdP SSO reponse: URL: " + idpSSOResponseURI
                     + " Status: " + idpSSOResponseStatusLine + " AuthType: "
@@ -781,8 +1392,25 @@ public class ShibbolethClient {
         boolean formFound = false;
         URI idpLoginFormResponseURI = null;
 
+        byte[] html = readFully(htmlForm);
+        if (plan_ != null && plan_.getFormRawAction() != null) {
+            // planned login form: only extract the hidden fields values
+            PostMethod postLoginFormMethod = createPlannedLoginFormMethod(html,
+                                                                          plan_,
+                                                                          ssoLoginURI);
+            if (postLoginFormMethod != null) {
+                LOG.info("planned login form: "
+                        + postLoginFormMethod.getURI());
+                discoveredPlan_.setLoginForm(plan_.getFormRawAction(),
+                                             plan_.getFormHiddenFields());
+                return processIdPLoginFormPost(idp, postLoginFormMethod,
+                                               ssoQuery);
+            }
+            LOG.info("login form differs from plan, parse it");
+        }
+
         // Parse the FORM with Jericho HTML Parser
-        Source source = new Source(htmlForm);
+        Source source = new Source(new ByteArrayInputStream(html));
         List<Element> forms = source.findAllElements(Tag.FORM);
         for (Element form : forms) {
             String formName = form.getAttributeValue("NAME");
@@ -806,23 +1434,10 @@ public class ShibbolethClient {
             if (formName.equals(idp.getAuthFormName())) {
                 formFound = true;
                 String formAction = form.getAttributeValue("ACTION");
+                String formRawAction = formAction == null ? "" : formAction;
                 LOG.debug("form action=" + formAction);
-                if (formAction == null || formAction.equals("")) {
-                    // no form action to POST, use default from metadata
-                    formAction = ssoLoginURI.getEscapedURI();
-                    LOG.info("default form action=" + formAction);
-                }
-                else {
-                    URI formActionURI = new URI(formAction, false);
-                    if (formActionURI.isRelativeURI()) {
-                        // action URL is not absolute like:
-                        // http://localhost/cas/login?...
-                        formActionURI = new URI(ssoLoginURI,
-                                formActionURI.getPathQuery(), true);
-                    }
-                    formAction = formActionURI.getEscapedURI();
-                    LOG.info("corrected form action=" + formAction);
-                }
+                formAction = resolveFormAction(formRawAction, ssoLoginURI);
+                LOG.info("corrected form action=" + formAction);
 
                 String formMethod = form.getAttributeValue("METHOD");
                 LOG.debug("form name=" + formName + " action=" + formAction
@@ -834,11 +1449,13 @@ public class ShibbolethClient {
                     PostMethod postLoginFormMethod = new PostMethod(formAction);
 
                     // add all HIDDEN fields to POST
+                    List<String> hiddenFields = new ArrayList<String>();
                     List<FormControl> formControls = form.findFormControls();
                     for (FormControl control : formControls) {
                         FormControlType type = control.getFormControlType();
                         if (type.equals(FormControlType.HIDDEN)) {
                             String name = control.getName();
+                            hiddenFields.add(name);
                             Collection<String> values = control.getValues();
                             for (String value : values) {
                                 LOG.debug("add hidden: " + name + "=" + value);
@@ -847,206 +1464,10 @@ public class ShibbolethClient {
                             }
                         }
                     }
-                    // add username field
-                    postLoginFormMethod.addParameter(idp.getAuthFormUsername(),
-                                                     this.credentials_.getUserName());
-                    // add the PASSWORD field
-                    postLoginFormMethod.addParameter(idp.getAuthFormPassword(),
-                                                     this.credentials_.getPassword());
-
-                    // execute the login POST
-                    LOG.info("POST LoginFormMethod: "
-                            + postLoginFormMethod.getURI());
-
-                    int formLoginResponseStatus = executeMethod(postLoginFormMethod);
-                    LOG.debug(postLoginFormMethod.getStatusLine().toString());
-
-                    // XXX
-                    dumpHttpClientCookies();
-
-                    // CAS, or FORM can, send a 302 + Location header back
-                    if (formLoginResponseStatus == 302
-                            && (idp.getAuthType() == IdentityProvider.SSO_AUTHTYPE_CAS || idp.getAuthType() == IdentityProvider.SSO_AUTHTYPE_FORM)) {
-                        LOG.debug("Process "
-                                + idp.getAuthTypeName()
-                                + " redirect response (302 + Location header)...");
-                        Header location = postLoginFormMethod.getResponseHeader("Location");
-                        if (location != null) {
-                            String locationURL = location.getValue();
-                            LOG.debug("302 Location: " + locationURL);
-                            // CAS: if location path (/cas/login) is not the IdP
-                            // 1.3
-                            // SSO path (/shibboleth-idp/SSO) or the IdP 2.X
-                            // /Authn/RemoteUser
-                            // handler, then it's a wrong login
-                            URI locationURI = new URI(locationURL, false);
-                            String locationPath = locationURI.getPath();
-                            String idpSSOURL = idp.getUrl();
-                            URI idpSSOURI = new URI(idpSSOURL, false);
-                            String idpSSOPath = idpSSOURI.getPath();
-                            if (LOG.isDebugEnabled()) {
-                                LOG.debug("location path: " + locationPath);
-                                LOG.debug("location is the /Authn/RemoteUser hanlder? "
-                                        + locationPath.endsWith("/Authn/RemoteUser"));
-                                LOG.debug("IdP SSO path: " + idpSSOPath);
-                            }
-                            if (!locationPath.equals(idpSSOPath)
-                                    && !locationPath.endsWith("/Authn/RemoteUser")) {
-                                LOG.error("Redirect response is not the SSO ("
-                                        + idpSSOURL
-                                        + ") or the /Authn/RemoteUser handler: "
-                                        + locationURL);
-                                throw new AuthException(idp.getAuthTypeName()
-                                        + " Authentication failed: "
-                                        + this.credentials_);
-                            }
-                            idpLoginFormResponseURI = new URI(locationURL,
-                                    false);
-                            LOG.debug("("
-                                    + idp.getAuthTypeName()
-                                    + ": 302 + Location) idpLoginFormReponseURI= "
-                                    + idpLoginFormResponseURI);
-                        }
-                        else {
-                            LOG.error(idp.getAuthTypeName()
-                                    + ": Status 302 but no redirect Location header");
-                            throw new AuthException(idp.getAuthTypeName()
-                                    + " Authentication failed: "
-                                    + this.credentials_);
-                        }
-                    }
-                    // IdP 2.1 FORM authN send 200 and directly the SAMLResponse
-                    // form
-                    else if (formLoginResponseStatus == 200
-                            && idp.getAuthType() == IdentityProvider.SSO_AUTHTYPE_FORM) {
-                        // BUG FIX: check for Browser/POST hidden form element
-                        // SAMLResponse for valid authentication
-                        LOG.debug("check for SAMLResponse hidden element");
-                        boolean samlResponseFound = false;
-                        InputStream authnLoginResponse = postLoginFormMethod.getResponseBodyAsStream();
-                        Source authnSource = new Source(authnLoginResponse);
-                        List<Element> browserPOSTForms = authnSource.findAllElements(Tag.FORM);
-                        for (Element browserPOSTForm : browserPOSTForms) {
-                            List<FormControl> browserPOSTFormControls = browserPOSTForm.findFormControls();
-                            for (FormControl control : browserPOSTFormControls) {
-                                FormControlType type = control.getFormControlType();
-                                if (type.equals(FormControlType.HIDDEN)) {
-                                    String name = control.getName();
-                                    if (name.equals("SAMLResponse")) {
-                                        LOG.debug("Hidden element found: "
-                                                + control.getName());
-                                        samlResponseFound = true;
-                                    }
-                                }
-                            }
-                        }
-                        if (!samlResponseFound) {
-                            LOG.error(idp.getAuthTypeName()
-                                    + ": no Browser/POST SAMLResponse hidden element found");
-                            throw new AuthException(idp.getAuthTypeName()
-                                    + " Authentication failed: "
-                                    + this.credentials_);
-
-                        }
-
-                        LOG.debug("Process FORM (200 + full Browser/POST profile) response...");
-                        idpLoginFormResponseURI = new URI(idp.getUrl(), false);
-                        // re-set the original SSO query params
-                        idpLoginFormResponseURI.setQuery(ssoQuery);
-                        LOG.debug("(FORM: 200 + Browser/POST) idpLoginFormReponseURI= "
-                                + idpLoginFormResponseURI);
-                    }
-                    // Pubcookie send 200 + fucking HTML form relay with hidden
-                    // fields!!!
-                    // <form method=post
-                    // action="https://aai-login.ethz.ch/PubCookie.reply"
-                    // name=relay>
-                    // then reply a redirect 302 + Location header
-                    else if (formLoginResponseStatus == 200
-                            && idp.getAuthType() == IdentityProvider.SSO_AUTHTYPE_PUBCOOKIE) {
-                        LOG.debug("Process Pubcookie (200 + relay FORM) response...");
-                        InputStream pubcookieLoginResponse = postLoginFormMethod.getResponseBodyAsStream();
-                        Source pubcookieSource = new Source(
-                                pubcookieLoginResponse);
-                        PostMethod postPubcookieRelayMethod = null;
-                        List<Element> relayForms = pubcookieSource.findAllElements(Tag.FORM);
-                        for (Element relayForm : relayForms) {
-                            String relayFormAction = relayForm.getAttributeValue("ACTION");
-                            LOG.debug("Pubcookie relay form action= "
-                                    + relayFormAction);
-                            if (relayFormAction == null) {
-                                LOG.error("Pubcookie relay form action not found.");
-                                throw new RemoteException(
-                                        "Pubcookie relay form action not found");
-                            }
-                            // create PubCookie relay POST
-                            postPubcookieRelayMethod = new PostMethod(
-                                    relayFormAction);
-
-                            // add all HIDDEN fields to POST
-                            List<FormControl> relayFormControls = relayForm.findFormControls();
-                            for (FormControl control : relayFormControls) {
-                                FormControlType type = control.getFormControlType();
-                                if (type.equals(FormControlType.HIDDEN)) {
-                                    String name = control.getName();
-                                    Collection<String> values = control.getValues();
-                                    for (String value : values) {
-                                        LOG.debug("add hidden: " + name + "="
-                                                + value);
-                                        // add all hidden fields
-                                        postPubcookieRelayMethod.addParameter(name,
-                                                                              value);
-                                    }
-                                }
-                            } // add hidden fields
-                        } // for all relay forms
-
-                        if (postPubcookieRelayMethod != null) {
-                            LOG.debug("POST postPubcookieRelayMethod: "
-                                    + postPubcookieRelayMethod.getURI());
-                            @SuppressWarnings("unused")
-							int pubcookieRelayStatus = executeMethod(postPubcookieRelayMethod);
-                            LOG.debug(postPubcookieRelayMethod.getStatusLine().toString());
-                            Header location = postPubcookieRelayMethod.getResponseHeader("Location");
-                            LOG.debug("postPubcookieRelayMethod.releaseConnection()");
-                            postPubcookieRelayMethod.releaseConnection();
-                            if (location != null) {
-                                String locationURL = location.getValue();
-                                LOG.debug("302 Location: " + locationURL);
-                                // parse Location
-                                idpLoginFormResponseURI = new URI(locationURL,
-                                        false);
-                                LOG.debug("(PubCookie: 302 + Location header) idpLoginFormReponseURI= "
-                                        + idpLoginFormResponseURI);
-                            }
-                            else {
-                                LOG.error("Pubcookie relay response 302 + Location header not found");
-                                throw new AuthException(idp.getAuthTypeName()
-                                        + " Authentication failed: "
-                                        + this.credentials_);
-                            }
-                        }
-                        else {
-                            LOG.error("Pubcookie relay form not found");
-                            throw new AuthException(idp.getAuthTypeName()
-                                    + " Authentication failed: "
-                                    + this.credentials_);
-                        }
-
-                        // XXX
-                        dumpHttpClientCookies();
-                    }
-                    else {
-                        LOG.error("Unexpected response status: "
-                                + formLoginResponseStatus + " AuthType:"
-                                + idp.getAuthTypeName());
-                        throw new AuthException(idp.getAuthTypeName()
-                                + " Authentication failed: "
-                                + this.credentials_);
-                    }
-
-                    LOG.debug("POSTLoginFormMethod.releaseConnection()");
-                    postLoginFormMethod.releaseConnection();
+                    discoveredPlan_.setLoginForm(formRawAction, hiddenFields);
+                    idpLoginFormResponseURI = processIdPLoginFormPost(idp,
+                                                                      postLoginFormMethod,
+                                                                      ssoQuery);
 
                 } // end if form action is set and method is POST
             } // end if form name match metadata
@@ -1062,6 +1483,453 @@ public class ShibbolethClient {
 
     }
 
+    /**
+     * Adds the credentials to the login form POST, executes it and processes
+     * the CAS, FORM or Pubcookie response.
+     * 
+     * @param idp
+     *            The {@link IdentityProvider}.
+     * @param postLoginFormMethod
+     *            The login form POST, with the hidden fields.
+     * @param ssoQuery
+     *            The original IdP SSO query.
+     * @return The IdP login form response URI.
+     * @throws IOException
+     * @throws RemoteException
+     * @throws AuthException
+     */
+    private URI processIdPLoginFormPost(IdentityProvider idp,
+            PostMethod postLoginFormMethod, String ssoQuery)
+            throws IOException, RemoteException, AuthException {
+        URI idpLoginFormResponseURI = null;
+        // add username field
+        postLoginFormMethod.addParameter(idp.getAuthFormUsername(),
+                                         this.credentials_.getUserName());
+        // add the PASSWORD field
+        postLoginFormMethod.addParameter(idp.getAuthFormPassword(),
+                                         this.credentials_.getPassword());
+
+        // execute the login POST
+        LOG.info("POST LoginFormMethod: "
+                + postLoginFormMethod.getURI());
+
+        int formLoginResponseStatus = executeMethod(postLoginFormMethod);
+        LOG.debug(postLoginFormMethod.getStatusLine().toString());
+
+        // XXX
+        dumpHttpClientCookies();
+
+        // CAS, or FORM can, send a 302 + Location header back
+        if (formLoginResponseStatus == 302
+                && (idp.getAuthType() == IdentityProvider.SSO_AUTHTYPE_CAS || idp.getAuthType() == IdentityProvider.SSO_AUTHTYPE_FORM)) {
+            LOG.debug("Process "
+                    + idp.getAuthTypeName()
+                    + " redirect response (302 + Location header)...");
+            Header location = postLoginFormMethod.getResponseHeader("Location");
+            if (location != null) {
+                String locationURL = location.getValue();
+                LOG.debug("302 Location: " + locationURL);
+                // CAS: if location path (/cas/login) is not the IdP
+                // 1.3
+                // SSO path (/shibboleth-idp/SSO) or the IdP 2.X
+                // /Authn/RemoteUser
+                // handler, then it's a wrong login
+                URI locationURI = new URI(locationURL, false);
+                String locationPath = locationURI.getPath();
+                String idpSSOURL = idp.getUrl();
+                URI idpSSOURI = new URI(idpSSOURL, false);
+                String idpSSOPath = idpSSOURI.getPath();
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("location path: " + locationPath);
+                    LOG.debug("location is the /Authn/RemoteUser hanlder? "
+                            + locationPath.endsWith("/Authn/RemoteUser"));
+                    LOG.debug("IdP SSO path: " + idpSSOPath);
+                }
+                if (!locationPath.equals(idpSSOPath)
+                        && !locationPath.endsWith("/Authn/RemoteUser")) {
+                    LOG.error("Redirect response is not the SSO ("
+                            + idpSSOURL
+                            + ") or the /Authn/RemoteUser handler: "
+                            + locationURL);
+                    throw new AuthException(idp.getAuthTypeName()
+                            + " Authentication failed: "
+                            + this.credentials_);
+                }
+                idpLoginFormResponseURI = new URI(locationURL,
+                        false);
+                LOG.debug("("
+                        + idp.getAuthTypeName()
+                        + ": 302 + Location) idpLoginFormReponseURI= "
+                        + idpLoginFormResponseURI);
+            }
+            else {
+                LOG.error(idp.getAuthTypeName()
+                        + ": Status 302 but no redirect Location header");
+                throw new AuthException(idp.getAuthTypeName()
+                        + " Authentication failed: "
+                        + this.credentials_);
+            }
+        }
+        // IdP 2.1 FORM authN send 200 and directly the SAMLResponse
+        // form
+        else if (formLoginResponseStatus == 200
+                && idp.getAuthType() == IdentityProvider.SSO_AUTHTYPE_FORM) {
+            // BUG FIX: check for Browser/POST hidden form element
+            // SAMLResponse for valid authentication
+            LOG.debug("check for SAMLResponse hidden element");
+            boolean samlResponseFound = false;
+            InputStream authnLoginResponse = getHtmlStream(postLoginFormMethod,
+                                                           SAML_RESPONSE_FORM);
+            Source authnSource = new Source(authnLoginResponse);
+            List<Element> browserPOSTForms = authnSource.findAllElements(Tag.FORM);
+            for (Element browserPOSTForm : browserPOSTForms) {
+                List<FormControl> browserPOSTFormControls = browserPOSTForm.findFormControls();
+                for (FormControl control : browserPOSTFormControls) {
+                    FormControlType type = control.getFormControlType();
+                    if (type.equals(FormControlType.HIDDEN)) {
+                        String name = control.getName();
+                        if (name.equals("SAMLResponse")) {
+                            LOG.debug("Hidden element found: "
+                                    + control.getName());
+                            samlResponseFound = true;
+                        }
+                    }
+                }
+            }
+            if (!samlResponseFound) {
+                LOG.error(idp.getAuthTypeName()
+                        + ": no Browser/POST SAMLResponse hidden element found");
+                throw new AuthException(idp.getAuthTypeName()
+                        + " Authentication failed: "
+                        + this.credentials_);
+
+            }
+
+            LOG.debug("Process FORM (200 + full Browser/POST profile) response...");
+            idpLoginFormResponseURI = new URI(idp.getUrl(), false);
+            // re-set the original SSO query params
+            idpLoginFormResponseURI.setQuery(ssoQuery);
+            LOG.debug("(FORM: 200 + Browser/POST) idpLoginFormReponseURI= "
+                    + idpLoginFormResponseURI);
+        }
+        // Pubcookie send 200 + fucking HTML form relay with hidden
+        // fields!!!
+        // <form method=post
+        // action="https://aai-login.ethz.ch/PubCookie.reply"
+        // name=relay>
+        // then reply a redirect 302 + Location header
+        else if (formLoginResponseStatus == 200
+                && idp.getAuthType() == IdentityProvider.SSO_AUTHTYPE_PUBCOOKIE) {
+            LOG.debug("Process Pubcookie (200 + relay FORM) response...");
+            InputStream pubcookieLoginResponse = getHtmlStream(postLoginFormMethod,
+                                                               FIRST_FORM);
+            Source pubcookieSource = new Source(
+                    pubcookieLoginResponse);
+            PostMethod postPubcookieRelayMethod = null;
+            List<Element> relayForms = pubcookieSource.findAllElements(Tag.FORM);
+            for (Element relayForm : relayForms) {
+                String relayFormAction = relayForm.getAttributeValue("ACTION");
+                LOG.debug("Pubcookie relay form action= "
+                        + relayFormAction);
+                if (relayFormAction == null) {
+                    LOG.error("Pubcookie relay form action not found.");
+                    throw new RemoteException(
+                            "Pubcookie relay form action not found");
+                }
+                // create PubCookie relay POST
+                postPubcookieRelayMethod = new PostMethod(
+                        relayFormAction);
+
+                // add all HIDDEN fields to POST
+                List<FormControl> relayFormControls = relayForm.findFormControls();
+                for (FormControl control : relayFormControls) {
+                    FormControlType type = control.getFormControlType();
+                    if (type.equals(FormControlType.HIDDEN)) {
+                        String name = control.getName();
+                        Collection<String> values = control.getValues();
+                        for (String value : values) {
+                            LOG.debug("add hidden: " + name + "="
+                                    + value);
+                            // add all hidden fields
+                            postPubcookieRelayMethod.addParameter(name,
+                                                                  value);
+                        }
+                    }
+                } // add hidden fields
+            } // for all relay forms
+
+            if (postPubcookieRelayMethod != null) {
+                LOG.debug("POST postPubcookieRelayMethod: "
+                        + postPubcookieRelayMethod.getURI());
+                @SuppressWarnings("unused")
+							int pubcookieRelayStatus = executeMethod(postPubcookieRelayMethod);
+                LOG.debug(postPubcookieRelayMethod.getStatusLine().toString());
+                Header location = postPubcookieRelayMethod.getResponseHeader("Location");
+                LOG.debug("postPubcookieRelayMethod.releaseConnection()");
+                postPubcookieRelayMethod.releaseConnection();
+                if (location != null) {
+                    String locationURL = location.getValue();
+                    LOG.debug("302 Location: " + locationURL);
+                    // parse Location
+                    idpLoginFormResponseURI = new URI(locationURL,
+                            false);
+                    LOG.debug("(PubCookie: 302 + Location header) idpLoginFormReponseURI= "
+                            + idpLoginFormResponseURI);
+                }
+                else {
+                    LOG.error("Pubcookie relay response 302 + Location header not found");
+                    throw new AuthException(idp.getAuthTypeName()
+                            + " Authentication failed: "
+                            + this.credentials_);
+                }
+            }
+            else {
+                LOG.error("Pubcookie relay form not found");
+                throw new AuthException(idp.getAuthTypeName()
+                        + " Authentication failed: "
+                        + this.credentials_);
+            }
+
+            // XXX
+            dumpHttpClientCookies();
+        }
+        else {
+            LOG.error("Unexpected response status: "
+                    + formLoginResponseStatus + " AuthType:"
+                    + idp.getAuthTypeName());
+            throw new AuthException(idp.getAuthTypeName()
+                    + " Authentication failed: "
+                    + this.credentials_);
+        }
+
+        LOG.debug("POSTLoginFormMethod.releaseConnection()");
+        postLoginFormMethod.releaseConnection();
+
+        return idpLoginFormResponseURI;
+    }
+
+    /**
+     * Resolves the login form action attribute against the SSO login URL.
+     * 
+     * @param rawAction
+     *            The form action attribute, empty if not set.
+     * @param ssoLoginURI
+     *            The SSO login URL of the current run.
+     * @return The absolute form action URL.
+     * @throws URIException
+     *             If the action is not a valid URL.
+     */
+    static String resolveFormAction(String rawAction, URI ssoLoginURI)
+            throws URIException {
+        if (rawAction.equals("")) {
+            // no form action to POST, use default from metadata
+            return ssoLoginURI.getEscapedURI();
+        }
+        URI formActionURI = new URI(rawAction, false);
+        if (formActionURI.isRelativeURI()) {
+            // action URL is not absolute like:
+            // http://localhost/cas/login?...
+            formActionURI = new URI(ssoLoginURI, formActionURI.getPathQuery(),
+                    true);
+        }
+        return formActionURI.getEscapedURI();
+    }
+
+    /**
+     * Creates the login form POST from the recorded plan. Only the planned
+     * form is scanned for its hidden fields values.
+     * 
+     * @param html
+     *            The login page.
+     * @param plan
+     *            The recorded plan.
+     * @param ssoLoginURI
+     *            The SSO login URL of the current run, to resolve an empty or
+     *            relative form action.
+     * @return The login form POST with the hidden fields, or
+     *         <code>null</code> if the page differs from the plan (form action
+     *         or hidden field names).
+     */
+    static PostMethod createPlannedLoginFormMethod(byte[] html,
+            ShibbolethFlowPlans.Plan plan, URI ssoLoginURI) throws IOException {
+        // ISO-8859-1 preserves the bytes of the values, also posted as
+        // ISO-8859-1. The commented out forms and fields are skipped.
+        String page = HTML_COMMENT.matcher(new String(html, "ISO-8859-1")).replaceAll("");
+        Matcher formTag = FORM_TAG.matcher(page);
+        while (formTag.find()) {
+            Map<String, String> formAttributes = getAttributes(formTag.group());
+            String action = formAttributes.get("action");
+            if (!plan.getFormRawAction().equals(action == null ? "" : action)) {
+                continue;
+            }
+            int formEnd = page.length();
+            Matcher formEndTag = FORM_END_TAG.matcher(page);
+            if (formEndTag.find(formTag.end())) {
+                formEnd = formEndTag.start();
+            }
+            PostMethod postLoginFormMethod = new PostMethod(resolveFormAction(plan.getFormRawAction(),
+                                                                              ssoLoginURI));
+            List<String> hiddenFields = new ArrayList<String>();
+            Matcher inputTag = INPUT_TAG.matcher(page);
+            inputTag.region(formTag.end(), formEnd);
+            while (inputTag.find()) {
+                Map<String, String> attributes = getAttributes(inputTag.group());
+                if ("hidden".equalsIgnoreCase(attributes.get("type"))
+                        && attributes.get("name") != null) {
+                    String name = attributes.get("name");
+                    String value = attributes.get("value");
+                    hiddenFields.add(name);
+                    LOG.debug("add hidden: " + name + "=" + value);
+                    postLoginFormMethod.addParameter(name, value == null ? ""
+                            : value);
+                }
+            }
+            if (hiddenFields.equals(plan.getFormHiddenFields())) {
+                return postLoginFormMethod;
+            }
+            LOG.debug("planned hidden fields " + plan.getFormHiddenFields()
+                    + " differ: " + hiddenFields);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the HTML response stream. In the bounded HTML parsing mode, the
+     * page is only read up to the end of the target form, the rest of the
+     * page is skipped and not parsed.
+     * 
+     * @param method
+     *            The executed method.
+     * @param target
+     *            The target form matcher.
+     * @return The HTML stream to parse.
+     * @throws IOException
+     *             If the page exceeds the maximum HTML page size.
+     */
+    private InputStream getHtmlStream(HttpMethod method,
+            BoundedHtmlReader.FormMatcher target) throws IOException {
+        InputStream htmlStream = getResponseBodyAsStream(method);
+        if (maxHtmlPageSize_ <= 0 || htmlStream == null) {
+            return htmlStream;
+        }
+        BoundedHtmlReader reader = new BoundedHtmlReader(maxHtmlPageSize_);
+        byte[] html = null;
+        try {
+            html = reader.read(htmlStream, target);
+        } catch (IOException e) {
+            LOG.error(method.getURI() + ": " + e.getMessage());
+            method.abort();
+            throw e;
+        }
+        if (reader.isTruncated()) {
+            // don't read the rest of the page to reuse the connection
+            method.abort();
+        }
+        skippedBytes_ += reader.getBytesSkipped();
+        LOG.info("bounded HTML parsing: " + method.getURI() + " form found="
+                + reader.isFormFound() + " read=" + reader.getBytesRead()
+                + " skipped=" + reader.getBytesSkipped());
+        return new ByteArrayInputStream(html);
+    }
+
+    /**
+     * @return A matcher of the IdP login form, by name, or ID, or empty
+     *         name if none.
+     */
+    private static BoundedHtmlReader.FormMatcher createLoginFormMatcher(
+            final IdentityProvider idp) {
+        return new BoundedHtmlReader.FormMatcher() {
+            public boolean matches(String form) {
+                Matcher formTag = FORM_TAG.matcher(form);
+                if (!formTag.lookingAt()) {
+                    return false;
+                }
+                Map<String, String> attributes = getAttributes(formTag.group());
+                String formName = attributes.get("name");
+                if (formName == null) {
+                    formName = attributes.get("id");
+                }
+                if (formName == null) {
+                    formName = "";
+                }
+                return formName.equals(idp.getAuthFormName());
+            }
+        };
+    }
+
+    /**
+     * @return The tag attributes, with lower case names and decoded values.
+     */
+    private static Map<String, String> getAttributes(String tag) {
+        Map<String, String> attributes = new HashMap<String, String>();
+        Matcher attribute = ATTRIBUTE.matcher(tag);
+        while (attribute.find()) {
+            String value = attribute.group(2);
+            if (value == null) {
+                value = attribute.group(3);
+            }
+            if (value == null) {
+                value = attribute.group(4);
+            }
+            attributes.put(attribute.group(1).toLowerCase(),
+                           CharacterReference.decode(value, true));
+        }
+        return attributes;
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        if (is == null) {
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = is.read(buffer)) != -1) {
+            bytes.write(buffer, 0, n);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Keeps the body of a 200 response of the SP entry URL, received at the
+     * end of the redirect chain.
+     *
+     * @param method
+     *            The executed method, not yet released.
+     * @return <code>true</code> if the method response is the SP entry
+     *         response.
+     * @throws IOException
+     */
+    private boolean keepSPEntryResponse(HttpMethod method) throws IOException {
+        if (method.getStatusCode() != 200
+                || !method.getURI().getURI().equals(spEntryURL_)) {
+            return false;
+        }
+        spEntryResponse_ = readFully(getResponseBodyAsStream(method));
+        LOG.debug("SP entry response kept: " + spEntryURL_);
+        return spEntryResponse_ != null;
+    }
+
+    /**
+     * Returns, only once, the SP entry response body received by the last
+     * successful authentication. With the SAML/Artifact profile or an already
+     * authenticated session, the redirect chain ends on the SP entry URL and
+     * its response (the SLCS login response) is already received.
+     *
+     * @param spEntryURL
+     *            The SP entry URL.
+     * @return The decoded response body, or <code>null</code> if the
+     *         authentication did not receive the SP entry URL response.
+     */
+    public byte[] consumeSPEntryResponse(String spEntryURL) {
+        byte[] response = null;
+        if (isAuthenticated_ && spEntryURL.equals(spEntryURL_)) {
+            response = spEntryResponse_;
+        }
+        spEntryResponse_ = null;
+        return response;
+    }
+
     /**
      * @return isAuthenticated
      */
@@ -1089,7 +1957,30 @@ public class ShibbolethClient {
     }
 
     /**
-     * Delegates execution of the HttpMethod to the underlying HttpClient.
+     * Adds the host of the URL, if valid.
+     */
+    static private void addHost(Set<String> hosts, String url) {
+        if (url == null) {
+            return;
+        }
+        try {
+            String host = new URI(url, false).getHost();
+            if (host != null) {
+                hosts.add(host.toLowerCase());
+            }
+        } catch (URIException e) {
+            LOG.warn("Invalid IdP URL: " + url + ": " + e);
+        }
+    }
+
+    /**
+     * Delegates execution of the HttpMethod to the underlying HttpClient. With
+     * a {@link PooledHttpConnectionManager}, the connections opened by the
+     * request are counted in the timings. With the adaptive timeouts, the
+     * socket timeout of the GET requests is set from the latencies observed
+     * for the host. The non idempotent requests (login form, certificate
+     * request), which can take longer on the server side, keep the configured
+     * socket timeout.
      * 
      * @param method
      *            The HttpMethod to execute.
@@ -1103,8 +1994,318 @@ public class ShibbolethClient {
             IOException {
         if (LOG.isTraceEnabled())
             LOG.trace("exec: " + method.getName() + " " + method.getURI());
-        // use delegate
-        return this.httpClient_.executeMethod(method);
+        if (contentDecoder_ != null) {
+            method.setRequestHeader("Accept-Encoding",
+                                    ContentDecoder.ACCEPT_ENCODING);
+        }
+        String host = method.getURI().getHost();
+        boolean adaptive = adaptiveTimeouts_ != null && host != null
+                && method.getName().equals("GET");
+        if (adaptive) {
+            int soTimeout = adaptiveTimeouts_.getSoTimeout(host);
+            LOG.debug(host + " socket timeout: " + soTimeout + " ms");
+            method.getParams().setSoTimeout(soTimeout);
+        }
+        boolean idpHost = host != null
+                && idpHosts_.contains(host.toLowerCase());
+        long opened = getOpenedConnections();
+        long start = System.nanoTime();
+        int status = 0;
+        try {
+            // use delegate
+            status = this.httpClient_.executeMethod(method);
+        } catch (IOException e) {
+            if (adaptive && e instanceof InterruptedIOException) {
+                // connect or socket timeout
+                adaptiveTimeouts_.timeout(host);
+            }
+            if (idpHost) {
+                idpFailed_ = true;
+            }
+            throw e;
+        }
+        if (adaptive) {
+            adaptiveTimeouts_.record(host, (System.nanoTime() - start) / 1000000L);
+        }
+        if (idpHost) {
+            idpResponded_ = true;
+            idpFailed_ = status >= 500;
+        }
+        if (timings_ == null) {
+            return status;
+        }
+        // read the body now, to time and count it. The response stream is
+        // then served from the buffered body.
+        byte[] body = method.getResponseBody();
+        long nanos = System.nanoTime() - start;
+        timings_.addRequest(getRequestSize(method), getResponseSize(method,
+                                                                    body),
+                            nanos, getOpenedConnections() - opened);
+        return status;
+    }
+
+    /**
+     * Executes an idempotent GET request. A transport error or a 502, 503 or
+     * 504 response is retried, with a new request, up to the maximum number
+     * of retries. The retries wait a random backoff, up to the base backoff
+     * doubled by retry.
+     * 
+     * @param url
+     *            The URL to GET.
+     * @param followRedirects
+     *            <code>true</code> to follow the redirects.
+     * @return The executed method, to release by the caller.
+     * @throws HttpException
+     *             If a protocol exception occurs, not retried.
+     * @throws IOException
+     *             If the last retry failed with an I/O (transport) error.
+     */
+    private GetMethod executeIdempotentGet(String url, boolean followRedirects)
+            throws HttpException, IOException {
+        for (int retry = 0;; retry++) {
+            GetMethod method = new GetMethod(url);
+            method.setFollowRedirects(followRedirects);
+            try {
+                int status = executeMethod(method);
+                if (retry >= maxRetries_
+                        || (status != 502 && status != 503 && status != 504)) {
+                    return method;
+                }
+                LOG.warn("GET " + url + ": " + method.getStatusLine()
+                        + ", retry " + (retry + 1) + "/" + maxRetries_);
+                method.releaseConnection();
+            } catch (HttpException e) {
+                method.releaseConnection();
+                throw e;
+            } catch (IOException e) {
+                method.releaseConnection();
+                if (retry >= maxRetries_) {
+                    throw e;
+                }
+                LOG.warn("GET " + url + ": " + e + ", retry " + (retry + 1)
+                        + "/" + maxRetries_);
+            }
+            retries_++;
+            long backoff = Math.min(retryBackoff_ << retry, MAX_RETRY_BACKOFF);
+            try {
+                Thread.sleep((long) (RANDOM.nextDouble() * backoff));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("GET " + url
+                        + ": retry interrupted");
+            }
+        }
+    }
+
+    /**
+     * Returns the response body of an executed method, decompressed while
+     * read if the response is gzip or deflate encoded.
+     * 
+     * @param method
+     *            The executed HttpMethod.
+     * @return The response body stream, or <code>null</code> if none.
+     * @throws IOException
+     */
+    public InputStream getResponseBodyAsStream(HttpMethod method)
+            throws IOException {
+        InputStream body = method.getResponseBodyAsStream();
+        if (contentDecoder_ == null || body == null) {
+            return body;
+        }
+        Header contentEncoding = method.getResponseHeader("Content-Encoding");
+        if (contentEncoding == null) {
+            return body;
+        }
+        LOG.debug("Content-Encoding: " + contentEncoding.getValue());
+        return contentDecoder_.decode(body, contentEncoding.getValue());
+    }
+
+    /**
+     * @return The number of connections opened by the pooled connection
+     *         manager, or 0 if the connections are not pooled.
+     */
+    private long getOpenedConnections() {
+        HttpConnectionManager connectionManager = httpClient_.getHttpConnectionManager();
+        if (connectionManager instanceof PooledHttpConnectionManager) {
+            return ((PooledHttpConnectionManager) connectionManager).getOpenedConnections();
+        }
+        return 0;
+    }
+
+    /**
+     * @return The request line, headers and body size in bytes.
+     */
+    private static long getRequestSize(HttpMethod method) throws URIException {
+        long size = method.getName().length() + 1
+                + method.getURI().getEscapedPathQuery().length() + 11;
+        for (Header header : method.getRequestHeaders()) {
+            size += header.toExternalForm().length();
+        }
+        size += 2;
+        if (method instanceof EntityEnclosingMethod) {
+            RequestEntity entity = ((EntityEnclosingMethod) method).getRequestEntity();
+            if (entity != null && entity.getContentLength() > 0) {
+                size += entity.getContentLength();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return The status line, headers and body size in bytes.
+     */
+    private static long getResponseSize(HttpMethod method, byte[] body) {
+        long size = 0;
+        if (method.getStatusLine() != null) {
+            size += method.getStatusLine().toString().length() + 2;
+        }
+        for (Header header : method.getResponseHeaders()) {
+            size += header.toExternalForm().length();
+        }
+        size += 2;
+        if (body != null) {
+            size += body.length;
+        }
+        return size;
+    }
+
+    /**
+     * Enables the timings of the authentication phases and HTTP requests.
+     * 
+     * @param timings
+     *            The timings, or <code>null</code> to disable.
+     */
+    public void setTimings(Timings timings) {
+        timings_ = timings;
+    }
+
+    /**
+     * Enables the bounded HTML parsing of the IdP pages: each page is only
+     * read and parsed up to the end of the target form (login form,
+     * Browser/POST form).
+     * 
+     * @param maxHtmlPageSize
+     *            The maximum page size in bytes read up to the target form,
+     *            or 0 to read and parse the whole pages.
+     */
+    public void setMaxHtmlPageSize(int maxHtmlPageSize) {
+        maxHtmlPageSize_ = maxHtmlPageSize;
+    }
+
+    /**
+     * @return The number of bytes skipped after the target forms by the
+     *         bounded HTML parsing.
+     */
+    public long getSkippedBytes() {
+        return skippedBytes_;
+    }
+
+    /**
+     * Enables the compressed responses: the requests accept the gzip and
+     * deflate encodings, decoded by {@link #getResponseBodyAsStream(HttpMethod)}.
+     * 
+     * @param contentDecoder
+     *            The decoder counting the compressed and decompressed bytes,
+     *            or <code>null</code> to disable.
+     */
+    public void setContentDecoder(ContentDecoder contentDecoder) {
+        contentDecoder_ = contentDecoder;
+    }
+
+    /**
+     * @return The response decoder, or <code>null</code> if the compressed
+     *         responses are disabled.
+     */
+    public ContentDecoder getContentDecoder() {
+        return contentDecoder_;
+    }
+
+    /**
+     * Enables the adaptive socket timeouts, by host.
+     * 
+     * @param adaptiveTimeouts
+     *            The adaptive timeouts, can be shared by many clients, or
+     *            <code>null</code> to use the connection manager socket
+     *            timeout.
+     */
+    public void setAdaptiveTimeouts(AdaptiveTimeouts adaptiveTimeouts) {
+        adaptiveTimeouts_ = adaptiveTimeouts;
+    }
+
+    /**
+     * Enables the IdP circuit breaker. The failures are only counted once the
+     * IdP SSO is requested, the wrong credentials are not failures.
+     * 
+     * @param circuitBreaker
+     *            The circuit breaker, can be shared by many clients, or
+     *            <code>null</code> to disable.
+     */
+    public void setIdPCircuitBreaker(IdPCircuitBreaker circuitBreaker) {
+        circuitBreaker_ = circuitBreaker;
+    }
+
+    /**
+     * @return The IdP circuit breaker, or <code>null</code> if disabled.
+     */
+    public IdPCircuitBreaker getIdPCircuitBreaker() {
+        return circuitBreaker_;
+    }
+
+    /**
+     * Enables the retry of the idempotent GET requests of the login flow (SP
+     * entry, SAML2 DS return, IdP SSO response).
+     * 
+     * @param maxRetries
+     *            The maximum number of retries, 0 to disable.
+     * @param retryBackoff
+     *            The base retry backoff in milliseconds.
+     */
+    public void setRetry(int maxRetries, long retryBackoff) {
+        maxRetries_ = maxRetries;
+        retryBackoff_ = retryBackoff;
+    }
+
+    /**
+     * @return The number of retried requests.
+     */
+    public long getRetries() {
+        return retries_;
+    }
+
+    /**
+     * Enables the IdP SSO session cache. The cached session is restored
+     * before the authentication, and stored after a successful
+     * authentication.
+     * 
+     * @param sessionCache
+     *            The IdP session cache, or <code>null</code> to disable.
+     */
+    public void setSessionCache(IdPSessionCache sessionCache) {
+        sessionCache_ = sessionCache;
+    }
+
+    /**
+     * Enables the learned flow plans. The recorded plan of the (SP, IdP) is
+     * followed, and the discovered plan is recorded after a successful
+     * authentication.
+     * 
+     * @param flowPlans
+     *            The flow plans, or <code>null</code> to disable.
+     */
+    public void setFlowPlans(ShibbolethFlowPlans flowPlans) {
+        flowPlans_ = flowPlans;
+    }
+
+    private void beginPhase(String name) {
+        if (timings_ != null) {
+            timings_.begin(name);
+        }
+    }
+
+    private void endPhase() {
+        if (timings_ != null) {
+            timings_.end();
+        }
     }
 
     private void dumpHttpClientCookies() {
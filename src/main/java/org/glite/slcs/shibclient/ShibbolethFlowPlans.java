@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ShibbolethFlowPlans stores the flow shape discovered by the
+ * {@link ShibbolethClient} for each (SP, IdP): the SP protocol, the SAML2 DS
+ * return URL, and the IdP login form action and hidden field names. The
+ * next authentication follows the recorded plan directly, and the plan is
+ * recorded again when a step response differs from it.
+ * <p>
+ * The plans are stored in a properties file, the keys are prefixed with the
+ * SP entry URL and the IdP providerId.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class ShibbolethFlowPlans {
+
+    /** Logging */
+    private static Logger LOG = LoggerFactory.getLogger(ShibbolethFlowPlans.class);
+
+    /** SP protocols */
+    static public final String PROTOCOL_SAML1 = "SAML1";
+
+    static public final String PROTOCOL_SAML2 = "SAML2";
+
+    static public final String PROTOCOL_SAML2_DS = "SAML2DS";
+
+    /** Plan properties */
+    static private final String PROTOCOL = "protocol";
+
+    static private final String DS_RETURN_URL = "dsReturnURL";
+
+    static private final String FORM_RAW_ACTION = "formRawAction";
+
+    static private final String FORM_HIDDEN_FIELDS = "formHiddenFields";
+
+    /** The plans file */
+    private File file_ = null;
+
+    /** The plans, loaded on first use */
+    private Properties plans_ = null;
+
+    /**
+     * @param file
+     *            The plans file.
+     */
+    public ShibbolethFlowPlans(File file) {
+        this.file_ = file;
+    }
+
+    /**
+     * @param spEntryURL
+     *            The SP entry URL.
+     * @param idpProviderId
+     *            The IdP providerId.
+     * @return The recorded plan or <code>null</code>.
+     */
+    public synchronized Plan get(String spEntryURL, String idpProviderId) {
+        String prefix = getPrefix(spEntryURL, idpProviderId);
+        Properties plans = getPlans();
+        String protocol = plans.getProperty(prefix + PROTOCOL);
+        if (protocol == null) {
+            return null;
+        }
+        Plan plan = new Plan();
+        plan.setProtocol(protocol);
+        plan.setDSReturnURL(plans.getProperty(prefix + DS_RETURN_URL));
+        String formRawAction = plans.getProperty(prefix + FORM_RAW_ACTION);
+        if (formRawAction != null) {
+            String hiddenFields = plans.getProperty(prefix
+                    + FORM_HIDDEN_FIELDS, "");
+            List<String> hiddenFieldNames = new ArrayList<String>();
+            if (hiddenFields.length() > 0) {
+                hiddenFieldNames.addAll(Arrays.asList(hiddenFields.split(",")));
+            }
+            plan.setLoginForm(formRawAction, hiddenFieldNames);
+        }
+        return plan;
+    }
+
+    /**
+     * Records the plan, and saves the file if the plan changed.
+     *
+     * @param spEntryURL
+     *            The SP entry URL.
+     * @param idpProviderId
+     *            The IdP providerId.
+     * @param plan
+     *            The discovered plan.
+     */
+    public synchronized void put(String spEntryURL, String idpProviderId,
+            Plan plan) {
+        if (plan.equals(get(spEntryURL, idpProviderId))) {
+            return;
+        }
+        String prefix = getPrefix(spEntryURL, idpProviderId);
+        Properties plans = getPlans();
+        removePlan(plans, prefix);
+        plans.setProperty(prefix + PROTOCOL, plan.getProtocol());
+        if (plan.getDSReturnURL() != null) {
+            plans.setProperty(prefix + DS_RETURN_URL, plan.getDSReturnURL());
+        }
+        if (plan.getFormRawAction() != null) {
+            plans.setProperty(prefix + FORM_RAW_ACTION,
+                              plan.getFormRawAction());
+            StringBuilder hiddenFields = new StringBuilder();
+            for (String name : plan.getFormHiddenFields()) {
+                if (hiddenFields.length() > 0) {
+                    hiddenFields.append(',');
+                }
+                hiddenFields.append(name);
+            }
+            plans.setProperty(prefix + FORM_HIDDEN_FIELDS,
+                              hiddenFields.toString());
+        }
+        LOG.info("flow plan recorded for " + spEntryURL + " " + idpProviderId
+                + ": " + plan);
+        save();
+    }
+
+    /**
+     * Removes the plan, when it is not valid anymore.
+     *
+     * @param spEntryURL
+     *            The SP entry URL.
+     * @param idpProviderId
+     *            The IdP providerId.
+     */
+    public synchronized void remove(String spEntryURL, String idpProviderId) {
+        Properties plans = getPlans();
+        if (removePlan(plans, getPrefix(spEntryURL, idpProviderId))) {
+            LOG.info("flow plan removed for " + spEntryURL + " "
+                    + idpProviderId);
+            save();
+        }
+    }
+
+    private String getPrefix(String spEntryURL, String idpProviderId) {
+        return spEntryURL + "|" + idpProviderId + ".";
+    }
+
+    private boolean removePlan(Properties plans, String prefix) {
+        List<String> keys = new ArrayList<String>();
+        for (String key : plans.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                keys.add(key);
+            }
+        }
+        for (String key : keys) {
+            plans.remove(key);
+        }
+        return !keys.isEmpty();
+    }
+
+    private Properties getPlans() {
+        if (plans_ == null) {
+            plans_ = new Properties();
+            if (file_.exists()) {
+                try {
+                    InputStream in = new FileInputStream(file_);
+                    try {
+                        plans_.load(in);
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    LOG.warn("Failed to read the flow plans: " + file_ + ": "
+                            + e);
+                }
+            }
+        }
+        return plans_;
+    }
+
+    private void save() {
+        try {
+            File directory = file_.getAbsoluteFile().getParentFile();
+            if (directory != null && !directory.exists()) {
+                directory.mkdirs();
+            }
+            OutputStream out = new FileOutputStream(file_);
+            try {
+                plans_.store(out, "SLCS client Shibboleth flow plans");
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to write the flow plans: " + file_ + ": " + e);
+        }
+    }
+
+    /**
+     * The flow shape of one (SP, IdP).
+     */
+    public static class Plan {
+
+        private String protocol_ = null;
+
+        private String dsReturnURL_ = null;
+
+        private String formRawAction_ = null;
+
+        private List<String> formHiddenFields_ = new ArrayList<String>();
+
+        public String getProtocol() {
+            return protocol_;
+        }
+
+        public void setProtocol(String protocol) {
+            protocol_ = protocol;
+        }
+
+        /**
+         * @return The SAML2 DS return URL, without the entityID parameter.
+         */
+        public String getDSReturnURL() {
+            return dsReturnURL_;
+        }
+
+        public void setDSReturnURL(String dsReturnURL) {
+            dsReturnURL_ = dsReturnURL;
+        }
+
+        /**
+         * @param rawAction
+         *            The login form action attribute, as in the HTML page.
+         *            An empty or relative action is resolved against the SSO
+         *            login URL of each run, which carries the one-time SSO
+         *            request.
+         * @param hiddenFields
+         *            The login form hidden field names.
+         */
+        public void setLoginForm(String rawAction, List<String> hiddenFields) {
+            formRawAction_ = rawAction;
+            formHiddenFields_ = hiddenFields;
+        }
+
+        public String getFormRawAction() {
+            return formRawAction_;
+        }
+
+        public List<String> getFormHiddenFields() {
+            return formHiddenFields_;
+        }
+
+        public boolean equals(Object object) {
+            if (!(object instanceof Plan)) {
+                return false;
+            }
+            return toString().equals(object.toString());
+        }
+
+        public int hashCode() {
+            return toString().hashCode();
+        }
+
+        public String toString() {
+            return "Plan[protocol=" + protocol_ + " dsReturnURL="
+                    + dsReturnURL_ + " formRawAction=" + formRawAction_
+                    + " formHiddenFields=" + formHiddenFields_ + "]";
+        }
+    }
+
+}
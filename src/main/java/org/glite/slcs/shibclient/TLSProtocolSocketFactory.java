@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.commons.httpclient.ConnectTimeoutException;
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
+import org.apache.commons.httpclient.protocol.SecureProtocolSocketFactory;
+
+/**
+ * TLSProtocolSocketFactory wraps the HTTPS socket factory, and starts the
+ * TLS handshake as soon as the socket is connected. An opened connection is
+ * then ready to send the request, which is required to warm up the
+ * connections (see {@link ConnectionWarmUp}).
+ * <p>
+ * The full and abbreviated (resumed session) handshakes are counted. The
+ * sessions are resumed from the client session cache of the wrapped factory
+ * SSL context, for the lifetime of the JVM.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class TLSProtocolSocketFactory implements SecureProtocolSocketFactory {
+
+    /** The wrapped socket factory */
+    private ProtocolSocketFactory factory_;
+
+    /** Number of full TLS handshakes */
+    private AtomicLong fullHandshakes_ = new AtomicLong();
+
+    /** Number of abbreviated TLS handshakes, resuming a cached session */
+    private AtomicLong resumedHandshakes_ = new AtomicLong();
+
+    /**
+     * @param factory
+     *            The HTTPS socket factory to wrap.
+     */
+    public TLSProtocolSocketFactory(ProtocolSocketFactory factory) {
+        this.factory_ = factory;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.apache.commons.httpclient.protocol.ProtocolSocketFactory#createSocket(java.lang.String,
+     *      int, java.net.InetAddress, int)
+     */
+    public Socket createSocket(String host, int port, InetAddress localAddress,
+            int localPort) throws IOException, UnknownHostException {
+        return handshake(factory_.createSocket(host, port, localAddress,
+                                               localPort));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.apache.commons.httpclient.protocol.ProtocolSocketFactory#createSocket(java.lang.String,
+     *      int, java.net.InetAddress, int,
+     *      org.apache.commons.httpclient.params.HttpConnectionParams)
+     */
+    public Socket createSocket(String host, int port, InetAddress localAddress,
+            int localPort, HttpConnectionParams params) throws IOException,
+            UnknownHostException, ConnectTimeoutException {
+        Socket socket = factory_.createSocket(host, port, localAddress,
+                                              localPort, params);
+        // the connection sets the read timeout only after the handshake
+        if (params != null) {
+            socket.setSoTimeout(params.getSoTimeout());
+        }
+        return handshake(socket);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.apache.commons.httpclient.protocol.ProtocolSocketFactory#createSocket(java.lang.String,
+     *      int)
+     */
+    public Socket createSocket(String host, int port) throws IOException,
+            UnknownHostException {
+        return handshake(factory_.createSocket(host, port));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.apache.commons.httpclient.protocol.SecureProtocolSocketFactory#createSocket(java.net.Socket,
+     *      java.lang.String, int, boolean)
+     */
+    public Socket createSocket(Socket socket, String host, int port,
+            boolean autoClose) throws IOException, UnknownHostException {
+        if (!(factory_ instanceof SecureProtocolSocketFactory)) {
+            throw new IOException("Layered sockets not supported by "
+                    + factory_.getClass().getName());
+        }
+        return handshake(((SecureProtocolSocketFactory) factory_).createSocket(socket,
+                                                                             host,
+                                                                             port,
+                                                                             autoClose));
+    }
+
+    /**
+     * Starts the TLS handshake of a SSL socket. A session created before the
+     * handshake was resumed from the session cache.
+     */
+    private Socket handshake(Socket socket) throws IOException {
+        if (socket instanceof SSLSocket) {
+            SSLSocket sslSocket = (SSLSocket) socket;
+            long start = System.currentTimeMillis();
+            try {
+                sslSocket.startHandshake();
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            SSLSession session = sslSocket.getSession();
+            if (session.getCreationTime() < start) {
+                resumedHandshakes_.incrementAndGet();
+            }
+            else {
+                fullHandshakes_.incrementAndGet();
+            }
+        }
+        return socket;
+    }
+
+    /**
+     * @return The number of full TLS handshakes.
+     */
+    public long getFullHandshakes() {
+        return fullHandshakes_.get();
+    }
+
+    /**
+     * @return The number of abbreviated TLS handshakes, resuming a cached
+     *         session.
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes_.get();
+    }
+
+    /**
+     * @return The wrapped socket factory.
+     */
+    public ProtocolSocketFactory getSocketFactory() {
+        return factory_;
+    }
+
+    public boolean equals(Object object) {
+        return object instanceof TLSProtocolSocketFactory
+                && factory_.equals(((TLSProtocolSocketFactory) object).factory_);
+    }
+
+    public int hashCode() {
+        return factory_.hashCode();
+    }
+
+}
@@ -0,0 +1,575 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient.metadata;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * IdentityProviderIndex is an in-memory search index of the IdPs, over the
+ * providerId, the display name and the SSO host, and the exact entityID. The
+ * texts are compared lower case and without accents.
+ * <p>
+ * A search returns the IdPs matching exactly, then the IdPs with a word
+ * starting with the query, then the IdPs containing the query (3 characters
+ * or more). Only if none match, the IdPs with a word within a small edit
+ * distance of the query are returned. The prefixes are found by binary
+ * search in the sorted words, the substrings by intersecting the (hashed)
+ * trigram postings of the IdPs, and the fuzzy matches by a banded edit
+ * distance over the words sharing enough bigrams with the query (or of about
+ * the same length, for the short queries).
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class IdentityProviderIndex {
+
+    /** Match ranks */
+    static private final int EXACT= 0;
+
+    static private final int PREFIX= 1;
+
+    static private final int SUBSTRING= 2;
+
+    static private final int FUZZY= 3;
+
+    /** Max edit distance of the fuzzy matches */
+    static private final int MAX_DISTANCE= 2;
+
+    static private final int NO_MATCH= Integer.MAX_VALUE;
+
+    /** Separator of the fields in the searched text */
+    static private final char SEPARATOR= '\u0000';
+
+    static private final Pattern DIACRITICS= Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+
+    static private final Pattern WORD_SEPARATORS= Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    /** IdPs, sorted by providerId */
+    private IdentityProvider[] idps_;
+
+    /** Normalized fields of each IdP, separated */
+    private String[] texts_;
+
+    /** Sorted distinct words, and their IdPs */
+    private String[] words_;
+
+    private int[][] wordIdps_;
+
+    /** Single words (not whole fields) by length, and by bigram */
+    private int[][] wordsByLength_;
+
+    private Map<String, int[]> wordBigrams_;
+
+    /** Exact keys: providerId, name, host and entityID */
+    private Map<String, int[]> keys_;
+
+    /** Trigram postings of the texts: IdPs of the trigram code c from
+     * <code>trigramStart_[c]</code> to <code>trigramStart_[c + 1]</code> */
+    private int[] trigramStart_;
+
+    private int[] trigramIdps_;
+
+    /** Trigram codes of 3 x 6 bits */
+    static private final int TRIGRAM_CODES= 1 << 18;
+
+    /**
+     * Builds the index.
+     *
+     * @param idps
+     *            The IdPs.
+     */
+    public IdentityProviderIndex(Collection<IdentityProvider> idps) {
+        idps_= idps.toArray(new IdentityProvider[idps.size()]);
+        Arrays.sort(idps_);
+        texts_= new String[idps_.length];
+        Map<String, IntList> words= new HashMap<String, IntList>();
+        Set<String> singleWords= new HashSet<String>();
+        Map<String, IntList> keys= new HashMap<String, IntList>();
+        for (int i= 0; i < idps_.length; i++) {
+            IdentityProvider idp= idps_[i];
+            String[] fields= { normalize(idp.getId()),
+                    normalize(idp.getName()),
+                    normalize(getHost(idp.getUrl())) };
+            if (idp.getEntityID() != null) {
+                add(keys, normalize(idp.getEntityID()), i);
+            }
+            StringBuilder text= new StringBuilder();
+            for (String field : fields) {
+                if (field.length() == 0) {
+                    continue;
+                }
+                text.append(field).append(SEPARATOR);
+                add(keys, field, i);
+                add(words, field, i);
+                for (String word : WORD_SEPARATORS.split(field)) {
+                    if (word.length() > 0) {
+                        add(words, word, i);
+                        singleWords.add(word);
+                    }
+                }
+            }
+            texts_[i]= text.toString();
+        }
+        words_= words.keySet().toArray(new String[words.size()]);
+        Arrays.sort(words_);
+        wordIdps_= new int[words_.length][];
+        Map<Integer, IntList> lengths= new HashMap<Integer, IntList>();
+        Map<String, IntList> wordBigrams= new HashMap<String, IntList>();
+        int maxLength= 0;
+        for (int w= 0; w < words_.length; w++) {
+            String word= words_[w];
+            wordIdps_[w]= words.get(word).toArray();
+            if (!singleWords.contains(word)) {
+                continue;
+            }
+            maxLength= Math.max(maxLength, word.length());
+            add(lengths, Integer.valueOf(word.length()), w);
+            for (int b= 0; b + 2 <= word.length(); b++) {
+                add(wordBigrams, word.substring(b, b + 2), w);
+            }
+        }
+        wordsByLength_= new int[maxLength + 1][];
+        for (int length= 0; length <= maxLength; length++) {
+            IntList list= lengths.get(Integer.valueOf(length));
+            wordsByLength_[length]= list != null ? list.toArray() : new int[0];
+        }
+        keys_= toPostings(keys);
+        indexTrigrams();
+        wordBigrams_= toPostings(wordBigrams);
+    }
+
+    /**
+     * Searches the IdPs.
+     *
+     * @param query
+     *            The searched providerId, name, entityID or host, or part of
+     *            it.
+     * @param max
+     *            The maximum number of IdPs returned.
+     * @return The matching IdPs, best first, or the IdPs with a similar word
+     *         if none match.
+     */
+    public List<IdentityProvider> search(String query, int max) {
+        String q= normalize(query).trim();
+        if (q.length() == 0) {
+            return Collections.emptyList();
+        }
+        int[] ranks= new int[idps_.length];
+        Arrays.fill(ranks, NO_MATCH);
+        // exact
+        int[] exact= keys_.get(q);
+        if (exact != null) {
+            rank(ranks, exact, EXACT);
+        }
+        // word prefix
+        int w= Arrays.binarySearch(words_, q);
+        if (w < 0) {
+            w= -w - 1;
+        }
+        for (; w < words_.length && words_[w].startsWith(q); w++) {
+            rank(ranks, wordIdps_[w], PREFIX);
+        }
+        // substring
+        for (int i : getSubstringCandidates(q)) {
+            if (ranks[i] > SUBSTRING && texts_[i].indexOf(q) != -1) {
+                ranks[i]= SUBSTRING;
+            }
+        }
+        List<IdentityProvider> results= collect(ranks, max);
+        if (results.isEmpty()) {
+            fuzzy(ranks, q);
+            results= collect(ranks, max);
+        }
+        return results;
+    }
+
+    /**
+     * @return The number of indexed IdPs.
+     */
+    public int size() {
+        return idps_.length;
+    }
+
+    /**
+     * @return The IdPs containing all the trigrams of the query, none for a
+     *         query shorter than a trigram.
+     */
+    private int[] getSubstringCandidates(String q) {
+        if (q.length() < 3) {
+            return new int[0];
+        }
+        // intersect, smallest postings first
+        int[] codes= new int[q.length() - 2];
+        for (int t= 0; t < codes.length; t++) {
+            codes[t]= trigram(q, t);
+            if (codes[t] < 0 || getTrigramSize(codes[t]) == 0) {
+                return new int[0];
+            }
+        }
+        int smallest= 0;
+        for (int t= 1; t < codes.length; t++) {
+            if (getTrigramSize(codes[t]) < getTrigramSize(codes[smallest])) {
+                smallest= t;
+            }
+        }
+        int[] candidates= Arrays.copyOfRange(trigramIdps_,
+                                             trigramStart_[codes[smallest]],
+                                             trigramStart_[codes[smallest] + 1]);
+        for (int t= 0; t < codes.length && candidates.length > 0; t++) {
+            if (t != smallest) {
+                candidates= intersect(candidates, trigramIdps_,
+                                      trigramStart_[codes[t]],
+                                      trigramStart_[codes[t] + 1]);
+            }
+        }
+        return candidates;
+    }
+
+    private int getTrigramSize(int code) {
+        return trigramStart_[code + 1] - trigramStart_[code];
+    }
+
+    /**
+     * Builds the trigram postings of the texts, in two passes: count, then
+     * fill.
+     */
+    private void indexTrigrams() {
+        trigramStart_= new int[TRIGRAM_CODES + 1];
+        int[] last= new int[TRIGRAM_CODES];
+        Arrays.fill(last, -1);
+        for (int i= 0; i < texts_.length; i++) {
+            for (int t= 0; t + 3 <= texts_[i].length(); t++) {
+                int code= trigram(texts_[i], t);
+                if (code >= 0 && last[code] != i) {
+                    last[code]= i;
+                    trigramStart_[code + 1]++;
+                }
+            }
+        }
+        for (int code= 0; code < TRIGRAM_CODES; code++) {
+            trigramStart_[code + 1]+= trigramStart_[code];
+        }
+        trigramIdps_= new int[trigramStart_[TRIGRAM_CODES]];
+        int[] next= Arrays.copyOf(trigramStart_, TRIGRAM_CODES);
+        Arrays.fill(last, -1);
+        for (int i= 0; i < texts_.length; i++) {
+            for (int t= 0; t + 3 <= texts_[i].length(); t++) {
+                int code= trigram(texts_[i], t);
+                if (code >= 0 && last[code] != i) {
+                    last[code]= i;
+                    trigramIdps_[next[code]++]= i;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The code of the trigram at index, or -1 if it contains the
+     *         fields separator.
+     */
+    static private int trigram(String text, int index) {
+        int code= 0;
+        for (int c= index; c < index + 3; c++) {
+            char ch= text.charAt(c);
+            if (ch == SEPARATOR) {
+                return -1;
+            }
+            code= (code << 6) | charCode(ch);
+        }
+        return code;
+    }
+
+    /**
+     * @return The 6 bits code of a character: letters, digits, '.', '-' and
+     *         space have their own code, the other characters are hashed.
+     */
+    static private int charCode(char ch) {
+        if (ch >= 'a' && ch <= 'z') {
+            return ch - 'a' + 1;
+        }
+        if (ch >= '0' && ch <= '9') {
+            return ch - '0' + 27;
+        }
+        switch (ch) {
+        case '.':
+            return 37;
+        case '-':
+            return 38;
+        case ' ':
+            return 39;
+        default:
+            return 40 + ch % 24;
+        }
+    }
+
+    /**
+     * Ranks the IdPs with a word within the edit distance of the query: 1
+     * for 3 to 5 characters, 2 for longer queries.
+     */
+    private void fuzzy(int[] ranks, String q) {
+        if (q.length() < 3) {
+            return;
+        }
+        int maxDistance= q.length() <= 5 ? 1 : MAX_DISTANCE;
+        int[][] rows= new int[2][q.length() + maxDistance + 1];
+        for (int w : getFuzzyCandidates(q, maxDistance)) {
+            int distance= distance(q, words_[w], maxDistance, rows);
+            if (distance <= maxDistance) {
+                rank(ranks, wordIdps_[w], FUZZY + distance);
+            }
+        }
+    }
+
+    /**
+     * A word within the edit distance k of the query shares at least
+     * <code>|q| - 1 - 2k</code> bigrams with it. Below one shared bigram,
+     * the words of length <code>|q| +/- k</code> are the candidates.
+     *
+     * @return The candidate words.
+     */
+    private int[] getFuzzyCandidates(String q, int maxDistance) {
+        int minShared= q.length() - 1 - 2 * maxDistance;
+        IntList candidates= new IntList();
+        if (minShared < 1) {
+            int from= Math.max(0, q.length() - maxDistance);
+            int to= Math.min(wordsByLength_.length - 1, q.length() + maxDistance);
+            for (int length= from; length <= to; length++) {
+                for (int w : wordsByLength_[length]) {
+                    candidates.add(w);
+                }
+            }
+            return candidates.toArray();
+        }
+        int[] shared= new int[words_.length];
+        for (int b= 0; b + 2 <= q.length(); b++) {
+            int[] posting= wordBigrams_.get(q.substring(b, b + 2));
+            if (posting == null) {
+                continue;
+            }
+            for (int w : posting) {
+                if (++shared[w] == minShared
+                        && Math.abs(words_[w].length() - q.length()) <= maxDistance) {
+                    candidates.add(w);
+                }
+            }
+        }
+        return candidates.toArray();
+    }
+
+    /**
+     * Levenshtein distance, bounded: only the diagonal band of width
+     * <code>2 * max + 1</code> is computed.
+     *
+     * @return The edit distance, or <code>max + 1</code> if greater than max.
+     */
+    static int distance(String a, String b, int max) {
+        return distance(a, b, max, new int[2][b.length() + 1]);
+    }
+
+    /**
+     * @param rows
+     *            Two rows of at least <code>b.length() + 1</code>, reused.
+     */
+    static private int distance(String a, String b, int max, int[][] rows) {
+        int n= a.length();
+        int m= b.length();
+        if (Math.abs(n - m) > max) {
+            return max + 1;
+        }
+        int[] previous= rows[0];
+        int[] current= rows[1];
+        Arrays.fill(current, 0, m + 1, max + 1);
+        for (int j= 0; j <= m; j++) {
+            previous[j]= Math.min(j, max + 1);
+        }
+        for (int i= 1; i <= n; i++) {
+            int from= Math.max(1, i - max);
+            int to= Math.min(m, i + max);
+            current[from - 1]= from == 1 ? Math.min(i, max + 1) : max + 1;
+            int rowMin= max + 1;
+            for (int j= from; j <= to; j++) {
+                int cost= a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                int distance= Math.min(Math.min(current[j - 1] + 1,
+                                                previous[j] + 1),
+                                       previous[j - 1] + cost);
+                current[j]= Math.min(distance, max + 1);
+                rowMin= Math.min(rowMin, current[j]);
+            }
+            if (rowMin > max) {
+                return max + 1;
+            }
+            int[] swap= previous;
+            previous= current;
+            current= swap;
+        }
+        return previous[m];
+    }
+
+    /**
+     * @return The ranked IdPs, by rank then providerId.
+     */
+    private List<IdentityProvider> collect(int[] ranks, int max) {
+        List<IdentityProvider> results= new ArrayList<IdentityProvider>();
+        int worst= EXACT;
+        for (int rank : ranks) {
+            if (rank != NO_MATCH && rank > worst) {
+                worst= rank;
+            }
+        }
+        // IdPs are sorted by providerId
+        for (int rank= EXACT; rank <= worst && results.size() < max; rank++) {
+            for (int i= 0; i < ranks.length && results.size() < max; i++) {
+                if (ranks[i] == rank) {
+                    results.add(idps_[i]);
+                }
+            }
+        }
+        return results;
+    }
+
+    static private void rank(int[] ranks, int[] idps, int rank) {
+        for (int i : idps) {
+            if (rank < ranks[i]) {
+                ranks[i]= rank;
+            }
+        }
+    }
+
+    /**
+     * Intersects an ascending array with an ascending range of another one,
+     * not shorter.
+     */
+    static private int[] intersect(int[] a, int[] b, int bFrom, int bTo) {
+        int[] result= new int[a.length];
+        int n= 0;
+        if (bTo - bFrom > 8 * a.length) {
+            // binary search of the few values in the long posting
+            int from= bFrom;
+            for (int value : a) {
+                int j= Arrays.binarySearch(b, from, bTo, value);
+                if (j >= 0) {
+                    result[n++]= value;
+                    from= j + 1;
+                }
+                else {
+                    from= -j - 1;
+                }
+            }
+            return Arrays.copyOf(result, n);
+        }
+        int i= 0;
+        int j= bFrom;
+        while (i < a.length && j < bTo) {
+            if (a[i] < b[j]) {
+                i++;
+            }
+            else if (a[i] > b[j]) {
+                j++;
+            }
+            else {
+                result[n++]= a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    static private <K> void add(Map<K, IntList> map, K key, int index) {
+        IntList list= map.get(key);
+        if (list == null) {
+            list= new IntList();
+            map.put(key, list);
+        }
+        list.add(index);
+    }
+
+    static private Map<String, int[]> toPostings(Map<String, IntList> map) {
+        Map<String, int[]> postings= new HashMap<String, int[]>(map.size() * 2);
+        for (Map.Entry<String, IntList> entry : map.entrySet()) {
+            postings.put(entry.getKey(), entry.getValue().toArray());
+        }
+        return postings;
+    }
+
+    /**
+     * @return The text lower case and without accents, empty if
+     *         <code>null</code>.
+     */
+    static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        boolean ascii= true;
+        for (int i= 0; i < text.length() && ascii; i++) {
+            ascii= text.charAt(i) < 0x80;
+        }
+        if (ascii) {
+            return text.toLowerCase(Locale.ENGLISH);
+        }
+        String decomposed= Normalizer.normalize(text, Normalizer.Form.NFD);
+        return DIACRITICS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ENGLISH);
+    }
+
+    static private String getHost(String url) {
+        if (url == null) {
+            return null;
+        }
+        try {
+            return new URI(url).getHost();
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Growable list of ascending ints, without duplicates.
+     */
+    static private class IntList {
+
+        private int[] values_= new int[4];
+
+        private int size_= 0;
+
+        void add(int value) {
+            if (size_ > 0 && values_[size_ - 1] == value) {
+                return;
+            }
+            if (size_ == values_.length) {
+                values_= Arrays.copyOf(values_, size_ * 2);
+            }
+            values_[size_++]= value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values_, size_);
+        }
+    }
+
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient.metadata;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.glite.slcs.util.ContentDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MetadataCache keeps the downloaded metadata files in a local directory,
+ * keyed by URL, with their <code>ETag</code> and <code>Last-Modified</code>
+ * validators.
+ * <p>
+ * A cached file younger than the max-age is used without network access.
+ * Within the stale-while-revalidate grace period, the cached file is used
+ * immediately and refreshed by a conditional GET in background, for the next
+ * run. Older or missing files are downloaded (or revalidated) before use, and
+ * a cached file is still used if the download fails.
+ * <p>
+ * The downloads are bounded by the connect and read timeouts.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class MetadataCache {
+
+    /** Logging */
+    private static final Logger LOG= LoggerFactory.getLogger(MetadataCache.class);
+
+    /** Cache entry properties */
+    static private final String URL= "url";
+
+    static private final String ETAG= "etag";
+
+    static private final String LAST_MODIFIED= "lastModified";
+
+    static private final String FETCHED= "fetched";
+
+    /** StAX factory of the downloaded metadata check */
+    private static final XMLInputFactory XML_INPUT_FACTORY= createXMLInputFactory();
+
+    /** The cache directory */
+    private File directory_;
+
+    /** Max-age in millis */
+    private long maxAge_;
+
+    /** Stale-while-revalidate grace period in millis */
+    private long staleWhileRevalidate_;
+
+    /** Connect and read timeouts in millis */
+    private int connectTimeout_= 30000;
+
+    private int readTimeout_= 60000;
+
+    /** Optional gzip/deflate decoder of the downloads */
+    private ContentDecoder contentDecoder_= null;
+
+    /** Background refresh started, if any */
+    private Thread refresh_= null;
+
+    /**
+     * @param directory
+     *            The cache directory, created if needed.
+     * @param maxAge
+     *            The max-age of the cached files in milliseconds.
+     * @param staleWhileRevalidate
+     *            The grace period after the max-age in milliseconds, the
+     *            stale file is used while refreshed in background.
+     */
+    public MetadataCache(File directory, long maxAge, long staleWhileRevalidate) {
+        this.directory_= directory;
+        this.maxAge_= maxAge;
+        this.staleWhileRevalidate_= staleWhileRevalidate;
+    }
+
+    /**
+     * Returns the cached metadata file of the URL, downloaded or revalidated
+     * first if missing or too old.
+     *
+     * @param url
+     *            The metadata URL.
+     * @return The cached metadata file.
+     * @throws IOException
+     *             If the metadata can not be downloaded and is not cached.
+     */
+    public File get(URL url) throws IOException {
+        String key= getKey(url.toString());
+        File file= new File(directory_, key + ".xml");
+        File infoFile= new File(directory_, key + ".properties");
+        Properties info= readInfo(infoFile);
+        if (!file.exists() || !url.toString().equals(info.getProperty(URL))) {
+            LOG.debug("metadata not cached: " + url);
+            refresh(url, file, infoFile, new Properties());
+            return file;
+        }
+        long age= System.currentTimeMillis()
+                - Long.parseLong(info.getProperty(FETCHED, "0"));
+        if (age < maxAge_) {
+            LOG.debug("cached metadata is fresh (" + (age / 1000) + "s): "
+                    + file);
+            return file;
+        }
+        if (age < maxAge_ + staleWhileRevalidate_) {
+            LOG.debug("cached metadata is stale (" + (age / 1000)
+                    + "s), refresh in background: " + file);
+            startRefresh(url, file, infoFile, info);
+            return file;
+        }
+        try {
+            refresh(url, file, infoFile, info);
+        } catch (IOException e) {
+            LOG.warn("Failed to refresh the metadata from: " + url
+                    + ", use the cached metadata: " + file + ": " + e);
+        }
+        return file;
+    }
+
+    /**
+     * Refreshes the cached metadata in a background thread. The thread is a
+     * daemon and does not delay the JVM exit: an interrupted download only
+     * leaves a temporary file, the cached file is replaced by a rename.
+     */
+    private void startRefresh(final URL url, final File file,
+            final File infoFile, final Properties info) {
+        refresh_= new Thread("metadata-refresh") {
+            public void run() {
+                try {
+                    refresh(url, file, infoFile, info);
+                } catch (IOException e) {
+                    LOG.warn("Failed to refresh the metadata from: " + url
+                            + ": " + e);
+                }
+            }
+        };
+        refresh_.setDaemon(true);
+        refresh_.start();
+    }
+
+    /**
+     * Downloads the metadata with a conditional GET, and updates the cached
+     * file only if modified and valid.
+     */
+    private void refresh(URL url, File file, File infoFile, Properties info)
+            throws IOException {
+        URLConnection connection= url.openConnection();
+        connection.setConnectTimeout(connectTimeout_);
+        connection.setReadTimeout(readTimeout_);
+        String etag= info.getProperty(ETAG);
+        if (etag != null) {
+            connection.setRequestProperty("If-None-Match", etag);
+        }
+        String lastModified= info.getProperty(LAST_MODIFIED);
+        if (lastModified != null) {
+            connection.setRequestProperty("If-Modified-Since", lastModified);
+        }
+        if (contentDecoder_ != null) {
+            connection.setRequestProperty("Accept-Encoding", ContentDecoder.ACCEPT_ENCODING);
+        }
+        if (connection instanceof HttpURLConnection) {
+            HttpURLConnection http= (HttpURLConnection) connection;
+            int status= http.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && file.exists()) {
+                LOG.info("metadata not modified: " + url);
+                http.disconnect();
+                info.setProperty(FETCHED, String.valueOf(System.currentTimeMillis()));
+                writeInfo(infoFile, info);
+                return;
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                http.disconnect();
+                throw new IOException("Unexpected metadata response: "
+                        + status + " " + http.getResponseMessage() + ": "
+                        + url);
+            }
+        }
+        LOG.info("download metadata from url: " + url);
+        directory_.mkdirs();
+        File tmpFile= File.createTempFile("metadata", ".tmp", directory_);
+        try {
+            InputStream in= connection.getInputStream();
+            if (contentDecoder_ != null) {
+                in= contentDecoder_.decode(in, connection.getContentEncoding());
+            }
+            try {
+                OutputStream out= new FileOutputStream(tmpFile);
+                try {
+                    byte[] buffer= new byte[8192];
+                    int n;
+                    while ((n= in.read(buffer)) != -1) {
+                        out.write(buffer, 0, n);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            // never replace a valid cached file by an invalid one
+            checkWellFormed(tmpFile, url);
+            synchronized (MetadataCache.class) {
+                if (!tmpFile.renameTo(file)) {
+                    file.delete();
+                    if (!tmpFile.renameTo(file)) {
+                        throw new IOException("Failed to rename " + tmpFile
+                                + " to " + file);
+                    }
+                }
+            }
+        } finally {
+            tmpFile.delete();
+        }
+        Properties newInfo= new Properties();
+        newInfo.setProperty(URL, url.toString());
+        newInfo.setProperty(FETCHED, String.valueOf(System.currentTimeMillis()));
+        if (connection.getHeaderField("ETag") != null) {
+            newInfo.setProperty(ETAG, connection.getHeaderField("ETag"));
+        }
+        if (connection.getHeaderField("Last-Modified") != null) {
+            newInfo.setProperty(LAST_MODIFIED, connection.getHeaderField("Last-Modified"));
+        }
+        writeInfo(infoFile, newInfo);
+    }
+
+    /**
+     * Checks in one streaming pass, without building a tree, that the
+     * downloaded file is a well-formed XML document.
+     *
+     * @throws IOException
+     *             If the file is not well-formed.
+     */
+    private static void checkWellFormed(File file, URL url) throws IOException {
+        InputStream in= new FileInputStream(file);
+        try {
+            XMLStreamReader reader= XML_INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                boolean root= false;
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamReader.START_ELEMENT) {
+                        root= true;
+                    }
+                }
+                if (!root) {
+                    throw new IOException("Invalid metadata from: " + url
+                            + ": no root element");
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid metadata from: " + url, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static XMLInputFactory createXMLInputFactory() {
+        XMLInputFactory factory= XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                            Boolean.FALSE);
+        return factory;
+    }
+
+    private Properties readInfo(File infoFile) {
+        Properties info= new Properties();
+        if (infoFile.exists()) {
+            try {
+                InputStream in= new FileInputStream(infoFile);
+                try {
+                    info.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                LOG.warn("Failed to read the metadata cache info: "
+                        + infoFile + ": " + e);
+            }
+        }
+        return info;
+    }
+
+    private void writeInfo(File infoFile, Properties info) {
+        try {
+            OutputStream out= new FileOutputStream(infoFile);
+            try {
+                info.store(out, "SLCS client metadata cache");
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to write the metadata cache info: " + infoFile
+                    + ": " + e);
+        }
+    }
+
+    /**
+     * @return The cache file name (without extension) of the metadata source
+     *         (URL or filename).
+     */
+    static String getKey(String source) {
+        try {
+            MessageDigest sha1= MessageDigest.getInstance("SHA-1");
+            byte[] digest= sha1.digest(source.getBytes("UTF-8"));
+            StringBuilder key= new StringBuilder("slcs-metadata-");
+            for (int i= 0; i < 8; i++) {
+                key.append(Integer.toHexString((digest[i] & 0xff) | 0x100).substring(1));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // not possible, SHA-1 is always available
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            // not possible, UTF-8 is always available
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Enables the compressed downloads.
+     *
+     * @param contentDecoder
+     *            The decoder, or <code>null</code> to disable.
+     */
+    public void setContentDecoder(ContentDecoder contentDecoder) {
+        contentDecoder_= contentDecoder;
+    }
+
+    /**
+     * Sets the download timeouts.
+     *
+     * @param connectTimeout
+     *            The connect timeout in milliseconds.
+     * @param readTimeout
+     *            The read timeout in milliseconds.
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        connectTimeout_= connectTimeout;
+        readTimeout_= readTimeout;
+    }
+
+    /**
+     * Waits for the background refresh, if any.
+     *
+     * @param millis
+     *            The maximum time to wait.
+     * @throws InterruptedException
+     */
+    public void awaitRefresh(long millis) throws InterruptedException {
+        if (refresh_ != null) {
+            refresh_.join(millis);
+        }
+    }
+
+}
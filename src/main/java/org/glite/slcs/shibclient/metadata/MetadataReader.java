@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient.metadata;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.glite.slcs.SLCSConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MetadataReader reads a pseudo metadata file (the
+ * <code>&lt;ShibbolethClientMetadata&gt;</code> file format) in one forward
+ * pass. The memory used is bounded by the providers model, and the time is
+ * linear in the number of providers.
+ * <p>
+ * The values are read as commons-configuration does: the element texts and
+ * attribute values are trimmed and only their first value is used, up to an
+ * unescaped comma list delimiter. The first element wins if repeated.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class MetadataReader {
+
+    /** Logging */
+    private static final Logger LOG= LoggerFactory.getLogger(MetadataReader.class);
+
+    /** Shared factory, thread safe once configured */
+    private static final XMLInputFactory XML_INPUT_FACTORY= createXMLInputFactory();
+
+    /** commons-configuration list delimiter */
+    static private final char LIST_DELIMITER= ',';
+
+    /** ServiceProvider values, first element only */
+    private Map<String,String> sp_= null;
+
+    /** IdentityProviders element(s) found, and not empty */
+    private boolean idpsFound_= false;
+
+    private Map<String,Provider> providers_= new HashMap<String,Provider>();
+
+    private String slcsProviderId_= null;
+
+    /**
+     * Reads a metadata file.
+     *
+     * @param file
+     *            The metadata file.
+     * @return The metadata providers.
+     * @throws SLCSConfigurationException
+     *             If the file can not be read or parsed, or the providers are
+     *             missing.
+     */
+    public static MetadataReader read(File file) throws SLCSConfigurationException {
+        try {
+            InputStream in= new BufferedInputStream(new FileInputStream(file), 65536);
+            try {
+                return read(in, file.getAbsolutePath());
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new SLCSConfigurationException("Failed to read metadata: " + file, e);
+        }
+    }
+
+    /**
+     * Reads a metadata stream.
+     *
+     * @param in
+     *            The metadata stream, not closed.
+     * @param source
+     *            The metadata source (file or url), for the errors.
+     * @return The metadata providers.
+     * @throws SLCSConfigurationException
+     *             If the stream can not be parsed, or the providers are
+     *             missing.
+     */
+    public static MetadataReader read(InputStream in, String source)
+            throws SLCSConfigurationException {
+        MetadataReader metadata= new MetadataReader();
+        try {
+            XMLStreamReader reader= XML_INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                metadata.parse(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            LOG.error("Invalid metadata: " + source, e);
+            throw new SLCSConfigurationException("Failed to parse metadata: " + source + ": "
+                    + e.getMessage(), e);
+        }
+        metadata.createProviders();
+        return metadata;
+    }
+
+    private MetadataReader() {
+    }
+
+    private void parse(XMLStreamReader reader) throws XMLStreamException {
+        int depth= 0;
+        while (reader.hasNext()) {
+            int event= reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            depth++;
+            if (depth != 2) {
+                continue;
+            }
+            // child of the root element
+            String name= reader.getLocalName();
+            if (name.equals("ServiceProvider")) {
+                Map<String,String> values= readElement(reader);
+                if (sp_ == null) {
+                    sp_= values;
+                }
+                depth--;
+            }
+            else if (name.equals("IdentityProviders")) {
+                readIdentityProviders(reader);
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Reads the IdentityProvider elements, one at a time.
+     */
+    private void readIdentityProviders(XMLStreamReader reader)
+            throws XMLStreamException {
+        if (reader.getAttributeCount() > 0) {
+            idpsFound_= true;
+        }
+        while (reader.hasNext()) {
+            int event= reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            idpsFound_= true;
+            boolean isIdP= reader.getLocalName().equals("IdentityProvider");
+            Map<String,String> values= readElement(reader);
+            if (isIdP) {
+                addIdentityProvider(values);
+            }
+        }
+    }
+
+    /**
+     * Reads the attributes and the descendant elements of the current
+     * element, up to its end.
+     *
+     * @return The values by commons-configuration key, relative to the
+     *         element: <code>[@attr]</code>, <code>child</code>,
+     *         <code>child[@attr]</code>, <code>child.grandchild</code>...
+     */
+    private static Map<String,String> readElement(XMLStreamReader reader)
+            throws XMLStreamException {
+        Map<String,String> values= new HashMap<String,String>();
+        readAttributes(reader, "", values);
+        // open descendant keys and texts
+        List<String> keys= new ArrayList<String>();
+        List<StringBuilder> texts= new ArrayList<StringBuilder>();
+        while (reader.hasNext()) {
+            int event= reader.next();
+            switch (event) {
+            case XMLStreamConstants.START_ELEMENT:
+                String parent= keys.isEmpty() ? "" : keys.get(keys.size() - 1) + ".";
+                String key= parent + reader.getLocalName();
+                keys.add(key);
+                texts.add(new StringBuilder());
+                readAttributes(reader, key, values);
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+                if (!texts.isEmpty()) {
+                    texts.get(texts.size() - 1).append(reader.getTextCharacters(),
+                                                       reader.getTextStart(),
+                                                       reader.getTextLength());
+                }
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                if (keys.isEmpty()) {
+                    return values;
+                }
+                String endKey= keys.remove(keys.size() - 1);
+                String text= texts.remove(texts.size() - 1).toString();
+                if (!values.containsKey(endKey)) {
+                    values.put(endKey, firstValue(text));
+                }
+                break;
+            default:
+                break;
+            }
+        }
+        return values;
+    }
+
+    private static void readAttributes(XMLStreamReader reader, String key,
+            Map<String,String> values) {
+        for (int i= 0; i < reader.getAttributeCount(); i++) {
+            String attributeKey= key + "[@" + reader.getAttributeLocalName(i) + "]";
+            if (!values.containsKey(attributeKey)) {
+                values.put(attributeKey, firstValue(reader.getAttributeValue(i)));
+            }
+        }
+    }
+
+    /**
+     * Returns the first value of a list, as split and trimmed by
+     * commons-configuration. The escaped delimiter <code>\,</code> is not a
+     * delimiter.
+     */
+    static String firstValue(String value) {
+        if (value.indexOf(LIST_DELIMITER) == -1) {
+            return value.trim();
+        }
+        StringBuilder first= new StringBuilder(value.length());
+        for (int i= 0; i < value.length(); i++) {
+            char c= value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()
+                    && value.charAt(i + 1) == LIST_DELIMITER) {
+                first.append(LIST_DELIMITER);
+                i++;
+            }
+            else if (c == LIST_DELIMITER) {
+                break;
+            }
+            else {
+                first.append(c);
+            }
+        }
+        return first.toString().trim();
+    }
+
+    private void addIdentityProvider(Map<String,String> config) {
+        String id= config.get("[@id]");
+        if (id == null) {
+            LOG.warn("IdentityProvider element without id ignored: " + config);
+            return;
+        }
+        String name= config.get("name");
+        String url= config.get("url");
+        String authTypeName= config.get("authentication[@type]");
+        String authUrl= config.get("authentication.url");
+        if (authUrl == null) {
+            authUrl= url;
+        }
+        IdentityProvider idp= new IdentityProvider(id,
+                                                   name,
+                                                   url,
+                                                   authTypeName,
+                                                   authUrl);
+        // optional entityID for SAML2 support
+        String entityID= config.get("[@entityID]");
+        if (entityID != null) {
+            idp.setEntityID(entityID);
+        }
+        if (idp.getAuthType() == IdentityProvider.SSO_AUTHTYPE_CAS
+                || idp.getAuthType() == IdentityProvider.SSO_AUTHTYPE_PUBCOOKIE
+                || idp.getAuthType() == IdentityProvider.SSO_AUTHTYPE_FORM) {
+            // read form name and username and password field names
+            String formName= config.get("authentication.form[@name]");
+            idp.setAuthFormName(formName != null ? formName : "");
+            idp.setAuthFormUsername(config.get("authentication.form.username"));
+            idp.setAuthFormPassword(config.get("authentication.form.password"));
+        }
+        else {
+            // basic or ntlm
+            idp.setAuthRealm(config.get("authentication.realm"));
+        }
+        LOG.debug("add " + idp);
+        providers_.put(id, idp);
+    }
+
+    /**
+     * Adds the SLCS SP, and checks the providers.
+     */
+    private void createProviders() throws SLCSConfigurationException {
+        if (sp_ == null || sp_.isEmpty()) {
+            throw new SLCSConfigurationException("ServiceProvider element not found in metadata");
+        }
+        LOG.debug("ServiceProvider element found");
+        String id= sp_.get("[@id]");
+        if (id == null || id.equals("")) {
+            id= ShibbolethClientMetadata.DEFAULT_SLCS_PROVIDERID;
+        }
+        if (!idpsFound_) {
+            throw new SLCSConfigurationException("IdentityProviders element not found in metadata");
+        }
+        if (providers_.isEmpty()) {
+            throw new SLCSConfigurationException("No IdentityProvider element found in metadata");
+        }
+        LOG.debug(providers_.size() + " IdentityProvider elements found");
+        slcsProviderId_= id;
+        ServiceProvider sp= new ServiceProvider(id, sp_.get("name"), sp_.get("url"));
+        LOG.debug("add " + sp);
+        providers_.put(id, sp);
+    }
+
+    /**
+     * @return The SLCS SP providerId.
+     */
+    public String getSLCSProviderId() {
+        return slcsProviderId_;
+    }
+
+    /**
+     * @return The providers by providerId.
+     */
+    public Map<String,Provider> getProviders() {
+        return providers_;
+    }
+
+    private static XMLInputFactory createXMLInputFactory() {
+        XMLInputFactory factory= XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                            Boolean.FALSE);
+        return factory;
+    }
+
+}
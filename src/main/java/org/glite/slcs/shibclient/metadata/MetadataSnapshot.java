@@ -0,0 +1,464 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient.metadata;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MetadataSnapshot is the compiled binary form of the parsed metadata
+ * providers, stored with the stamp of the metadata source.
+ * <p>
+ * The snapshot file is memory-mapped. Only the header is read when opened,
+ * the providers are found by binary search in the sorted providerId and
+ * entityID tables, and each provider is decoded on first access. A snapshot
+ * of another version or source stamp is not opened, and is compiled again
+ * from the parsed metadata.
+ * <p>
+ * File format: magic, version, file length, source stamp, SLCS providerId,
+ * providers count, providerId table, entityID count, entityID table, the
+ * table entries (key, record offset), then the provider records. The tables
+ * are the offsets of the entries, sorted by key.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class MetadataSnapshot {
+
+    /** Logging */
+    private static final Logger LOG= LoggerFactory.getLogger(MetadataSnapshot.class);
+
+    /** Snapshot file header and version */
+    static private final int MAGIC= 0x534c4353; // "SLCS"
+
+    static private final int VERSION= 2;
+
+    /** Provider record types */
+    static private final byte TYPE_SP= 1;
+
+    static private final byte TYPE_IDP= 2;
+
+    /** The mapped snapshot file */
+    private ByteBuffer buffer_;
+
+    /** SLCS SP providerId */
+    private String slcsProviderId_;
+
+    /** providerId table offset and size */
+    private int idTable_;
+
+    private int count_;
+
+    /** entityID table offset and size */
+    private int entityIDTable_;
+
+    private int entityIDCount_;
+
+    /** Already decoded providers, by record offset */
+    private Map<Integer, Provider> providers_= new HashMap<Integer, Provider>();
+
+    private MetadataSnapshot(ByteBuffer buffer, String slcsProviderId,
+            int idTable, int count, int entityIDTable, int entityIDCount) {
+        this.buffer_= buffer;
+        this.slcsProviderId_= slcsProviderId;
+        this.idTable_= idTable;
+        this.count_= count;
+        this.entityIDTable_= entityIDTable;
+        this.entityIDCount_= entityIDCount;
+    }
+
+    /**
+     * Opens and maps a snapshot file.
+     *
+     * @param file
+     *            The snapshot file.
+     * @param sourceStamp
+     *            The stamp of the current metadata source.
+     * @return The snapshot, or <code>null</code> if missing, invalid, or
+     *         compiled from another source.
+     */
+    static public MetadataSnapshot open(File file, String sourceStamp) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer;
+            RandomAccessFile raf= new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel= raf.getChannel();
+                MappedByteBuffer mapped= channel.map(FileChannel.MapMode.READ_ONLY,
+                                                     0, channel.size());
+                buffer= mapped;
+            } finally {
+                // the mapping stays valid
+                raf.close();
+            }
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                LOG.debug("not a metadata snapshot version " + VERSION + ": "
+                        + file);
+                return null;
+            }
+            if (buffer.getInt() != buffer.capacity()) {
+                LOG.warn("Truncated metadata snapshot: " + file);
+                return null;
+            }
+            if (!sourceStamp.equals(readString(buffer))) {
+                LOG.debug("metadata snapshot source changed: " + file);
+                return null;
+            }
+            String slcsProviderId= readString(buffer);
+            int count= buffer.getInt();
+            int idTable= buffer.position();
+            buffer.position(idTable + count * 4);
+            int entityIDCount= buffer.getInt();
+            int entityIDTable= buffer.position();
+            MetadataSnapshot snapshot= new MetadataSnapshot(buffer,
+                                                            slcsProviderId,
+                                                            idTable,
+                                                            count,
+                                                            entityIDTable,
+                                                            entityIDCount);
+            if (snapshot.getProvider(slcsProviderId) == null) {
+                return null;
+            }
+            LOG.debug("metadata snapshot: " + file + " providers=" + count);
+            return snapshot;
+        } catch (IOException e) {
+            LOG.warn("Failed to read the metadata snapshot: " + file + ": " + e);
+        } catch (BufferUnderflowException e) {
+            LOG.warn("Truncated metadata snapshot: " + file);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Invalid metadata snapshot: " + file + ": " + e);
+        } catch (IndexOutOfBoundsException e) {
+            LOG.warn("Invalid metadata snapshot: " + file + ": " + e);
+        }
+        return null;
+    }
+
+    /**
+     * Compiles the providers into a snapshot file. The file is written in a
+     * temporary file first, then renamed.
+     *
+     * @param file
+     *            The snapshot file.
+     * @param sourceStamp
+     *            The stamp of the metadata source.
+     * @param slcsProviderId
+     *            The SLCS SP providerId.
+     * @param providers
+     *            The providers.
+     * @throws IOException
+     */
+    static public void write(File file, String sourceStamp,
+            String slcsProviderId, Collection<Provider> providers)
+            throws IOException {
+        // records first, to know the offsets
+        ByteArrayOutputStream records= new ByteArrayOutputStream(providers.size() * 256);
+        DataOutputStream out= new DataOutputStream(records);
+        Map<String, Integer> ids= new TreeMap<String, Integer>();
+        Map<String, Integer> entityIDs= new TreeMap<String, Integer>();
+        for (Provider provider : providers) {
+            Integer offset= Integer.valueOf(out.size());
+            ids.put(provider.getId(), offset);
+            if (provider instanceof IdentityProvider) {
+                String entityID= ((IdentityProvider) provider).getEntityID();
+                if (entityID != null && !entityIDs.containsKey(entityID)) {
+                    entityIDs.put(entityID, offset);
+                }
+            }
+            writeProvider(out, provider);
+        }
+        out.flush();
+        ByteArrayOutputStream header= new ByteArrayOutputStream(256);
+        out= new DataOutputStream(header);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(0); // file length, set below
+        writeString(out, sourceStamp);
+        writeString(out, slcsProviderId);
+        out.flush();
+        // header, tables, entries, records
+        int tablesSize= 4 + ids.size() * 4 + 4 + entityIDs.size() * 4;
+        int entriesStart= header.size() + tablesSize;
+        int entriesSize= 0;
+        for (String id : ids.keySet()) {
+            entriesSize+= 4 + id.getBytes("UTF-8").length + 4;
+        }
+        for (String entityID : entityIDs.keySet()) {
+            entriesSize+= 4 + entityID.getBytes("UTF-8").length + 4;
+        }
+        int recordsStart= entriesStart + entriesSize;
+        ByteArrayOutputStream tables= new ByteArrayOutputStream(tablesSize);
+        DataOutputStream tablesOut= new DataOutputStream(tables);
+        ByteArrayOutputStream entries= new ByteArrayOutputStream(entriesSize);
+        DataOutputStream entriesOut= new DataOutputStream(entries);
+        writeTable(tablesOut, entriesOut, entriesStart, recordsStart, ids);
+        writeTable(tablesOut, entriesOut, entriesStart, recordsStart, entityIDs);
+        tablesOut.flush();
+        entriesOut.flush();
+        byte[] head= header.toByteArray();
+        ByteBuffer.wrap(head).putInt(8, recordsStart + records.size());
+
+        File directory= file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.exists()) {
+            directory.mkdirs();
+        }
+        File tmpFile= File.createTempFile("metadata", ".tmp", directory);
+        try {
+            OutputStream fileOut= new BufferedOutputStream(new FileOutputStream(tmpFile));
+            try {
+                fileOut.write(head);
+                tables.writeTo(fileOut);
+                entries.writeTo(fileOut);
+                records.writeTo(fileOut);
+            } finally {
+                fileOut.close();
+            }
+            if (!tmpFile.renameTo(file)) {
+                file.delete();
+                if (!tmpFile.renameTo(file)) {
+                    throw new IOException("Failed to rename " + tmpFile
+                            + " to " + file);
+                }
+            }
+        } finally {
+            tmpFile.delete();
+        }
+        LOG.debug("metadata snapshot written: " + file + " providers="
+                + ids.size() + " entityIDs=" + entityIDs.size());
+    }
+
+    /**
+     * Writes a table (size and entry offsets) and its sorted entries (key and
+     * absolute record offset).
+     */
+    static private void writeTable(DataOutputStream tablesOut,
+            DataOutputStream entriesOut, int entriesStart, int recordsStart,
+            Map<String, Integer> sortedOffsets) throws IOException {
+        tablesOut.writeInt(sortedOffsets.size());
+        for (Map.Entry<String, Integer> offset : sortedOffsets.entrySet()) {
+            tablesOut.writeInt(entriesStart + entriesOut.size());
+            writeString(entriesOut, offset.getKey());
+            entriesOut.writeInt(recordsStart + offset.getValue().intValue());
+        }
+    }
+
+    /**
+     * Computes the stamp of a metadata source file, without reading it.
+     *
+     * @param file
+     *            The metadata file.
+     * @return The stamp of the absolute path, size and modification time of
+     *         the file.
+     */
+    static public String stamp(File file) {
+        return file.getAbsolutePath() + ":" + file.length() + ":"
+                + file.lastModified();
+    }
+
+    /**
+     * @return The SLCS SP providerId.
+     */
+    public String getSLCSProviderId() {
+        return slcsProviderId_;
+    }
+
+    /**
+     * @param providerId
+     *            The providerId.
+     * @return The provider, decoded on first access, or <code>null</code> if
+     *         not in the snapshot.
+     */
+    public synchronized Provider getProvider(String providerId) {
+        return getProvider(find(idTable_, count_, providerId));
+    }
+
+    /**
+     * @param entityID
+     *            The IdP entityID.
+     * @return The IdP, decoded on first access, or <code>null</code> if not
+     *         in the snapshot.
+     */
+    public synchronized IdentityProvider getIdentityProviderByEntityID(
+            String entityID) {
+        return (IdentityProvider) getProvider(find(entityIDTable_,
+                                                   entityIDCount_, entityID));
+    }
+
+    /**
+     * Decodes all the providers.
+     *
+     * @return The providers, by providerId.
+     */
+    public synchronized Map<String, Provider> getProviders() {
+        Map<String, Provider> providers= new HashMap<String, Provider>(count_ * 2);
+        ByteBuffer buffer= buffer_.duplicate();
+        for (int i= 0; i < count_; i++) {
+            buffer.position(buffer_.getInt(idTable_ + i * 4));
+            String id= readString(buffer);
+            providers.put(id, getProvider(buffer.getInt()));
+        }
+        return providers;
+    }
+
+    /**
+     * @return The number of providers.
+     */
+    public int size() {
+        return count_;
+    }
+
+    /**
+     * Binary search of a key in a sorted table.
+     *
+     * @return The record offset of the key, or -1 if not found.
+     */
+    private int find(int table, int count, String key) {
+        if (key == null) {
+            return -1;
+        }
+        ByteBuffer buffer= buffer_.duplicate();
+        int low= 0;
+        int high= count - 1;
+        while (low <= high) {
+            int middle= (low + high) >>> 1;
+            buffer.position(buffer_.getInt(table + middle * 4));
+            int cmp= readString(buffer).compareTo(key);
+            if (cmp < 0) {
+                low= middle + 1;
+            }
+            else if (cmp > 0) {
+                high= middle - 1;
+            }
+            else {
+                return buffer.getInt();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The provider record at offset, decoded on first access, or
+     *         <code>null</code> if the offset is -1.
+     */
+    private Provider getProvider(int offset) {
+        if (offset < 0) {
+            return null;
+        }
+        Integer key= Integer.valueOf(offset);
+        Provider provider= providers_.get(key);
+        if (provider == null) {
+            ByteBuffer buffer= buffer_.duplicate();
+            buffer.position(offset);
+            provider= readProvider(buffer);
+            providers_.put(key, provider);
+        }
+        return provider;
+    }
+
+    static private void writeProvider(DataOutputStream out, Provider provider)
+            throws IOException {
+        if (provider instanceof IdentityProvider) {
+            IdentityProvider idp= (IdentityProvider) provider;
+            out.writeByte(TYPE_IDP);
+            writeString(out, idp.getId());
+            writeString(out, idp.getName());
+            writeString(out, idp.getUrl());
+            out.writeInt(idp.getAuthType());
+            writeString(out, idp.getAuthUrl());
+            writeString(out, idp.getEntityID());
+            writeString(out, idp.getAuthFormName());
+            writeString(out, idp.getAuthFormUsername());
+            writeString(out, idp.getAuthFormPassword());
+            writeString(out, idp.getAuthRealm());
+        }
+        else {
+            out.writeByte(TYPE_SP);
+            writeString(out, provider.getId());
+            writeString(out, provider.getName());
+            writeString(out, provider.getUrl());
+        }
+    }
+
+    static private Provider readProvider(ByteBuffer buffer) {
+        byte type= buffer.get();
+        String id= readString(buffer);
+        String name= readString(buffer);
+        String url= readString(buffer);
+        if (type != TYPE_IDP) {
+            return new ServiceProvider(id, name, url);
+        }
+        int authType= buffer.getInt();
+        String authUrl= readString(buffer);
+        IdentityProvider idp= new IdentityProvider(id, name, url, authType, authUrl);
+        idp.setEntityID(readString(buffer));
+        idp.setAuthFormName(readString(buffer));
+        idp.setAuthFormUsername(readString(buffer));
+        idp.setAuthFormPassword(readString(buffer));
+        idp.setAuthRealm(readString(buffer));
+        return idp;
+    }
+
+    /**
+     * Writes a UTF-8 string, prefixed by its length, -1 for <code>null</code>.
+     */
+    static private void writeString(DataOutputStream out, String string)
+            throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes= string.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static private String readString(ByteBuffer buffer) {
+        int length= buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes= new byte[length];
+        buffer.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (IOException e) {
+            // not possible, UTF-8 is always available
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
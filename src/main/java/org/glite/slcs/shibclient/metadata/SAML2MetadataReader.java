@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient.metadata;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.glite.slcs.SLCSConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SAML2MetadataReader reads the IdPs of a SAML2 federation metadata
+ * aggregate (<code>EntitiesDescriptor</code>) in one forward pass. Only the
+ * <code>EntityDescriptor</code> elements with an
+ * <code>IDPSSODescriptor</code> are kept, the other entities are skipped.
+ * <p>
+ * For each IdP, the entityID, the SSO endpoint (SAML2 HTTP-Redirect binding,
+ * or Shibboleth 1.3 AuthnRequest), the display name (<code>mdui</code> or
+ * organization, english first) and the first literal
+ * <code>shibmd:Scope</code> are read. The providerId is the scope, or the
+ * entityID host if the scope is missing or already used, or the entityID.
+ * The providerIds are assigned in entityID order, they do not depend on the
+ * order of the IdPs in the metadata.
+ * <p>
+ * The SAML2 metadata does not describe the login of the IdP, the
+ * authentication of all the IdPs is copied from a template.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class SAML2MetadataReader {
+
+    /** Logging */
+    private static final Logger LOG= LoggerFactory.getLogger(SAML2MetadataReader.class);
+
+    /** Shared factory, thread safe once configured */
+    private static final XMLInputFactory XML_INPUT_FACTORY= createXMLInputFactory();
+
+    /** Namespaces */
+    static private final String MD_NS= "urn:oasis:names:tc:SAML:2.0:metadata";
+
+    static private final String MDUI_NS= "urn:oasis:names:tc:SAML:metadata:ui";
+
+    static private final String SHIBMD_NS= "urn:mace:shibboleth:metadata:1.0";
+
+    static private final String XML_NS= "http://www.w3.org/XML/1998/namespace";
+
+    /** SSO bindings, by preference */
+    static private final String SAML2_REDIRECT_BINDING= "urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect";
+
+    static private final String SHIB1_AUTHNREQUEST_BINDING= "urn:mace:shibboleth:1.0:profiles:AuthnRequest";
+
+    /** Authentication of the IdPs */
+    private IdentityProvider template_;
+
+    /** IdPs by providerId, in metadata order */
+    private Map<String, IdentityProvider> idps_= new LinkedHashMap<String, IdentityProvider>();
+
+    /** IdP entities read, in metadata order */
+    private List<Entity> idpEntities_= new ArrayList<Entity>();
+
+    /** EntityDescriptor elements read */
+    private int entities_= 0;
+
+    /**
+     * @param template
+     *            The authentication type, form and realm of the IdPs. The
+     *            authentication url is the SSO url of each IdP.
+     */
+    public SAML2MetadataReader(IdentityProvider template) {
+        this.template_= template;
+    }
+
+    /**
+     * Reads a SAML2 metadata file.
+     *
+     * @param file
+     *            The SAML2 metadata file.
+     * @return The IdPs by providerId.
+     * @throws SLCSConfigurationException
+     *             If the file can not be read or parsed, or contains no IdP.
+     */
+    public Map<String, IdentityProvider> read(File file)
+            throws SLCSConfigurationException {
+        try {
+            InputStream in= new BufferedInputStream(new FileInputStream(file), 65536);
+            try {
+                return read(in, file.getAbsolutePath());
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new SLCSConfigurationException("Failed to read SAML2 metadata: "
+                    + file, e);
+        }
+    }
+
+    /**
+     * Reads a SAML2 metadata stream.
+     *
+     * @param in
+     *            The SAML2 metadata stream, not closed.
+     * @param source
+     *            The metadata source (file or url), for the errors.
+     * @return The IdPs by providerId.
+     * @throws SLCSConfigurationException
+     *             If the stream can not be parsed, or contains no IdP.
+     */
+    public Map<String, IdentityProvider> read(InputStream in, String source)
+            throws SLCSConfigurationException {
+        idps_.clear();
+        idpEntities_.clear();
+        entities_= 0;
+        try {
+            XMLStreamReader reader= XML_INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT
+                            && isElement(reader, MD_NS, "EntityDescriptor")) {
+                        entities_++;
+                        readEntityDescriptor(reader);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            LOG.error("Invalid SAML2 metadata: " + source, e);
+            throw new SLCSConfigurationException("Failed to parse SAML2 metadata: "
+                    + source + ": " + e.getMessage(), e);
+        }
+        addIdentityProviders();
+        if (idps_.isEmpty()) {
+            throw new SLCSConfigurationException("No IdP EntityDescriptor found in SAML2 metadata: "
+                    + source);
+        }
+        LOG.debug(idps_.size() + " IdPs found in " + entities_
+                + " EntityDescriptor elements");
+        return idps_;
+    }
+
+    /**
+     * Reads the current <code>EntityDescriptor</code> up to its end, and adds
+     * its IdP if any.
+     */
+    private void readEntityDescriptor(XMLStreamReader reader)
+            throws XMLStreamException {
+        String entityID= reader.getAttributeValue(null, "entityID");
+        boolean idpFound= false;
+        String ssoUrl= null;
+        String ssoBinding= null;
+        String scope= null;
+        String uiName= null;
+        String organizationName= null;
+        int depth= 0;
+        while (reader.hasNext()) {
+            int event= reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                if (depth-- == 0) {
+                    break;
+                }
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            depth++;
+            if (isElement(reader, MD_NS, "IDPSSODescriptor")) {
+                idpFound= true;
+            }
+            else if (isElement(reader, MD_NS, "SingleSignOnService")) {
+                String binding= reader.getAttributeValue(null, "Binding");
+                // first SAML2 Redirect endpoint, or first Shibboleth one
+                boolean preferred= SAML2_REDIRECT_BINDING.equals(binding)
+                        ? !SAML2_REDIRECT_BINDING.equals(ssoBinding)
+                        : SHIB1_AUTHNREQUEST_BINDING.equals(binding)
+                                && ssoBinding == null;
+                if (preferred) {
+                    ssoBinding= binding;
+                    ssoUrl= reader.getAttributeValue(null, "Location");
+                }
+            }
+            else if (isElement(reader, SHIBMD_NS, "Scope")) {
+                boolean regexp= "true".equals(reader.getAttributeValue(null, "regexp"));
+                String text= reader.getElementText().trim();
+                depth--;
+                if (scope == null && !regexp && text.length() > 0) {
+                    scope= text;
+                }
+            }
+            else if (isElement(reader, MDUI_NS, "DisplayName")) {
+                boolean english= "en".equals(reader.getAttributeValue(XML_NS, "lang"));
+                String text= reader.getElementText().trim();
+                depth--;
+                if (uiName == null || english) {
+                    uiName= text;
+                }
+            }
+            else if (isElement(reader, MD_NS, "OrganizationDisplayName")) {
+                boolean english= "en".equals(reader.getAttributeValue(XML_NS, "lang"));
+                String text= reader.getElementText().trim();
+                depth--;
+                if (organizationName == null || english) {
+                    organizationName= text;
+                }
+            }
+        }
+        if (!idpFound) {
+            return;
+        }
+        if (entityID == null || ssoUrl == null) {
+            LOG.debug("IdP " + entityID + " without SAML2 Redirect or Shibboleth SSO: ignored");
+            return;
+        }
+        String name= uiName != null ? uiName : organizationName;
+        if (name == null) {
+            name= entityID;
+        }
+        Entity entity= new Entity();
+        entity.entityID= entityID;
+        entity.scope= scope;
+        entity.name= name;
+        entity.ssoUrl= ssoUrl;
+        idpEntities_.add(entity);
+    }
+
+    /**
+     * Assigns the providerIds of the IdP entities in entityID order, and adds
+     * the IdPs in metadata order.
+     */
+    private void addIdentityProviders() {
+        List<Entity> sorted= new ArrayList<Entity>(idpEntities_);
+        // stable: the first of the duplicate entityIDs is kept
+        Collections.sort(sorted, new Comparator<Entity>() {
+            public int compare(Entity e1, Entity e2) {
+                return e1.entityID.compareTo(e2.entityID);
+            }
+        });
+        Map<String, String> ids= new HashMap<String, String>();
+        Map<String, Entity> providers= new HashMap<String, Entity>();
+        for (Entity entity : sorted) {
+            if (ids.containsKey(entity.entityID)) {
+                LOG.warn("Duplicate IdP entityID ignored: " + entity.entityID);
+                continue;
+            }
+            String id= entity.scope;
+            if (id == null || providers.containsKey(id)) {
+                id= getHost(entity.entityID);
+            }
+            if (id == null || providers.containsKey(id)) {
+                id= entity.entityID;
+            }
+            if (providers.containsKey(id)) {
+                LOG.warn("IdP providerId " + id + " already used, ignored: "
+                        + entity.entityID);
+                continue;
+            }
+            providers.put(id, entity);
+            ids.put(entity.entityID, id);
+        }
+        for (Entity entity : idpEntities_) {
+            String id= ids.get(entity.entityID);
+            if (id != null && providers.get(id) == entity) {
+                addIdentityProvider(id, entity);
+            }
+        }
+    }
+
+    private void addIdentityProvider(String id, Entity entity) {
+        IdentityProvider idp= new IdentityProvider(id,
+                                                   entity.name,
+                                                   entity.ssoUrl,
+                                                   template_.getAuthType(),
+                                                   entity.ssoUrl);
+        idp.setEntityID(entity.entityID);
+        idp.setAuthFormName(template_.getAuthFormName());
+        idp.setAuthFormUsername(template_.getAuthFormUsername());
+        idp.setAuthFormPassword(template_.getAuthFormPassword());
+        idp.setAuthRealm(template_.getAuthRealm());
+        idps_.put(id, idp);
+    }
+
+    /**
+     * @return The host of the entityID URL, or <code>null</code> if the
+     *         entityID is an URN.
+     */
+    static private String getHost(String entityID) {
+        try {
+            return new URI(entityID).getHost();
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * An IdP EntityDescriptor.
+     */
+    static private class Entity {
+
+        String entityID;
+
+        String scope;
+
+        String name;
+
+        String ssoUrl;
+    }
+
+    static private boolean isElement(XMLStreamReader reader, String namespace,
+            String localName) {
+        return localName.equals(reader.getLocalName())
+                && namespace.equals(reader.getNamespaceURI());
+    }
+
+    /**
+     * @return The number of <code>EntityDescriptor</code> elements read,
+     *         IdPs or not.
+     */
+    public int getEntityCount() {
+        return entities_;
+    }
+
+    private static XMLInputFactory createXMLInputFactory() {
+        XMLInputFactory factory= XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                            Boolean.FALSE);
+        return factory;
+    }
+
+}
@@ -16,8 +16,13 @@
  */
 package org.glite.slcs.shibclient.metadata;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -31,6 +36,7 @@ import org.apache.commons.configuration.FileConfiguration;
 import org.glite.slcs.SLCSConfigurationException;
 import org.glite.slcs.config.SLCSClientConfiguration;
 import org.glite.slcs.config.SLCSConfiguration;
+import org.glite.slcs.util.ContentDecoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,13 +55,42 @@ public class ShibbolethClientMetadata extends SLCSConfiguration {
     /** Log object for this class. */
     private static final Logger LOG= LoggerFactory.getLogger(ShibbolethClientMetadata.class);
 
-    /** Metadata Entities */
-    private Map<String,Provider> providers_;
+    /** Metadata Entities, <code>null</code> until decoded from the snapshot */
+    private Map<String,Provider> providers_= null;
 
     private String slcsProviderId_= null;
     
     private String metadataSource_= null;
 
+    /** Decoder of the compressed metadata download, if enabled */
+    private ContentDecoder contentDecoder_= null;
+
+    /** Metadata download cache, if enabled */
+    private MetadataCache metadataCache_= null;
+
+    /** Compiled metadata snapshot, if loaded from it */
+    private MetadataSnapshot snapshot_= null;
+
+    /** IdPs by entityID, indexed on first lookup */
+    private Map<String,IdentityProvider> entityIDs_= null;
+
+    /** IdPs search index, built on first search */
+    private IdentityProviderIndex idpIndex_= null;
+
+    /** SAML2 metadata format (<code>format="saml2"</code> attribute) */
+    static public final String SAML2_FORMAT= "saml2";
+
+    /** Default max-age of the cached metadata (seconds) */
+    static public final long DEFAULT_METADATA_MAX_AGE= 3600;
+
+    /** Default stale-while-revalidate grace period of the cached metadata (seconds) */
+    static public final long DEFAULT_METADATA_STALE_WHILE_REVALIDATE= 86400;
+
+    /** Default metadata download connect and read timeouts (millis) */
+    static public final int DEFAULT_CONNECTION_TIMEOUT= 30000;
+
+    static public final int DEFAULT_SOCKET_TIMEOUT= 60000;
+
     /**
      * 
      * @param filename
@@ -64,7 +99,7 @@ public class ShibbolethClientMetadata extends SLCSConfiguration {
     public ShibbolethClientMetadata(String filename)
             throws SLCSConfigurationException {
         super(filename);
-        this.providers_= parseProviders();
+        loadProviders();
     }
 
     /**
@@ -86,7 +121,7 @@ public class ShibbolethClientMetadata extends SLCSConfiguration {
             throws SLCSConfigurationException {
         super();
         setFileConfiguration(configuration);
-        this.providers_= parseProviders();
+        loadProviders();
     }
 
     /*
@@ -107,12 +142,96 @@ public class ShibbolethClientMetadata extends SLCSConfiguration {
     }
 
     /**
-     * Parses the <ShibbolethClientMetadata> element and return a map of (id,idpObject)
+     * Loads the providers of the <ShibbolethClientMetadata> element. The
+     * providers of a metadata file (or cached download) are loaded from the
+     * compiled snapshot if the file (and the SAML2 metadata config) did not
+     * change, otherwise they are parsed and compiled again.
+     * @throws SLCSConfigurationException
+     */
+    private void loadProviders() throws SLCSConfigurationException {
+        Configuration metadata= getConfiguration().subset("ShibbolethClientMetadata");
+        String metadataFilename= metadata.getString("[@filename]");
+        String metadataUrl= metadata.getString("[@url]");
+        // local metadata source file, if any
+        File sourceFile= null;
+        if (metadataFilename != null) {
+            sourceFile= getMetadataFile(metadataFilename);
+        }
+        else if (metadataUrl != null) {
+            metadataCache_= createMetadataCache();
+            if (metadataCache_ != null) {
+                sourceFile= getCachedMetadataFile(metadataUrl);
+            }
+        }
+        File snapshotFile= null;
+        String sourceStamp= null;
+        if (sourceFile != null
+                && getConfiguration().getBoolean("MetadataSnapshot", true)) {
+            File directory= getMetadataCacheDirectory();
+            if (directory != null) {
+                snapshotFile= new File(directory,
+                        MetadataCache.getKey(sourceFile.getAbsolutePath()) + ".snapshot");
+                sourceStamp= MetadataSnapshot.stamp(sourceFile);
+                if (isSAML2Format(metadata)) {
+                    // the SP and the IdP login are configured, not in the file
+                    sourceStamp+= ":" + createSAML2ServiceProvider(metadata)
+                            + ":" + createSAML2Template(metadata);
+                }
+                snapshot_= MetadataSnapshot.open(snapshotFile, sourceStamp);
+            }
+        }
+        if (snapshot_ != null) {
+            LOG.info("load metadata of " + sourceFile + " from snapshot: " + snapshotFile);
+            metadataSource_= metadataFilename != null ? sourceFile.getAbsolutePath() : metadataUrl;
+            slcsProviderId_= snapshot_.getSLCSProviderId();
+            return;
+        }
+        providers_= parseProviders(sourceFile);
+        if (snapshotFile != null) {
+            try {
+                MetadataSnapshot.write(snapshotFile, sourceStamp, slcsProviderId_,
+                                       providers_.values());
+            } catch (IOException e) {
+                LOG.warn("Failed to write metadata snapshot: " + snapshotFile + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Resolves the external metadata filename, absolute or in the CLASSPATH,
+     * without loading it.
+     * 
+     * @param filename
+     *            The metadata filename.
+     * @return The metadata file, or <code>null</code> if not a local file.
+     */
+    private File getMetadataFile(String filename) {
+        File file= new File(filename);
+        if (file.isFile()) {
+            return file;
+        }
+        URL resource= getClass().getClassLoader().getResource(filename);
+        if (resource != null && "file".equals(resource.getProtocol())) {
+            try {
+                return new File(resource.toURI());
+            } catch (URISyntaxException e) {
+                LOG.debug("metadata resource: " + resource + ": " + e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses the <ShibbolethClientMetadata> element and return a map of (id,idpObject).
+     * The metadata files and downloads are read by the streaming
+     * {@link MetadataReader}, the inline metadata and the metadata files in
+     * a jar are read from the configuration.
+     * @param sourceFile
+     *            The metadata file or cached download, or <code>null</code>.
      * @return a Map of (idpID,idpObject)
      * @throws SLCSConfigurationException
      */
-    private Map<String,Provider> parseProviders() throws SLCSConfigurationException {
-        Map<String,Provider> entities= new HashMap<String,Provider>();
+    private Map<String,Provider> parseProviders(File sourceFile) throws SLCSConfigurationException {
         LOG.debug("get configuration subset: ShibbolethClientMetadata");
         Configuration metadata= getConfiguration().subset("ShibbolethClientMetadata");
         // external metadata defined with filename= attribute?
@@ -120,6 +239,16 @@ public class ShibbolethClientMetadata extends SLCSConfiguration {
         LOG.debug("metadata filename=" + metadataFilename);
         String metadataUrl= metadata.getString("[@url]");
         LOG.debug("metadata url=" + metadataUrl);
+        if (isSAML2Format(metadata)) {
+            return parseSAML2Providers(metadata, sourceFile);
+        }
+        if (sourceFile != null) {
+            LOG.info("load metadata from file: " + sourceFile);
+            MetadataReader reader= MetadataReader.read(sourceFile);
+            metadataSource_= metadataFilename != null ? sourceFile.getAbsolutePath() : metadataUrl;
+            slcsProviderId_= reader.getSLCSProviderId();
+            return reader.getProviders();
+        }
         if (metadataFilename != null) {
         	// load external metadata file       
         	try {
@@ -138,9 +267,14 @@ public class ShibbolethClientMetadata extends SLCSConfiguration {
             try {
                 URL url= new URL(metadataUrl);
                 LOG.info("download metadata from url: " + url);
+                metadataSource_= metadataUrl;
+                if (getConfiguration().getBoolean("HttpClient.Compression", true)) {
+                    MetadataReader reader= downloadCompressedMetadata(url);
+                    slcsProviderId_= reader.getSLCSProviderId();
+                    return reader.getProviders();
+                }
                 // httpclient is used to download the config
                 metadata = downloadConfiguration(url);
-                metadataSource_= metadataUrl;
             } catch (MalformedURLException mue) {
                 LOG.error("Invalid URL for external ShibbolethClientMetadata: " + metadataUrl, mue);
                 throw new SLCSConfigurationException("ShibbolethClientMetadata url=" + metadataUrl + " parameter is invalid", mue);
@@ -154,6 +288,128 @@ public class ShibbolethClientMetadata extends SLCSConfiguration {
             metadataSource_= getFilename();
 
         }
+        return parseProviders(metadata);
+    }
+
+    /**
+     * Parses the IdPs of a SAML2 federation metadata file or url, and adds
+     * the SLCS SP defined in the <ShibbolethClientMetadata> element.
+     * @param metadata
+     *            The <ShibbolethClientMetadata> element.
+     * @param sourceFile
+     *            The SAML2 metadata file or cached download, or
+     *            <code>null</code>.
+     * @return a Map of (idpID,idpObject)
+     * @throws SLCSConfigurationException
+     */
+    private Map<String,Provider> parseSAML2Providers(Configuration metadata,
+            File sourceFile) throws SLCSConfigurationException {
+        String metadataFilename= metadata.getString("[@filename]");
+        String metadataUrl= metadata.getString("[@url]");
+        ServiceProvider sp= createSAML2ServiceProvider(metadata);
+        SAML2MetadataReader reader= new SAML2MetadataReader(createSAML2Template(metadata));
+        Map<String,IdentityProvider> idps= null;
+        if (sourceFile != null) {
+            LOG.info("load SAML2 metadata from file: " + sourceFile);
+            idps= reader.read(sourceFile);
+            metadataSource_= metadataFilename != null ? sourceFile.getAbsolutePath() : metadataUrl;
+        }
+        else if (metadataFilename != null) {
+            InputStream in= getClass().getClassLoader().getResourceAsStream(metadataFilename);
+            if (in == null) {
+                throw new SLCSConfigurationException("SAML2 metadata file not found: " + metadataFilename);
+            }
+            LOG.info("load SAML2 metadata from CLASSPATH: " + metadataFilename);
+            try {
+                idps= reader.read(in, metadataFilename);
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    LOG.warn("Failed to close " + metadataFilename + ": " + e);
+                }
+            }
+            metadataSource_= metadataFilename;
+        }
+        else if (metadataUrl != null) {
+            try {
+                idps= downloadSAML2Metadata(new URL(metadataUrl), reader);
+            } catch (MalformedURLException mue) {
+                LOG.error("Invalid URL for external ShibbolethClientMetadata: " + metadataUrl, mue);
+                throw new SLCSConfigurationException("ShibbolethClientMetadata url=" + metadataUrl + " parameter is invalid", mue);
+            }
+            metadataSource_= metadataUrl;
+        }
+        else {
+            throw new SLCSConfigurationException("ShibbolethClientMetadata format=" + SAML2_FORMAT
+                    + " requires a filename or url attribute");
+        }
+        LOG.debug(idps.size() + " IdPs found in " + reader.getEntityCount() + " SAML2 entities");
+        Map<String,Provider> entities= new HashMap<String,Provider>(idps);
+        slcsProviderId_= sp.getId();
+        LOG.debug("add " + sp);
+        entities.put(sp.getId(), sp);
+        return entities;
+    }
+
+    /**
+     * @return <code>true</code> if the metadata file or url is a SAML2
+     *         federation metadata (<code>format="saml2"</code> attribute).
+     */
+    private static boolean isSAML2Format(Configuration metadata) {
+        return SAML2_FORMAT.equalsIgnoreCase(metadata.getString("[@format]"));
+    }
+
+    /**
+     * @return The SLCS SP of the <ShibbolethClientMetadata> element, with
+     *         SAML2 metadata.
+     * @throws SLCSConfigurationException
+     *             If the ServiceProvider element is missing.
+     */
+    private static ServiceProvider createSAML2ServiceProvider(Configuration metadata)
+            throws SLCSConfigurationException {
+        Configuration config= metadata.subset("ServiceProvider");
+        if (config.isEmpty()) {
+            throw new SLCSConfigurationException("ServiceProvider element not found in metadata");
+        }
+        String id= config.getString("[@id]");
+        if (id == null || id.equals("")) {
+            id= DEFAULT_SLCS_PROVIDERID;
+        }
+        return new ServiceProvider(id, config.getString("name"), config.getString("url"));
+    }
+
+    /**
+     * @return The authentication of the SAML2 metadata IdPs, from the
+     *         <authentication> element of the <ShibbolethClientMetadata>
+     *         element. Default is the FORM login of the Shibboleth IdP.
+     */
+    private static IdentityProvider createSAML2Template(Configuration metadata) {
+        String authTypeName= metadata.getString("authentication[@type]", "FORM");
+        IdentityProvider template= new IdentityProvider("saml2", null, null,
+                                                        authTypeName, null);
+        if (template.getAuthType() == IdentityProvider.SSO_AUTHTYPE_CAS
+                || template.getAuthType() == IdentityProvider.SSO_AUTHTYPE_PUBCOOKIE
+                || template.getAuthType() == IdentityProvider.SSO_AUTHTYPE_FORM) {
+            template.setAuthFormName(metadata.getString("authentication.form[@name]", ""));
+            template.setAuthFormUsername(metadata.getString("authentication.form.username", "j_username"));
+            template.setAuthFormPassword(metadata.getString("authentication.form.password", "j_password"));
+        }
+        else {
+            template.setAuthRealm(metadata.getString("authentication.realm"));
+        }
+        return template;
+    }
+
+    /**
+     * Parses the providers of the metadata configuration.
+     * @param metadata
+     *            The metadata configuration.
+     * @return a Map of (idpID,idpObject)
+     * @throws SLCSConfigurationException
+     */
+    private Map<String,Provider> parseProviders(Configuration metadata) throws SLCSConfigurationException {
+        Map<String,Provider> entities= new HashMap<String,Provider>();
         // process metadata
         String name= null;
         String url= null;
@@ -230,13 +486,202 @@ public class ShibbolethClientMetadata extends SLCSConfiguration {
         return entities;
     }
 
+    /**
+     * @return The metadata cache and snapshot directory:
+     *         <code>MetadataCacheDirectory</code> or
+     *         <code>StoreDirectory</code>, or <code>null</code> if not
+     *         configured.
+     */
+    private File getMetadataCacheDirectory() {
+        Configuration config= getConfiguration();
+        String directory= config.getString("MetadataCacheDirectory",
+                                           config.getString("StoreDirectory"));
+        if (directory == null || directory.equals("")) {
+            return null;
+        }
+        return new File(directory);
+    }
+
+    /**
+     * Creates the metadata download cache from the <code>MetadataCache</code>,
+     * <code>MetadataMaxAge</code> and <code>MetadataStaleWhileRevalidate</code>
+     * (seconds) config.
+     * 
+     * @return The metadata cache, or <code>null</code> if disabled.
+     */
+    private MetadataCache createMetadataCache() {
+        Configuration config= getConfiguration();
+        if (!config.getBoolean("MetadataCache", true)) {
+            return null;
+        }
+        File directory= getMetadataCacheDirectory();
+        if (directory == null) {
+            LOG.debug("no MetadataCacheDirectory or StoreDirectory: metadata cache disabled");
+            return null;
+        }
+        long maxAge= config.getLong("MetadataMaxAge", DEFAULT_METADATA_MAX_AGE);
+        long staleWhileRevalidate= config.getLong("MetadataStaleWhileRevalidate",
+                                                  DEFAULT_METADATA_STALE_WHILE_REVALIDATE);
+        LOG.debug("metadata cache: " + directory + " max-age=" + maxAge
+                + " stale-while-revalidate=" + staleWhileRevalidate);
+        MetadataCache cache= new MetadataCache(directory, maxAge * 1000L,
+                                               staleWhileRevalidate * 1000L);
+        cache.setTimeouts(getConnectionTimeout(), getSocketTimeout());
+        if (config.getBoolean("HttpClient.Compression", true)) {
+            contentDecoder_= new ContentDecoder();
+            cache.setContentDecoder(contentDecoder_);
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the cached metadata file, downloaded first if needed.
+     * 
+     * @param metadataUrl
+     *            The metadata URL.
+     * @return The cached metadata file.
+     * @throws SLCSConfigurationException
+     *             If the URL is invalid, or the metadata can not be
+     *             downloaded and is not cached.
+     */
+    private File getCachedMetadataFile(String metadataUrl)
+            throws SLCSConfigurationException {
+        try {
+            return metadataCache_.get(new URL(metadataUrl));
+        } catch (MalformedURLException mue) {
+            LOG.error("Invalid URL for external ShibbolethClientMetadata: " + metadataUrl, mue);
+            throw new SLCSConfigurationException("ShibbolethClientMetadata url=" + metadataUrl + " parameter is invalid", mue);
+        } catch (IOException e) {
+            LOG.error("Failed to download ShibbolethClientMetadata from: " + metadataUrl, e);
+            throw new SLCSConfigurationException("Failed to download metadata from: " + metadataUrl, e);
+        }
+    }
+
+    /**
+     * Opens the metadata download connection, with the
+     * <code>HttpClient.ConnectionTimeout</code> and
+     * <code>HttpClient.SocketTimeout</code> (millis) config.
+     */
+    private URLConnection openConnection(URL url) throws IOException {
+        URLConnection connection= url.openConnection();
+        connection.setConnectTimeout(getConnectionTimeout());
+        connection.setReadTimeout(getSocketTimeout());
+        return connection;
+    }
+
+    private int getConnectionTimeout() {
+        return getConfiguration().getInt("HttpClient.ConnectionTimeout", DEFAULT_CONNECTION_TIMEOUT);
+    }
+
+    private int getSocketTimeout() {
+        return getConfiguration().getInt("HttpClient.SocketTimeout", DEFAULT_SOCKET_TIMEOUT);
+    }
+
+    /**
+     * Downloads the metadata, accepting the gzip and deflate encodings. The
+     * metadata is decompressed while parsed.
+     * 
+     * @param url
+     *            The metadata URL.
+     * @return The downloaded metadata.
+     * @throws SLCSConfigurationException
+     *             If the download or the parsing fails.
+     */
+    private MetadataReader downloadCompressedMetadata(URL url)
+            throws SLCSConfigurationException {
+        contentDecoder_= new ContentDecoder();
+        try {
+            URLConnection connection= openConnection(url);
+            connection.setRequestProperty("Accept-Encoding", ContentDecoder.ACCEPT_ENCODING);
+            InputStream in= contentDecoder_.decode(connection.getInputStream(),
+                                                   connection.getContentEncoding());
+            try {
+                MetadataReader reader= MetadataReader.read(in, url.toString());
+                LOG.debug("metadata Content-Encoding=" + connection.getContentEncoding()
+                        + " compressed=" + contentDecoder_.getCompressedBytes()
+                        + " decompressed=" + contentDecoder_.getDecompressedBytes());
+                return reader;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new SLCSConfigurationException("Failed to download metadata from: " + url, e);
+        }
+    }
+
+    /**
+     * Downloads and parses the SAML2 metadata, compressed if enabled.
+     * 
+     * @param url
+     *            The SAML2 metadata URL.
+     * @param reader
+     *            The SAML2 metadata reader.
+     * @return The IdPs by providerId.
+     * @throws SLCSConfigurationException
+     *             If the download or the parsing fails.
+     */
+    private Map<String,IdentityProvider> downloadSAML2Metadata(URL url,
+            SAML2MetadataReader reader) throws SLCSConfigurationException {
+        LOG.info("download SAML2 metadata from url: " + url);
+        try {
+            URLConnection connection= openConnection(url);
+            InputStream in;
+            if (getConfiguration().getBoolean("HttpClient.Compression", true)) {
+                contentDecoder_= new ContentDecoder();
+                connection.setRequestProperty("Accept-Encoding", ContentDecoder.ACCEPT_ENCODING);
+                in= contentDecoder_.decode(connection.getInputStream(),
+                                           connection.getContentEncoding());
+            }
+            else {
+                in= connection.getInputStream();
+            }
+            try {
+                return reader.read(in, url.toString());
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new SLCSConfigurationException("Failed to download SAML2 metadata from: " + url, e);
+        }
+    }
+
+    /**
+     * @return The decoder of the compressed metadata download, or
+     *         <code>null</code> if the metadata was not downloaded compressed.
+     */
+    public ContentDecoder getContentDecoder() {
+        return contentDecoder_;
+    }
+
+    /**
+     * @param providerId
+     * @return The provider, decoded from the snapshot if needed, or
+     *         <code>null</code>.
+     */
+    private synchronized Provider lookupProvider(String providerId) {
+        if (providers_ == null) {
+            return snapshot_.getProvider(providerId);
+        }
+        return providers_.get(providerId);
+    }
+
+    /**
+     * @return All the providers, decoded from the snapshot if needed.
+     */
+    private synchronized Map<String,Provider> getProvidersMap() {
+        if (providers_ == null) {
+            providers_= snapshot_.getProviders();
+        }
+        return providers_;
+    }
+
     /**
      * 
      * @param providerId
      * @return
      */
     public ServiceProvider getServiceProvider(String providerId) {
-        ServiceProvider sp= (ServiceProvider) this.providers_.get(providerId);
+        ServiceProvider sp= (ServiceProvider) lookupProvider(providerId);
         return sp;
     }
 
@@ -245,7 +690,7 @@ public class ShibbolethClientMetadata extends SLCSConfiguration {
      * @return
      */
     public ServiceProvider getSLCS() {
-        ServiceProvider sp= (ServiceProvider) this.providers_.get(this.slcsProviderId_);
+        ServiceProvider sp= (ServiceProvider) lookupProvider(this.slcsProviderId_);
         return sp;
     }
 
@@ -255,10 +700,37 @@ public class ShibbolethClientMetadata extends SLCSConfiguration {
      * @return
      */
     public IdentityProvider getIdentityProvider(String providerId) {
-        IdentityProvider idp= (IdentityProvider) this.providers_.get(providerId);
+        IdentityProvider idp= (IdentityProvider) lookupProvider(providerId);
+        if (idp == null && providerId != null && providerId.indexOf(':') != -1) {
+            // entityID used as providerId
+            idp= getIdentityProviderByEntityID(providerId);
+        }
         return idp;
     }
 
+    /**
+     * @param entityID
+     *            The IdP entityID.
+     * @return The IdP with this entityID, or <code>null</code>.
+     */
+    public synchronized IdentityProvider getIdentityProviderByEntityID(String entityID) {
+        if (providers_ == null) {
+            return snapshot_.getIdentityProviderByEntityID(entityID);
+        }
+        if (entityIDs_ == null) {
+            entityIDs_= new HashMap<String,IdentityProvider>();
+            for (Provider provider : providers_.values()) {
+                if (provider instanceof IdentityProvider) {
+                    IdentityProvider idp= (IdentityProvider) provider;
+                    if (idp.getEntityID() != null && !entityIDs_.containsKey(idp.getEntityID())) {
+                        entityIDs_.put(idp.getEntityID(), idp);
+                    }
+                }
+            }
+        }
+        return entityIDs_.get(entityID);
+    }
+
     /**
      * 
      * @param providerId
@@ -267,14 +739,14 @@ public class ShibbolethClientMetadata extends SLCSConfiguration {
      * @see org.glite.slcs.shibclient.metadata.Provider
      */
     public Provider getProvider(String providerId) {
-        return (Provider) providers_.get(providerId);
+        return lookupProvider(providerId);
     }
 
     /**
      * @return An iterator of all <code>Provider</code> objects
      */
     public Iterator<Provider> getProviders() {
-        Collection<Provider> providers= providers_.values();
+        Collection<Provider> providers= getProvidersMap().values();
         return providers.iterator();
     }
 
@@ -282,7 +754,7 @@ public class ShibbolethClientMetadata extends SLCSConfiguration {
      * @return An iterator of all providerIds (<code>String</code>)
      */
     public Iterator<String> getProviderIds() {
-        Set<String> providerIds= providers_.keySet();
+        Set<String> providerIds= getProvidersMap().keySet();
         return providerIds.iterator();
     }
 
@@ -301,6 +773,24 @@ public class ShibbolethClientMetadata extends SLCSConfiguration {
         return idps;
     }
 
+    /**
+     * @return The search index of all the IdPs, built on first call.
+     */
+    public synchronized IdentityProviderIndex getIdentityProviderIndex() {
+        if (idpIndex_ == null) {
+            idpIndex_= new IdentityProviderIndex(getIdentityProviders());
+        }
+        return idpIndex_;
+    }
+
+    /**
+     * @return The metadata download cache, or <code>null</code> if the
+     *         metadata is not downloaded or not cached.
+     */
+    public MetadataCache getMetadataCache() {
+        return metadataCache_;
+    }
+
     /**
      * Returns the SLCS metadata source. e.g. absolute filename or url.
      * @return The absolute filename or URL used as source for the SLCS metadata.
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * ContentDecoder decompresses the gzip or deflate encoded HTTP response
+ * bodies while they are read, and counts the compressed and decompressed
+ * bytes.
+ * <p>
+ * The <code>deflate</code> encoding is decoded both as zlib (RFC 1950) and,
+ * as sent by some servers, as raw deflate (RFC 1951) data.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class ContentDecoder {
+
+    /** The Accept-Encoding request header value */
+    static public final String ACCEPT_ENCODING = "gzip, deflate";
+
+    /** Compressed bytes read */
+    private AtomicLong compressedBytes_ = new AtomicLong();
+
+    /** Decompressed bytes read */
+    private AtomicLong decompressedBytes_ = new AtomicLong();
+
+    /**
+     * Returns the decoded stream of the response body.
+     *
+     * @param in
+     *            The response body stream, as received.
+     * @param contentEncoding
+     *            The Content-Encoding response header value, or
+     *            <code>null</code>.
+     * @return The decompressed stream, or the stream itself if not encoded.
+     * @throws IOException
+     *             If the compressed header is invalid.
+     */
+    public InputStream decode(InputStream in, String contentEncoding)
+            throws IOException {
+        if (in == null || contentEncoding == null) {
+            return in;
+        }
+        String encoding = contentEncoding.trim().toLowerCase();
+        if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+            InputStream compressed = new CountingInputStream(in,
+                    compressedBytes_);
+            return new CountingInputStream(new GZIPInputStream(compressed),
+                    decompressedBytes_);
+        }
+        else if (encoding.equals("deflate")) {
+            PushbackInputStream compressed = new PushbackInputStream(
+                    new CountingInputStream(in, compressedBytes_), 2);
+            Inflater inflater = new Inflater(!isZlibHeader(compressed));
+            return new CountingInputStream(new DeflateInputStream(compressed,
+                    inflater), decompressedBytes_);
+        }
+        return in;
+    }
+
+    /**
+     * Checks the zlib header (CMF and FLG bytes) of a deflate stream.
+     */
+    private boolean isZlibHeader(PushbackInputStream in) throws IOException {
+        int cmf = in.read();
+        if (cmf == -1) {
+            return true;
+        }
+        int flg = in.read();
+        if (flg == -1) {
+            in.unread(cmf);
+            return true;
+        }
+        in.unread(flg);
+        in.unread(cmf);
+        return (cmf & 0x0f) == 8 && ((cmf << 8) + flg) % 31 == 0;
+    }
+
+    /**
+     * @return The number of compressed bytes read.
+     */
+    public long getCompressedBytes() {
+        return compressedBytes_.get();
+    }
+
+    /**
+     * @return The number of decompressed bytes read.
+     */
+    public long getDecompressedBytes() {
+        return decompressedBytes_.get();
+    }
+
+    /**
+     * Releases the native memory of its {@link Inflater} when closed.
+     */
+    static class DeflateInputStream extends InflaterInputStream {
+
+        DeflateInputStream(InputStream in, Inflater inflater) {
+            super(in, inflater);
+        }
+
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private AtomicLong count_;
+
+        CountingInputStream(InputStream in, AtomicLong count) {
+            super(in);
+            count_ = count;
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count_.incrementAndGet();
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count_.addAndGet(n);
+            }
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            if (skipped > 0) {
+                count_.addAndGet(skipped);
+            }
+            return skipped;
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Timings records the wall time, the HTTP requests count and bytes, and the
+ * opened HTTP connections of each phase of a certificate issuance.
+ * <p>
+ * Phases can be nested, the time spent in a nested phase is not counted in
+ * the enclosing phase, so the phases add up to the total. A phase started
+ * several times is accumulated. The parse time of a phase is its wall time
+ * outside of the HTTP requests, mainly parsing the responses.
+ * <p>
+ * Not thread safe, use one instance per issuance.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class Timings {
+
+    /** Phase for the HTTP requests done outside of any phase */
+    static public final String OTHER_PHASE = "other";
+
+    /** All phases, in starting order */
+    private Map<String, Phase> phases_ = new LinkedHashMap<String, Phase>();
+
+    /** Currently running phases, innermost first */
+    private LinkedList<Phase> running_ = new LinkedList<Phase>();
+
+    /** Additional issuance counters, in setting order */
+    private Map<String, Long> counters_ = new LinkedHashMap<String, Long>();
+
+    /**
+     * Starts a phase, and suspends the currently running one (if any).
+     *
+     * @param name
+     *            The phase name.
+     */
+    public void begin(String name) {
+        long now = System.nanoTime();
+        if (!running_.isEmpty()) {
+            running_.getFirst().suspend(now);
+        }
+        Phase phase = getPhase(name);
+        phase.resume(now);
+        running_.addFirst(phase);
+    }
+
+    /**
+     * Ends the current phase, and resumes the enclosing one (if any).
+     */
+    public void end() {
+        if (running_.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        running_.removeFirst().suspend(now);
+        if (!running_.isEmpty()) {
+            running_.getFirst().resume(now);
+        }
+    }
+
+    /**
+     * Records a HTTP request in the current phase.
+     *
+     * @param bytesOut
+     *            The request bytes sent (headers and body).
+     * @param bytesIn
+     *            The response bytes received (headers and body).
+     * @param nanos
+     *            The request duration in nanoseconds.
+     * @param connects
+     *            The number of connections opened by the request, 0 if a
+     *            pooled connection was reused.
+     */
+    public void addRequest(long bytesOut, long bytesIn, long nanos,
+            long connects) {
+        Phase phase = running_.isEmpty() ? getPhase(OTHER_PHASE)
+                : running_.getFirst();
+        phase.requests_++;
+        phase.bytesOut_ += bytesOut;
+        phase.bytesIn_ += bytesIn;
+        phase.httpNanos_ += nanos;
+        phase.connects_ += connects;
+    }
+
+    /**
+     * Sets an additional counter of the issuance, reported after the phases.
+     *
+     * @param name
+     *            The counter name.
+     * @param value
+     *            The counter value.
+     */
+    public void setCounter(String name, long value) {
+        counters_.put(name, Long.valueOf(value));
+    }
+
+    /**
+     * @return The additional counters, in setting order.
+     */
+    public Map<String, Long> getCounters() {
+        return new LinkedHashMap<String, Long>(counters_);
+    }
+
+    /**
+     * @return The phases, in starting order.
+     */
+    public List<Phase> getPhases() {
+        return new ArrayList<Phase>(phases_.values());
+    }
+
+    /**
+     * @return The timings report as text, one phase per line.
+     */
+    public String toText() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format(Locale.US, "%-20s %10s %8s %8s %10s %10s %10s%n", "phase",
+                                  "wall(ms)", "requests", "connects",
+                                  "bytes-out", "bytes-in", "parse(ms)"));
+        Phase total = new Phase("total");
+        for (Phase phase : phases_.values()) {
+            appendText(text, phase);
+            total.add(phase);
+        }
+        appendText(text, total);
+        for (Map.Entry<String, Long> counter : counters_.entrySet()) {
+            text.append(String.format(Locale.US, "%-20s %10d%n",
+                                      counter.getKey(), counter.getValue()));
+        }
+        return text.toString();
+    }
+
+    private void appendText(StringBuilder text, Phase phase) {
+        text.append(String.format(Locale.US, "%-20s %10.1f %8d %8d %10d %10d %10.1f%n",
+                                  phase.getName(), phase.getWallMillis(),
+                                  phase.getRequests(), phase.getConnects(),
+                                  phase.getBytesOut(),
+                                  phase.getBytesIn(), phase.getParseMillis()));
+    }
+
+    /**
+     * @return The timings report as a JSON object.
+     */
+    public String toJSON() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"phases\":[");
+        Phase total = new Phase("total");
+        boolean first = true;
+        for (Phase phase : phases_.values()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            appendJSON(json, phase);
+            total.add(phase);
+        }
+        json.append("],\"total\":");
+        appendJSON(json, total);
+        if (!counters_.isEmpty()) {
+            json.append(",\"counters\":{");
+            first = true;
+            for (Map.Entry<String, Long> counter : counters_.entrySet()) {
+                if (!first) {
+                    json.append(',');
+                }
+                first = false;
+                json.append('"').append(counter.getKey()).append("\":").append(counter.getValue());
+            }
+            json.append('}');
+        }
+        json.append('}');
+        return json.toString();
+    }
+
+    private void appendJSON(StringBuilder json, Phase phase) {
+        json.append("{\"name\":\"").append(phase.getName()).append('"');
+        json.append(",\"wall_ms\":").append(String.format(Locale.US, "%.3f", phase.getWallMillis()));
+        json.append(",\"requests\":").append(phase.getRequests());
+        json.append(",\"connects\":").append(phase.getConnects());
+        json.append(",\"bytes_out\":").append(phase.getBytesOut());
+        json.append(",\"bytes_in\":").append(phase.getBytesIn());
+        json.append(",\"parse_ms\":").append(String.format(Locale.US, "%.3f", phase.getParseMillis()));
+        json.append('}');
+    }
+
+    private Phase getPhase(String name) {
+        Phase phase = phases_.get(name);
+        if (phase == null) {
+            phase = new Phase(name);
+            phases_.put(name, phase);
+        }
+        return phase;
+    }
+
+    /**
+     * A phase of the issuance.
+     */
+    public static class Phase {
+
+        private String name_;
+
+        private long wallNanos_ = 0;
+
+        private long startNanos_ = -1;
+
+        private int requests_ = 0;
+
+        private long bytesOut_ = 0;
+
+        private long bytesIn_ = 0;
+
+        private long httpNanos_ = 0;
+
+        private long connects_ = 0;
+
+        /** Sum of the added phases parse time, -1 if none added */
+        private long addedParseNanos_ = -1;
+
+        Phase(String name) {
+            name_ = name;
+        }
+
+        void resume(long now) {
+            startNanos_ = now;
+        }
+
+        void suspend(long now) {
+            if (startNanos_ >= 0) {
+                wallNanos_ += now - startNanos_;
+                startNanos_ = -1;
+            }
+        }
+
+        void add(Phase phase) {
+            wallNanos_ += phase.wallNanos_;
+            requests_ += phase.requests_;
+            bytesOut_ += phase.bytesOut_;
+            bytesIn_ += phase.bytesIn_;
+            httpNanos_ += phase.httpNanos_;
+            connects_ += phase.connects_;
+            if (addedParseNanos_ < 0) {
+                addedParseNanos_ = 0;
+            }
+            addedParseNanos_ += phase.getParseNanos();
+        }
+
+        public String getName() {
+            return name_;
+        }
+
+        public double getWallMillis() {
+            return wallNanos_ / 1000000.0;
+        }
+
+        public int getRequests() {
+            return requests_;
+        }
+
+        /**
+         * @return The number of HTTP connections opened.
+         */
+        public long getConnects() {
+            return connects_;
+        }
+
+        public long getBytesOut() {
+            return bytesOut_;
+        }
+
+        public long getBytesIn() {
+            return bytesIn_;
+        }
+
+        /**
+         * @return The wall time outside of the HTTP requests, only for phases
+         *         with HTTP requests.
+         */
+        public double getParseMillis() {
+            return getParseNanos() / 1000000.0;
+        }
+
+        private long getParseNanos() {
+            if (addedParseNanos_ >= 0) {
+                return addedParseNanos_;
+            }
+            if (requests_ == 0) {
+                return 0;
+            }
+            return Math.max(wallNanos_ - httpNanos_, 0);
+        }
+    }
+
+}
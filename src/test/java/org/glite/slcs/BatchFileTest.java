@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.glite.slcs.SLCSBatchInit.BatchIdentity;
+
+/**
+ * Tests the slcs-batch-init batch file parsing and permission check.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class BatchFileTest extends TestCase {
+
+    private File file_ = null;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        file_ = File.createTempFile("slcs-batch", ".txt");
+    }
+
+    protected void tearDown() throws Exception {
+        file_.delete();
+        super.tearDown();
+    }
+
+    public void testSplitFields() {
+        assertEquals(Arrays.asList(new String[] { "switch.ch", "robot1",
+                "my secret", "/var/lib/robots" }),
+                     SLCSBatchInit.splitFields("switch.ch\trobot1\t\tmy secret\t/var/lib/robots"));
+        assertEquals(Arrays.asList(new String[] { "a\tb", "c\\d", null, "-" }),
+                     SLCSBatchInit.splitFields("a\\tb\tc\\\\d\t-\t\\-"));
+        try {
+            SLCSBatchInit.splitFields("switch.ch\trobot1\tsecret\\");
+            fail("trailing backslash should be invalid");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testReadBatchFile() throws Exception {
+        write("# providerId\tusername\tpassword\tstoredir\n" + "\n"
+                + "switch.ch\trobot1\t my secret \t/var/lib/robots/robot1\n"
+                + "switch.ch\trobot2\tsecret2\t-\trobot2-\tkey pass\n");
+        List<BatchIdentity> identities = SLCSBatchInit.readBatchFile(file_);
+        assertEquals(2, identities.size());
+        BatchIdentity robot1 = identities.get(0);
+        assertEquals(3, robot1.line);
+        assertEquals("robot1", robot1.username);
+        assertEquals(" my secret ", new String(robot1.password));
+        assertEquals(" my secret ", new String(robot1.keyPassword));
+        assertEquals("/var/lib/robots/robot1", robot1.storeDirectory);
+        BatchIdentity robot2 = identities.get(1);
+        assertNull(robot2.storeDirectory);
+        assertEquals("robot2-", robot2.prefix);
+        assertEquals("key pass", new String(robot2.keyPassword));
+    }
+
+    public void testReadBatchFileInvalid() throws Exception {
+        write("switch.ch robot1 secret /var/lib/robots/robot1\n");
+        try {
+            SLCSBatchInit.readBatchFile(file_);
+            fail("space separated fields should be invalid");
+        } catch (IOException e) {
+            // expected
+        }
+        write("switch.ch\trobot1\t-\t/var/lib/robots/robot1\n");
+        try {
+            SLCSBatchInit.readBatchFile(file_);
+            fail("default password should be invalid");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testPermissions() throws Exception {
+        file_.setReadable(true, false);
+        try {
+            SLCSBatchInit.checkBatchFilePermissions(file_);
+            fail("file readable by the others should be refused");
+        } catch (IOException e) {
+            // expected
+        }
+        file_.setReadable(false, false);
+        file_.setWritable(false, false);
+        file_.setExecutable(false, false);
+        file_.setReadable(true, true);
+        file_.setWritable(true, true);
+        SLCSBatchInit.checkBatchFilePermissions(file_);
+    }
+
+    private void write(String content) throws IOException {
+        FileWriter writer = new FileWriter(file_);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+}
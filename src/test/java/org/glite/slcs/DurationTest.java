@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the slcs-init --min-lifetime duration parsing.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class DurationTest extends TestCase {
+
+    public void testSeconds() {
+        assertEquals(3600 * 1000L, SLCSInit.parseDuration("3600"));
+        assertEquals(30 * 1000L, SLCSInit.parseDuration("30s"));
+    }
+
+    public void testUnits() {
+        assertEquals(90 * 60 * 1000L, SLCSInit.parseDuration("90m"));
+        assertEquals(12 * 60 * 60 * 1000L, SLCSInit.parseDuration("12h"));
+        assertEquals(24 * 60 * 60 * 1000L, SLCSInit.parseDuration("1D"));
+    }
+
+    public void testInvalid() {
+        String[] invalids = { "", "h", "12x", "-5", "1.5h" };
+        for (String invalid : invalids) {
+            try {
+                SLCSInit.parseDuration(invalid);
+                fail("duration should be invalid: " + invalid);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+}
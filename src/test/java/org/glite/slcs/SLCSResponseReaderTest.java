@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.List;
+
+import javax.security.auth.x500.X500Principal;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the SLCS login and certificate responses streaming reader.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class SLCSResponseReaderTest extends TestCase {
+
+    static private final String PEM_CERTIFICATE = ""
+            + "-----BEGIN CERTIFICATE-----" + "\n"
+            + "MIIBuTCCAV+gAwIBAgIUewUyvc5RXNEUH+P1xssZcBKOYlUwCgYIKoZIzj0EAwIw" + "\n"
+            + "MjELMAkGA1UEBhMCQ0gxDzANBgNVBAoMBlNXSVRDSDESMBAGA1UEAwwJVGVzdCBV" + "\n"
+            + "c2VyMB4XDTI2MTAxNjIwMjYwNVoXDTM2MTAxMzIwMjYwNVowMjELMAkGA1UEBhMC" + "\n"
+            + "Q0gxDzANBgNVBAoMBlNXSVRDSDESMBAGA1UEAwwJVGVzdCBVc2VyMFkwEwYHKoZI" + "\n"
+            + "zj0CAQYIKoZIzj0DAQcDQgAEJ2H+lzatJDaRU2gRjD0APZ79vuQbujbU//TkgVPS" + "\n"
+            + "ncrUzdAzpU6A7qMKH86mBfPU1saPNgit3e4ixSBhPqDa8KNTMFEwHQYDVR0OBBYE" + "\n"
+            + "FLnplwjTtazYpXmPFbgEh1zb3w2gMB8GA1UdIwQYMBaAFLnplwjTtazYpXmPFbgE" + "\n"
+            + "h1zb3w2gMA8GA1UdEwEB/wQFMAMBAf8wCgYIKoZIzj0EAwIDSAAwRQIhAJncRL6c" + "\n"
+            + "f7KK4Sd1gYrej/G/v2cRk3VUDXnMIl0uI6y2AiANT1kxfPDe4E0M709H25dIjP2G" + "\n"
+            + "YdrL/IhIu6+UFed9Yw==" + "\n"
+            + "-----END CERTIFICATE-----" + "\n";
+
+    private InputStream toStream(String xml) throws Exception {
+        return new ByteArrayInputStream(xml.getBytes("UTF-8"));
+    }
+
+    public void testLoginResponse() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<SLCSLoginResponse>\n"
+                + "<Status>Success</Status>\n"
+                + "<AuthorizationToken>ABCDEF0123</AuthorizationToken>\n"
+                + "<CertificateRequest url=\"https://slcs.example.org/certificate\">\n"
+                + "<Subject>CN=Test User,O=SWITCH,C=CH</Subject>\n"
+                + "<CertificateExtension name=\"SubjectAltName\">email:test@example.org</CertificateExtension>\n"
+                + "<CertificateExtension name=\"CertificatePolicies\">2.16.756.1.2.6.3</CertificateExtension>\n"
+                + "</CertificateRequest>\n" + "</SLCSLoginResponse>\n";
+        SLCSResponseReader response = SLCSResponseReader.read(toStream(xml),
+                                                              "SLCSLoginResponse");
+        response.checkStatus();
+        assertEquals("ABCDEF0123", response.getAuthorizationToken());
+        assertTrue(response.hasCertificateRequest());
+        assertEquals("https://slcs.example.org/certificate",
+                     response.getCertificateRequestUrl());
+        assertEquals("CN=Test User,O=SWITCH,C=CH", response.getSubject());
+        List<String[]> extensions = response.getCertificateExtensions();
+        assertEquals(2, extensions.size());
+        assertEquals("SubjectAltName", extensions.get(0)[0]);
+        assertEquals("email:test@example.org", extensions.get(0)[1]);
+        assertEquals("CertificatePolicies", extensions.get(1)[0]);
+        assertFalse(response.hasCertificate());
+    }
+
+    public void testCertificateResponse() throws Exception {
+        String xml = "<SLCSCertificateResponse><Status>Success</Status>"
+                + "<Certificate>\n" + PEM_CERTIFICATE
+                + "</Certificate></SLCSCertificateResponse>";
+        SLCSResponseReader response = SLCSResponseReader.read(toStream(xml),
+                                                              "SLCSCertificateResponse");
+        response.checkStatus();
+        assertTrue(response.hasCertificate());
+        X500Principal subject = response.getCertificate().getCertificate().getSubjectX500Principal();
+        assertEquals(new X500Principal("CN=Test User,O=SWITCH,C=CH"), subject);
+    }
+
+    public void testErrorResponse() throws Exception {
+        String xml = "<SLCSLoginResponse><Status>Error</Status>"
+                + "<Error>Unauthorized &amp; denied</Error>"
+                + "<StackTrace>trace</StackTrace></SLCSLoginResponse>";
+        SLCSResponseReader response = SLCSResponseReader.read(toStream(xml),
+                                                              "SLCSLoginResponse");
+        try {
+            response.checkStatus();
+            fail("error response must throw");
+        } catch (ServiceException e) {
+            assertEquals("Unauthorized & denied\nRemote error:\ntrace",
+                         e.getMessage());
+        }
+    }
+
+    public void testMissingResponse() throws Exception {
+        String xml = "<SLCSCertificateResponse><Status>Success</Status></SLCSCertificateResponse>";
+        SLCSResponseReader response = SLCSResponseReader.read(toStream(xml),
+                                                              "SLCSLoginResponse");
+        try {
+            response.checkStatus();
+            fail("missing response element must throw");
+        } catch (ServiceException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.glite.slcs.shibclient.metadata.MetadataReader;
+import org.glite.slcs.shibclient.metadata.Provider;
+import org.glite.slcs.shibclient.metadata.ShibbolethClientMetadata;
+
+/**
+ * MetadataBenchmarkMain loads synthetic metadata files of increasing size
+ * (number of IdPs) and reports the load time of:
+ * <ul>
+ * <li>config: the inline metadata, read from the commons-configuration
+ * <li>stax: the metadata file, read by the streaming {@link MetadataReader}
+ * <li>snapshot: the compiled metadata snapshot, with one IdP lookup
+ * </ul>
+ * The providers loaded from the configuration and by the streaming reader
+ * are compared.
+ * <p>
+ * The configuration parsing is quadratic in the number of IdPs, use the
+ * <code>--no-config</code> option for the largest files:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.glite.slcs.benchmark.MetadataBenchmarkMain \
+ *     -Dlogback.configurationFile=logback-benchmark.xml \
+ *     -Dexec.args="-i 1000,5000,10000 -n 5"
+ * </pre>
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class MetadataBenchmarkMain {
+
+    static private final String[] AUTH_TYPES= { "FORM", "CAS", "NTLM",
+            "BASIC", "PUBCOOKIE" };
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        Options options= createCommandLineOptions();
+        CommandLine cmd= null;
+        try {
+            cmd= new PosixParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println("ERROR: " + e.getMessage());
+        }
+        if (cmd == null || cmd.hasOption('h')) {
+            new HelpFormatter().printHelp("MetadataBenchmarkMain [options]",
+                                          options);
+            System.exit(1);
+        }
+        String[] sizes= cmd.getOptionValue('i', "1000,5000,10000").split(",");
+        int iterations= Integer.parseInt(cmd.getOptionValue('n', "5"));
+        boolean config= !cmd.hasOption("no-config");
+
+        File directory= File.createTempFile("slcs-benchmark", "");
+        directory.delete();
+        directory.mkdirs();
+        try {
+            System.out.println("Iterations: " + iterations);
+            System.out.println();
+            System.out.println(String.format(Locale.US,
+                                             "%8s %10s %12s %12s %12s %6s",
+                                             "idps", "size(KB)", "config(ms)",
+                                             "stax(ms)", "snapshot(ms)",
+                                             "same"));
+            for (String size : sizes) {
+                int nIdps= Integer.parseInt(size.trim());
+                File metadataFile= new File(directory, "slcs-metadata-"
+                        + nIdps + ".xml");
+                writeMetadata(metadataFile, nIdps);
+                File inlineConfig= writeConfiguration(directory, "inline-"
+                        + nIdps, null, metadataFile, false);
+                File fileConfig= writeConfiguration(directory, "file-"
+                        + nIdps, null, metadataFile, true);
+                File snapshotConfig= writeConfiguration(directory, "snapshot-"
+                        + nIdps, directory, metadataFile, true);
+
+                double configMillis= -1;
+                List<String> configProviders= null;
+                if (config) {
+                    configMillis= time(inlineConfig, iterations, null);
+                    configProviders= getProviders(new ShibbolethClientMetadata(inlineConfig.getAbsolutePath()));
+                }
+                double staxMillis= time(fileConfig, iterations, null);
+                List<String> staxProviders= getProviders(new ShibbolethClientMetadata(fileConfig.getAbsolutePath()));
+                // compile the snapshot, then time its loading
+                new ShibbolethClientMetadata(snapshotConfig.getAbsolutePath());
+                double snapshotMillis= time(snapshotConfig, iterations,
+                                            "idp-" + (nIdps / 2) + ".example.org");
+                String same= configProviders == null ? "-"
+                        : String.valueOf(configProviders.equals(staxProviders));
+                System.out.println(String.format(Locale.US,
+                                                 "%8d %10d %12.1f %12.1f %12.1f %6s",
+                                                 nIdps,
+                                                 metadataFile.length() / 1024,
+                                                 configMillis, staxMillis,
+                                                 snapshotMillis, same));
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    /**
+     * @return The average load time of the metadata in milliseconds, after
+     *         one warmup.
+     */
+    private static double time(File configFile, int iterations,
+            String idpProviderId) throws Exception {
+        load(configFile, idpProviderId);
+        long start= System.nanoTime();
+        for (int i= 0; i < iterations; i++) {
+            load(configFile, idpProviderId);
+        }
+        return (System.nanoTime() - start) / 1e6 / iterations;
+    }
+
+    private static void load(File configFile, String idpProviderId)
+            throws Exception {
+        ShibbolethClientMetadata metadata= new ShibbolethClientMetadata(configFile.getAbsolutePath());
+        if (idpProviderId != null
+                && metadata.getIdentityProvider(idpProviderId) == null) {
+            throw new IllegalStateException("IdP " + idpProviderId
+                    + " not found");
+        }
+    }
+
+    /**
+     * @return The sorted providers descriptions.
+     */
+    private static List<String> getProviders(ShibbolethClientMetadata metadata) {
+        List<String> providers= new ArrayList<String>();
+        Iterator<Provider> iterator= metadata.getProviders();
+        while (iterator.hasNext()) {
+            providers.add(iterator.next().toString());
+        }
+        Collections.sort(providers);
+        return providers;
+    }
+
+    /**
+     * Writes a SLCS configuration with the metadata inline, or as file.
+     */
+    private static File writeConfiguration(File directory, String name,
+            File cacheDirectory, File metadataFile, boolean external)
+            throws IOException {
+        File file= new File(directory, "slcs-init-" + name + ".xml");
+        Writer writer= new FileWriter(file);
+        try {
+            writer.write("<SLCSClientConfiguration>\n");
+            writer.write("<MetadataCache>false</MetadataCache>\n");
+            if (cacheDirectory != null) {
+                writer.write("<MetadataCacheDirectory>"
+                        + cacheDirectory.getAbsolutePath()
+                        + "</MetadataCacheDirectory>\n");
+            }
+            else {
+                writer.write("<MetadataSnapshot>false</MetadataSnapshot>\n");
+            }
+            if (external) {
+                writer.write("<ShibbolethClientMetadata filename=\""
+                        + metadataFile.getAbsolutePath() + "\"/>\n");
+            }
+            else {
+                writer.write("<ShibbolethClientMetadata>\n");
+                writeProviders(writer, Integer.parseInt(metadataFile.getName().replaceAll("[^0-9]", "")));
+                writer.write("</ShibbolethClientMetadata>\n");
+            }
+            writer.write("</SLCSClientConfiguration>\n");
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    private static void writeMetadata(File file, int nIdps)
+            throws IOException {
+        Writer writer= new FileWriter(file);
+        try {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n");
+            writer.write("<ShibbolethClientMetadata>\n");
+            writeProviders(writer, nIdps);
+            writer.write("</ShibbolethClientMetadata>\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes the SLCS SP and the synthetic IdPs, of all authentication types.
+     */
+    private static void writeProviders(Writer writer, int nIdps)
+            throws IOException {
+        writer.write("<ServiceProvider id=\"slcs\">\n");
+        writer.write("  <name>SLCS Server</name>\n");
+        writer.write("  <url>https://slcs.example.org/SLCS/login</url>\n");
+        writer.write("</ServiceProvider>\n");
+        writer.write("<IdentityProviders>\n");
+        for (int i= 0; i < nIdps; i++) {
+            String host= "idp-" + i + ".example.org";
+            String authType= AUTH_TYPES[i % AUTH_TYPES.length];
+            writer.write("<IdentityProvider id=\"" + host + "\" entityID=\"https://"
+                    + host + "/idp/shibboleth\">\n");
+            writer.write("  <name>Example University " + i + "</name>\n");
+            writer.write("  <url>https://" + host
+                    + "/idp/profile/SAML2/Redirect/SSO</url>\n");
+            writer.write("  <authentication type=\"" + authType + "\">\n");
+            if (authType.equals("NTLM") || authType.equals("BASIC")) {
+                writer.write("    <realm>" + host + "</realm>\n");
+            }
+            else {
+                writer.write("    <url>https://" + host
+                        + "/idp/Authn/UserPassword</url>\n");
+                writer.write("    <form name=\"loginform\">\n");
+                writer.write("      <username>j_username</username>\n");
+                writer.write("      <password>j_password</password>\n");
+                writer.write("    </form>\n");
+            }
+            writer.write("  </authentication>\n");
+            writer.write("</IdentityProvider>\n");
+        }
+        writer.write("</IdentityProviders>\n");
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] files= file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static Options createCommandLineOptions() {
+        Option help= new Option("h", "help", false, "this help");
+        Option idps= new Option("i", "idps", true,
+                "comma separated numbers of IdPs (default 1000,5000,10000)");
+        idps.setArgName("numbers");
+        Option iterations= new Option("n", "iterations", true,
+                "measured loads per size (default 5)");
+        iterations.setArgName("number");
+        Option noConfig= new Option(null, "no-config", false,
+                "skip the commons-configuration loading");
+        Options options= new Options();
+        options.addOption(help);
+        options.addOption(idps);
+        options.addOption(iterations);
+        options.addOption(noConfig);
+        return options;
+    }
+
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.httpclient.HttpClient;
+import org.glite.slcs.SLCSInit;
+import org.glite.slcs.config.SLCSClientConfiguration;
+import org.glite.slcs.shibclient.PooledHttpConnectionManager;
+import org.glite.slcs.shibclient.ShibbolethCredentials;
+import org.glite.slcs.shibclient.metadata.ShibbolethClientMetadata;
+
+/**
+ * SLCSInitBenchmarkMain runs the full slcs-init issuance (Shibboleth login,
+ * SLCS login, key generation, CSR, certificate request and storage)
+ * repeatedly against a local {@link StubFederation}, and reports the
+ * throughput, latency percentiles and opened HTTP connections per issuance
+ * for each SP protocol and IdP authentication type.
+ * <p>
+ * No network access is needed. Run with the test classpath, and a quiet
+ * logging configuration:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.glite.slcs.benchmark.SLCSInitBenchmarkMain \
+ *     -Dlogback.configurationFile=logback-benchmark.xml \
+ *     -Dexec.args="-n 50 -c 4"
+ * </pre>
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class SLCSInitBenchmarkMain {
+
+    /** Private key password */
+    static private final char[] KEY_PASSWORD = "benchmark".toCharArray();
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        Options options = createCommandLineOptions();
+        CommandLine cmd = null;
+        try {
+            cmd = new PosixParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println("ERROR: " + e.getMessage());
+        }
+        if (cmd == null || cmd.hasOption('h')) {
+            new HelpFormatter().printHelp("SLCSInitBenchmarkMain [options]",
+                                          options);
+            System.exit(1);
+        }
+        int iterations = Integer.parseInt(cmd.getOptionValue('n', "20"));
+        int warmup = Integer.parseInt(cmd.getOptionValue('w', "3"));
+        int concurrency = Integer.parseInt(cmd.getOptionValue('c', "1"));
+        int keySize = Integer.parseInt(cmd.getOptionValue('s', "1024"));
+        String keyType = cmd.getOptionValue('t', "rsa");
+        List<String> authTypes = Arrays.asList(StubFederation.AUTH_TYPES);
+        if (cmd.hasOption('a')) {
+            authTypes = Arrays.asList(cmd.getOptionValue('a').toUpperCase().split(","));
+        }
+        List<String> protocols = Arrays.asList(StubFederation.PROTOCOLS);
+        if (cmd.hasOption('p')) {
+            protocols = Arrays.asList(cmd.getOptionValue('p').toUpperCase().split(","));
+        }
+
+        File directory = File.createTempFile("slcs-benchmark", "");
+        directory.delete();
+        directory.mkdirs();
+        StubFederation federation = new StubFederation();
+        federation.start();
+        try {
+            SLCSClientConfiguration configuration = createConfiguration(directory,
+                                                                        federation,
+                                                                        keySize);
+            System.out.println("Stub federation: " + federation.getBaseUrl());
+            System.out.println("Iterations: " + iterations + " (warmup "
+                    + warmup + "), concurrency: " + concurrency + ", key: "
+                    + keyType + " " + keySize);
+            System.out.println();
+            System.out.println(String.format(Locale.US,
+                                             "%-16s %6s %6s %10s %9s %9s %9s %9s %7s",
+                                             "scenario", "ok", "errors",
+                                             "issues/s", "p50(ms)", "p90(ms)",
+                                             "p99(ms)", "max(ms)", "conns"));
+            for (String protocol : protocols) {
+                ShibbolethClientMetadata metadata = createMetadata(directory,
+                                                                   federation,
+                                                                   protocol);
+                for (String authType : authTypes) {
+                    Scenario scenario = new Scenario(configuration, metadata,
+                            federation.getIdentityProviderId(authType),
+                            new File(directory, authType + "-" + protocol),
+                            keyType, keySize);
+                    scenario.run(warmup, 1);
+                    scenario.reset();
+                    scenario.run(iterations, concurrency);
+                    System.out.println(scenario.getReport(authType + "/"
+                            + protocol));
+                }
+            }
+        } finally {
+            federation.stop();
+            delete(directory);
+        }
+    }
+
+    /**
+     * One SP protocol and IdP authentication type combination.
+     */
+    private static class Scenario {
+
+        private SLCSClientConfiguration configuration_;
+
+        private ShibbolethClientMetadata metadata_;
+
+        private String idpProviderId_;
+
+        private File directory_;
+
+        private String keyType_;
+
+        private int keySize_;
+
+        private List<Long> latencies_ = Collections.synchronizedList(new ArrayList<Long>());
+
+        private AtomicInteger errors_ = new AtomicInteger();
+
+        private AtomicInteger count_ = new AtomicInteger();
+
+        private AtomicLong connects_ = new AtomicLong();
+
+        private String lastError_ = null;
+
+        private long wallNanos_ = 0;
+
+        Scenario(SLCSClientConfiguration configuration,
+                ShibbolethClientMetadata metadata, String idpProviderId,
+                File directory, String keyType, int keySize) {
+            configuration_ = configuration;
+            metadata_ = metadata;
+            idpProviderId_ = idpProviderId;
+            directory_ = directory;
+            keyType_ = keyType;
+            keySize_ = keySize;
+        }
+
+        void reset() {
+            latencies_.clear();
+            errors_.set(0);
+            connects_.set(0);
+            lastError_ = null;
+        }
+
+        void run(int iterations, int concurrency) throws InterruptedException {
+            ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        issue();
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            wallNanos_ = System.nanoTime() - start;
+        }
+
+        /**
+         * Runs the slcs-init pipeline once, as a new slcs-init process would.
+         */
+        void issue() {
+            long start = System.nanoTime();
+            PooledHttpConnectionManager connectionManager = new PooledHttpConnectionManager();
+            HttpClient httpClient = new HttpClient(connectionManager);
+            try {
+                ShibbolethCredentials credentials = new ShibbolethCredentials(
+                        StubFederation.USERNAME, StubFederation.PASSWORD,
+                        idpProviderId_);
+                SLCSInit client = new SLCSInit(configuration_, credentials,
+                        httpClient, metadata_);
+                // own store directory, no backup rotation
+                File store = new File(directory_,
+                        String.valueOf(count_.incrementAndGet()));
+                client.setStoreDirectory(store.getAbsolutePath());
+                client.setKeyType(keyType_);
+                client.shibbolethLogin();
+                client.slcsLogin();
+                client.generateCertificateKeys(keySize_, KEY_PASSWORD);
+                client.generateCertificateRequest();
+                client.slcsCertificateRequest();
+                client.storePrivateKey();
+                client.storeCertificate();
+                latencies_.add(System.nanoTime() - start);
+            } catch (Exception e) {
+                errors_.incrementAndGet();
+                lastError_ = e.toString();
+            } finally {
+                // closes the connections, as the slcs-init process exit
+                connects_.addAndGet(connectionManager.getOpenedConnections());
+                connectionManager.shutdown();
+            }
+        }
+
+        String getReport(String name) {
+            List<Long> latencies = new ArrayList<Long>(latencies_);
+            Collections.sort(latencies);
+            double throughput = latencies.size() * 1e9
+                    / Math.max(wallNanos_, 1);
+            double connects = connects_.get()
+                    / (double) Math.max(latencies.size() + errors_.get(), 1);
+            String report = String.format(Locale.US,
+                                          "%-16s %6d %6d %10.1f %9.1f %9.1f %9.1f %9.1f %7.1f",
+                                          name, latencies.size(),
+                                          errors_.get(), throughput,
+                                          percentile(latencies, 50),
+                                          percentile(latencies, 90),
+                                          percentile(latencies, 99),
+                                          percentile(latencies, 100),
+                                          connects);
+            if (lastError_ != null) {
+                report += "\n  last error: " + lastError_;
+            }
+            return report;
+        }
+    }
+
+    /**
+     * @return The nearest-rank percentile in milliseconds, 0 if empty.
+     */
+    static double percentile(List<Long> sortedNanos, int percent) {
+        if (sortedNanos.isEmpty()) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * sortedNanos.size());
+        int index = Math.min(Math.max(rank - 1, 0), sortedNanos.size() - 1);
+        return sortedNanos.get(index) / 1e6;
+    }
+
+    private static SLCSClientConfiguration createConfiguration(
+            File directory, StubFederation federation, int keySize)
+            throws Exception {
+        File file = new File(directory, "slcs-init.xml");
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write("<SLCSClientConfiguration>\n");
+            writer.write("<HttpClient><TrustStoreFile>truststore.slcs.jks</TrustStoreFile></HttpClient>\n");
+            writer.write("<StoreDirectory>" + directory.getAbsolutePath()
+                    + "</StoreDirectory>\n");
+            writer.write("<UserCertFile>usercert.pem</UserCertFile>\n");
+            writer.write("<UserKeyFile>userkey.pem</UserKeyFile>\n");
+            writer.write("<UserPKCS12File>usercred.p12</UserPKCS12File>\n");
+            writer.write("<UserKeySize>" + keySize + "</UserKeySize>\n");
+            writer.write(federation.getMetadata(StubFederation.PROTOCOL_SAML2));
+            writer.write("</SLCSClientConfiguration>\n");
+        } finally {
+            writer.close();
+        }
+        return SLCSClientConfiguration.getInstance(file.getAbsolutePath());
+    }
+
+    private static ShibbolethClientMetadata createMetadata(File directory,
+            StubFederation federation, String protocol) throws Exception {
+        File file = new File(directory, "slcs-metadata-"
+                + protocol.toLowerCase() + ".xml");
+        FileWriter writer = new FileWriter(file);
+        try {
+            // metadata file with the same layout as slcs-init.xml
+            writer.write("<SLCSClientConfiguration>\n");
+            writer.write(federation.getMetadata(protocol));
+            writer.write("</SLCSClientConfiguration>\n");
+        } finally {
+            writer.close();
+        }
+        return new ShibbolethClientMetadata(file.getAbsolutePath());
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static Options createCommandLineOptions() {
+        Option help = new Option("h", "help", false, "this help");
+        Option iterations = new Option("n", "iterations", true,
+                "measured issuances per scenario (default 20)");
+        iterations.setArgName("number");
+        Option warmup = new Option("w", "warmup", true,
+                "warmup issuances per scenario (default 3)");
+        warmup.setArgName("number");
+        Option concurrency = new Option("c", "concurrency", true,
+                "concurrent issuances (default 1)");
+        concurrency.setArgName("number");
+        Option authTypes = new Option("a", "auth", true,
+                "IdP authentication types (default FORM,CAS,BASIC,PUBCOOKIE)");
+        authTypes.setArgName("types");
+        Option protocols = new Option("p", "protocol", true,
+                "SP protocols (default SAML1,SAML2,DS)");
+        protocols.setArgName("protocols");
+        Option keySize = new Option("s", "keysize", true,
+                "private key size (default 1024)");
+        keySize.setArgName("size");
+        Option keyType = new Option("t", "key-type", true,
+                "private key type: rsa or ec (default rsa)");
+        keyType.setArgName("type");
+        Options options = new Options();
+        options.addOption(help);
+        options.addOption(iterations);
+        options.addOption(warmup);
+        options.addOption(concurrency);
+        options.addOption(authTypes);
+        options.addOption(protocols);
+        options.addOption(keySize);
+        options.addOption(keyType);
+        return options;
+    }
+
+}
@@ -0,0 +1,1068 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.commons.codec.binary.Base64;
+import org.bouncycastle.jce.PKCS10CertificationRequest;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openssl.PEMReader;
+import org.bouncycastle.openssl.PEMWriter;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+
+/**
+ * StubFederation is an in-process SLCS server (Shibboleth SP) and Identity
+ * Providers, served by a minimal HTTP/1.1 server on localhost, covering the
+ * flows handled by the ShibbolethClient:
+ * <ul>
+ * <li>SP protocols: SAML1 (WAYF shire/target redirect), SAML2 (direct
+ * SAMLRequest redirect) and DS (SAML2 discovery service).
+ * <li>IdP authentication types: FORM, CAS, BASIC and PUBCOOKIE, each ending
+ * with a Browser/POST form.
+ * </ul>
+ * The SLCS certificate endpoint signs the CSR with a stub CA. The SAML
+ * messages are opaque one-time tokens, not real assertions.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class StubFederation {
+
+    /** SP protocols */
+    static public final String PROTOCOL_SAML1 = "SAML1";
+
+    static public final String PROTOCOL_SAML2 = "SAML2";
+
+    static public final String PROTOCOL_DS = "DS";
+
+    static public final String[] PROTOCOLS = { PROTOCOL_SAML1,
+            PROTOCOL_SAML2, PROTOCOL_DS };
+
+    /** IdP authentication types */
+    static public final String[] AUTH_TYPES = { "FORM", "CAS", "BASIC",
+            "PUBCOOKIE" };
+
+    /** The only valid credentials */
+    static public final String USERNAME = "bench";
+
+    static public final String PASSWORD = "bench";
+
+    /** BASIC authentication realm */
+    static private final String BASIC_REALM = "Stub IdP";
+
+    /** Idle keep-alive connection timeout */
+    static private final int IDLE_TIMEOUT = 30000;
+
+    private ServerSocket serverSocket_ = null;
+
+    private ExecutorService executor_ = null;
+
+    /** Path prefix -> handler */
+    private Map<String, Handler> handlers_ = new LinkedHashMap<String, Handler>();
+
+    private String baseUrl_ = null;
+
+    private SecureRandom random_ = new SecureRandom();
+
+    /** SP and IdP sessions: session id -> attributes */
+    private Map<String, Map<String, String>> sessions_ = new ConcurrentHashMap<String, Map<String, String>>();
+
+    /** Issued one-time tokens: SAMLResponse, CAS tickets, PubCookie and
+     * SLCS authorization tokens -> value */
+    private Map<String, String> tokens_ = new ConcurrentHashMap<String, String>();
+
+    private KeyPair caKeys_ = null;
+
+    private X509Certificate caCertificate_ = null;
+
+    private AtomicLong serial_ = new AtomicLong();
+
+    /** Request path -> number of requests */
+    private ConcurrentMap<String, AtomicLong> requests_ = new ConcurrentHashMap<String, AtomicLong>();
+
+    /** SP stores the DS relay state, as ss:mem:... */
+    private volatile boolean relayStateStored_ = false;
+
+    /** SP rejects the URL relay states */
+    private volatile boolean relayStateURLRejected_ = false;
+
+    /** FORM IdP login form without action, posted to the SSO URL */
+    private volatile boolean loginFormActionEmpty_ = false;
+
+    /**
+     * Starts the stub federation on a free localhost port. Each connection
+     * is served by its own thread, with keep-alive.
+     *
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public void start() throws IOException, GeneralSecurityException {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+        createCA();
+        handlers_.put("/sp/", new ServiceProviderHandler());
+        handlers_.put("/idp/", new IdentityProviderHandler());
+        handlers_.put("/cas/", new CASHandler());
+        handlers_.put("/pubcookie/", new PubCookieHandler());
+        final ServerSocket serverSocket = new ServerSocket(0, 256,
+                InetAddress.getByName("localhost"));
+        serverSocket_ = serverSocket;
+        baseUrl_ = "http://localhost:" + serverSocket.getLocalPort();
+        executor_ = Executors.newCachedThreadPool();
+        executor_.execute(new Runnable() {
+            public void run() {
+                accept(serverSocket);
+            }
+        });
+    }
+
+    /**
+     * Stops the stub federation.
+     */
+    public void stop() {
+        if (serverSocket_ != null) {
+            try {
+                serverSocket_.close();
+            } catch (IOException e) {
+                // ignored
+            }
+            executor_.shutdownNow();
+            serverSocket_ = null;
+        }
+    }
+
+    private void accept(ServerSocket serverSocket) {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                executor_.execute(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setSoTimeout(IDLE_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            InputStream is = new BufferedInputStream(socket.getInputStream());
+            OutputStream os = new BufferedOutputStream(socket.getOutputStream());
+            Exchange exchange;
+            while ((exchange = Exchange.read(is)) != null) {
+                dispatch(exchange);
+                exchange.write(os);
+                if (!exchange.isKeepAlive()) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // client gone or idle timeout
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+    private void dispatch(Exchange exchange) throws IOException {
+        AtomicLong count = new AtomicLong();
+        AtomicLong previous = requests_.putIfAbsent(exchange.getPath(), count);
+        (previous != null ? previous : count).incrementAndGet();
+        for (Map.Entry<String, Handler> entry : handlers_.entrySet()) {
+            if (exchange.getPath().startsWith(entry.getKey())) {
+                entry.getValue().handle(exchange);
+                return;
+            }
+        }
+        send(exchange, 404, "text/plain", "Not found: " + exchange.getPath());
+    }
+
+    /**
+     * @param path
+     *            The request path.
+     * @return The number of requests received for the path.
+     */
+    public long getRequests(String path) {
+        AtomicLong count = requests_.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @param stored
+     *            If <code>true</code>, the SP stores the DS relay state and
+     *            sends a one-time <code>ss:mem:</code> key as target.
+     */
+    public void setRelayStateStored(boolean stored) {
+        relayStateStored_ = stored;
+    }
+
+    /**
+     * @param rejected
+     *            If <code>true</code>, the SP ignores the URL relay states and
+     *            redirects to its home page.
+     */
+    public void setRelayStateURLRejected(boolean rejected) {
+        relayStateURLRejected_ = rejected;
+    }
+
+    /**
+     * @param empty
+     *            If <code>true</code>, the FORM IdP login form has no action,
+     *            and the credentials are posted to the SSO URL with its
+     *            query.
+     */
+    public void setLoginFormActionEmpty(boolean empty) {
+        loginFormActionEmpty_ = empty;
+    }
+
+    /**
+     * @return The base URL: http://localhost:port
+     */
+    public String getBaseUrl() {
+        return baseUrl_;
+    }
+
+    /**
+     * @param protocol
+     *            The SP protocol.
+     * @return The SLCS login URL (SP entry point) for the protocol.
+     */
+    public String getServiceProviderUrl(String protocol) {
+        return baseUrl_ + "/sp/" + protocol.toLowerCase() + "/SLCS/login";
+    }
+
+    /**
+     * @param authType
+     *            The IdP authentication type.
+     * @return The IdP providerId in the metadata.
+     */
+    public String getIdentityProviderId(String authType) {
+        return authType.toLowerCase() + ".stub";
+    }
+
+    /**
+     * Returns the pseudo metadata of the SLCS SP for the given protocol and
+     * of all the IdPs.
+     *
+     * @param protocol
+     *            The SP protocol.
+     * @return The &lt;ShibbolethClientMetadata&gt; XML element.
+     */
+    public String getMetadata(String protocol) {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<ShibbolethClientMetadata>\n");
+        xml.append("<ServiceProvider id=\"slcs\">\n");
+        xml.append("<name>Stub SLCS ").append(protocol).append("</name>\n");
+        xml.append("<url>").append(getServiceProviderUrl(protocol)).append("</url>\n");
+        xml.append("</ServiceProvider>\n");
+        xml.append("<IdentityProviders>\n");
+        for (String authType : AUTH_TYPES) {
+            String type = authType.toLowerCase();
+            String idpUrl = baseUrl_ + "/idp/" + type;
+            xml.append("<IdentityProvider id=\"").append(getIdentityProviderId(authType));
+            xml.append("\" entityID=\"urn:stub:idp:").append(type).append("\">\n");
+            xml.append("<name>Stub ").append(authType).append(" IdP</name>\n");
+            xml.append("<url>").append(idpUrl).append("/profile/SAML2/Redirect/SSO</url>\n");
+            xml.append("<authentication type=\"").append(authType).append("\">\n");
+            if (authType.equals("FORM")) {
+                xml.append("<url>").append(idpUrl).append("/Authn/UserPassword</url>\n");
+                xml.append("<form name=\"j_loginform\"><username>j_username</username><password>j_password</password></form>\n");
+            }
+            else if (authType.equals("CAS")) {
+                xml.append("<url>").append(baseUrl_).append("/cas/login</url>\n");
+                xml.append("<form name=\"fm1\"><username>username</username><password>password</password></form>\n");
+            }
+            else if (authType.equals("PUBCOOKIE")) {
+                xml.append("<url>").append(baseUrl_).append("/pubcookie/login</url>\n");
+                xml.append("<form name=\"query\"><username>user</username><password>pass</password></form>\n");
+            }
+            else {
+                xml.append("<realm>").append(BASIC_REALM).append("</realm>\n");
+            }
+            xml.append("</authentication>\n");
+            xml.append("</IdentityProvider>\n");
+        }
+        xml.append("</IdentityProviders>\n");
+        xml.append("</ShibbolethClientMetadata>\n");
+        return xml.toString();
+    }
+
+    /**
+     * The SLCS server: Shibboleth SP with SAML1, SAML2 and DS session
+     * initiators, SAML assertion consumer, SLCS login and certificate.
+     */
+    private class ServiceProviderHandler implements Handler {
+
+        public void handle(Exchange exchange) throws IOException {
+            try {
+                // /sp/{protocol}/...
+                String path = exchange.getPath();
+                int i = path.indexOf('/', "/sp/".length());
+                String protocol = path.substring("/sp/".length(), i).toUpperCase();
+                String endpoint = path.substring(i);
+                String spUrl = baseUrl_ + path.substring(0, i);
+                String entryUrl = spUrl + "/SLCS/login";
+                String sessionCookie = "_shibsession_" + protocol.toLowerCase();
+                if (endpoint.equals("/SLCS/login")) {
+                    Map<String, String> session = getSession(exchange,
+                                                             sessionCookie);
+                    if (session != null) {
+                        String token = createToken(session.get("subject"));
+                        sendXML(exchange,
+                                "<SLCSLoginResponse>\n"
+                                        + "<Status>Success</Status>\n"
+                                        + "<AuthorizationToken>" + token
+                                        + "</AuthorizationToken>\n"
+                                        + "<CertificateRequest url=\""
+                                        + spUrl + "/SLCS/certificate\">\n"
+                                        + "<Subject>" + session.get("subject")
+                                        + "</Subject>\n"
+                                        + "<CertificateExtension name=\"SubjectAltName\">email:"
+                                        + USERNAME
+                                        + "@stub.example.org</CertificateExtension>\n"
+                                        + "</CertificateRequest>\n"
+                                        + "</SLCSLoginResponse>\n");
+                    }
+                    else if (protocol.equals(PROTOCOL_SAML1)) {
+                        // WAYF
+                        redirect(exchange, spUrl + "/WAYF?shire="
+                                + encode(spUrl + "/Shibboleth.sso/SAML/POST")
+                                + "&target=" + encode(entryUrl)
+                                + "&providerId=" + encode("urn:stub:sp"));
+                    }
+                    else if (protocol.equals(PROTOCOL_SAML2)) {
+                        redirect(exchange, spUrl
+                                + "/profile/SAML2/Redirect/SSO?SAMLRequest="
+                                + encode(createSAMLRequest(spUrl))
+                                + "&RelayState=" + encode(entryUrl));
+                    }
+                    else {
+                        String target = relayStateStored_ ? "ss:mem:"
+                                + createToken(entryUrl) : entryUrl;
+                        String returnUrl = spUrl
+                                + "/Shibboleth.sso/Login?SAMLDS=1&target="
+                                + encode(target);
+                        redirect(exchange, spUrl + "/DS?entityID="
+                                + encode("urn:stub:sp") + "&return="
+                                + encode(returnUrl));
+                    }
+                }
+                else if (endpoint.equals("/Shibboleth.sso/Login")) {
+                    // SAML2 DS return
+                    Map<String, String> query = parseQuery(exchange.getRawQuery());
+                    String entityID = query.get("entityID");
+                    String prefix = "urn:stub:idp:";
+                    if (entityID == null || !entityID.startsWith(prefix)) {
+                        send(exchange, 400, "text/plain", "Unknown entityID: "
+                                + entityID);
+                        return;
+                    }
+                    String idpUrl = baseUrl_ + "/idp/"
+                            + entityID.substring(prefix.length())
+                            + "/profile/SAML2/Redirect/SSO";
+                    redirect(exchange, idpUrl + "?SAMLRequest="
+                            + encode(createSAMLRequest(spUrl))
+                            + "&RelayState=" + encode(query.get("target")));
+                }
+                else if (endpoint.startsWith("/Shibboleth.sso/SAML")) {
+                    // assertion consumer
+                    Map<String, String> form = parseQuery(readBody(exchange));
+                    String subject = consumeToken(form.get("SAMLResponse"));
+                    if (subject == null) {
+                        send(exchange, 403, "text/plain",
+                             "Invalid SAMLResponse");
+                        return;
+                    }
+                    Map<String, String> session = new HashMap<String, String>();
+                    session.put("subject", subject);
+                    String sessionId = createSession(session);
+                    exchange.addResponseHeader("Set-Cookie",
+                                                      sessionCookie + "="
+                                                              + sessionId
+                                                              + "; Path=/");
+                    String target = form.containsKey("TARGET") ? form.get("TARGET")
+                            : form.get("RelayState");
+                    if (target != null && target.startsWith("ss:mem:")) {
+                        target = consumeToken(target.substring("ss:mem:".length()));
+                        if (target == null) {
+                            send(exchange, 400, "text/plain",
+                                 "Unknown relay state");
+                            return;
+                        }
+                    }
+                    else if (relayStateURLRejected_) {
+                        target = spUrl + "/";
+                    }
+                    redirect(exchange, target);
+                }
+                else if (endpoint.equals("/SLCS/certificate")) {
+                    Map<String, String> form = parseQuery(readBody(exchange));
+                    String subject = consumeToken(form.get("AuthorizationToken"));
+                    if (subject == null) {
+                        sendXML(exchange,
+                                "<SLCSCertificateResponse><Status>Error</Status>"
+                                        + "<Error>Invalid AuthorizationToken</Error>"
+                                        + "</SLCSCertificateResponse>\n");
+                        return;
+                    }
+                    String pem = signCertificateRequest(form.get("CertificateSigningRequest"),
+                                                        subject);
+                    sendXML(exchange, "<SLCSCertificateResponse>\n"
+                            + "<Status>Success</Status>\n" + "<Certificate>"
+                            + pem + "</Certificate>\n"
+                            + "</SLCSCertificateResponse>\n");
+                }
+                else {
+                    send(exchange, 404, "text/plain", "Not found: " + path);
+                }
+            } catch (Exception e) {
+                send(exchange, 500, "text/plain", e.toString());
+            }
+        }
+    }
+
+    /**
+     * The IdPs: /idp/{type}/profile/SAML2/Redirect/SSO, plus the FORM and CAS
+     * authentication handlers.
+     */
+    private class IdentityProviderHandler implements Handler {
+
+        public void handle(Exchange exchange) throws IOException {
+            try {
+                // /idp/{type}/...
+                String path = exchange.getPath();
+                int i = path.indexOf('/', "/idp/".length());
+                String type = path.substring("/idp/".length(), i);
+                String endpoint = path.substring(i);
+                String idpUrl = baseUrl_ + path.substring(0, i);
+                String ssoUrl = idpUrl + "/profile/SAML2/Redirect/SSO";
+                String sessionCookie = "_idp_session_" + type;
+
+                String sessionId = getCookie(exchange, sessionCookie);
+                Map<String, String> session = sessionId == null ? null
+                        : sessions_.get(sessionId);
+                if (session == null) {
+                    session = new HashMap<String, String>();
+                    sessionId = createSession(session);
+                    exchange.addResponseHeader("Set-Cookie",
+                                                      sessionCookie + "="
+                                                              + sessionId
+                                                              + "; Path=/");
+                }
+
+                if (endpoint.equals("/profile/SAML2/Redirect/SSO")) {
+                    String rawQuery = exchange.getRawQuery();
+                    if (rawQuery != null) {
+                        // new SSO request, SAML1 or SAML2
+                        Map<String, String> query = parseQuery(rawQuery);
+                        if (query.containsKey("shire")) {
+                            session.put("acs", query.get("shire"));
+                            session.put("relayName", "TARGET");
+                            session.put("relayState", query.get("target"));
+                        }
+                        else {
+                            session.put("acs",
+                                        new String(Base64.decodeBase64(query.get("SAMLRequest").getBytes("UTF-8")),
+                                                "UTF-8"));
+                            session.put("relayName", "RelayState");
+                            session.put("relayState", query.get("RelayState"));
+                        }
+                        session.put("ssoUrl", ssoUrl + "?" + rawQuery);
+                    }
+                    if (!session.containsKey("acs")) {
+                        send(exchange, 400, "text/plain", "No SSO request");
+                        return;
+                    }
+                    if (type.equals("form")
+                            && exchange.getMethod().equals("POST")) {
+                        // login form without action
+                        Map<String, String> form = parseQuery(readBody(exchange));
+                        if (!USERNAME.equals(form.get("j_username"))
+                                || !PASSWORD.equals(form.get("j_password"))) {
+                            sendHTML(exchange, "<p>Login failed</p>");
+                            return;
+                        }
+                        session.put("user", USERNAME);
+                    }
+                    if (type.equals("basic")) {
+                        if (!isBasicAuthenticated(exchange)) {
+                            exchange.addResponseHeader("WWW-Authenticate",
+                                                              "Basic realm=\""
+                                                                      + BASIC_REALM
+                                                                      + "\"");
+                            send(exchange, 401, "text/plain",
+                                 "Authentication required");
+                            return;
+                        }
+                        session.put("user", USERNAME);
+                    }
+                    if (session.containsKey("user")) {
+                        sendBrowserPOST(exchange, session);
+                    }
+                    else if (type.equals("form")) {
+                        sendHTML(exchange,
+                                 "<form name=\"j_loginform\""
+                                         + (loginFormActionEmpty_ ? ""
+                                                 : " action=\"/idp/form/Authn/UserPassword\"")
+                                         + " method=\"post\">\n"
+                                         + "<input type=\"text\" name=\"j_username\"/>\n"
+                                         + "<input type=\"password\" name=\"j_password\"/>\n"
+                                         + "<!-- <input type=\"hidden\" name=\"legacy\" value=\"1\"/> -->\n"
+                                         + "<input type=\"submit\" value=\"Login\"/>\n"
+                                         + "</form>");
+                    }
+                    else if (type.equals("cas")) {
+                        redirect(exchange, baseUrl_ + "/cas/login?service="
+                                + encode(idpUrl + "/Authn/RemoteUser"));
+                    }
+                    else if (type.equals("pubcookie")) {
+                        String request = createToken(session.get("ssoUrl"));
+                        sendHTML(exchange,
+                                 "<form method=\"post\" action=\""
+                                         + baseUrl_
+                                         + "/pubcookie/login\" name=\"relay\">\n"
+                                         + "<input type=\"hidden\" name=\"pubcookie_g_req\" value=\""
+                                         + request + "\"/>\n"
+                                         + "<input type=\"hidden\" name=\"session\" value=\""
+                                         + sessionId
+                                         + "\"/>\n" + "</form>");
+                    }
+                    else {
+                        send(exchange, 404, "text/plain", "Unknown IdP: "
+                                + type);
+                    }
+                }
+                else if (endpoint.equals("/Authn/UserPassword")) {
+                    Map<String, String> form = parseQuery(readBody(exchange));
+                    if (USERNAME.equals(form.get("j_username"))
+                            && PASSWORD.equals(form.get("j_password"))) {
+                        session.put("user", USERNAME);
+                        redirect(exchange, ssoUrl);
+                    }
+                    else {
+                        sendHTML(exchange, "<p>Login failed</p>");
+                    }
+                }
+                else if (endpoint.equals("/Authn/RemoteUser")) {
+                    Map<String, String> query = parseQuery(exchange.getRawQuery());
+                    String user = consumeToken(query.get("ticket"));
+                    if (user == null) {
+                        send(exchange, 403, "text/plain",
+                             "Invalid CAS ticket");
+                        return;
+                    }
+                    session.put("user", user);
+                    redirect(exchange, ssoUrl);
+                }
+                else {
+                    send(exchange, 404, "text/plain", "Not found: " + path);
+                }
+            } catch (Exception e) {
+                send(exchange, 500, "text/plain", e.toString());
+            }
+        }
+    }
+
+    /**
+     * The CAS server login: form, then redirect to the service with a ticket.
+     */
+    private class CASHandler implements Handler {
+
+        public void handle(Exchange exchange) throws IOException {
+            try {
+                Map<String, String> query = parseQuery(exchange.getRawQuery());
+                String service = query.get("service");
+                if (service == null) {
+                    send(exchange, 400, "text/plain", "No service");
+                    return;
+                }
+                if (exchange.getMethod().equals("GET")) {
+                    sendHTML(exchange, "<form id=\"fm1\" action=\"/cas/login?service="
+                            + encode(service) + "\" method=\"post\">\n"
+                            + "<input type=\"text\" name=\"username\"/>\n"
+                            + "<input type=\"password\" name=\"password\"/>\n"
+                            + "<input type=\"hidden\" name=\"lt\" value=\""
+                            + randomId() + "\"/>\n"
+                            + "<input type=\"hidden\" name=\"_eventId\" value=\"submit\"/>\n"
+                            + "</form>");
+                    return;
+                }
+                Map<String, String> form = parseQuery(readBody(exchange));
+                if (USERNAME.equals(form.get("username"))
+                        && PASSWORD.equals(form.get("password"))
+                        && form.containsKey("lt")) {
+                    String ticket = createToken(USERNAME);
+                    redirect(exchange, service + "?ticket=" + ticket);
+                }
+                else {
+                    redirect(exchange, baseUrl_ + "/cas/login?service="
+                            + encode(service));
+                }
+            } catch (Exception e) {
+                send(exchange, 500, "text/plain", e.toString());
+            }
+        }
+    }
+
+    /**
+     * The PubCookie login server: granting request, login form, relay form
+     * and redirect back to the IdP SSO.
+     */
+    private class PubCookieHandler implements Handler {
+
+        public void handle(Exchange exchange) throws IOException {
+            try {
+                String path = exchange.getPath();
+                Map<String, String> form = parseQuery(readBody(exchange));
+                if (path.equals("/pubcookie/login") && !form.containsKey("user")) {
+                    sendHTML(exchange,
+                             "<form name=\"query\" action=\"/pubcookie/login\" method=\"post\">\n"
+                                     + "<input type=\"hidden\" name=\"pubcookie_g_req\" value=\""
+                                     + form.get("pubcookie_g_req")
+                                     + "\"/>\n"
+                                     + "<input type=\"hidden\" name=\"session\" value=\""
+                                     + form.get("session") + "\"/>\n"
+                                     + "<input type=\"text\" name=\"user\"/>\n"
+                                     + "<input type=\"password\" name=\"pass\"/>\n"
+                                     + "</form>");
+                }
+                else if (path.equals("/pubcookie/login")) {
+                    if (!USERNAME.equals(form.get("user"))
+                            || !PASSWORD.equals(form.get("pass"))) {
+                        sendHTML(exchange, "<p>Login failed</p>");
+                        return;
+                    }
+                    String granting = createToken(form.get("session") + " "
+                            + form.get("pubcookie_g_req"));
+                    sendHTML(exchange, "<form method=\"post\" action=\""
+                            + baseUrl_ + "/pubcookie/relay\" name=\"relay\">\n"
+                            + "<input type=\"hidden\" name=\"pubcookie_g\" value=\""
+                            + granting + "\"/>\n" + "</form>");
+                }
+                else if (path.equals("/pubcookie/relay")) {
+                    String granting = consumeToken(form.get("pubcookie_g"));
+                    if (granting == null) {
+                        send(exchange, 403, "text/plain",
+                             "Invalid granting cookie");
+                        return;
+                    }
+                    String[] values = granting.split(" ");
+                    Map<String, String> session = sessions_.get(values[0]);
+                    String ssoUrl = consumeToken(values[1]);
+                    if (session == null || ssoUrl == null) {
+                        send(exchange, 403, "text/plain",
+                             "Invalid granting request");
+                        return;
+                    }
+                    session.put("user", USERNAME);
+                    redirect(exchange, ssoUrl);
+                }
+                else {
+                    send(exchange, 404, "text/plain", "Not found: " + path);
+                }
+            } catch (Exception e) {
+                send(exchange, 500, "text/plain", e.toString());
+            }
+        }
+    }
+
+    private void sendBrowserPOST(Exchange exchange,
+            Map<String, String> session) throws IOException {
+        String samlResponse = createToken("CN=" + session.get("user")
+                + " " + serial_.incrementAndGet() + ",O=Stub,C=CH");
+        sendHTML(exchange, "<body onload=\"document.forms[0].submit()\">\n"
+                + "<form action=\"" + escape(session.get("acs"))
+                + "\" method=\"post\">\n"
+                + "<input type=\"hidden\" name=\"SAMLResponse\" value=\""
+                + samlResponse + "\"/>\n" + "<input type=\"hidden\" name=\""
+                + session.get("relayName") + "\" value=\""
+                + escape(session.get("relayState")) + "\"/>\n" + "</form>\n"
+                + "</body>");
+    }
+
+    private boolean isBasicAuthenticated(Exchange exchange)
+            throws UnsupportedEncodingException {
+        String authorization = exchange.getHeader("Authorization");
+        if (authorization == null || !authorization.startsWith("Basic ")) {
+            return false;
+        }
+        String credentials = new String(Base64.decodeBase64(authorization.substring("Basic ".length()).getBytes("US-ASCII")),
+                "UTF-8");
+        return credentials.equals(USERNAME + ":" + PASSWORD);
+    }
+
+    private String createSAMLRequest(String spUrl)
+            throws UnsupportedEncodingException {
+        String acs = spUrl + "/Shibboleth.sso/SAML2/POST";
+        return new String(Base64.encodeBase64(acs.getBytes("UTF-8")), "UTF-8");
+    }
+
+    private void createCA() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048, random_);
+        caKeys_ = generator.generateKeyPair();
+        X500Principal issuer = new X500Principal("CN=Stub SLCS CA,O=Stub,C=CH");
+        X509V3CertificateGenerator certificateGenerator = new X509V3CertificateGenerator();
+        certificateGenerator.setSerialNumber(BigInteger.ONE);
+        certificateGenerator.setIssuerDN(issuer);
+        certificateGenerator.setSubjectDN(issuer);
+        certificateGenerator.setNotBefore(new Date(System.currentTimeMillis() - 60000L));
+        certificateGenerator.setNotAfter(new Date(System.currentTimeMillis() + 86400000L));
+        certificateGenerator.setPublicKey(caKeys_.getPublic());
+        certificateGenerator.setSignatureAlgorithm("SHA256WithRSAEncryption");
+        caCertificate_ = certificateGenerator.generate(caKeys_.getPrivate(),
+                                                       "BC");
+    }
+
+    private String signCertificateRequest(String pemCSR, String subject)
+            throws IOException, GeneralSecurityException {
+        PEMReader reader = new PEMReader(new StringReader(pemCSR));
+        Object object = reader.readObject();
+        reader.close();
+        if (!(object instanceof PKCS10CertificationRequest)) {
+            throw new GeneralSecurityException("Invalid CSR: " + object);
+        }
+        PKCS10CertificationRequest csr = (PKCS10CertificationRequest) object;
+        X509V3CertificateGenerator certificateGenerator = new X509V3CertificateGenerator();
+        certificateGenerator.setSerialNumber(BigInteger.valueOf(serial_.incrementAndGet()));
+        certificateGenerator.setIssuerDN(caCertificate_.getSubjectX500Principal());
+        certificateGenerator.setSubjectDN(new X500Principal(subject));
+        certificateGenerator.setNotBefore(new Date(System.currentTimeMillis() - 60000L));
+        certificateGenerator.setNotAfter(new Date(System.currentTimeMillis() + 11 * 86400000L));
+        certificateGenerator.setPublicKey(csr.getPublicKey("BC"));
+        certificateGenerator.setSignatureAlgorithm("SHA256WithRSAEncryption");
+        X509Certificate certificate = certificateGenerator.generate(caKeys_.getPrivate(),
+                                                                    "BC");
+        StringWriter pem = new StringWriter();
+        PEMWriter writer = new PEMWriter(pem);
+        writer.writeObject(certificate);
+        writer.writeObject(caCertificate_);
+        writer.close();
+        return pem.toString();
+    }
+
+    private String randomId() {
+        return Long.toHexString(random_.nextLong() & Long.MAX_VALUE)
+                + Long.toHexString(random_.nextLong() & Long.MAX_VALUE);
+    }
+
+    private String createToken(String value) {
+        String token = randomId();
+        tokens_.put(token, value);
+        return token;
+    }
+
+    private String consumeToken(String token) {
+        return token == null ? null : tokens_.remove(token);
+    }
+
+    private String createSession(Map<String, String> session) {
+        String sessionId = randomId();
+        sessions_.put(sessionId, session);
+        return sessionId;
+    }
+
+    private Map<String, String> getSession(Exchange exchange, String name) {
+        String sessionId = getCookie(exchange, name);
+        return sessionId == null ? null : sessions_.get(sessionId);
+    }
+
+    private static String getCookie(Exchange exchange, String name) {
+        String cookie = null;
+        for (String header : exchange.getHeaders("Cookie")) {
+            for (String pair : header.split(";")) {
+                pair = pair.trim();
+                if (pair.startsWith(name + "=")) {
+                    cookie = pair.substring(name.length() + 1);
+                }
+            }
+        }
+        // HttpClient can quote the value
+        if (cookie != null && cookie.startsWith("\"") && cookie.endsWith("\"")) {
+            cookie = cookie.substring(1, cookie.length() - 1);
+        }
+        return cookie;
+    }
+
+    private static Map<String, String> parseQuery(String query)
+            throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query == null || query.length() == 0) {
+            return params;
+        }
+        for (String param : query.split("&")) {
+            int i = param.indexOf('=');
+            if (i > 0) {
+                params.put(URLDecoder.decode(param.substring(0, i), "UTF-8"),
+                           URLDecoder.decode(param.substring(i + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static String readBody(Exchange exchange) throws IOException {
+        return new String(exchange.getBody(), "UTF-8");
+    }
+
+    private static String encode(String value)
+            throws UnsupportedEncodingException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("\"", "&quot;").replace("<",
+                                                                          "&lt;");
+    }
+
+    private static void redirect(Exchange exchange, String location)
+            throws IOException {
+        exchange.addResponseHeader("Location", location);
+        send(exchange, 302, "text/plain", "");
+    }
+
+    private static void sendHTML(Exchange exchange, String body)
+            throws IOException {
+        send(exchange, 200, "text/html; charset=UTF-8", "<html>\n" + body
+                + "\n</html>\n");
+    }
+
+    private static void sendXML(Exchange exchange, String body)
+            throws IOException {
+        send(exchange, 200, "text/xml; charset=UTF-8",
+             "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + body);
+    }
+
+    private static void send(Exchange exchange, int status,
+            String contentType, String body) throws IOException {
+        exchange.addResponseHeader("Content-Type", contentType);
+        exchange.setResponse(status, body.getBytes("UTF-8"));
+    }
+
+    /**
+     * Handles the requests for a path prefix.
+     */
+    private interface Handler {
+
+        void handle(Exchange exchange) throws IOException;
+    }
+
+    /**
+     * A HTTP/1.1 request and its response.
+     */
+    private static class Exchange {
+
+        private String method_;
+
+        private String path_;
+
+        private String rawQuery_ = null;
+
+        /** lower case header name -> values */
+        private Map<String, List<String>> headers_ = new HashMap<String, List<String>>();
+
+        private byte[] body_ = new byte[0];
+
+        private int status_ = 500;
+
+        private List<String> responseHeaders_ = new ArrayList<String>();
+
+        private byte[] responseBody_ = new byte[0];
+
+        /**
+         * Reads the next request of the connection.
+         *
+         * @return The exchange or <code>null</code> if the connection is
+         *         closed.
+         */
+        static Exchange read(InputStream is) throws IOException {
+            String requestLine = readLine(is);
+            if (requestLine == null) {
+                return null;
+            }
+            String[] parts = requestLine.split(" ");
+            if (parts.length != 3) {
+                throw new IOException("Invalid request line: " + requestLine);
+            }
+            Exchange exchange = new Exchange();
+            exchange.method_ = parts[0];
+            String uri = parts[1];
+            int i = uri.indexOf('?');
+            exchange.path_ = i < 0 ? uri : uri.substring(0, i);
+            if (i >= 0) {
+                exchange.rawQuery_ = uri.substring(i + 1);
+            }
+            String line;
+            while ((line = readLine(is)) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    String name = line.substring(0, colon).trim().toLowerCase();
+                    List<String> values = exchange.headers_.get(name);
+                    if (values == null) {
+                        values = new ArrayList<String>();
+                        exchange.headers_.put(name, values);
+                    }
+                    values.add(line.substring(colon + 1).trim());
+                }
+            }
+            String contentLength = exchange.getHeader("Content-Length");
+            if (contentLength != null) {
+                exchange.body_ = new byte[Integer.parseInt(contentLength)];
+                int offset = 0;
+                while (offset < exchange.body_.length) {
+                    int n = is.read(exchange.body_, offset,
+                                    exchange.body_.length - offset);
+                    if (n < 0) {
+                        throw new EOFException("Truncated request body");
+                    }
+                    offset += n;
+                }
+            }
+            return exchange;
+        }
+
+        private static String readLine(InputStream is) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = is.read()) != '\n') {
+                if (c < 0) {
+                    return line.length() == 0 ? null : line.toString();
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        void write(OutputStream os) throws IOException {
+            StringBuilder head = new StringBuilder();
+            head.append("HTTP/1.1 ").append(status_).append(' ').append(getReasonPhrase(status_)).append("\r\n");
+            for (String header : responseHeaders_) {
+                head.append(header).append("\r\n");
+            }
+            head.append("Content-Length: ").append(responseBody_.length).append("\r\n");
+            head.append("\r\n");
+            os.write(head.toString().getBytes("ISO-8859-1"));
+            os.write(responseBody_);
+            os.flush();
+        }
+
+        private static String getReasonPhrase(int status) {
+            switch (status) {
+            case 200:
+                return "OK";
+            case 302:
+                return "Found";
+            case 400:
+                return "Bad Request";
+            case 401:
+                return "Unauthorized";
+            case 403:
+                return "Forbidden";
+            case 404:
+                return "Not Found";
+            default:
+                return "Internal Server Error";
+            }
+        }
+
+        String getMethod() {
+            return method_;
+        }
+
+        String getPath() {
+            return path_;
+        }
+
+        String getRawQuery() {
+            return rawQuery_;
+        }
+
+        String getHeader(String name) {
+            List<String> values = getHeaders(name);
+            return values.isEmpty() ? null : values.get(0);
+        }
+
+        List<String> getHeaders(String name) {
+            List<String> values = headers_.get(name.toLowerCase());
+            if (values == null) {
+                return Collections.emptyList();
+            }
+            return values;
+        }
+
+        byte[] getBody() {
+            return body_;
+        }
+
+        boolean isKeepAlive() {
+            return !"close".equalsIgnoreCase(getHeader("Connection"));
+        }
+
+        void addResponseHeader(String name, String value) {
+            responseHeaders_.add(name + ": " + value);
+        }
+
+        void setResponse(int status, byte[] body) {
+            status_ = status;
+            responseBody_ = body;
+        }
+    }
+
+}
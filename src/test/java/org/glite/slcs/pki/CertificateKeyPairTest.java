@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.pki;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import junit.framework.TestCase;
+
+import org.glite.slcs.util.Utils;
+
+/**
+ * Tests the permission of the stored private key and key pool files.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class CertificateKeyPairTest extends TestCase {
+
+    static private final String PRIVATE_MODE = "-rw-------";
+
+    private File directory_ = null;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory_ = File.createTempFile("slcs-keys", "");
+        directory_.delete();
+        directory_.mkdirs();
+    }
+
+    protected void tearDown() throws Exception {
+        delete(directory_);
+        super.tearDown();
+    }
+
+    public void testStorePEMPrivate() throws Exception {
+        if (isWindows()) {
+            return;
+        }
+        CertificateKeyPair keys = CertificateKeyPair.generate(1024,
+                                                              "secret".toCharArray());
+        // new file, as after the backup of the previous userkey.pem
+        File keyFile = new File(directory_, "userkey.pem");
+        keys.storePEMPrivate(keyFile);
+        assertEquals(PRIVATE_MODE, getMode(keyFile));
+        assertTrue(readFirstLine(keyFile).startsWith("-----BEGIN"));
+
+        // existing world readable file
+        Utils.setFilePermissions(keyFile, 644);
+        keys.storePEMPrivate(keyFile);
+        assertEquals(PRIVATE_MODE, getMode(keyFile));
+    }
+
+    public void testKeyPoolFiles() throws Exception {
+        if (isWindows()) {
+            return;
+        }
+        CertificateKeyPool pool = new CertificateKeyPool(new File(directory_,
+                "keypool"));
+        assertEquals(1, pool.fill(1024, 1));
+        File[] files = new File(pool.getDirectory(), "1024").listFiles();
+        int keys = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(".pem")) {
+                assertEquals(file.getName(), PRIVATE_MODE, getMode(file));
+                keys++;
+            }
+        }
+        assertEquals(1, keys);
+        File[] secrets = pool.getDirectory().listFiles();
+        for (File file : secrets) {
+            if (file.isFile()) {
+                assertEquals(file.getName(), PRIVATE_MODE, getMode(file));
+            }
+        }
+    }
+
+    /**
+     * @return The file mode, as shown by <code>ls -l</code>.
+     */
+    static private String getMode(File file) throws IOException,
+            InterruptedException {
+        Process ls = Runtime.getRuntime().exec(new String[] { "ls", "-ld",
+                file.getAbsolutePath() });
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                ls.getInputStream()));
+        String line = reader.readLine();
+        reader.close();
+        ls.waitFor();
+        assertNotNull("ls -ld " + file, line);
+        return line.substring(0, PRIVATE_MODE.length());
+    }
+
+    static private String readFirstLine(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            return reader.readLine();
+        } finally {
+            reader.close();
+        }
+    }
+
+    static private boolean isWindows() {
+        return System.getProperty("os.name").toLowerCase().startsWith("windows");
+    }
+
+    static private void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
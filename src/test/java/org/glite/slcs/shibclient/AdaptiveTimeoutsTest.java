@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.glite.slcs.benchmark.StubFederation;
+import org.glite.slcs.shibclient.metadata.ShibbolethClientMetadata;
+
+/**
+ * Tests the adaptive timeouts estimation, and their use for the GET requests
+ * only.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class AdaptiveTimeoutsTest extends TestCase {
+
+    public void testBounds() throws Exception {
+        AdaptiveTimeouts timeouts = new AdaptiveTimeouts(1000, 60000);
+        timeouts.record("idp.example.org", 100);
+        // latency + 4 * latency/2, bounded by the minimum
+        assertEquals(1000, timeouts.getSoTimeout("idp.example.org"));
+        timeouts.record("sp.example.org", 5000);
+        assertEquals(15000, timeouts.getSoTimeout("sp.example.org"));
+        for (int i = 0; i < 10; i++) {
+            timeouts.timeout("sp.example.org");
+        }
+        // backoff bounded by the maximum
+        assertEquals(60000, timeouts.getSoTimeout("sp.example.org"));
+        // reset by the next response
+        timeouts.record("sp.example.org", 5000);
+        assertTrue(timeouts.getSoTimeout("sp.example.org") < 60000);
+    }
+
+    public void testMaximumBelowMinimum() throws Exception {
+        AdaptiveTimeouts timeouts = new AdaptiveTimeouts(5000, 1000);
+        assertEquals(5000, timeouts.getSoTimeout("idp.example.org"));
+        timeouts.record("idp.example.org", 10);
+        assertEquals(5000, timeouts.getSoTimeout("idp.example.org"));
+    }
+
+    public void testGetRequestsOnly() throws Exception {
+        StubFederation federation = new StubFederation();
+        federation.start();
+        File metadataFile = File.createTempFile("slcs-metadata", ".xml");
+        try {
+            FileWriter writer = new FileWriter(metadataFile);
+            try {
+                writer.write("<SLCSClientConfiguration>\n");
+                writer.write(federation.getMetadata(StubFederation.PROTOCOL_SAML2));
+                writer.write("</SLCSClientConfiguration>\n");
+            } finally {
+                writer.close();
+            }
+            ShibbolethClientMetadata metadata = new ShibbolethClientMetadata(metadataFile.getAbsolutePath());
+            ShibbolethCredentials credentials = new ShibbolethCredentials(
+                    StubFederation.USERNAME, StubFederation.PASSWORD,
+                    federation.getIdentityProviderId("FORM"));
+            ShibbolethClient client = new ShibbolethClient(new HttpClient(),
+                                                           metadata,
+                                                           credentials);
+            AdaptiveTimeouts timeouts = new AdaptiveTimeouts(1000, 60000);
+            client.setAdaptiveTimeouts(timeouts);
+            String spUrl = federation.getServiceProviderUrl(StubFederation.PROTOCOL_SAML2);
+
+            // the certificate request keeps the configured timeout
+            PostMethod post = new PostMethod(spUrl.replaceFirst("/login$",
+                                                                "/certificate"));
+            post.addParameter("AuthorizationToken", "invalid");
+            try {
+                client.executeMethod(post);
+            } finally {
+                post.releaseConnection();
+            }
+            assertEquals(0, post.getParams().getSoTimeout());
+            assertEquals(60000, timeouts.getSoTimeout("localhost"));
+
+            GetMethod get = new GetMethod(spUrl);
+            get.setFollowRedirects(false);
+            try {
+                client.executeMethod(get);
+            } finally {
+                get.releaseConnection();
+            }
+            assertEquals(60000, get.getParams().getSoTimeout());
+            assertTrue(timeouts.getSoTimeout("localhost") < 60000);
+        } finally {
+            federation.stop();
+            metadataFile.delete();
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.glite.slcs.SLCSException;
+import org.glite.slcs.benchmark.StubFederation;
+import org.glite.slcs.shibclient.metadata.ShibbolethClientMetadata;
+
+/**
+ * Tests the completion and the error propagation of the authentication run
+ * in background, against the stub federation.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class AuthenticateInBackgroundTest extends TestCase {
+
+    private StubFederation federation_ = null;
+
+    private ShibbolethClientMetadata metadata_ = null;
+
+    private ExecutorService executor_ = null;
+
+    private File metadataFile_ = null;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        federation_ = new StubFederation();
+        federation_.start();
+        metadataFile_ = File.createTempFile("slcs-metadata", ".xml");
+        FileWriter writer = new FileWriter(metadataFile_);
+        try {
+            writer.write("<SLCSClientConfiguration>\n");
+            writer.write(federation_.getMetadata(StubFederation.PROTOCOL_SAML2));
+            writer.write("</SLCSClientConfiguration>\n");
+        } finally {
+            writer.close();
+        }
+        metadata_ = new ShibbolethClientMetadata(metadataFile_.getAbsolutePath());
+        executor_ = Executors.newSingleThreadExecutor();
+    }
+
+    protected void tearDown() throws Exception {
+        executor_.shutdownNow();
+        federation_.stop();
+        metadataFile_.delete();
+        super.tearDown();
+    }
+
+    public void testCompleted() throws Exception {
+        ShibbolethClient client = createClient(StubFederation.PASSWORD);
+        RecordingCallback callback = new RecordingCallback();
+        Future<Boolean> future = client.authenticateInBackground(executor_,
+                                                                 callback);
+        assertTrue(future.get(60, TimeUnit.SECONDS).booleanValue());
+        assertTrue(callback.await());
+        assertEquals(Boolean.TRUE, callback.authenticated_);
+        assertNull(callback.cause_);
+    }
+
+    public void testFailed() throws Exception {
+        ShibbolethClient client = createClient("wrong");
+        RecordingCallback callback = new RecordingCallback();
+        Future<Boolean> future = client.authenticateInBackground(executor_,
+                                                                 callback);
+        try {
+            future.get(60, TimeUnit.SECONDS);
+            fail("wrong password authenticated");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SLCSException);
+        }
+        assertTrue(callback.await());
+        assertNull(callback.authenticated_);
+        assertTrue(callback.cause_ instanceof SLCSException);
+    }
+
+    private ShibbolethClient createClient(String password) throws Exception {
+        ShibbolethCredentials credentials = new ShibbolethCredentials(
+                StubFederation.USERNAME, password,
+                federation_.getIdentityProviderId("FORM"));
+        return new ShibbolethClient(new HttpClient(), metadata_, credentials);
+    }
+
+    /**
+     * Records the callback notification.
+     */
+    static private class RecordingCallback implements AuthenticationCallback {
+
+        private CountDownLatch done_ = new CountDownLatch(1);
+
+        private volatile Boolean authenticated_ = null;
+
+        private volatile Throwable cause_ = null;
+
+        public void completed(boolean authenticated) {
+            authenticated_ = Boolean.valueOf(authenticated);
+            done_.countDown();
+        }
+
+        public void failed(Throwable cause) {
+            cause_ = cause;
+            done_.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return done_.await(10, TimeUnit.SECONDS);
+        }
+    }
+
+}
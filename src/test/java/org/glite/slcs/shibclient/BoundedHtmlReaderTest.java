@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the bounded HTML page reading.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class BoundedHtmlReaderTest extends TestCase {
+
+    private static final BoundedHtmlReader.FormMatcher LOGIN_FORM = new BoundedHtmlReader.FormMatcher() {
+        public boolean matches(String form) {
+            return form.indexOf("name=\"login\"") != -1;
+        }
+    };
+
+    private String createPage(int scriptSize) {
+        StringBuilder page = new StringBuilder();
+        page.append("<html><body>");
+        page.append("<FORM name=\"search\" action=\"/search\"><input name=\"q\"></FORM>");
+        page.append("<FORM name=\"login\" action=\"/login\" method=\"POST\">");
+        page.append("<input type=\"hidden\" name=\"lt\" value=\"LT-1\">");
+        page.append("</FORM>");
+        page.append("<script>");
+        for (int i = 0; i < scriptSize; i++) {
+            page.append('x');
+        }
+        page.append("</script></body></html>");
+        return page.toString();
+    }
+
+    public void testStopsAfterTargetForm() throws Exception {
+        String page = createPage(100000);
+        BoundedHtmlReader reader = new BoundedHtmlReader(1000000);
+        byte[] html = reader.read(new ByteArrayInputStream(page.getBytes("ISO-8859-1")),
+                                  LOGIN_FORM);
+        String read = new String(html, "ISO-8859-1");
+        assertTrue(reader.isFormFound());
+        assertFalse(reader.isTruncated());
+        assertTrue(read.endsWith("</FORM>"));
+        assertTrue(read.indexOf("LT-1") != -1);
+        assertEquals(html.length, reader.getBytesRead());
+        assertEquals(page.length() - html.length, reader.getBytesSkipped());
+    }
+
+    public void testFormNotFound() throws Exception {
+        String page = createPage(10).replace("name=\"login\"", "name=\"other\"");
+        BoundedHtmlReader reader = new BoundedHtmlReader(1000000);
+        byte[] html = reader.read(new ByteArrayInputStream(page.getBytes("ISO-8859-1")),
+                                  LOGIN_FORM);
+        assertFalse(reader.isFormFound());
+        assertEquals(page, new String(html, "ISO-8859-1"));
+        assertEquals(0, reader.getBytesSkipped());
+    }
+
+    public void testMaxPageSize() throws Exception {
+        String page = "<html><script>" + createPage(100000);
+        page = page.replace("name=\"login\"", "name=\"other\"");
+        BoundedHtmlReader reader = new BoundedHtmlReader(50000);
+        try {
+            reader.read(new ByteArrayInputStream(page.getBytes("ISO-8859-1")),
+                        LOGIN_FORM);
+            fail("page exceeds the maximum size");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testSkipTruncated() throws Exception {
+        String page = createPage(100000);
+        BoundedHtmlReader reader = new BoundedHtmlReader(20000);
+        reader.read(new ByteArrayInputStream(page.getBytes("ISO-8859-1")),
+                    LOGIN_FORM);
+        assertTrue(reader.isFormFound());
+        assertTrue(reader.isTruncated());
+        assertTrue(reader.getBytesRead() + reader.getBytesSkipped() < page.length());
+    }
+
+}
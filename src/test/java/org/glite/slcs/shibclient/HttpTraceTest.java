@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.protocol.DefaultProtocolSocketFactory;
+
+/**
+ * Tests the HTTP exchanges recording, redaction and replay.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class HttpTraceTest extends TestCase {
+
+    static private final String REQUEST = "GET /login?target=sp HTTP/1.1\r\n"
+            + "Host: localhost\r\nCookie: _idp_session=secret1\r\n\r\n";
+
+    static private final String RESPONSE = "HTTP/1.1 200 OK\r\n"
+            + "Set-Cookie: JSESSIONID=secret2; Path=/idp\r\n"
+            + "Content-Length: 5\r\n\r\nhello";
+
+    private ServerSocket server_ = null;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        server_ = new ServerSocket(0);
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    Socket socket = server_.accept();
+                    InputStream in = socket.getInputStream();
+                    // read the request head
+                    int last = 0;
+                    while (last != 0x0d0a0d0a) {
+                        last = (last << 8) | in.read();
+                    }
+                    socket.getOutputStream().write(RESPONSE.getBytes("ISO-8859-1"));
+                    socket.getOutputStream().flush();
+                    socket.close();
+                } catch (IOException e) {
+                    // test fails
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    protected void tearDown() throws Exception {
+        server_.close();
+        super.tearDown();
+    }
+
+    private String exchange(Socket socket, String request) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(request.getBytes("ISO-8859-1"));
+        out.flush();
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64];
+        int n;
+        while (response.size() < RESPONSE.length()
+                && (n = in.read(buffer)) != -1) {
+            response.write(buffer, 0, n);
+        }
+        return response.toString("ISO-8859-1");
+    }
+
+    public void testRecordAndReplay() throws Exception {
+        int port = server_.getLocalPort();
+        HttpTrace trace = new HttpTrace();
+        HttpTraceSocketFactory recorder = new HttpTraceSocketFactory(
+                new DefaultProtocolSocketFactory(), trace, false);
+        Socket socket = recorder.createSocket("localhost", port);
+        assertEquals(RESPONSE, exchange(socket, REQUEST));
+        socket.close();
+        assertEquals(1, trace.getExchanges());
+
+        File file = File.createTempFile("slcs-trace", ".bin");
+        file.deleteOnExit();
+        trace.write(file);
+        // redacted
+        InputStream in = new GZIPInputStream(new FileInputStream(file));
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            content.write(b);
+        }
+        in.close();
+        String text = content.toString("ISO-8859-1");
+        assertTrue(text.indexOf("secret") == -1);
+        assertTrue(text.indexOf("JSESSIONID=REDACTED; Path=/idp") != -1);
+
+        HttpTrace replayTrace = HttpTrace.read(file);
+        HttpTraceSocketFactory replayer = new HttpTraceSocketFactory(null,
+                replayTrace, false);
+        // twice: the last response is served again
+        for (int i = 0; i < 2; i++) {
+            Socket replay = replayer.createSocket("localhost", port);
+            assertEquals(RESPONSE.replace("secret2", "REDACTED"),
+                         exchange(replay, REQUEST));
+            // no pending request: end of stream
+            assertEquals(-1, replay.getInputStream().read());
+            replay.close();
+        }
+        Socket replay = replayer.createSocket("localhost", port);
+        try {
+            exchange(replay, "GET /other HTTP/1.1\r\n\r\n");
+            fail("request not in trace");
+        } catch (HttpException e) {
+            // expected
+        }
+    }
+
+    public void testRedactQuery() throws Exception {
+        String request = "GET /Shibboleth.sso/SAML/Artifact?TARGET=sp&SAMLart=AAF-secret1"
+                + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+        assertEquals("GET /Shibboleth.sso/SAML/Artifact?TARGET=sp&SAMLart=REDACTED"
+                             + " HTTP/1.1\r\nHost: localhost\r\n\r\n",
+                     new String(HttpTrace.redactHead(request.getBytes("ISO-8859-1"),
+                                                     false), "ISO-8859-1"));
+        String response = "HTTP/1.1 302 Found\r\n"
+                + "Location: https://idp.example.org/idp/Authn/RemoteUser?Ticket=ST-1-secret2#top\r\n"
+                + "Content-Length: 0\r\n\r\n";
+        assertEquals("HTTP/1.1 302 Found\r\n"
+                             + "Location: https://idp.example.org/idp/Authn/RemoteUser?Ticket=REDACTED#top\r\n"
+                             + "Content-Length: 0\r\n\r\n",
+                     new String(HttpTrace.redactHead(response.getBytes("ISO-8859-1"),
+                                                     true), "ISO-8859-1"));
+        // other parameters and headers unchanged
+        assertEquals("GET /login?target=sp&ticket HTTP/1.1",
+                     HttpTrace.redactQuery("GET /login?target=sp&ticket HTTP/1.1"));
+        assertEquals("GET /login HTTP/1.1",
+                     HttpTrace.redactQuery("GET /login HTTP/1.1"));
+        request = "GET /?service=sp HTTP/1.1\r\nHost: localhost\r\n"
+                + "Referer: https://sp.example.org/?ticket=ST-1\r\n\r\n";
+        assertEquals("GET /?service=sp HTTP/1.1\r\nHost: localhost\r\n"
+                             + "Referer: https://sp.example.org/?ticket=REDACTED\r\n\r\n",
+                     new String(HttpTrace.redactHead(request.getBytes("ISO-8859-1"),
+                                                     false), "ISO-8859-1"));
+    }
+
+    public void testReplayRedactedQuery() throws Exception {
+        HttpTrace trace = new HttpTrace();
+        HttpTrace.Exchange exchange = trace.startExchange(true,
+                                                          "idp.example.org",
+                                                          443);
+        byte[] request = "GET /cas/serviceValidate?ticket=ST-1 HTTP/1.1\r\n\r\n".getBytes("ISO-8859-1");
+        exchange.request(request, 0, request.length);
+        byte[] response = RESPONSE.getBytes("ISO-8859-1");
+        exchange.response(response, 0, response.length);
+        // the replayed request carries the redacted ticket
+        assertNotNull(trace.replay(true, "idp.example.org", 443,
+                                   "GET /cas/serviceValidate?ticket=REDACTED HTTP/1.1"));
+        assertNull(trace.replay(true, "idp.example.org", 443,
+                                "GET /cas/serviceValidate?service=sp HTTP/1.1"));
+    }
+
+}
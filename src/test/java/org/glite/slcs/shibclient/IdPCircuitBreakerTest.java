@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the IdP circuit breaker and the adaptive timeouts.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class IdPCircuitBreakerTest extends TestCase {
+
+    public void testOpenAfterThreshold() throws Exception {
+        IdPCircuitBreaker breaker = new IdPCircuitBreaker(2, 60000);
+        assertTrue(breaker.allow("idp"));
+        breaker.failure("idp");
+        assertEquals(IdPCircuitBreaker.STATE_CLOSED, breaker.getState("idp"));
+        assertTrue(breaker.allow("idp"));
+        breaker.failure("idp");
+        assertEquals(IdPCircuitBreaker.STATE_OPEN, breaker.getState("idp"));
+        assertFalse(breaker.allow("idp"));
+        assertTrue(breaker.getRetryDelay("idp") > 0);
+        // other IdPs not affected
+        assertTrue(breaker.allow("other"));
+        assertEquals(1, breaker.getOpenCircuits());
+        assertEquals(1, breaker.getRejected());
+    }
+
+    public void testHalfOpenTrial() throws Exception {
+        IdPCircuitBreaker breaker = new IdPCircuitBreaker(1, 50);
+        breaker.failure("idp");
+        assertFalse(breaker.allow("idp"));
+        Thread.sleep(100);
+        assertEquals(IdPCircuitBreaker.STATE_HALF_OPEN, breaker.getState("idp"));
+        // one trial per cooling-off period
+        assertTrue(breaker.allow("idp"));
+        assertFalse(breaker.allow("idp"));
+        breaker.success("idp");
+        assertEquals(IdPCircuitBreaker.STATE_CLOSED, breaker.getState("idp"));
+        assertEquals(0, breaker.getFailures("idp"));
+        assertTrue(breaker.allow("idp"));
+    }
+
+    public void testAdaptiveTimeouts() throws Exception {
+        AdaptiveTimeouts timeouts = new AdaptiveTimeouts(1000, 60000);
+        assertEquals(60000, timeouts.getSoTimeout("idp.example.org"));
+        timeouts.record("idp.example.org", 2000);
+        // latency + 4 * latency/2
+        assertEquals(6000, timeouts.getSoTimeout("idp.example.org"));
+        timeouts.timeout("idp.example.org");
+        assertEquals(12000, timeouts.getSoTimeout("idp.example.org"));
+        for (int i = 0; i < 50; i++) {
+            timeouts.record("idp.example.org", 100);
+        }
+        assertEquals(1000, timeouts.getSoTimeout("idp.example.org"));
+        assertEquals(60000, timeouts.getSoTimeout("sp.example.org"));
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.Cookie;
+import org.apache.commons.httpclient.HttpState;
+import org.glite.slcs.shibclient.metadata.IdentityProvider;
+
+/**
+ * Tests the encrypted IdP session cache.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class IdPSessionCacheTest extends TestCase {
+
+    private File file_ = null;
+
+    private IdentityProvider idp_ = new IdentityProvider("idp.example.org",
+            "Example IdP", "https://aai.example.org/idp/profile/SSO",
+            IdentityProvider.SSO_AUTHTYPE_CAS, "https://cas.example.org/login");
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        file_ = File.createTempFile("idp-session", ".cache");
+        file_.delete();
+    }
+
+    protected void tearDown() throws Exception {
+        file_.delete();
+        super.tearDown();
+    }
+
+    private HttpState createState() {
+        HttpState state = new HttpState();
+        state.addCookie(new Cookie("aai.example.org", "_idp_session", "s3cr3t",
+                "/idp", null, true));
+        state.addCookie(new Cookie("cas.example.org", "CASTGC", "TGT-1",
+                "/", new Date(System.currentTimeMillis() + 3600000L), true));
+        state.addCookie(new Cookie("sp.example.org", "_shibsession_1", "sp",
+                "/", null, true));
+        state.addCookie(new Cookie("aai.example.org", "expired", "old", "/",
+                new Date(System.currentTimeMillis() - 1000L), false));
+        return state;
+    }
+
+    public void testSaveLoad() throws Exception {
+        IdPSessionCache cache = new IdPSessionCache(file_,
+                "password".toCharArray());
+        cache.save(createState(), "user", idp_);
+        assertTrue(file_.exists());
+
+        HttpState state = new HttpState();
+        int restored = new IdPSessionCache(file_, "password".toCharArray()).load(state,
+                                                                                 "user",
+                                                                                 idp_);
+        // only the valid IdP and CAS cookies
+        assertEquals(2, restored);
+        Cookie[] cookies = state.getCookies();
+        assertEquals("_idp_session", cookies[0].getName());
+        assertEquals("s3cr3t", cookies[0].getValue());
+        assertEquals("/idp", cookies[0].getPath());
+        assertTrue(cookies[0].getSecure());
+        assertEquals("CASTGC", cookies[1].getName());
+        assertEquals("cas.example.org", cookies[1].getDomain());
+    }
+
+    public void testWrongPassword() throws Exception {
+        new IdPSessionCache(file_, "password".toCharArray()).save(createState(),
+                                                                  "user", idp_);
+        HttpState state = new HttpState();
+        int restored = new IdPSessionCache(file_, "changed".toCharArray()).load(state,
+                                                                                "user",
+                                                                                idp_);
+        assertEquals(0, restored);
+        assertEquals(0, state.getCookies().length);
+    }
+
+    public void testOtherUser() throws Exception {
+        IdPSessionCache cache = new IdPSessionCache(file_,
+                "password".toCharArray());
+        cache.save(createState(), "user", idp_);
+        assertEquals(0, cache.load(new HttpState(), "other", idp_));
+    }
+
+    public void testCorrupted() throws Exception {
+        new IdPSessionCache(file_, "password".toCharArray()).save(createState(),
+                                                                  "user", idp_);
+        long length = file_.length();
+        // IV length (after magic and salt): negative, then huge
+        int[] ivLengths = { -1, Integer.MAX_VALUE };
+        for (int ivLength : ivLengths) {
+            RandomAccessFile raf = new RandomAccessFile(file_, "rw");
+            raf.seek(2 + "SLCS-IdP-Session-1".length() + 16);
+            raf.writeInt(ivLength);
+            raf.close();
+            assertEquals(0, new IdPSessionCache(file_, "password".toCharArray()).load(new HttpState(),
+                                                                                      "user",
+                                                                                      idp_));
+        }
+        // truncated
+        new IdPSessionCache(file_, "password".toCharArray()).save(createState(),
+                                                                  "user", idp_);
+        RandomAccessFile raf = new RandomAccessFile(file_, "rw");
+        raf.setLength(length / 2);
+        raf.close();
+        assertEquals(0, new IdPSessionCache(file_, "password".toCharArray()).load(new HttpState(),
+                                                                                  "user",
+                                                                                  idp_));
+    }
+
+    public void testPasswordCopied() throws Exception {
+        char[] password = "password".toCharArray();
+        IdPSessionCache cache = new IdPSessionCache(file_, password);
+        cache.save(createState(), "user", idp_);
+        // the copy is wiped, not the caller password
+        assertTrue(Arrays.equals("password".toCharArray(), password));
+        // saved again and loaded with the derived keys
+        cache.save(createState(), "user", idp_);
+        assertEquals(2, cache.load(new HttpState(), "user", idp_));
+    }
+
+    public void testNoCache() throws Exception {
+        IdPSessionCache cache = new IdPSessionCache(file_,
+                "password".toCharArray());
+        assertEquals(0, cache.load(new HttpState(), "user", idp_));
+        cache.save(createState(), "user", idp_);
+        cache.clear();
+        assertFalse(file_.exists());
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.glite.slcs.benchmark.StubFederation;
+import org.glite.slcs.shibclient.metadata.ShibbolethClientMetadata;
+
+/**
+ * Tests the record and the replay of the flow plans, and the fallback to the
+ * full discovery, against the stub federation.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class ShibbolethFlowPlansTest extends TestCase {
+
+    static private final String AUTH_TYPE = "FORM";
+
+    private StubFederation federation_ = null;
+
+    private ShibbolethClientMetadata metadata_ = null;
+
+    private File metadataFile_ = null;
+
+    private File plansFile_ = null;
+
+    private String spEntryURL_ = null;
+
+    private String idpProviderId_ = null;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        federation_ = new StubFederation();
+        federation_.start();
+        metadataFile_ = File.createTempFile("slcs-metadata", ".xml");
+        FileWriter writer = new FileWriter(metadataFile_);
+        try {
+            writer.write("<SLCSClientConfiguration>\n");
+            writer.write(federation_.getMetadata(StubFederation.PROTOCOL_DS));
+            writer.write("</SLCSClientConfiguration>\n");
+        } finally {
+            writer.close();
+        }
+        metadata_ = new ShibbolethClientMetadata(metadataFile_.getAbsolutePath());
+        plansFile_ = File.createTempFile("slcs-plans", ".properties");
+        plansFile_.delete();
+        spEntryURL_ = federation_.getServiceProviderUrl(StubFederation.PROTOCOL_DS);
+        idpProviderId_ = metadata_.getIdentityProvider(federation_.getIdentityProviderId(AUTH_TYPE)).getId();
+    }
+
+    protected void tearDown() throws Exception {
+        federation_.stop();
+        metadataFile_.delete();
+        plansFile_.delete();
+        super.tearDown();
+    }
+
+    public void testRecordReplay() throws Exception {
+        // the SP relay state is only valid once
+        federation_.setRelayStateStored(true);
+        assertTrue(authenticate());
+        ShibbolethFlowPlans.Plan plan = new ShibbolethFlowPlans(plansFile_).get(spEntryURL_,
+                                                                                 idpProviderId_);
+        assertNotNull(plan);
+        assertEquals(ShibbolethFlowPlans.PROTOCOL_SAML2_DS, plan.getProtocol());
+        assertNotNull(plan.getDSReturnURL());
+        assertTrue(plan.getDSReturnURL(),
+                   plan.getDSReturnURL().indexOf("target=") == -1);
+        long entries = federation_.getRequests(getSPPath("/SLCS/login"));
+
+        // replay: directly to the DS return URL
+        assertTrue(authenticate());
+        assertEquals(2 * entries - 1,
+                     federation_.getRequests(getSPPath("/SLCS/login")));
+        assertEquals(2,
+                     federation_.getRequests(getSPPath("/Shibboleth.sso/Login")));
+        assertNotNull(new ShibbolethFlowPlans(plansFile_).get(spEntryURL_,
+                                                               idpProviderId_));
+    }
+
+    public void testFallback() throws Exception {
+        federation_.setRelayStateStored(true);
+        assertTrue(authenticate());
+        long entries = federation_.getRequests(getSPPath("/SLCS/login"));
+
+        // the rebuilt relay state does not reach the SP entry URL anymore,
+        // the retry reuses the SP session of the planned flow
+        federation_.setRelayStateURLRejected(true);
+        assertTrue(authenticate());
+        assertEquals(2 * entries,
+                     federation_.getRequests(getSPPath("/SLCS/login")));
+        assertEquals(2,
+                     federation_.getRequests(getSPPath("/Shibboleth.sso/Login")));
+        assertNull(new ShibbolethFlowPlans(plansFile_).get(spEntryURL_,
+                                                            idpProviderId_));
+
+        // next full discovery records the plan again
+        assertTrue(authenticate());
+        assertEquals(3,
+                     federation_.getRequests(getSPPath("/Shibboleth.sso/Login")));
+        assertNotNull(new ShibbolethFlowPlans(plansFile_).get(spEntryURL_,
+                                                               idpProviderId_));
+    }
+
+    public void testEmptyLoginFormAction() throws Exception {
+        // the SSO URL relay state is only valid once
+        federation_.setRelayStateStored(true);
+        federation_.setLoginFormActionEmpty(true);
+        assertTrue(authenticate());
+        ShibbolethFlowPlans.Plan plan = new ShibbolethFlowPlans(plansFile_).get(spEntryURL_,
+                                                                                 idpProviderId_);
+        assertNotNull(plan);
+        assertEquals("", plan.getFormRawAction());
+        assertEquals(-1, readPlans().indexOf("SAMLRequest"));
+
+        // replay: posted to the SSO URL of this run, without fallback
+        assertTrue(authenticate());
+        assertEquals(2,
+                     federation_.getRequests(getSPPath("/Shibboleth.sso/Login")));
+        assertNotNull(new ShibbolethFlowPlans(plansFile_).get(spEntryURL_,
+                                                               idpProviderId_));
+    }
+
+    public void testPlannedLoginFormComments() throws Exception {
+        URI ssoLoginURI = new URI("https://idp.example.org/SSO?SAMLRequest=1",
+                false);
+        ShibbolethFlowPlans.Plan plan = new ShibbolethFlowPlans.Plan();
+        plan.setLoginForm("/login", Arrays.asList(new String[] { "lt" }));
+        String page = "<html><body>\n"
+                + "<!-- <form action=\"/login\"><input type=\"hidden\" name=\"lt\" value=\"old\"/></form> -->\n"
+                + "<form action=\"/login\" method=\"post\">\n"
+                + "<input type=\"hidden\" name=\"lt\" value=\"LT-1\"/>\n"
+                + "<!--\n<input type=\"hidden\" name=\"legacy\" value=\"1\"/>\n-->\n"
+                + "<input type=\"text\" name=\"username\"/>\n"
+                + "</form>\n</body></html>";
+        PostMethod post = ShibbolethClient.createPlannedLoginFormMethod(page.getBytes("ISO-8859-1"),
+                                                                        plan,
+                                                                        ssoLoginURI);
+        assertNotNull(post);
+        assertEquals("https://idp.example.org/login", post.getURI().toString());
+        assertEquals("LT-1", post.getParameter("lt").getValue());
+        assertNull(post.getParameter("legacy"));
+
+        plan.setLoginForm("/login", new ArrayList<String>());
+        assertNull(ShibbolethClient.createPlannedLoginFormMethod(page.getBytes("ISO-8859-1"),
+                                                                 plan,
+                                                                 ssoLoginURI));
+    }
+
+    /**
+     * Authenticates with a new client, as a new slcs-init run.
+     */
+    private boolean authenticate() throws Exception {
+        ShibbolethCredentials credentials = new ShibbolethCredentials(
+                StubFederation.USERNAME, StubFederation.PASSWORD,
+                federation_.getIdentityProviderId(AUTH_TYPE));
+        ShibbolethClient client = new ShibbolethClient(new HttpClient(),
+                                                       metadata_, credentials);
+        client.setFlowPlans(new ShibbolethFlowPlans(plansFile_));
+        return client.authenticate(spEntryURL_);
+    }
+
+    private String readPlans() throws Exception {
+        StringBuilder plans = new StringBuilder();
+        FileReader reader = new FileReader(plansFile_);
+        try {
+            char[] buffer = new char[1024];
+            int n;
+            while ((n = reader.read(buffer)) != -1) {
+                plans.append(buffer, 0, n);
+            }
+        } finally {
+            reader.close();
+        }
+        return plans.toString();
+    }
+
+    private String getSPPath(String endpoint) {
+        return "/sp/" + StubFederation.PROTOCOL_DS.toLowerCase() + endpoint;
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient.metadata;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the IdP search index.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class IdentityProviderIndexTest extends TestCase {
+
+    private IdentityProviderIndex index_= null;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        List<IdentityProvider> idps= new ArrayList<IdentityProvider>();
+        idps.add(createIdP("uzh.ch", "Universit\u00e4t Z\u00fcrich", "aai-idp.uzh.ch"));
+        idps.add(createIdP("unil.ch", "Universit\u00e9 de Lausanne", "aai.unil.ch"));
+        idps.add(createIdP("switch.ch", "SWITCH", "aai-logon.switch.ch"));
+        idps.add(createIdP("ethz.ch", "ETH Zurich", "aai-logon.ethz.ch"));
+        for (int i= 0; i < 2000; i++) {
+            idps.add(createIdP("idp" + i + ".example.org", "Example " + i,
+                               "idp" + i + ".example.org"));
+        }
+        index_= new IdentityProviderIndex(idps);
+    }
+
+    private static IdentityProvider createIdP(String id, String name,
+            String host) {
+        IdentityProvider idp= new IdentityProvider(id, name, "https://" + host
+                + "/idp/profile/SAML2/Redirect/SSO", "FORM", null);
+        idp.setEntityID("https://" + host + "/idp/shibboleth");
+        return idp;
+    }
+
+    private static List<String> ids(List<IdentityProvider> idps) {
+        List<String> ids= new ArrayList<String>();
+        for (IdentityProvider idp : idps) {
+            ids.add(idp.getId());
+        }
+        return ids;
+    }
+
+    public void testExactAndPrefix() throws Exception {
+        assertEquals(2004, index_.size());
+        assertEquals("switch.ch", ids(index_.search("SWITCH.ch", 10)).get(0));
+        assertEquals("switch.ch", ids(index_.search("https://aai-logon.switch.ch/idp/shibboleth", 10)).get(0));
+        assertEquals("unil.ch", ids(index_.search("aai.unil.ch", 10)).get(0));
+        // accents, name words: both Zurich, exact name first
+        List<String> zurich= ids(index_.search("zurich", 10));
+        assertEquals(2, zurich.size());
+        assertTrue(zurich.contains("uzh.ch"));
+        assertTrue(zurich.contains("ethz.ch"));
+        assertEquals("ethz.ch", ids(index_.search("ETH Z\u00fcrich", 10)).get(0));
+        assertEquals("[unil.ch, uzh.ch]", ids(index_.search("universit", 10)).toString());
+        assertEquals(10, index_.search("idp1", 10).size());
+        assertTrue(index_.search("", 10).isEmpty());
+    }
+
+    public void testSubstring() throws Exception {
+        assertEquals("[unil.ch]", ids(index_.search("lausan", 10)).toString());
+        assertEquals("[idp1999.example.org]", ids(index_.search("p1999.ex", 10)).toString());
+        assertEquals("[ethz.ch, switch.ch]", ids(index_.search("i-logon", 10)).toString());
+        assertTrue(index_.search("xyz", 10).isEmpty());
+    }
+
+    public void testFuzzy() throws Exception {
+        assertEquals("[unil.ch]", ids(index_.search("lausane", 10)).toString());
+        assertEquals("[switch.ch]", ids(index_.search("swithc", 10)).toString());
+        assertEquals(2, IdentityProviderIndex.distance("swithc", "switch", 2));
+        assertEquals(3, IdentityProviderIndex.distance("abcdef", "uvwxyz", 2));
+    }
+
+}
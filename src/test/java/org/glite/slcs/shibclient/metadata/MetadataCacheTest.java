@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient.metadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the metadata download cache: fresh, revalidated and stale cached
+ * metadata.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class MetadataCacheTest extends TestCase {
+
+    static private final String METADATA= "<ShibbolethClientMetadata/>";
+
+    static private final String ETAG= "\"v1\"";
+
+    private ServerSocket server_= null;
+
+    private File directory_= null;
+
+    /** Requests received, and with the If-None-Match validator */
+    private volatile int requests_= 0;
+
+    private volatile int conditionalRequests_= 0;
+
+    /** Responds with a truncated metadata */
+    private volatile boolean truncated_= false;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory_= File.createTempFile("slcs-metadata-cache", "");
+        directory_.delete();
+        server_= new ServerSocket(0);
+        Thread thread= new Thread() {
+            public void run() {
+                try {
+                    while (true) {
+                        Socket socket= server_.accept();
+                        serve(socket);
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // server closed
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void serve(Socket socket) throws IOException {
+        InputStream in= socket.getInputStream();
+        StringBuilder head= new StringBuilder();
+        int last= 0;
+        while (last != 0x0d0a0d0a) {
+            int b= in.read();
+            if (b == -1) {
+                return;
+            }
+            head.append((char) b);
+            last= (last << 8) | b;
+        }
+        requests_++;
+        String response;
+        if (truncated_) {
+            String metadata= METADATA.substring(0, METADATA.length() - 2);
+            response= "HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: "
+                    + metadata.length() + "\r\n\r\n" + metadata;
+        }
+        else if (head.indexOf("If-None-Match: " + ETAG) != -1) {
+            conditionalRequests_++;
+            response= "HTTP/1.1 304 Not Modified\r\nConnection: close\r\n\r\n";
+        }
+        else {
+            response= "HTTP/1.1 200 OK\r\nETag: " + ETAG
+                    + "\r\nConnection: close\r\nContent-Length: "
+                    + METADATA.length() + "\r\n\r\n" + METADATA;
+        }
+        OutputStream out= socket.getOutputStream();
+        out.write(response.getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    protected void tearDown() throws Exception {
+        server_.close();
+        File files[]= directory_.listFiles();
+        for (int i= 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+        directory_.delete();
+        super.tearDown();
+    }
+
+    public void testFreshAndRevalidated() throws Exception {
+        URL url= new URL("http://localhost:" + server_.getLocalPort()
+                + "/slcs-metadata.xml");
+        MetadataCache cache= new MetadataCache(directory_, 60000, 0);
+        File file= cache.get(url);
+        assertTrue(file.exists());
+        assertEquals(METADATA.length(), file.length());
+        assertEquals(1, requests_);
+        // fresh: no request
+        assertEquals(file, cache.get(url));
+        assertEquals(1, requests_);
+        // expired: conditional GET
+        cache= new MetadataCache(directory_, 0, 0);
+        assertEquals(file, cache.get(url));
+        assertEquals(2, requests_);
+        assertEquals(1, conditionalRequests_);
+        assertTrue(file.exists());
+    }
+
+    public void testStaleWhileRevalidate() throws Exception {
+        URL url= new URL("http://localhost:" + server_.getLocalPort()
+                + "/slcs-metadata.xml");
+        new MetadataCache(directory_, 60000, 0).get(url);
+        assertEquals(1, requests_);
+        // stale within the grace period: cached file, refreshed in background
+        MetadataCache cache= new MetadataCache(directory_, 0, 60000);
+        File file= cache.get(url);
+        assertTrue(file.exists());
+        cache.awaitRefresh(10000);
+        assertEquals(2, requests_);
+        assertEquals(1, conditionalRequests_);
+    }
+
+    public void testStaleIfError() throws Exception {
+        URL url= new URL("http://localhost:" + server_.getLocalPort()
+                + "/slcs-metadata.xml");
+        File file= new MetadataCache(directory_, 60000, 0).get(url);
+        server_.close();
+        // expired and server down: the cached file is still used
+        assertEquals(file, new MetadataCache(directory_, 0, 0).get(url));
+        assertTrue(file.exists());
+    }
+
+    public void testInvalidDownload() throws Exception {
+        URL url= new URL("http://localhost:" + server_.getLocalPort()
+                + "/slcs-metadata.xml");
+        File file= new MetadataCache(directory_, 60000, 0).get(url);
+        truncated_= true;
+        // expired, the truncated download does not replace the cached file
+        assertEquals(file, new MetadataCache(directory_, 0, 0).get(url));
+        assertEquals(2, requests_);
+        assertEquals(METADATA.length(), file.length());
+        // not cached
+        file.delete();
+        try {
+            new MetadataCache(directory_, 0, 0).get(url);
+            fail("truncated metadata cached");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(file.exists());
+    }
+
+    public void testReadTimeout() throws Exception {
+        // accepts the connection, never responds
+        ServerSocket stalled= new ServerSocket(0);
+        try {
+            URL url= new URL("http://localhost:" + stalled.getLocalPort()
+                    + "/slcs-metadata.xml");
+            MetadataCache cache= new MetadataCache(directory_, 60000, 0);
+            cache.setTimeouts(1000, 500);
+            long start= System.currentTimeMillis();
+            try {
+                cache.get(url);
+                fail("stalled download");
+            } catch (IOException e) {
+                // expected
+            }
+            assertTrue(System.currentTimeMillis() - start < 10000);
+        } finally {
+            stalled.close();
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient.metadata;
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.glite.slcs.SLCSConfigurationException;
+
+/**
+ * Tests the streaming metadata reader.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class MetadataReaderTest extends TestCase {
+
+    static private final String SP= "<ServiceProvider id=\"slcs\">"
+            + "<name>SLCS Server</name>"
+            + "<url>https://slcs.example.org/SLCS/login</url>"
+            + "</ServiceProvider>";
+
+    static private final String FORM_IDP= "<IdentityProvider id=\"example.org\" entityID=\"https://idp.example.org/idp/shibboleth\">"
+            + "<name> Forschungsanstalt fuer Wald, Schnee und Landschaft </name>"
+            + "<url>https://idp.example.org/idp/profile/SAML2/Redirect/SSO</url>"
+            + "<authentication type=\"FORM\">"
+            + "<url>https://idp.example.org/idp/Authn/UserPassword</url>"
+            + "<form name=\"j_loginform\"><username>j_username</username>"
+            + "<password>j_password</password></form>"
+            + "</authentication></IdentityProvider>";
+
+    static private final String NTLM_IDP= "<IdentityProvider id=\"ntlm.org\">"
+            + "<name>NTLM\\, Inc.</name>"
+            + "<url>https://idp.ntlm.org/SSO</url>"
+            + "<authentication type=\"NTLM\"><realm>ntlm.org</realm></authentication>"
+            + "</IdentityProvider>";
+
+    private MetadataReader read(String xml) throws Exception {
+        return MetadataReader.read(new ByteArrayInputStream(xml.getBytes("UTF-8")),
+                                   "test");
+    }
+
+    public void testRead() throws Exception {
+        MetadataReader reader= read("<ShibbolethClientMetadata>" + SP
+                + "<!-- IdPs --><IdentityProviders>" + FORM_IDP + NTLM_IDP
+                + "</IdentityProviders></ShibbolethClientMetadata>");
+        assertEquals("slcs", reader.getSLCSProviderId());
+        Map<String,Provider> providers= reader.getProviders();
+        assertEquals(3, providers.size());
+        ServiceProvider sp= (ServiceProvider) providers.get("slcs");
+        assertEquals("https://slcs.example.org/SLCS/login", sp.getUrl());
+
+        IdentityProvider idp= (IdentityProvider) providers.get("example.org");
+        // first value of the list, as commons-configuration
+        assertEquals("Forschungsanstalt fuer Wald", idp.getName());
+        assertEquals("https://idp.example.org/idp/shibboleth", idp.getEntityID());
+        assertEquals(IdentityProvider.SSO_AUTHTYPE_FORM, idp.getAuthType());
+        assertEquals("https://idp.example.org/idp/Authn/UserPassword", idp.getAuthUrl());
+        assertEquals("j_loginform", idp.getAuthFormName());
+        assertEquals("j_username", idp.getAuthFormUsername());
+        assertEquals("j_password", idp.getAuthFormPassword());
+        assertNull(idp.getAuthRealm());
+
+        idp= (IdentityProvider) providers.get("ntlm.org");
+        assertEquals("NTLM, Inc.", idp.getName());
+        assertNull(idp.getEntityID());
+        assertEquals(IdentityProvider.SSO_AUTHTYPE_NTLM, idp.getAuthType());
+        // default authentication url
+        assertEquals("https://idp.ntlm.org/SSO", idp.getAuthUrl());
+        assertEquals("ntlm.org", idp.getAuthRealm());
+        assertNull(idp.getAuthFormName());
+    }
+
+    public void testDefaultSLCSProviderId() throws Exception {
+        MetadataReader reader= read("<SLCSClientConfiguration><ServiceProvider>"
+                + "<url>https://slcs.example.org/SLCS/login</url></ServiceProvider>"
+                + "<IdentityProviders>" + NTLM_IDP + "</IdentityProviders>"
+                + "</SLCSClientConfiguration>");
+        assertEquals(ShibbolethClientMetadata.DEFAULT_SLCS_PROVIDERID,
+                     reader.getSLCSProviderId());
+    }
+
+    public void testErrors() throws Exception {
+        assertError("<ShibbolethClientMetadata><IdentityProviders>" + NTLM_IDP
+                + "</IdentityProviders></ShibbolethClientMetadata>",
+                    "ServiceProvider element not found in metadata");
+        assertError("<ShibbolethClientMetadata>" + SP
+                + "</ShibbolethClientMetadata>",
+                    "IdentityProviders element not found in metadata");
+        assertError("<ShibbolethClientMetadata>" + SP
+                + "<IdentityProviders><Other/></IdentityProviders></ShibbolethClientMetadata>",
+                    "No IdentityProvider element found in metadata");
+        try {
+            read("<ShibbolethClientMetadata>" + SP);
+            fail("invalid XML");
+        } catch (SLCSConfigurationException e) {
+            assertTrue(e.getMessage().startsWith("Failed to parse metadata: test"));
+        }
+    }
+
+    private void assertError(String xml, String error) throws Exception {
+        try {
+            read(xml);
+            fail(error);
+        } catch (SLCSConfigurationException e) {
+            assertEquals(error, e.getMessage());
+        }
+    }
+
+}
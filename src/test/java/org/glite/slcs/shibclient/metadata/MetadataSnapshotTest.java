@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient.metadata;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the compiled metadata snapshot.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class MetadataSnapshotTest extends TestCase {
+
+    private File file_= null;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        file_= File.createTempFile("slcs-metadata", ".snapshot");
+    }
+
+    protected void tearDown() throws Exception {
+        file_.delete();
+        super.tearDown();
+    }
+
+    public void testWriteAndOpen() throws Exception {
+        List<Provider> providers= new ArrayList<Provider>();
+        providers.add(new ServiceProvider("slcs", "SLCS", "https://slcs.example.org/SLCS/login"));
+        IdentityProvider form= new IdentityProvider("example.org", "Example",
+                "https://idp.example.org/idp/profile/SAML2/Redirect/SSO",
+                "form", "https://idp.example.org/idp/Authn/UserPassword");
+        form.setEntityID("https://idp.example.org/idp/shibboleth");
+        form.setAuthFormName("");
+        form.setAuthFormUsername("j_username");
+        form.setAuthFormPassword("j_password");
+        providers.add(form);
+        IdentityProvider basic= new IdentityProvider("basic.org", "B\u00e4sic",
+                "https://idp.basic.org/SSO", "basic", "https://idp.basic.org/SSO");
+        basic.setAuthRealm("Basic realm");
+        providers.add(basic);
+
+        MetadataSnapshot.write(file_, "hash1", "slcs", providers);
+        assertNull(MetadataSnapshot.open(file_, "hash2"));
+        MetadataSnapshot snapshot= MetadataSnapshot.open(file_, "hash1");
+        assertNotNull(snapshot);
+        assertEquals("slcs", snapshot.getSLCSProviderId());
+        assertEquals(3, snapshot.size());
+        assertNull(snapshot.getProvider("unknown"));
+
+        IdentityProvider idp= (IdentityProvider) snapshot.getProvider("example.org");
+        assertEquals(form.toString(), idp.toString());
+        assertEquals(IdentityProvider.SSO_AUTHTYPE_FORM, idp.getAuthType());
+        assertEquals("j_password", idp.getAuthFormPassword());
+        assertSame(idp, snapshot.getProvider("example.org"));
+        idp= (IdentityProvider) snapshot.getProvider("basic.org");
+        assertEquals(basic.toString(), idp.toString());
+        assertNull(idp.getEntityID());
+        assertTrue(snapshot.getProvider("slcs") instanceof ServiceProvider);
+        assertEquals(3, snapshot.getProviders().size());
+
+        // entityID index
+        idp= snapshot.getIdentityProviderByEntityID("https://idp.example.org/idp/shibboleth");
+        assertSame(snapshot.getProvider("example.org"), idp);
+        assertNull(snapshot.getIdentityProviderByEntityID("https://idp.basic.org/idp/shibboleth"));
+        assertNull(snapshot.getIdentityProviderByEntityID(null));
+    }
+
+    public void testLookupIndex() throws Exception {
+        List<Provider> providers= new ArrayList<Provider>();
+        providers.add(new ServiceProvider("slcs", "SLCS", "https://slcs.example.org/SLCS/login"));
+        for (int i= 0; i < 1000; i++) {
+            IdentityProvider idp= new IdentityProvider("idp" + i + ".example.org",
+                    "IdP " + i, "https://idp" + i + ".example.org/SSO", "form",
+                    "https://idp" + i + ".example.org/SSO");
+            idp.setEntityID("https://idp" + i + ".example.org/idp/shibboleth");
+            providers.add(idp);
+        }
+        MetadataSnapshot.write(file_, "stamp", "slcs", providers);
+        MetadataSnapshot snapshot= MetadataSnapshot.open(file_, "stamp");
+        assertEquals(1001, snapshot.size());
+        for (int i= 0; i < 1000; i += 7) {
+            String id= "idp" + i + ".example.org";
+            assertEquals(id, snapshot.getProvider(id).getId());
+            assertEquals(id, snapshot.getIdentityProviderByEntityID("https://" + id + "/idp/shibboleth").getId());
+        }
+        assertNull(snapshot.getProvider("idp1000.example.org"));
+        assertNull(snapshot.getProvider(""));
+        assertEquals(1001, snapshot.getProviders().size());
+
+        // truncated
+        RandomAccessFile raf= new RandomAccessFile(file_, "rw");
+        raf.setLength(raf.length() - 10);
+        raf.close();
+        assertNull(MetadataSnapshot.open(file_, "stamp"));
+    }
+
+    public void testInvalidSnapshot() throws Exception {
+        FileOutputStream out= new FileOutputStream(file_);
+        out.write("<ShibbolethClientMetadata/>".getBytes("UTF-8"));
+        out.close();
+        assertNull(MetadataSnapshot.open(file_, "hash1"));
+        assertNull(MetadataSnapshot.open(new File(file_.getPath() + ".missing"), "hash1"));
+        String stamp= MetadataSnapshot.stamp(file_);
+        assertTrue(stamp.startsWith(file_.getAbsolutePath()));
+        out= new FileOutputStream(file_, true);
+        out.write("<!-- modified -->".getBytes("UTF-8"));
+        out.close();
+        assertFalse(stamp.equals(MetadataSnapshot.stamp(file_)));
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.shibclient.metadata;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.glite.slcs.SLCSConfigurationException;
+
+/**
+ * Tests the SAML2 federation metadata reader.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class SAML2MetadataReaderTest extends TestCase {
+
+    static private final String METADATA= "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\"\n"
+            + "    xmlns:mdui=\"urn:oasis:names:tc:SAML:metadata:ui\"\n"
+            + "    xmlns:shibmd=\"urn:mace:shibboleth:metadata:1.0\" Name=\"test\">\n"
+            // IdP with scope, mdui names and both SSO bindings
+            + "  <md:EntityDescriptor entityID=\"https://aai-logon.example.org/idp/shibboleth\">\n"
+            + "    <md:IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">\n"
+            + "      <md:Extensions>\n"
+            + "        <shibmd:Scope regexp=\"true\">^.*\\.example\\.org$</shibmd:Scope>\n"
+            + "        <shibmd:Scope regexp=\"false\"> example.org </shibmd:Scope>\n"
+            + "        <mdui:UIInfo>\n"
+            + "          <mdui:DisplayName xml:lang=\"de\">Beispiel Universit\u00e4t</mdui:DisplayName>\n"
+            + "          <mdui:DisplayName xml:lang=\"en\">Example University</mdui:DisplayName>\n"
+            + "        </mdui:UIInfo>\n"
+            + "      </md:Extensions>\n"
+            + "      <md:SingleSignOnService Binding=\"urn:mace:shibboleth:1.0:profiles:AuthnRequest\" Location=\"https://aai-logon.example.org/idp/profile/Shibboleth/SSO\"/>\n"
+            + "      <md:SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\" Location=\"https://aai-logon.example.org/idp/profile/SAML2/POST/SSO\"/>\n"
+            + "      <md:SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect\" Location=\"https://aai-logon.example.org/idp/profile/SAML2/Redirect/SSO\"/>\n"
+            + "    </md:IDPSSODescriptor>\n"
+            + "    <md:Organization>\n"
+            + "      <md:OrganizationDisplayName xml:lang=\"en\">Example</md:OrganizationDisplayName>\n"
+            + "    </md:Organization>\n"
+            + "  </md:EntityDescriptor>\n"
+            // SP, skipped
+            + "  <md:EntityDescriptor entityID=\"https://slcs.example.org/shibboleth\">\n"
+            + "    <md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">\n"
+            + "      <md:AssertionConsumerService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\" Location=\"https://slcs.example.org/Shibboleth.sso/SAML2/POST\" index=\"1\"/>\n"
+            + "    </md:SPSSODescriptor>\n"
+            + "  </md:EntityDescriptor>\n"
+            // nested aggregate, same scope, Shibboleth SSO only
+            + "  <md:EntitiesDescriptor Name=\"nested\">\n"
+            + "    <md:EntityDescriptor entityID=\"https://idp2.example.org/idp/shibboleth\">\n"
+            + "      <md:IDPSSODescriptor protocolSupportEnumeration=\"urn:mace:shibboleth:1.0\">\n"
+            + "        <md:Extensions><shibmd:Scope regexp=\"false\">example.org</shibmd:Scope></md:Extensions>\n"
+            + "        <md:SingleSignOnService Binding=\"urn:mace:shibboleth:1.0:profiles:AuthnRequest\" Location=\"https://idp2.example.org/idp/profile/Shibboleth/SSO\"/>\n"
+            + "      </md:IDPSSODescriptor>\n"
+            + "      <md:Organization>\n"
+            + "        <md:OrganizationDisplayName xml:lang=\"fr\">Exemple 2</md:OrganizationDisplayName>\n"
+            + "      </md:Organization>\n"
+            + "    </md:EntityDescriptor>\n"
+            // URN entityID, no scope, no name
+            + "    <md:EntityDescriptor entityID=\"urn:mace:example.net:idp\">\n"
+            + "      <md:IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">\n"
+            + "        <md:SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect\" Location=\"https://idp.example.net/SSO\"/>\n"
+            + "      </md:IDPSSODescriptor>\n"
+            + "    </md:EntityDescriptor>\n"
+            // POST only, ignored
+            + "    <md:EntityDescriptor entityID=\"https://idp3.example.org/idp/shibboleth\">\n"
+            + "      <md:IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">\n"
+            + "        <md:SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\" Location=\"https://idp3.example.org/SSO\"/>\n"
+            + "      </md:IDPSSODescriptor>\n"
+            + "    </md:EntityDescriptor>\n"
+            + "  </md:EntitiesDescriptor>\n"
+            + "</md:EntitiesDescriptor>\n";
+
+    private SAML2MetadataReader reader_= null;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        IdentityProvider template= new IdentityProvider("template", null, null,
+                "FORM", null);
+        template.setAuthFormName("j_loginform");
+        template.setAuthFormUsername("j_username");
+        template.setAuthFormPassword("j_password");
+        reader_= new SAML2MetadataReader(template);
+    }
+
+    public void testRead() throws Exception {
+        Map<String, IdentityProvider> idps= reader_.read(new ByteArrayInputStream(METADATA.getBytes("UTF-8")),
+                                                         "test");
+        assertEquals(3, idps.size());
+        assertEquals(5, reader_.getEntityCount());
+
+        IdentityProvider idp= idps.get("example.org");
+        assertEquals("https://aai-logon.example.org/idp/shibboleth", idp.getEntityID());
+        assertEquals("Example University", idp.getName());
+        assertEquals("https://aai-logon.example.org/idp/profile/SAML2/Redirect/SSO", idp.getUrl());
+        assertEquals(idp.getUrl(), idp.getAuthUrl());
+        assertEquals(IdentityProvider.SSO_AUTHTYPE_FORM, idp.getAuthType());
+        assertEquals("j_loginform", idp.getAuthFormName());
+        assertEquals("j_password", idp.getAuthFormPassword());
+
+        // scope already used: entityID host
+        idp= idps.get("idp2.example.org");
+        assertEquals("https://idp2.example.org/idp/shibboleth", idp.getEntityID());
+        assertEquals("Exemple 2", idp.getName());
+        assertEquals("https://idp2.example.org/idp/profile/Shibboleth/SSO", idp.getUrl());
+
+        // URN entityID
+        idp= idps.get("urn:mace:example.net:idp");
+        assertEquals("urn:mace:example.net:idp", idp.getName());
+        assertEquals("https://idp.example.net/SSO", idp.getUrl());
+    }
+
+    public void testReordered() throws Exception {
+        Map<String, IdentityProvider> idps= reader_.read(new ByteArrayInputStream(METADATA.getBytes("UTF-8")),
+                                                         "test");
+        Map<String, String> entityIDs= new HashMap<String, String>();
+        for (IdentityProvider idp : idps.values()) {
+            entityIDs.put(idp.getId(), idp.getEntityID());
+        }
+        // aai-logon moved after idp2, which has the same scope
+        int start= METADATA.indexOf("  <md:EntityDescriptor entityID=\"https://aai-logon");
+        int end= METADATA.indexOf("  <md:EntityDescriptor entityID=\"https://slcs");
+        String reordered= METADATA.substring(0, start) + METADATA.substring(end);
+        int nestedEnd= reordered.lastIndexOf("  </md:EntitiesDescriptor>");
+        reordered= reordered.substring(0, nestedEnd)
+                + METADATA.substring(start, end)
+                + reordered.substring(nestedEnd);
+        assertTrue(reordered.indexOf("https://idp2.example.org") < reordered.indexOf("https://aai-logon.example.org"));
+
+        idps= reader_.read(new ByteArrayInputStream(reordered.getBytes("UTF-8")),
+                           "reordered");
+        assertEquals(entityIDs.size(), idps.size());
+        for (IdentityProvider idp : idps.values()) {
+            assertEquals(idp.getId(), entityIDs.get(idp.getId()),
+                         idp.getEntityID());
+        }
+        assertEquals("https://aai-logon.example.org/idp/shibboleth",
+                     idps.get("example.org").getEntityID());
+    }
+
+    public void testErrors() throws Exception {
+        try {
+            reader_.read(new ByteArrayInputStream("<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\"/>".getBytes("UTF-8")),
+                         "empty");
+            fail("no IdP");
+        } catch (SLCSConfigurationException e) {
+            assertTrue(e.getMessage().startsWith("No IdP EntityDescriptor found"));
+        }
+        try {
+            reader_.read(new ByteArrayInputStream(METADATA.substring(0, 500).getBytes("UTF-8")),
+                         "truncated");
+            fail("invalid XML");
+        } catch (SLCSConfigurationException e) {
+            assertTrue(e.getMessage().startsWith("Failed to parse SAML2 metadata: truncated"));
+        }
+    }
+
+}
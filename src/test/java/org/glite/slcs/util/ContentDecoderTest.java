@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2010-2013 SWITCH
+ * Copyright (c) 2006-2010 Members of the EGEE Collaboration
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glite.slcs.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the gzip and deflate response decoding.
+ *
+ * @author Valery Tschopp <tschopp@switch.ch>
+ */
+public class ContentDecoderTest extends TestCase {
+
+    private byte[] page_ = null;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        StringBuilder page = new StringBuilder("<html><body>");
+        for (int i = 0; i < 1000; i++) {
+            page.append("<p>IdP login page</p>");
+        }
+        page.append("</body></html>");
+        page_ = page.toString().getBytes("UTF-8");
+    }
+
+    private byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    public void testGzip() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write(page_);
+        gzip.close();
+        ContentDecoder decoder = new ContentDecoder();
+        InputStream in = decoder.decode(new ByteArrayInputStream(compressed.toByteArray()),
+                                        "gzip");
+        assertEquals(new String(page_, "UTF-8"), new String(read(in), "UTF-8"));
+        assertEquals(compressed.size(), decoder.getCompressedBytes());
+        assertEquals(page_.length, decoder.getDecompressedBytes());
+    }
+
+    public void testDeflate() throws Exception {
+        // zlib and raw deflate data
+        for (boolean nowrap : new boolean[] { false, true }) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            DeflaterOutputStream deflate = new DeflaterOutputStream(compressed,
+                    new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap));
+            deflate.write(page_);
+            deflate.close();
+            ContentDecoder decoder = new ContentDecoder();
+            InputStream in = decoder.decode(new ByteArrayInputStream(compressed.toByteArray()),
+                                            "Deflate");
+            assertEquals(new String(page_, "UTF-8"), new String(read(in),
+                    "UTF-8"));
+            assertEquals(page_.length, decoder.getDecompressedBytes());
+        }
+    }
+
+    public void testDeflateClose() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        DeflaterOutputStream deflate = new DeflaterOutputStream(compressed);
+        deflate.write(page_);
+        deflate.close();
+        Inflater inflater = new Inflater();
+        InputStream in = new ContentDecoder.DeflateInputStream(new ByteArrayInputStream(compressed.toByteArray()),
+                                                               inflater);
+        assertEquals(page_.length, read(in).length);
+        in.close();
+        try {
+            inflater.inflate(new byte[1]);
+            fail("inflater not ended");
+        } catch (NullPointerException e) {
+            // ended
+        }
+    }
+
+    public void testIdentity() throws Exception {
+        ContentDecoder decoder = new ContentDecoder();
+        InputStream body = new ByteArrayInputStream(page_);
+        assertSame(body, decoder.decode(body, null));
+        assertSame(body, decoder.decode(body, "identity"));
+        assertEquals(0, decoder.getCompressedBytes());
+    }
+
+}